@@ -138,7 +138,7 @@ public interface BatchContext
          */
         public Builder local(int parallelism)
         {
-            this.factory = f -> new LocalJobScheduler(parallelism);
+            this.factory = f -> new LocalJobScheduler(f, parallelism);
             return this;
         }
 
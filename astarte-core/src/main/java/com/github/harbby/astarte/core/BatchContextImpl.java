@@ -26,7 +26,11 @@ import com.github.harbby.gadtry.graph.Graph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,6 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -50,7 +55,12 @@ class BatchContextImpl
 {
     private static final Logger logger = LoggerFactory.getLogger(BatchContextImpl.class);
     private final AtomicInteger nextJobId = new AtomicInteger(1);
+    //stageId同时作为shuffleId, 在整个context内唯一, 已完成的shuffle输出可以被之后的job读取
+    private final AtomicInteger nextStageId = new AtomicInteger(1);
     private final AstarteConf conf;
+    //已完成的shuffle输出: ShuffleMapOperator id -> 弱引用, operator不可达后释放
+    private final Map<Integer, ShuffleOutputReference> completedShuffles = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ShuffleMapOperator<?, ?>> unreachableShuffles = new ReferenceQueue<>();
 
     private final JobScheduler jobScheduler;  //LocalJobScheduler
 
@@ -63,6 +73,7 @@ class BatchContextImpl
     @Override
     public void stop()
     {
+        completedShuffles.clear();
         jobScheduler.stop();
     }
 
@@ -78,19 +89,79 @@ class BatchContextImpl
         checkArgument(!(finalOperator instanceof KvDataSet), "use unboxing(this)");
         int jobId = nextJobId.getAndIncrement();
         logger.info("begin analysis job {} deps to stageDAG", jobId);
+        releaseUnreachableShuffles();
 
-        Map<Operator<?>, Set<Integer>> stageTree = parserTree(finalOperator);
-        Map<Stage, Map<Integer, Integer>> optimizedDag = optimizer(jobId, stageTree);
+        Map<Integer, Integer> completedShuffleStages = new HashMap<>();
+        completedShuffles.forEach((shuffleMapId, reference) -> completedShuffleStages.put(shuffleMapId, reference.stageId));
+        Map<Operator<?>, Set<Integer>> stageTree = parserTree(finalOperator, completedShuffleStages.keySet());
+        Map<Stage, Map<Integer, Integer>> optimizedDag = optimizer(jobId, stageTree, completedShuffleStages);
 
         Graph<Stage, Void> graph = toGraph(optimizedDag);
         if (optimizedDag.size() < 10) {
             logger.info("job graph tree:{}", String.join("\n", graph.printShow()));
         }
         //---------------------
-        return jobScheduler.runJob(jobId, ImmutableList.copy(optimizedDag.keySet()), action, optimizedDag);
+        List<R> result;
+        try {
+            result = jobScheduler.runJob(jobId, ImmutableList.copy(optimizedDag.keySet()), action, optimizedDag);
+        }
+        catch (RuntimeException | Error e) {
+            releaseFailedShuffles(jobId, optimizedDag.keySet());
+            throw e;
+        }
+        for (Stage stage : optimizedDag.keySet()) {
+            if (stage instanceof ShuffleMapStage) {
+                ShuffleMapOperator<?, ?> operator = ((ShuffleMapStage) stage).getFinalOperator();
+                completedShuffles.put(operator.getId(), new ShuffleOutputReference(operator, stage.getStageId(), unreachableShuffles));
+            }
+        }
+        return result;
     }
 
-    private static Map<Operator<?>, Set<Integer>> parserTree(Operator<?> finalDataSet)
+    /**
+     * 失败的job不会登记shuffle输出, 之后的job也不会读取, 释放本次job中已经写出的部分map输出
+     */
+    private void releaseFailedShuffles(int jobId, Set<Stage> stages)
+    {
+        int[] shuffleIds = stages.stream()
+                .filter(stage -> stage instanceof ShuffleMapStage)
+                .mapToInt(Stage::getStageId)
+                .toArray();
+        if (shuffleIds.length == 0) {
+            return;
+        }
+        try {
+            jobScheduler.releaseShuffles(shuffleIds);
+            logger.info("job {} failed, released shuffle outputs of stages {}", jobId, Arrays.toString(shuffleIds));
+        }
+        catch (RuntimeException e) {
+            logger.warn("job {} failed, release shuffle outputs of stages {} failed", jobId, Arrays.toString(shuffleIds), e);
+        }
+    }
+
+    /**
+     * driver端已经不可达的ShuffleMapOperator不会再被任何job依赖, 释放其shuffle输出
+     */
+    private void releaseUnreachableShuffles()
+    {
+        List<Integer> shuffleIds = new ArrayList<>();
+        Reference<? extends ShuffleMapOperator<?, ?>> reference;
+        while ((reference = unreachableShuffles.poll()) != null) {
+            ShuffleOutputReference shuffleOutput = (ShuffleOutputReference) reference;
+            if (completedShuffles.remove(shuffleOutput.shuffleMapId, shuffleOutput)) {
+                shuffleIds.add(shuffleOutput.stageId);
+            }
+        }
+        if (!shuffleIds.isEmpty()) {
+            logger.info("release unreachable shuffle outputs of stages {}", shuffleIds);
+            jobScheduler.releaseShuffles(shuffleIds.stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    /**
+     * @param completedShuffleMapIds 输出已经存在的ShuffleMapOperator, 不再遍历其上游
+     */
+    private static Map<Operator<?>, Set<Integer>> parserTree(Operator<?> finalDataSet, Set<Integer> completedShuffleMapIds)
     {
         Map<Operator<?>, Operator<?>> mapping = new HashMap<>();
         Map<Operator<?>, Set<Integer>> stageTree = new LinkedHashMap<>();
@@ -109,6 +180,9 @@ class BatchContextImpl
                 if (operator instanceof ShuffleMapOperator) {
                     Set<Integer> stageDeps = stageTree.get(currentStage);
                     stageDeps.add(operator.getId());
+                    if (completedShuffleMapIds.contains(operator.getId())) {
+                        continue;
+                    }
                     Set<Integer> set = stageTree.remove(operator);
                     stageTree.put(operator, set == null ? new HashSet<>() : set);
                 }
@@ -121,25 +195,36 @@ class BatchContextImpl
         return stageTree;
     }
 
-    private static Map<Stage, Map<Integer, Integer>> optimizer(int jobId, Map<Operator<?>, Set<Integer>> stageTree)
+    private Map<Stage, Map<Integer, Integer>> optimizer(int jobId, Map<Operator<?>, Set<Integer>> stageTree, Map<Integer, Integer> completedShuffleStages)
     {
         List<Map.Entry<Operator<?>, Set<Integer>>> stages = new ArrayList<>(stageTree.entrySet());
         Collections.reverse(stages);
         Map<Stage, Map<Integer, Integer>> stageMap = new LinkedHashMap<>();
         Map<Integer, Integer> mapping = new HashMap<>();
-        int stageId = 1;
+        Set<Integer> reusedStages = new HashSet<>();
         for (Map.Entry<Operator<?>, Set<Integer>> entry : stages) {
+            for (int shuffleMapId : entry.getValue()) {
+                Integer completedStageId = completedShuffleStages.get(shuffleMapId);
+                if (completedStageId != null) {
+                    mapping.put(shuffleMapId, completedStageId);
+                    reusedStages.add(completedStageId);
+                }
+            }
             Stage stage;
+            int stageId = nextStageId.getAndIncrement();
             if (entry.getKey() instanceof ShuffleMapOperator) {
                 ((ShuffleMapOperator<?, ?>) entry.getKey()).setStageId(stageId);
-                stage = new ShuffleMapStage((ShuffleMapOperator<?, ?>) entry.getKey(), jobId, stageId++);
+                stage = new ShuffleMapStage((ShuffleMapOperator<?, ?>) entry.getKey(), jobId, stageId);
                 mapping.put(entry.getKey().getId(), stage.getStageId());
             }
             else {
-                stage = new ResultStage<>(entry.getKey(), jobId, stageId++);
+                stage = new ResultStage<>(entry.getKey(), jobId, stageId);
             }
             stageMap.put(stage, entry.getValue().stream().collect(Collectors.toMap(k -> k, mapping::get)));
         }
+        if (!reusedStages.isEmpty()) {
+            logger.info("job {} skipped completed shuffle stages {}", jobId, reusedStages);
+        }
         return stageMap;
     }
 
@@ -150,12 +235,30 @@ class BatchContextImpl
             builder.addNode(stage.getStageId() + "", stage);
         }
 
+        Set<Integer> stageIds = stages.keySet().stream().map(Stage::getStageId).collect(Collectors.toSet());
         for (Map.Entry<Stage, ? extends Map<Integer, Integer>> entry : stages.entrySet()) {
             for (int id : entry.getValue().values()) {
-                builder.addEdge(entry.getKey().getStageId() + "", id + "");
+                //复用之前job的shuffle输出时, 上游stage不在本次job中
+                if (stageIds.contains(id)) {
+                    builder.addEdge(entry.getKey().getStageId() + "", id + "");
+                }
             }
         }
         //graph.printShow().forEach(x -> System.out.println(x));
         return builder.create();
     }
+
+    private static class ShuffleOutputReference
+            extends WeakReference<ShuffleMapOperator<?, ?>>
+    {
+        private final int shuffleMapId;
+        private final int stageId;
+
+        private ShuffleOutputReference(ShuffleMapOperator<?, ?> operator, int stageId, ReferenceQueue<ShuffleMapOperator<?, ?>> queue)
+        {
+            super(operator, queue);
+            this.shuffleMapId = operator.getId();
+            this.stageId = stageId;
+        }
+    }
 }
@@ -37,6 +37,13 @@ public abstract class JobScheduler
             Mapper<Iterator<E>, R> action,
             Map<Stage, Map<Integer, Integer>> stageMap);
 
+    /**
+     * 释放不会再被任何job读取的shuffle输出
+     *
+     * @param shuffleIds 产生shuffle输出的stageId
+     */
+    public abstract void releaseShuffles(int[] shuffleIds);
+
     public abstract void stop();
 
     public static void setFactory(JobScheduler.Factory factory)
@@ -27,6 +27,7 @@ public class MapTaskState
     private ByteBuffer header;
     private int mapId;
     private long[] segmentEnds;
+    private long[] segmentRowCounts;
 
     public MapTaskState(ByteBuffer header, int mapId)
     {
@@ -46,6 +47,19 @@ public class MapTaskState
         return segmentEnds;
     }
 
+    public long[] getSegmentRowCounts()
+    {
+        return segmentRowCounts;
+    }
+
+    /**
+     * 该map输出中reduceId分区的数据大小(压缩后)
+     */
+    public long getSegmentLength(int reduceId)
+    {
+        return segmentEnds[reduceId] - (reduceId == 0 ? 0 : segmentEnds[reduceId - 1]);
+    }
+
     @Override
     public void writeExternal(ObjectOutput out)
             throws IOException
@@ -59,9 +73,13 @@ public class MapTaskState
             throws IOException
     {
         this.mapId = in.readInt();
+        //header = int(segmentSize) + byte(codecId) + segmentSize * (long(segmentEnd) + long(rowCount))
         this.segmentEnds = new long[in.readInt()];
+        this.segmentRowCounts = new long[segmentEnds.length];
+        in.readByte();
         for (int i = 0; i < segmentEnds.length; i++) {
             segmentEnds[i] = in.readLong();
+            segmentRowCounts[i] = in.readLong();
         }
     }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.utils.LoserTreeMerger;
+import com.github.harbby.gadtry.base.Iterators;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 按采样得到的边界划分key的范围, 用于全局排序.
+ * 查找分区时对边界二分查找, 有前缀时先比较边界的long前缀, 前缀相同且不精确时才调用comparator
+ */
+public class RangePartitioner<K>
+        extends Partitioner
+{
+    private final int numPartitions;
+    private final K[] bounds;
+    private final Comparator<K> comparator;
+    private final LoserTreeMerger.PrefixComputer<K> prefixComputer;
+    private final long[] boundPrefixes;
+    private final boolean prefixExact;
+
+    /**
+     * @param bounds 升序且不重复, 长度小于numPartitions
+     * @param prefixComputer 可以为null, 不为null时其前缀顺序必须与comparator一致
+     */
+    public RangePartitioner(int numPartitions, K[] bounds, Comparator<K> comparator, LoserTreeMerger.PrefixComputer<K> prefixComputer)
+    {
+        this.numPartitions = numPartitions;
+        this.bounds = requireNonNull(bounds, "bounds is null");
+        this.comparator = requireNonNull(comparator, "comparator is null");
+        this.prefixComputer = prefixComputer;
+        this.prefixExact = prefixComputer != null && prefixComputer.isPrefixExact();
+        if (prefixComputer != null) {
+            this.boundPrefixes = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                boundPrefixes[i] = prefixComputer.computePrefix(bounds[i]);
+            }
+        }
+        else {
+            this.boundPrefixes = null;
+        }
+    }
+
+    /**
+     * 并行采样operator的所有分区, 根据样本确定分区边界
+     *
+     * @param keys 采样时会完整计算一次, 调用方应缓存其上游避免重复计算
+     */
+    public static <K> RangePartitioner<K> create(int numPartitions, Operator<K> keys, Comparator<K> comparator, LoserTreeMerger.PrefixComputer<K> prefixComputer)
+    {
+        int sampleSize = Math.min(200 * numPartitions, 1 << 20); //max 1M rows
+        int sampleSizePerPartition = (int) Math.ceil(1.0 * sampleSize / keys.numPartitions());
+        List<SampleResult<K>> sampleResults = sketch(keys, sampleSizePerPartition);
+        List<K> bounds = determineBounds(sampleResults, comparator, numPartitions);
+        return new RangePartitioner<>(numPartitions, RangePartitioner.<K>cast(bounds.toArray()), comparator, prefixComputer);
+    }
+
+    @Override
+    public int numPartitions()
+    {
+        return numPartitions;
+    }
+
+    /**
+     * 返回第一个大于key的边界下标, 即小于等于key的边界个数
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public int getPartition(Object key)
+    {
+        K k = (K) key;
+        long prefix = prefixComputer == null ? 0 : prefixComputer.computePrefix(k);
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(k, prefix, mid) < 0) {
+                high = mid;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private int compare(K key, long prefix, int boundIndex)
+    {
+        if (boundPrefixes != null) {
+            int than = Long.compareUnsigned(prefix, boundPrefixes[boundIndex]);
+            if (than != 0 || prefixExact) {
+                return than;
+            }
+        }
+        return comparator.compare(key, bounds[boundIndex]);
+    }
+
+    static <K> List<K> determineBounds(List<SampleResult<K>> sampleResults, Comparator<K> comparator, int numPartitions)
+    {
+        long totalCount = sampleResults.stream().mapToLong(SampleResult::getPartitionCount).sum();
+        //每个样本的权重为所在分区的总行数除以样本数, 各分区数据量不均匀时仍然能够按行数均分
+        List<Tuple2<K, Double>> candidates = new ArrayList<>();
+        for (SampleResult<K> sample : sampleResults) {
+            if (sample.getData().length == 0) {
+                continue;
+            }
+            double weight = (double) sample.getPartitionCount() / sample.getData().length;
+            for (K k : sample.getData()) {
+                candidates.add(Tuple2.of(k, weight));
+            }
+        }
+        if (totalCount == 0 || candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        candidates.sort((x, y) -> comparator.compare(x.key(), y.key()));
+        double sumWeights = candidates.stream().mapToDouble(Tuple2::value).sum();
+        double step = sumWeights / numPartitions;
+        double cumWeight = 0.0;
+        double target = step;
+        List<K> bounds = new ArrayList<>();
+        K previousBound = null;
+        for (int i = 0; i < candidates.size() && bounds.size() < numPartitions - 1; i++) {
+            Tuple2<K, Double> candidate = candidates.get(i);
+            cumWeight += candidate.value();
+            if (cumWeight >= target) {
+                // Skip duplicate values.
+                if (bounds.isEmpty() || comparator.compare(candidate.key(), previousBound) > 0) {
+                    bounds.add(candidate.key());
+                    target += step;
+                    previousBound = candidate.key();
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * 每个分区做水塘抽样, 同时统计分区的总行数
+     */
+    private static <K> List<SampleResult<K>> sketch(Operator<K> keys, int sampleSizePerPartition)
+    {
+        return keys.mapPartitionWithId((index, iterator) -> {
+            Object[] reservoir = new Object[sampleSizePerPartition];
+            long count = 0;
+            Random random = new Random(index);
+            while (iterator.hasNext()) {
+                K key = iterator.next();
+                if (count < sampleSizePerPartition) {
+                    reservoir[(int) count] = key;
+                }
+                else {
+                    long replace = (long) (random.nextDouble() * (count + 1));
+                    if (replace < sampleSizePerPartition) {
+                        reservoir[(int) replace] = key;
+                    }
+                }
+                count++;
+            }
+            Object[] data = count < sampleSizePerPartition ? Arrays.copyOf(reservoir, (int) count) : reservoir;
+            return Iterators.of(new SampleResult<K>(count, index, RangePartitioner.<K>cast(data)));
+        }).collect();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K[] cast(Object[] array)
+    {
+        return (K[]) array;
+    }
+
+    static class SampleResult<E>
+            implements Serializable
+    {
+        private final long partitionCount;
+        private final int partitionId;
+        private final E[] data;
+
+        SampleResult(long partitionCount, int partitionId, E[] data)
+        {
+            this.partitionCount = partitionCount;
+            this.partitionId = partitionId;
+            this.data = data;
+        }
+
+        public long getPartitionCount()
+        {
+            return partitionCount;
+        }
+
+        public int getPartitionId()
+        {
+            return partitionId;
+        }
+
+        public E[] getData()
+        {
+            return data;
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.github.harbby.astarte.core;
 
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.runtime.LocalShuffleExchange;
 import com.github.harbby.astarte.core.runtime.ShuffleClient;
 
 import java.io.File;
@@ -34,12 +36,32 @@ public interface TaskContext
 
     public int getDependShuffleId(int dependShuffleMapId);
 
+    public TaskMemoryManager getTaskMemoryManager();
+
+    /**
+     * @return local模式的内存shuffle, cluster模式或者未开启时为null
+     */
+    public LocalShuffleExchange getLocalShuffleExchange();
+
+    public static TaskContext of(
+            int jobId,
+            int stageId,
+            Map<Integer, Integer> depStages,
+            ShuffleClient shuffleClient,
+            File shuffleWorkDir,
+            TaskMemoryManager taskMemoryManager)
+    {
+        return of(jobId, stageId, depStages, shuffleClient, shuffleWorkDir, taskMemoryManager, null);
+    }
+
     public static TaskContext of(
             int jobId,
             int stageId,
             Map<Integer, Integer> depStages,
             ShuffleClient shuffleClient,
-            File shuffleWorkDir)
+            File shuffleWorkDir,
+            TaskMemoryManager taskMemoryManager,
+            LocalShuffleExchange localShuffleExchange)
     {
         return new TaskContext()
         {
@@ -72,6 +94,18 @@ public interface TaskContext
             {
                 return requireNonNull(depStages.get(dependShuffleMapId), "not found shuffleMapId" + dependShuffleMapId + " stage");
             }
+
+            @Override
+            public TaskMemoryManager getTaskMemoryManager()
+            {
+                return taskMemoryManager;
+            }
+
+            @Override
+            public LocalShuffleExchange getLocalShuffleExchange()
+            {
+                return localShuffleExchange;
+            }
         };
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * 自适应合并后的reduce分区, 读取上游shuffle中[startReduceId, endReduceId)连续的多个分区
+ */
+public class CoalescedPartition
+        extends Partition
+{
+    private final int startReduceId;
+    private final int endReduceId;
+
+    public CoalescedPartition(int index, int startReduceId, int endReduceId)
+    {
+        super(index);
+        checkArgument(startReduceId >= 0 && startReduceId < endReduceId, "invalid reduce range [%s, %s)", startReduceId, endReduceId);
+        this.startReduceId = startReduceId;
+        this.endReduceId = endReduceId;
+    }
+
+    public int getStartReduceId()
+    {
+        return startReduceId;
+    }
+
+    public int getEndReduceId()
+    {
+        return endReduceId;
+    }
+
+    /**
+     * 普通分区读取与分区id相同的reduce分区
+     */
+    public static int startReduceId(Partition partition)
+    {
+        return partition instanceof CoalescedPartition ? ((CoalescedPartition) partition).startReduceId : partition.getId();
+    }
+
+    public static int endReduceId(Partition partition)
+    {
+        return partition instanceof CoalescedPartition ? ((CoalescedPartition) partition).endReduceId : partition.getId() + 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("id", getId())
+                .add("startReduceId", startReduceId)
+                .add("endReduceId", endReduceId)
+                .toString();
+    }
+}
@@ -25,5 +25,68 @@ public class Constant
 
     public static final String SHUFFLE_MAP_COMBINE_ENABLE = "shuffle.map.combine.enable";
 
+    public static final String SHUFFLE_BYPASS_MERGE_THRESHOLD = "shuffle.bypass.merge.threshold";
+
+    /**
+     * shuffle和溢写文件的压缩算法: lz4(默认), zstd, none
+     */
+    public static final String SHUFFLE_COMPRESSION_CODEC = "shuffle.compression.codec";
+
+    public static final String SHUFFLE_COMPRESSION_ZSTD_LEVEL = "shuffle.compression.zstd.level";
+
+    /**
+     * reduce task下载shuffle数据时已下载但未读取的数据上限(MB), 超过时暂停从网络读取
+     */
+    public static final String SHUFFLE_FETCH_MAX_INFLIGHT_MB = "shuffle.fetch.max.inflight.mb";
+
+    /**
+     * reduce task同时在途的block请求数上限
+     */
+    public static final String SHUFFLE_FETCH_MAX_INFLIGHT_REQUESTS = "shuffle.fetch.max.inflight.requests";
+
+    /**
+     * 根据map输出的统计信息合并相邻的小reduce分区, 默认关闭
+     */
+    public static final String SHUFFLE_ADAPTIVE_COALESCE_ENABLE = "shuffle.adaptive.coalesce.enable";
+
+    /**
+     * 合并后每个reduce分区的目标数据量(MB)
+     */
+    public static final String SHUFFLE_ADAPTIVE_COALESCE_TARGET_MB = "shuffle.adaptive.coalesce.target.mb";
+
+    /**
+     * 拆分sort merge join中倾斜的reduce分区, 默认关闭. 拆分后每个task的目标数据量使用shuffle.adaptive.coalesce.target.mb
+     */
+    public static final String SHUFFLE_SKEW_JOIN_ENABLE = "shuffle.skew.join.enable";
+
+    /**
+     * reduce分区大小超过所有分区中位数的倍数, 并且超过shuffle.skew.partition.threshold.mb时认为倾斜
+     */
+    public static final String SHUFFLE_SKEW_PARTITION_FACTOR = "shuffle.skew.partition.factor";
+
+    public static final String SHUFFLE_SKEW_PARTITION_THRESHOLD_MB = "shuffle.skew.partition.threshold.mb";
+
+    /**
+     * local模式下内存shuffle的内存上限(MB), 超过后map输出回退为写磁盘. 默认为最大堆内存的1/4, 设置为0时关闭
+     */
+    public static final String LOCAL_SHUFFLE_MEMORY_MB = "local.shuffle.memory.mb";
+
+    /**
+     * shuffle map端异步溢写, 默认关闭. 开启后排序缓冲区分为两个, 每个最多使用task内存预算的一半,
+     * 后台线程溢写其中一个时task继续写入另一个
+     */
+    public static final String SHUFFLE_SPILL_ASYNC_ENABLE = "shuffle.spill.async.enable";
+
+    /**
+     * sortByKey采样时以MEM_DISK模式缓存输入, shuffle map读取缓存而不是重新计算上游, 默认开启.
+     * 存储内存不足的部分溢写到executor本地磁盘, 上游计算代价很低并且磁盘紧张时可以关闭
+     */
+    public static final String SORT_SAMPLE_CACHE_ENABLE = "sort.sample.cache.enable";
+
+    /**
+     * sort merge join时同一个key缓存在内存中的最大行数, 超过后溢写到磁盘, 默认100000
+     */
+    public static final String JOIN_BUFFER_SPILL_THRESHOLD = "join.buffer.spill.threshold";
+
     public static final String CALC_OPERATOR_CODE_GENERATION_ENABLE = "calc.operator.code.generation.enable";
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import java.util.Map;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 倾斜的reduce分区拆分后的一部分, 只读取指定shuffle中[startMapId, endMapId)的map输出,
+ * 其它shuffle输入仍然读取全部map输出(join时复制到每个拆分的task)
+ */
+public class SkewedPartition
+        extends CoalescedPartition
+{
+    /**
+     * shuffleMapOperatorId -> {startMapId, endMapId}
+     */
+    private final Map<Integer, int[]> mapRanges;
+
+    public SkewedPartition(int index, int reduceId, Map<Integer, int[]> mapRanges)
+    {
+        super(index, reduceId, reduceId + 1);
+        this.mapRanges = requireNonNull(mapRanges, "mapRanges is null");
+        for (int[] range : mapRanges.values()) {
+            checkArgument(range.length == 2 && range[0] >= 0 && range[0] < range[1], "invalid map range");
+        }
+    }
+
+    public int getReduceId()
+    {
+        return getStartReduceId();
+    }
+
+    /**
+     * 没有拆分的shuffle输入从第一个map开始读取
+     */
+    public static int startMapId(Partition partition, int shuffleMapOperatorId)
+    {
+        int[] range = partition instanceof SkewedPartition ? ((SkewedPartition) partition).mapRanges.get(shuffleMapOperatorId) : null;
+        return range == null ? 0 : range[0];
+    }
+
+    /**
+     * 没有拆分的shuffle输入读取全部map输出
+     */
+    public static int endMapId(Partition partition, int shuffleMapOperatorId)
+    {
+        int[] range = partition instanceof SkewedPartition ? ((SkewedPartition) partition).mapRanges.get(shuffleMapOperatorId) : null;
+        return range == null ? Integer.MAX_VALUE : range[1];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder ranges = new StringBuilder();
+        mapRanges.forEach((shuffleMapOperatorId, range) -> ranges.append(shuffleMapOperatorId)
+                .append(":[").append(range[0]).append(", ").append(range[1]).append(") "));
+        return toStringHelper(this)
+                .add("id", getId())
+                .add("reduceId", getReduceId())
+                .add("mapRanges", ranges.toString().trim())
+                .toString();
+    }
+}
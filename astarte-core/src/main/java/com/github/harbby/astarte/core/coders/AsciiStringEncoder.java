@@ -28,8 +28,10 @@ import java.io.IOException;
  */
 @SuppressWarnings("checkstyle:RegexpMultiline")
 public class AsciiStringEncoder
-        implements Encoder<String>
+        implements OrderedEncoder<String>
 {
+    private static final Comparator<String> COMPARATOR = String::compareTo;
+
     @Override
     public void encoder(String value, DataOutput output)
             throws IOException
@@ -64,6 +66,19 @@ public class AsciiStringEncoder
     @Override
     public Comparator<String> comparator()
     {
-        return String::compareTo;
+        return COMPARATOR;
+    }
+
+    @Override
+    public long computePrefix(String value)
+    {
+        return StringOrdering.asciiPrefix(value);
+    }
+
+    @Override
+    public int compareEncoded(DataInput left, DataInput right)
+            throws IOException
+    {
+        return StringOrdering.compareFixedWidth(left, right, Byte.BYTES);
     }
 }
@@ -22,8 +22,10 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 public class DoubleEncoder
-        implements Encoder<Double>
+        implements OrderedEncoder<Double>
 {
+    private static final Comparator<Double> COMPARATOR = Double::compare;
+
     @Override
     public void encoder(Double value, DataOutput output)
             throws IOException
@@ -41,6 +43,29 @@ public class DoubleEncoder
     @Override
     public Comparator<Double> comparator()
     {
-        return Double::compare;
+        return COMPARATOR;
+    }
+
+    /**
+     * 与Double.compare一致: 负数按位取反, 非负数翻转符号位, 所有NaN相等且最大
+     */
+    @Override
+    public long computePrefix(Double value)
+    {
+        long bits = Double.doubleToLongBits(value);
+        return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public boolean isPrefixExact()
+    {
+        return true;
+    }
+
+    @Override
+    public int compareEncoded(DataInput left, DataInput right)
+            throws IOException
+    {
+        return Double.compare(left.readDouble(), right.readDouble());
     }
 }
@@ -19,6 +19,7 @@ import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.IteratorPlus;
 
 import java.io.Closeable;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,17 +31,24 @@ import static java.util.Objects.requireNonNull;
 public class EncoderInputStream<E>
         implements IteratorPlus<E>, Closeable
 {
-    private final DataInputStream dataInput;
+    private final InputStream inputStream;
+    private final DataInput dataInput;
     private final Encoder<E> encoder;
     private final long count;
     private long index = 0;
 
+    /**
+     * inputStream本身实现了DataInput时(例如{@link com.github.harbby.astarte.core.coders.io.ByteBufDataInput})直接使用,
+     * 避免DataInputStream逐字节读取
+     */
     public EncoderInputStream(long count, Encoder<E> encoder, InputStream inputStream)
     {
         checkState(count >= 0, "row count >= 0");
+        requireNonNull(inputStream, "inputStream is null");
         this.count = count;
         this.encoder = requireNonNull(encoder, "encoder is null");
-        this.dataInput = new DataInputStream(requireNonNull(inputStream, "inputStream is null"));
+        this.inputStream = inputStream;
+        this.dataInput = inputStream instanceof DataInput ? (DataInput) inputStream : new DataInputStream(inputStream);
     }
 
     @Override
@@ -49,7 +57,7 @@ public class EncoderInputStream<E>
         boolean hasNext = index < count;
         if (!hasNext) {
             try {
-                dataInput.close();
+                this.close();
             }
             catch (IOException e) {
                 throw Throwables.throwsThrowable(e);
@@ -77,6 +85,6 @@ public class EncoderInputStream<E>
     public void close()
             throws IOException
     {
-        dataInput.close();
+        inputStream.close();
     }
 }
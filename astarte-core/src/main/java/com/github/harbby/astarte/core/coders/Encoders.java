@@ -145,6 +145,9 @@ public final class Encoders
     {
         requireNonNull(kEncoder, "key Encoder is null");
         requireNonNull(vEncoder, "value Encoder is null");
+        if (kEncoder instanceof OrderedEncoder && vEncoder instanceof OrderedEncoder) {
+            return new Tuple2Encoder.Tuple2OrderedEncoder<>((OrderedEncoder<K>) kEncoder, (OrderedEncoder<V>) vEncoder);
+        }
         return new Tuple2Encoder.Tuple2KVEncoder<>(kEncoder, vEncoder);
     }
 
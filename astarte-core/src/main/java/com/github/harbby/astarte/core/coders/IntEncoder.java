@@ -22,8 +22,10 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 public class IntEncoder
-        implements Encoder<Integer>
+        implements OrderedEncoder<Integer>
 {
+    private static final Comparator<Integer> COMPARATOR = Integer::compare;
+
     @Override
     public void encoder(Integer value, DataOutput output)
             throws IOException
@@ -41,6 +43,25 @@ public class IntEncoder
     @Override
     public Comparator<Integer> comparator()
     {
-        return Integer::compare;
+        return COMPARATOR;
+    }
+
+    @Override
+    public long computePrefix(Integer value)
+    {
+        return (value ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean isPrefixExact()
+    {
+        return true;
+    }
+
+    @Override
+    public int compareEncoded(DataInput left, DataInput right)
+            throws IOException
+    {
+        return Integer.compare(left.readInt(), right.readInt());
     }
 }
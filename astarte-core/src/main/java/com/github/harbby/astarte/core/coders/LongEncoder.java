@@ -22,8 +22,10 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 public class LongEncoder
-        implements Encoder<Long>
+        implements OrderedEncoder<Long>
 {
+    private static final Comparator<Long> COMPARATOR = Long::compare;
+
     @Override
     public void encoder(Long value, DataOutput output)
             throws IOException
@@ -41,6 +43,25 @@ public class LongEncoder
     @Override
     public Comparator<Long> comparator()
     {
-        return Long::compare;
+        return COMPARATOR;
+    }
+
+    @Override
+    public long computePrefix(Long value)
+    {
+        return value ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public boolean isPrefixExact()
+    {
+        return true;
+    }
+
+    @Override
+    public int compareEncoded(DataInput left, DataInput right)
+            throws IOException
+    {
+        return Long.compare(left.readLong(), right.readLong());
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.utils.LoserTreeMerger;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * 可以不解码直接比较编码结果的Encoder, 排序和归并时优先比较long前缀, 前缀相同再比较编码后的字节.
+ * 前缀和{@link #compareEncoded}的结果都必须与{@link #comparator()}一致,
+ * 且comparator()需要返回同一个实例, driver端据此判断shuffle使用的是否是该encoder的自然顺序
+ */
+public interface OrderedEncoder<E>
+        extends Encoder<E>, LoserTreeMerger.PrefixComputer<E>
+{
+    /**
+     * 比较两个编码后的值, 两个输入都会被完整读过当前值
+     */
+    public int compareEncoded(DataInput left, DataInput right)
+            throws IOException;
+
+    /**
+     * 返回shuffle key可以使用的OrderedEncoder, shuffle的排序规则不是该encoder的自然顺序时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public static <K> OrderedEncoder<K> getOrderedKeyEncoder(Encoder<? extends Tuple2<K, ?>> encoder, Comparator<K> comparator)
+    {
+        if (!(encoder instanceof Tuple2Encoder)) {
+            return null;
+        }
+        Encoder<K> keyEncoder = ((Tuple2Encoder<K, ?>) encoder).getKeyEncoder();
+        if (keyEncoder instanceof OrderedEncoder && keyEncoder.comparator() == comparator) {
+            return (OrderedEncoder<K>) keyEncoder;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * 字符串Encoder共用的排序前缀和编码比较, 顺序与String.compareTo一致
+ */
+final class StringOrdering
+{
+    private static final int PREFIX_CHARS = Long.BYTES / Character.BYTES;
+
+    private StringOrdering() {}
+
+    /**
+     * 前4个char按大端拼成long, 不足4个时补0
+     */
+    static long prefix(String value)
+    {
+        long prefix = 0;
+        int length = Math.min(value.length(), PREFIX_CHARS);
+        for (int i = 0; i < length; i++) {
+            prefix |= (long) value.charAt(i) << (Character.SIZE * (PREFIX_CHARS - 1 - i));
+        }
+        return prefix;
+    }
+
+    /**
+     * {@link AsciiStringEncoder}只保留每个char的低8位, 解码时按byte符号扩展, 前缀需要按解码后的字符计算
+     */
+    static long asciiPrefix(String value)
+    {
+        long prefix = 0;
+        int length = Math.min(value.length(), PREFIX_CHARS);
+        for (int i = 0; i < length; i++) {
+            prefix |= (long) (char) (byte) value.charAt(i) << (Character.SIZE * (PREFIX_CHARS - 1 - i));
+        }
+        return prefix;
+    }
+
+    /**
+     * 比较两个writeUTF写出的字符串. modified UTF-8中每个char单独编码, 逐个解码char比较即可与String.compareTo一致
+     */
+    static int compareModifiedUtf8(DataInput left, DataInput right)
+            throws IOException
+    {
+        int leftLength = left.readUnsignedShort();
+        int rightLength = right.readUnsignedShort();
+        int leftRead = 0;
+        int rightRead = 0;
+        int rs = 0;
+        while (leftRead < leftLength && rightRead < rightLength) {
+            int leftByte = left.readUnsignedByte();
+            int rightByte = right.readUnsignedByte();
+            leftRead++;
+            rightRead++;
+            if (leftByte == rightByte && leftByte < 0x80) {
+                continue;
+            }
+            int leftChar = readUtfChar(left, leftByte);
+            leftRead += utfCharLength(leftByte) - 1;
+            int rightChar = readUtfChar(right, rightByte);
+            rightRead += utfCharLength(rightByte) - 1;
+            if (leftChar != rightChar) {
+                rs = Integer.compare(leftChar, rightChar);
+                break;
+            }
+        }
+        if (rs == 0) {
+            rs = Boolean.compare(leftRead < leftLength, rightRead < rightLength);
+        }
+        left.skipBytes(leftLength - leftRead);
+        right.skipBytes(rightLength - rightRead);
+        return rs;
+    }
+
+    private static int utfCharLength(int first)
+    {
+        if (first < 0x80) {
+            return 1;
+        }
+        return (first & 0xE0) == 0xC0 ? 2 : 3;
+    }
+
+    private static int readUtfChar(DataInput input, int first)
+            throws IOException
+    {
+        if (first < 0x80) {
+            return first;
+        }
+        if ((first & 0xE0) == 0xC0) {
+            return ((first & 0x1F) << 6) | (input.readUnsignedByte() & 0x3F);
+        }
+        int second = input.readUnsignedByte();
+        int third = input.readUnsignedByte();
+        return ((first & 0x0F) << 12) | ((second & 0x3F) << 6) | (third & 0x3F);
+    }
+
+    /**
+     * 比较两个[int length][length个元素]格式的字符串, 每个元素由elementBytes个字节组成, 按无符号数比较
+     */
+    static int compareFixedWidth(DataInput left, DataInput right, int elementBytes)
+            throws IOException
+    {
+        //null写为-1, 按空字符串处理
+        int leftLength = Math.max(left.readInt(), 0);
+        int rightLength = Math.max(right.readInt(), 0);
+        int length = Math.min(leftLength, rightLength);
+        int read = 0;
+        int rs = 0;
+        while (read < length) {
+            int leftValue = elementBytes == 1 ? left.readUnsignedByte() : left.readUnsignedShort();
+            int rightValue = elementBytes == 1 ? right.readUnsignedByte() : right.readUnsignedShort();
+            read++;
+            if (leftValue != rightValue) {
+                rs = Integer.compare(leftValue, rightValue);
+                break;
+            }
+        }
+        if (rs == 0) {
+            rs = Integer.compare(leftLength, rightLength);
+        }
+        left.skipBytes((leftLength - read) * elementBytes);
+        right.skipBytes((rightLength - read) * elementBytes);
+        return rs;
+    }
+}
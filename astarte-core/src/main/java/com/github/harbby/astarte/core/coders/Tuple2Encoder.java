@@ -84,6 +84,51 @@ public interface Tuple2Encoder<K, V>
         }
     }
 
+    /**
+     * key和value都是{@link OrderedEncoder}时使用, 前缀取key的前缀, 编码比较依次比较key和value
+     */
+    public static class Tuple2OrderedEncoder<K, V>
+            extends Tuple2KVEncoder<K, V>
+            implements OrderedEncoder<Tuple2<K, V>>
+    {
+        private final OrderedEncoder<K> orderedKEncoder;
+        private final OrderedEncoder<V> orderedVEncoder;
+        private final Comparator<Tuple2<K, V>> comparator;
+
+        public Tuple2OrderedEncoder(OrderedEncoder<K> kEncoder, OrderedEncoder<V> vEncoder)
+        {
+            super(kEncoder, vEncoder);
+            this.orderedKEncoder = kEncoder;
+            this.orderedVEncoder = vEncoder;
+            this.comparator = super.comparator();
+        }
+
+        @Override
+        public Comparator<Tuple2<K, V>> comparator()
+        {
+            return comparator;
+        }
+
+        @Override
+        public long computePrefix(Tuple2<K, V> value)
+        {
+            return orderedKEncoder.computePrefix(value.key());
+        }
+
+        @Override
+        public int compareEncoded(DataInput left, DataInput right)
+                throws IOException
+        {
+            int than = orderedKEncoder.compareEncoded(left, right);
+            if (than != 0) {
+                orderedVEncoder.decoder(left);
+                orderedVEncoder.decoder(right);
+                return than;
+            }
+            return orderedVEncoder.compareEncoded(left, right);
+        }
+    }
+
     public static class Tuple2OnlyKeyEncoder<K>
             implements Tuple2Encoder<K, Void>
     {
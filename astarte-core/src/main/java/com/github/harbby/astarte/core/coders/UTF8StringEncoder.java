@@ -22,8 +22,10 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 public class UTF8StringEncoder
-        implements Encoder<String>
+        implements OrderedEncoder<String>
 {
+    private static final Comparator<String> COMPARATOR = String::compareTo;
+
     @Override
     public void encoder(String value, DataOutput output)
             throws IOException
@@ -41,6 +43,19 @@ public class UTF8StringEncoder
     @Override
     public Comparator<String> comparator()
     {
-        return String::compareTo;
+        return COMPARATOR;
+    }
+
+    @Override
+    public long computePrefix(String value)
+    {
+        return StringOrdering.prefix(value);
+    }
+
+    @Override
+    public int compareEncoded(DataInput left, DataInput right)
+            throws IOException
+    {
+        return StringOrdering.compareModifiedUtf8(left, right);
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * 块压缩算法, shuffle文件, 溢写文件和cache数据都按块压缩.
+ * 实现需要是无状态且线程安全的
+ */
+public interface BlockCodec
+        extends Serializable
+{
+    /**
+     * 写入shuffle文件头中, 读取端根据id选择解压算法
+     */
+    public byte getId();
+
+    public int maxCompressedLength(int length);
+
+    /**
+     * @return 压缩后的长度, 大于等于srcLen时表示压缩没有收益, 调用方应直接保存原始数据
+     */
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen);
+
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength);
+
+    /**
+     * 直接从ByteBuffer(例如mmap的shuffle文件)解压, 不修改src的position.
+     * 默认实现在src不是heap buffer时先拷贝到数组
+     */
+    public default void decompress(ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength)
+    {
+        if (src.hasArray()) {
+            decompress(src.array(), src.arrayOffset() + srcOff, srcLen, dest, destOff, originalLength);
+            return;
+        }
+        byte[] bytes = new byte[srcLen];
+        ByteBuffer duplicate = src.duplicate();
+        duplicate.position(srcOff);
+        duplicate.get(bytes);
+        decompress(bytes, 0, srcLen, dest, destOff, originalLength);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.nio.ByteBuffer;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * 压缩块格式: [int compressedLength][int length][bytes],
+ * compressedLength == length时表示该块没有压缩
+ */
+public final class BlockCodecs
+{
+    private BlockCodecs() {}
+
+    public static final int FRAME_HEADER_SIZE = Integer.BYTES * 2;
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+    public static final int DEFAULT_ZSTD_LEVEL = 1;
+
+    public static final byte NONE_ID = 0;
+    public static final byte LZ4_ID = 1;
+    public static final byte ZSTD_ID = 2;
+
+    private static final BlockCodec NONE = new NoneBlockCodec();
+    private static final BlockCodec LZ4 = new Lz4BlockCodec();
+
+    public static BlockCodec none()
+    {
+        return NONE;
+    }
+
+    public static BlockCodec lz4()
+    {
+        return LZ4;
+    }
+
+    public static BlockCodec zstd(int level)
+    {
+        return new ZstdBlockCodec(level);
+    }
+
+    /**
+     * 读取端使用, 解压与压缩级别无关
+     */
+    public static BlockCodec forId(byte id)
+    {
+        switch (id) {
+            case NONE_ID:
+                return NONE;
+            case LZ4_ID:
+                return LZ4;
+            case ZSTD_ID:
+                return zstd(DEFAULT_ZSTD_LEVEL);
+            default:
+                throw new IllegalArgumentException("unknown block codec id " + id);
+        }
+    }
+
+    public static BlockCodec fromConf(AstarteConf conf)
+    {
+        String name = conf.getString(Constant.SHUFFLE_COMPRESSION_CODEC, "lz4");
+        switch (name.toLowerCase()) {
+            case "none":
+                return NONE;
+            case "lz4":
+                return LZ4;
+            case "zstd":
+                return zstd(conf.getInt(Constant.SHUFFLE_COMPRESSION_ZSTD_LEVEL, DEFAULT_ZSTD_LEVEL));
+            default:
+                throw new IllegalArgumentException("unknown " + Constant.SHUFFLE_COMPRESSION_CODEC + " " + name + ", support: lz4, zstd, none");
+        }
+    }
+
+    private static class NoneBlockCodec
+            implements BlockCodec
+    {
+        @Override
+        public byte getId()
+        {
+            return NONE_ID;
+        }
+
+        @Override
+        public int maxCompressedLength(int length)
+        {
+            return length;
+        }
+
+        @Override
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen)
+        {
+            return srcLen;
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength)
+        {
+            checkState(srcLen == originalLength, "not compressed block length %s != %s", srcLen, originalLength);
+            System.arraycopy(src, srcOff, dest, destOff, srcLen);
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength)
+        {
+            checkState(srcLen == originalLength, "not compressed block length %s != %s", srcLen, originalLength);
+            ByteBuffer duplicate = src.duplicate();
+            duplicate.position(srcOff);
+            duplicate.get(dest, destOff, srcLen);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "none";
+        }
+    }
+
+    private static class Lz4BlockCodec
+            implements BlockCodec
+    {
+        private static final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        private static final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+        @Override
+        public byte getId()
+        {
+            return LZ4_ID;
+        }
+
+        @Override
+        public int maxCompressedLength(int length)
+        {
+            return compressor.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen)
+        {
+            return compressor.compress(src, srcOff, srcLen, dest, destOff, maxDestLen);
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength)
+        {
+            int length = decompressor.decompress(src, srcOff, srcLen, dest, destOff, originalLength);
+            checkState(length == originalLength, "lz4 block corrupted, decompressed %s bytes, expected %s", length, originalLength);
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength)
+        {
+            //lz4支持直接读取direct buffer, 不需要先拷贝到数组
+            int length = decompressor.decompress(src, srcOff, srcLen, ByteBuffer.wrap(dest), destOff, originalLength);
+            checkState(length == originalLength, "lz4 block corrupted, decompressed %s bytes, expected %s", length, originalLength);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "lz4";
+        }
+    }
+
+    private static class ZstdBlockCodec
+            implements BlockCodec
+    {
+        private final int level;
+
+        private ZstdBlockCodec(int level)
+        {
+            checkArgument(level >= Zstd.minCompressionLevel() && level <= Zstd.maxCompressionLevel(),
+                    "zstd level must between %s and %s", Zstd.minCompressionLevel(), Zstd.maxCompressionLevel());
+            this.level = level;
+        }
+
+        @Override
+        public byte getId()
+        {
+            return ZSTD_ID;
+        }
+
+        @Override
+        public int maxCompressedLength(int length)
+        {
+            return (int) Zstd.compressBound(length);
+        }
+
+        @Override
+        public int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int maxDestLen)
+        {
+            long length = Zstd.compressByteArray(dest, destOff, maxDestLen, src, srcOff, srcLen, level);
+            checkState(!Zstd.isError(length), "zstd compress failed: %s", Zstd.getErrorName(length));
+            return (int) length;
+        }
+
+        @Override
+        public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int originalLength)
+        {
+            long length = Zstd.decompressByteArray(dest, destOff, originalLength, src, srcOff, srcLen);
+            checkState(!Zstd.isError(length), "zstd decompress failed: %s", Zstd.getErrorName(length));
+            checkState(length == originalLength, "zstd block corrupted, decompressed %s bytes, expected %s", length, originalLength);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "zstd(level=" + level + ")";
+        }
+    }
+}
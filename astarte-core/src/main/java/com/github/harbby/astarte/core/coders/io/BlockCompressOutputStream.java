@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.github.harbby.astarte.core.coders.io.BlockCodecs.FRAME_HEADER_SIZE;
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 按块压缩的输出流, 块格式见{@link BlockCodecs}.
+ * finish()只刷出缓冲区中的数据而不关闭下游, 可以连续写多个独立的segment
+ */
+public class BlockCompressOutputStream
+        extends OutputStream
+{
+    private final OutputStream out;
+    private final BlockCodec codec;
+    private final byte[] buffer;
+    private final byte[] compressedBuffer;
+    private int position;
+
+    public BlockCompressOutputStream(OutputStream out, BlockCodec codec, int blockSize)
+    {
+        checkArgument(blockSize > 0, "blockSize must > 0");
+        this.out = requireNonNull(out, "out is null");
+        this.codec = requireNonNull(codec, "codec is null");
+        this.buffer = new byte[blockSize];
+        this.compressedBuffer = new byte[FRAME_HEADER_SIZE + Math.max(blockSize, codec.maxCompressedLength(blockSize))];
+    }
+
+    public BlockCompressOutputStream(OutputStream out, BlockCodec codec)
+    {
+        this(out, codec, BlockCodecs.DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        if (position == buffer.length) {
+            this.flushBlock();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            if (position == buffer.length) {
+                this.flushBlock();
+            }
+            int size = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, size);
+            position += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    private void flushBlock()
+            throws IOException
+    {
+        if (position == 0) {
+            return;
+        }
+        int compressedLength = codec.compress(buffer, 0, position, compressedBuffer, FRAME_HEADER_SIZE, compressedBuffer.length - FRAME_HEADER_SIZE);
+        if (compressedLength >= position) {
+            //压缩没有收益, 直接保存原始数据
+            compressedLength = position;
+            System.arraycopy(buffer, 0, compressedBuffer, FRAME_HEADER_SIZE, position);
+        }
+        writeInt(compressedBuffer, 0, compressedLength);
+        writeInt(compressedBuffer, Integer.BYTES, position);
+        out.write(compressedBuffer, 0, FRAME_HEADER_SIZE + compressedLength);
+        position = 0;
+    }
+
+    private static void writeInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * 刷出当前块, 不关闭下游, 之后可以继续写入
+     */
+    public void finish()
+            throws IOException
+    {
+        this.flushBlock();
+        out.flush();
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            this.finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+}
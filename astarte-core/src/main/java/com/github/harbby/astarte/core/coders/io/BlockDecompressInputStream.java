@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.github.harbby.astarte.core.coders.io.BlockCodecs.FRAME_HEADER_SIZE;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 读取{@link BlockCompressOutputStream}写出的数据, 下游数据读完即结束
+ */
+public class BlockDecompressInputStream
+        extends InputStream
+{
+    private final InputStream in;
+    private final BlockCodec codec;
+    private final byte[] frameHeader = new byte[FRAME_HEADER_SIZE];
+    private byte[] compressedBuffer = new byte[0];
+    private byte[] buffer = new byte[0];
+    private int position;
+    private int limit;
+    private boolean finished;
+
+    public BlockDecompressInputStream(InputStream in, BlockCodec codec)
+    {
+        this.in = requireNonNull(in, "in is null");
+        this.codec = requireNonNull(codec, "codec is null");
+    }
+
+    private boolean refill()
+            throws IOException
+    {
+        if (finished) {
+            return false;
+        }
+        int n = in.read(frameHeader, 0, 1);
+        if (n < 0) {
+            finished = true;
+            return false;
+        }
+        readFully(frameHeader, 1, FRAME_HEADER_SIZE - 1);
+        int compressedLength = readInt(frameHeader, 0);
+        int length = readInt(frameHeader, Integer.BYTES);
+        checkState(compressedLength >= 0 && length >= 0 && compressedLength <= length, "block corrupted, compressedLength %s, length %s", compressedLength, length);
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        if (compressedLength == length) {
+            readFully(buffer, 0, length);
+        }
+        else {
+            if (compressedBuffer.length < compressedLength) {
+                compressedBuffer = new byte[compressedLength];
+            }
+            readFully(compressedBuffer, 0, compressedLength);
+            codec.decompress(compressedBuffer, 0, compressedLength, buffer, 0, length);
+        }
+        this.position = 0;
+        this.limit = length;
+        return true;
+    }
+
+    private void readFully(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException("unexpected end of compressed block");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    private static int readInt(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        while (position == limit) {
+            if (!refill()) {
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == limit) {
+            if (!refill()) {
+                return -1;
+            }
+        }
+        int size = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, size);
+        position += size;
+        return size;
+    }
+
+    @Override
+    public int available()
+    {
+        return limit - position;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        in.close();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 直接从一组连续的ByteBuf中解码数据.
+ * 当前buffer剩余字节足够时直接调用ByteBuf的读取方法, 只有跨越buffer边界的记录才逐段拷贝
+ */
+public abstract class ByteBufDataInput
+        extends InputStream
+        implements DataInput
+{
+    private final byte[] scratch = new byte[Long.BYTES];
+    private ByteBuf byteBuf;
+    private boolean finished;
+
+    /**
+     * 获取下一个buffer, 没有更多数据时返回null
+     */
+    protected abstract ByteBuf nextBuffer()
+            throws IOException;
+
+    /**
+     * 当前buffer读完时释放并切换到下一个非空buffer
+     *
+     * @return false表示已经没有可读数据
+     */
+    protected final boolean ensureReadable()
+            throws IOException
+    {
+        while (byteBuf == null || !byteBuf.isReadable()) {
+            if (finished) {
+                return false;
+            }
+            this.releaseBuffer();
+            ByteBuf next = nextBuffer();
+            if (next == null) {
+                finished = true;
+                return false;
+            }
+            this.byteBuf = next;
+        }
+        return true;
+    }
+
+    /**
+     * 当前buffer剩余字节不足size时返回null, 由调用方走跨buffer的慢路径
+     */
+    private ByteBuf fastBuffer(int size)
+            throws IOException
+    {
+        if (!ensureReadable()) {
+            throw new EOFException();
+        }
+        return byteBuf.readableBytes() >= size ? byteBuf : null;
+    }
+
+    private void releaseBuffer()
+    {
+        if (byteBuf != null) {
+            ReferenceCountUtil.release(byteBuf);
+            byteBuf = null;
+        }
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        if (!ensureReadable()) {
+            return -1;
+        }
+        return byteBuf.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureReadable()) {
+            return -1;
+        }
+        int size = Math.min(len, byteBuf.readableBytes());
+        byteBuf.readBytes(b, off, size);
+        return size;
+    }
+
+    @Override
+    public void readFully(byte[] b)
+            throws IOException
+    {
+        this.readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            int n = this.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n)
+            throws IOException
+    {
+        int skipped = 0;
+        while (skipped < n && ensureReadable()) {
+            int size = Math.min(n - skipped, byteBuf.readableBytes());
+            byteBuf.skipBytes(size);
+            skipped += size;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean()
+            throws IOException
+    {
+        return this.readByte() != 0;
+    }
+
+    @Override
+    public byte readByte()
+            throws IOException
+    {
+        return fastBuffer(Byte.BYTES).readByte();
+    }
+
+    @Override
+    public int readUnsignedByte()
+            throws IOException
+    {
+        return fastBuffer(Byte.BYTES).readUnsignedByte();
+    }
+
+    @Override
+    public short readShort()
+            throws IOException
+    {
+        ByteBuf buf = fastBuffer(Short.BYTES);
+        if (buf != null) {
+            return buf.readShort();
+        }
+        this.readFully(scratch, 0, Short.BYTES);
+        return (short) (((scratch[0] & 0xFF) << 8) | (scratch[1] & 0xFF));
+    }
+
+    @Override
+    public int readUnsignedShort()
+            throws IOException
+    {
+        return this.readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar()
+            throws IOException
+    {
+        return (char) this.readShort();
+    }
+
+    @Override
+    public int readInt()
+            throws IOException
+    {
+        ByteBuf buf = fastBuffer(Integer.BYTES);
+        if (buf != null) {
+            return buf.readInt();
+        }
+        this.readFully(scratch, 0, Integer.BYTES);
+        return ((scratch[0] & 0xFF) << 24) | ((scratch[1] & 0xFF) << 16) | ((scratch[2] & 0xFF) << 8) | (scratch[3] & 0xFF);
+    }
+
+    @Override
+    public long readLong()
+            throws IOException
+    {
+        ByteBuf buf = fastBuffer(Long.BYTES);
+        if (buf != null) {
+            return buf.readLong();
+        }
+        this.readFully(scratch, 0, Long.BYTES);
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (scratch[i] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public float readFloat()
+            throws IOException
+    {
+        return Float.intBitsToFloat(this.readInt());
+    }
+
+    @Override
+    public double readDouble()
+            throws IOException
+    {
+        return Double.longBitsToDouble(this.readLong());
+    }
+
+    @Override
+    public String readLine()
+    {
+        throw new UnsupportedOperationException("readLine() is deprecated");
+    }
+
+    @Override
+    public String readUTF()
+            throws IOException
+    {
+        return DataInputStream.readUTF(this);
+    }
+
+    @Override
+    public int available()
+    {
+        return byteBuf == null ? 0 : byteBuf.readableBytes();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        this.releaseBuffer();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+
+import static com.github.harbby.astarte.core.coders.io.BlockCodecs.FRAME_HEADER_SIZE;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 直接从ByteBuffer(例如mmap的shuffle文件段)中读取压缩块.
+ * 未压缩的块直接包装为ByteBuf读取, 压缩的块从ByteBuffer解压到复用的数组中, 都不经过中间拷贝
+ */
+public class ByteBufferBlockInputStream
+        extends ByteBufDataInput
+{
+    private final ByteBuffer data;
+    private final BlockCodec codec;
+    private byte[] buffer = new byte[0];
+
+    /**
+     * @param data position到limit之间是连续的压缩块
+     */
+    public ByteBufferBlockInputStream(ByteBuffer data, BlockCodec codec)
+    {
+        this.data = requireNonNull(data, "data is null").slice();
+        this.codec = requireNonNull(codec, "codec is null");
+    }
+
+    @Override
+    protected ByteBuf nextBuffer()
+    {
+        if (!data.hasRemaining()) {
+            return null;
+        }
+        checkState(data.remaining() >= FRAME_HEADER_SIZE, "block corrupted, remaining %s bytes", data.remaining());
+        int compressedLength = data.getInt();
+        int length = data.getInt();
+        checkState(compressedLength >= 0 && length >= 0 && compressedLength <= length && compressedLength <= data.remaining(),
+                "block corrupted, compressedLength %s, length %s", compressedLength, length);
+        int position = data.position();
+        data.position(position + compressedLength);
+        if (compressedLength == length) {
+            ByteBuffer block = data.duplicate();
+            block.position(position);
+            block.limit(position + length);
+            return Unpooled.wrappedBuffer(block);
+        }
+        //上一个块已经读取完成才会调用nextBuffer, 可以复用解压数组
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        codec.decompress(data, position, compressedLength, buffer, 0, length);
+        return Unpooled.wrappedBuffer(buffer, 0, length);
+    }
+}
@@ -17,10 +17,12 @@ package com.github.harbby.astarte.core.memory;
 
 import com.github.harbby.astarte.core.coders.Encoder;
 import com.github.harbby.astarte.core.coders.EncoderInputStream;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+import com.github.harbby.astarte.core.coders.io.BlockDecompressInputStream;
 import com.github.harbby.astarte.core.operator.CacheManager;
 import com.github.harbby.gadtry.base.Throwables;
-import net.jpountz.lz4.LZ4BlockInputStream;
-import net.jpountz.lz4.LZ4BlockOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +31,7 @@ import java.io.IOException;
 import java.util.Iterator;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
 
 /**
  * Cache数据，使用字节存储
@@ -38,15 +41,35 @@ public class ByteCachedMemory<E>
 {
     private static final Logger logger = LoggerFactory.getLogger(ByteCachedMemory.class);
     private final Encoder<E> encoder;
+    private final BlockCodec codec;
     private final MemoryBlock block;
     private final DataOutputStream dataOutputStream;
     private long count;
 
     public ByteCachedMemory(Encoder<E> encoder)
+    {
+        this(encoder, BlockCodecs.lz4());
+    }
+
+    public ByteCachedMemory(Encoder<E> encoder, BlockCodec codec)
+    {
+        this(encoder, codec, MemoryManager.allocateMemoryBlock());
+    }
+
+    /**
+     * 缓存使用的内存计入executor内存池中dataSetId的存储内存
+     */
+    public ByteCachedMemory(Encoder<E> encoder, BlockCodec codec, int dataSetId)
+    {
+        this(encoder, codec, MemoryManager.allocateMemoryBlock(dataSetId));
+    }
+
+    ByteCachedMemory(Encoder<E> encoder, BlockCodec codec, MemoryBlock block)
     {
         this.encoder = encoder;
-        this.block = MemoryManager.allocateMemoryBlock();
-        this.dataOutputStream = new DataOutputStream(new LZ4BlockOutputStream(block));
+        this.codec = requireNonNull(codec, "codec is null");
+        this.block = block;
+        this.dataOutputStream = new DataOutputStream(new BlockCompressOutputStream(block, codec));
     }
 
     @Override
@@ -55,28 +78,47 @@ public class ByteCachedMemory<E>
         block.free();
     }
 
+    @Override
+    public long getMemorySize()
+    {
+        return block.getMemorySize();
+    }
+
+    /**
+     * 只在内存中保存, 驱逐后需要重新计算
+     */
+    @Override
+    public boolean evict()
+    {
+        block.free();
+        return false;
+    }
+
     @Override
     public Iterator<E> prepareIterator()
     {
         checkState(isFinal, "only reader mode");
-        return new EncoderInputStream<>(count, encoder, new LZ4BlockInputStream(block.prepareInputStream()));
+        return new EncoderInputStream<>(count, encoder, new BlockDecompressInputStream(block.prepareInputStream(), codec));
     }
 
     @Override
-    public void finalCache()
+    public boolean finalCache()
     {
-        super.finalCache();
         try {
             dataOutputStream.close();
         }
         catch (IOException e) {
             throw Throwables.throwsThrowable(e);
         }
+        if (this.releaseOnOverflow()) {
+            return false;
+        }
         block.finalData();
+        return super.finalCache();
     }
 
     @Override
-    public void append(E record)
+    public boolean append(E record)
     {
         checkState(!isFinal, "don't append record to writeMode");
         count++;
@@ -86,6 +128,19 @@ public class ByteCachedMemory<E>
         catch (IOException e) {
             throw Throwables.throwsThrowable(e);
         }
+        return !this.releaseOnOverflow();
+    }
+
+    /**
+     * 存储内存不足时block中的数据已经不完整, 释放已申请的page
+     */
+    private boolean releaseOnOverflow()
+    {
+        if (block.isOverflow()) {
+            block.free();
+            return true;
+        }
+        return false;
     }
 
     @Override
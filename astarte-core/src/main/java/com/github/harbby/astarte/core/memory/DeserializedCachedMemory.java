@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.operator.CacheManager;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 反序列化的Cache数据, 直接保存行对象, 读取时不需要解码.
+ * 行对象在缓存后不能被上游复用或修改. 占用的内存由{@link RowSizeEstimator}估算, 按块从存储内存中申请
+ */
+public class DeserializedCachedMemory<E>
+        extends CacheManager.CacheMemory<E>
+{
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final Object[] EMPTY = new Object[0];
+
+    private final RowSizeEstimator<E> sizeEstimator;
+    //为null时不从内存池记账
+    private final MemoryManager memoryManager;
+    private final int dataSetId;
+    private Object[] rows = new Object[INITIAL_CAPACITY];
+    private int count;
+    private long reservedBytes;
+
+    /**
+     * 占用的内存计入executor内存池中dataSetId的存储内存
+     */
+    public DeserializedCachedMemory(Encoder<E> encoder, int dataSetId)
+    {
+        this(encoder, MemoryManager.getExecutorMemoryManager(), dataSetId);
+    }
+
+    DeserializedCachedMemory(Encoder<E> encoder, MemoryManager memoryManager, int dataSetId)
+    {
+        this.sizeEstimator = new RowSizeEstimator<>(requireNonNull(encoder, "encoder is null"));
+        this.memoryManager = memoryManager;
+        this.dataSetId = dataSetId;
+    }
+
+    @Override
+    public boolean append(E record)
+    {
+        checkState(!isFinal, "don't append record to writeMode");
+        if (count == MAX_ARRAY_SIZE) {
+            //行数超过数组上限, 和存储内存不足一样放弃缓存
+            this.freeMemory();
+            return false;
+        }
+        if (count == rows.length) {
+            rows = Arrays.copyOf(rows, (int) Math.min(MAX_ARRAY_SIZE, Math.max(INITIAL_CAPACITY, count + (count >> 1))));
+        }
+        rows[count++] = record;
+        long estimatedBytes = (long) rows.length * Long.BYTES + sizeEstimator.estimate(record, count);
+        //存储内存不足时放弃缓存, 由CacheManager透传剩余的数据
+        if (!this.reserveMemory(estimatedBytes)) {
+            this.freeMemory();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 行对象和数组槽位的估算大小超过已申请的内存时按块申请
+     *
+     * @return false时存储内存不足
+     */
+    private boolean reserveMemory(long estimatedBytes)
+    {
+        if (memoryManager == null) {
+            return true;
+        }
+        long size = RowSizeEstimator.requiredMemory(estimatedBytes, reservedBytes);
+        if (size > 0) {
+            if (!memoryManager.acquireStorageMemory(dataSetId, size)) {
+                return false;
+            }
+            reservedBytes += size;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean finalCache()
+    {
+        //去掉数组多余的槽位
+        if (count < rows.length) {
+            rows = Arrays.copyOf(rows, count);
+        }
+        return super.finalCache();
+    }
+
+    @Override
+    public Iterator<E> prepareIterator()
+    {
+        checkState(isFinal, "only reader mode");
+        Object[] data = rows;
+        int size = count;
+        return new Iterator<E>()
+        {
+            private int index;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public E next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (E) data[index++];
+            }
+        };
+    }
+
+    @Override
+    public long getMemorySize()
+    {
+        return reservedBytes;
+    }
+
+    /**
+     * 只在内存中保存, 驱逐后需要重新计算
+     */
+    @Override
+    public boolean evict()
+    {
+        this.freeMemory();
+        return false;
+    }
+
+    @Override
+    public void freeMemory()
+    {
+        rows = EMPTY;
+        count = 0;
+        if (memoryManager != null && reservedBytes > 0) {
+            memoryManager.releaseStorageMemory(dataSetId, reservedBytes);
+        }
+        reservedBytes = 0;
+    }
+}
@@ -15,7 +15,6 @@
  */
 package com.github.harbby.astarte.core.memory;
 
-import com.github.harbby.gadtry.base.Platform;
 import com.github.harbby.gadtry.io.ByteBufferInputStream;
 
 import java.io.InputStream;
@@ -27,8 +26,8 @@ import java.util.List;
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
 /**
- * 暂不支持溢写到磁盘
- * //todo:　后续会支持溢写到磁盘功能．
+ * 存储内存不足时可以通过tryWrite()判断, 由调用方溢写到磁盘.
+ * 通过write()写入时不抛出异常, 之后的数据被丢弃, 调用方通过isOverflow()判断后释放
  * 该模块主要在以下场景功能中:
  * 1. cache()算子数据缓存
  * 2. groupByKey算子values缓存中
@@ -38,8 +37,26 @@ public class MemoryBlock
 {
     private static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
     private final List<ByteBuffer> pages = new LinkedList<>();
+    //为null时不从内存池记账
+    private final MemoryManager memoryManager;
+    private final int dataSetId;
     private ByteBuffer currentPage;
     private long blockSize;
+    private boolean overflow;
+
+    public MemoryBlock()
+    {
+        this(null, -1);
+    }
+
+    /**
+     * 每个page都从memoryManager的存储内存中申请, 归属于dataSetId
+     */
+    public MemoryBlock(MemoryManager memoryManager, int dataSetId)
+    {
+        this.memoryManager = memoryManager;
+        this.dataSetId = dataSetId;
+    }
 
     public void finalData()
     {
@@ -55,14 +72,14 @@ public class MemoryBlock
     @Override
     public void write(int b)
     {
-        if (currentPage != null && currentPage.remaining() > 0) {
-            currentPage.put((byte) b);
+        if (overflow) {
+            return;
         }
-        else {
-            currentPage = MemoryManager.allocateMemory(DEFAULT_PAGE_SIZE);
-            currentPage.put((byte) b);
-            pages.add(currentPage);
+        if ((currentPage == null || !currentPage.hasRemaining()) && !this.tryNextPage()) {
+            overflow = true;
+            return;
         }
+        currentPage.put((byte) b);
         blockSize++;
     }
 
@@ -75,18 +92,57 @@ public class MemoryBlock
     @Override
     public void write(byte[] b, int off, int len)
     {
-        for (int i = 0; i < len; i++) {
-            this.write(b[i + off]);
+        if (!overflow && this.tryWrite(b, off, len) < len) {
+            overflow = true;
         }
     }
 
+    /**
+     * 存储内存不足导致write()丢弃了数据, 此时block中的数据不完整
+     */
+    public boolean isOverflow()
+    {
+        return overflow;
+    }
+
+    /**
+     * 按page剩余空间整段拷贝, 跨page时拆分写入. 存储内存不足时停止写入
+     *
+     * @return 实际写入的字节数
+     */
+    public int tryWrite(byte[] b, int off, int len)
+    {
+        int written = 0;
+        while (written < len) {
+            if ((currentPage == null || !currentPage.hasRemaining()) && !this.tryNextPage()) {
+                break;
+            }
+            int length = Math.min(len - written, currentPage.remaining());
+            currentPage.put(b, off + written, length);
+            written += length;
+            blockSize += length;
+        }
+        return written;
+    }
+
+    private boolean tryNextPage()
+    {
+        if (memoryManager != null && !memoryManager.acquireStorageMemory(dataSetId, DEFAULT_PAGE_SIZE)) {
+            return false;
+        }
+        currentPage = MemoryManager.allocateMemory(DEFAULT_PAGE_SIZE);
+        pages.add(currentPage);
+        return true;
+    }
+
     public void free()
     {
         currentPage = null;
         blockSize = 0;
         for (ByteBuffer currentPage : pages) {
-            if (currentPage.isDirect()) {
-                Platform.freeDirectBuffer(currentPage);
+            MemoryManager.freeMemory(currentPage);
+            if (memoryManager != null) {
+                memoryManager.releaseStorageMemory(dataSetId, DEFAULT_PAGE_SIZE);
             }
         }
         pages.clear();
@@ -97,6 +153,14 @@ public class MemoryBlock
         return blockSize;
     }
 
+    /**
+     * 已申请的page占用的内存
+     */
+    public long getMemorySize()
+    {
+        return (long) pages.size() * DEFAULT_PAGE_SIZE;
+    }
+
     public InputStream prepareInputStream()
     {
         ByteBuffer[] buffers = pages.stream().map(ByteBuffer::duplicate).toArray(ByteBuffer[]::new);
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import java.io.IOException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 向TaskMemoryManager申请执行内存的组件, 内存不足时可以被要求溢写到磁盘
+ */
+public abstract class MemoryConsumer
+{
+    protected final TaskMemoryManager taskMemoryManager;
+    private long used;
+
+    protected MemoryConsumer(TaskMemoryManager taskMemoryManager)
+    {
+        this.taskMemoryManager = requireNonNull(taskMemoryManager, "taskMemoryManager is null");
+        taskMemoryManager.register(this);
+    }
+
+    /**
+     * 将内存中的数据溢写到磁盘, 并通过freeMemory()归还内存
+     *
+     * @return 释放的内存字节数
+     */
+    public abstract long spill()
+            throws IOException;
+
+    public long getUsed()
+    {
+        return used;
+    }
+
+    /**
+     * 申请内存, 预算不足时会先溢写其他consumer, 返回实际获得的字节数(可能小于size)
+     */
+    protected long acquireMemory(long size)
+    {
+        long granted = taskMemoryManager.acquireExecutionMemory(size, this);
+        used += granted;
+        return granted;
+    }
+
+    protected void freeMemory(long size)
+    {
+        taskMemoryManager.releaseExecutionMemory(size, this);
+        used -= size;
+    }
+
+    protected void freeAllMemory()
+    {
+        if (used > 0) {
+            freeMemory(used);
+        }
+        taskMemoryManager.unregister(this);
+    }
+}
@@ -15,26 +15,277 @@
  */
 package com.github.harbby.astarte.core.memory;
 
-import com.github.harbby.gadtry.base.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
+import java.util.Map;
 
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * executor级别的统一内存管理, 执行内存和存储内存共享同一个内存池.
+ * 1. 执行内存(shuffle排序, join缓冲区)不足时可以驱逐超出storage保护区域的缓存
+ * 2. 存储内存(cache)可以借用空闲的执行内存, 但不能驱逐执行内存
+ * 执行内存按task记录, 存储内存按cache的dataSet记录
+ */
 public class MemoryManager
 {
-    private MemoryManager() {}
+    private static final Logger logger = LoggerFactory.getLogger(MemoryManager.class);
+    private static final double MEMORY_FRACTION = 0.6;
+    private static final double STORAGE_FRACTION = 0.5;
+    //空闲page最多缓存内存池的1/8
+    private static final int PAGE_POOL_RATIO = 8;
+
+    private static volatile MemoryManager executorMemoryManager = fromMaxMemory(Runtime.getRuntime().maxMemory());
+    //实际申请的堆外内存, 与内存池的记账无关
+    private static final PageAllocator pageAllocator = new PageAllocator(executorMemoryManager.maxMemory / PAGE_POOL_RATIO);
+
+    private final long maxMemory;
+    private final long storageRegionSize;
+    private final Map<TaskMemoryManager, Long> executionMemory = new HashMap<>();
+    private final Map<Integer, Long> storageMemory = new HashMap<>();
+    private long executionUsed;
+    private long storageUsed;
+    private StorageEvictor storageEvictor;
+
+    /**
+     * 缓存注册的驱逐回调, 执行内存或存储内存不足时调用. 调用时不持有MemoryManager的锁
+     */
+    public interface StorageEvictor
+    {
+        /**
+         * 驱逐缓存并通过releaseStorageMemory()归还内存
+         *
+         * @param excludeDataSetId 不驱逐该dataSet的缓存, 为-1时不排除
+         * @return 释放的字节数
+         */
+        long evict(long required, int excludeDataSetId);
+    }
+
+    /**
+     * @param maxMemory 执行内存和存储内存的总和
+     * @param storageRegionSize 存储内存低于该值时不会被执行内存驱逐
+     */
+    public MemoryManager(long maxMemory, long storageRegionSize)
+    {
+        checkArgument(maxMemory > 0, "maxMemory must > 0");
+        checkArgument(storageRegionSize >= 0 && storageRegionSize <= maxMemory, "storageRegionSize must in [0, maxMemory]");
+        this.maxMemory = maxMemory;
+        this.storageRegionSize = storageRegionSize;
+    }
+
+    public static MemoryManager fromMaxMemory(long jvmMaxMemory)
+    {
+        long maxMemory = (long) (jvmMaxMemory * MEMORY_FRACTION);
+        return new MemoryManager(maxMemory, (long) (maxMemory * STORAGE_FRACTION));
+    }
+
+    /**
+     * executor启动时调用, 之后的task和cache都从该内存池申请内存
+     *
+     * @param jvmMaxMemory executor可以使用的内存, 由{@link com.github.harbby.astarte.core.api.Constant#EXECUTOR_MEMORY_CONF}决定
+     */
+    public static MemoryManager initialize(long jvmMaxMemory)
+    {
+        MemoryManager memoryManager = fromMaxMemory(jvmMaxMemory);
+        logger.info("executor memory pool {} bytes, storage region {} bytes", memoryManager.maxMemory, memoryManager.storageRegionSize);
+        executorMemoryManager = memoryManager;
+        pageAllocator.setMaxPooledBytes(memoryManager.maxMemory / PAGE_POOL_RATIO);
+        return memoryManager;
+    }
+
+    public static MemoryManager getExecutorMemoryManager()
+    {
+        return executorMemoryManager;
+    }
+
+    public synchronized void setStorageEvictor(StorageEvictor storageEvictor)
+    {
+        this.storageEvictor = storageEvictor;
+    }
+
+    /**
+     * 每个并发task可使用的执行内存上限
+     */
+    public long getTaskMemoryBudget(int maxConcurrentTasks)
+    {
+        return maxMemory / Math.max(1, maxConcurrentTasks);
+    }
+
+    /**
+     * @return 实际获得的字节数, 可能小于size
+     */
+    public long acquireExecutionMemory(TaskMemoryManager task, long size)
+    {
+        requireNonNull(task, "task is null");
+        checkArgument(size >= 0, "size must >= 0");
+        StorageEvictor evictor;
+        long evictBytes = 0;
+        synchronized (this) {
+            long free = maxMemory - executionUsed - storageUsed;
+            evictor = storageEvictor;
+            if (free < size && evictor != null && storageUsed > storageRegionSize) {
+                evictBytes = Math.min(size - free, storageUsed - storageRegionSize);
+            }
+        }
+        if (evictBytes > 0) {
+            long released = evictor.evict(evictBytes, -1);
+            logger.debug("evicted {} bytes of storage memory for task execution", released);
+        }
+        synchronized (this) {
+            long granted = Math.max(0, Math.min(size, maxMemory - executionUsed - storageUsed));
+            if (granted > 0) {
+                executionUsed += granted;
+                executionMemory.merge(task, granted, Long::sum);
+            }
+            return granted;
+        }
+    }
+
+    public synchronized void releaseExecutionMemory(TaskMemoryManager task, long size)
+    {
+        Long used = executionMemory.get(task);
+        checkState(used != null && used >= size, "release execution memory %s more than acquired %s", size, used);
+        executionUsed -= size;
+        if (used == size) {
+            executionMemory.remove(task);
+        }
+        else {
+            executionMemory.put(task, used - size);
+        }
+    }
+
+    /**
+     * task结束时归还该task所有的执行内存
+     */
+    public synchronized long releaseAllExecutionMemory(TaskMemoryManager task)
+    {
+        Long used = executionMemory.remove(task);
+        if (used == null) {
+            return 0;
+        }
+        executionUsed -= used;
+        return used;
+    }
+
+    /**
+     * 存储内存只能使用空闲的内存, 不足时先驱逐其他dataSet的缓存, 仍然不足时返回false
+     */
+    public boolean acquireStorageMemory(int dataSetId, long size)
+    {
+        checkArgument(size >= 0, "size must >= 0");
+        StorageEvictor evictor;
+        long evictBytes;
+        synchronized (this) {
+            if (this.tryAcquireStorageMemory(dataSetId, size)) {
+                return true;
+            }
+            evictor = storageEvictor;
+            evictBytes = size - (maxMemory - executionUsed - storageUsed);
+        }
+        if (evictor == null) {
+            return false;
+        }
+        long released = evictor.evict(evictBytes, dataSetId);
+        logger.debug("evicted {} bytes of storage memory for caching dataSet[{}]", released, dataSetId);
+        synchronized (this) {
+            return this.tryAcquireStorageMemory(dataSetId, size);
+        }
+    }
+
+    private boolean tryAcquireStorageMemory(int dataSetId, long size)
+    {
+        if (maxMemory - executionUsed - storageUsed < size) {
+            return false;
+        }
+        storageUsed += size;
+        storageMemory.merge(dataSetId, size, Long::sum);
+        return true;
+    }
+
+    public synchronized void releaseStorageMemory(int dataSetId, long size)
+    {
+        Long used = storageMemory.get(dataSetId);
+        checkState(used != null && used >= size, "release storage memory %s more than acquired %s", size, used);
+        storageUsed -= size;
+        if (used == size) {
+            storageMemory.remove(dataSetId);
+        }
+        else {
+            storageMemory.put(dataSetId, used - size);
+        }
+    }
+
+    public long getMaxMemory()
+    {
+        return maxMemory;
+    }
+
+    public long getStorageRegionSize()
+    {
+        return storageRegionSize;
+    }
+
+    public synchronized long getExecutionMemoryUsed()
+    {
+        return executionUsed;
+    }
+
+    public synchronized long getExecutionMemoryUsed(TaskMemoryManager task)
+    {
+        return executionMemory.getOrDefault(task, 0L);
+    }
 
-    private static final AtomicInteger allocatedMemory = new AtomicInteger(0);
+    public synchronized long getStorageMemoryUsed()
+    {
+        return storageUsed;
+    }
+
+    public synchronized long getStorageMemoryUsed(int dataSetId)
+    {
+        return storageMemory.getOrDefault(dataSetId, 0L);
+    }
+
+    /**
+     * 缓存使用的内存块, 每个page都从executor内存池的存储内存中申请
+     */
+    public static MemoryBlock allocateMemoryBlock(int dataSetId)
+    {
+        return new MemoryBlock(executorMemoryManager, dataSetId);
+    }
 
     public static MemoryBlock allocateMemoryBlock()
     {
         return new MemoryBlock();
     }
 
+    /**
+     * 从page池中申请, 返回的page容量可能大于capacity
+     */
     public static ByteBuffer allocateMemory(int capacity)
     {
-        ByteBuffer page = Platform.allocateDirectBuffer(capacity);
-        allocatedMemory.addAndGet(page.capacity());
-        return page;
+        return pageAllocator.allocate(capacity);
+    }
+
+    public static void freeMemory(ByteBuffer page)
+    {
+        pageAllocator.free(page);
+    }
+
+    public static PageAllocator getPageAllocator()
+    {
+        return pageAllocator;
+    }
+
+    /**
+     * 当前进程通过allocateMemory()申请且未真正释放的堆外内存, 包括池中空闲的page
+     */
+    public static long getAllocatedMemory()
+    {
+        return pageAllocator.getAllocatedBytes();
     }
 }
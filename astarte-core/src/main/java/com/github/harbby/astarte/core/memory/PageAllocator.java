@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.gadtry.base.Platform;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+
+/**
+ * 堆外page的复用池, cache和shuffle排序的page都从这里申请.
+ * page大小按2的幂划分为若干size class, 释放的page优先放入当前线程的缓存, 超出后放入共享池,
+ * 共享池超过maxPooledBytes后才真正释放.
+ * 已经退出的线程的缓存在共享池未命中时回收到共享池
+ */
+public final class PageAllocator
+{
+    static final int MIN_PAGE_SHIFT = 16;
+    static final int MAX_PAGE_SHIFT = 27;
+    private static final int NUM_SIZE_CLASSES = MAX_PAGE_SHIFT - MIN_PAGE_SHIFT + 1;
+    private static final long THREAD_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(this::createThreadCache);
+    //用于回收已退出线程的缓存
+    private final List<ThreadCache> threadCaches = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer>[] sharedPool;
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicLong allocatedBytes = new AtomicLong(0);
+    private volatile long maxPooledBytes;
+
+    @SuppressWarnings("unchecked")
+    public PageAllocator(long maxPooledBytes)
+    {
+        checkArgument(maxPooledBytes >= 0, "maxPooledBytes must >= 0");
+        this.maxPooledBytes = maxPooledBytes;
+        this.sharedPool = new ArrayDeque[NUM_SIZE_CLASSES];
+        for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+            sharedPool[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @param maxPooledBytes 为0时不复用page, 每次都直接申请和释放堆外内存
+     */
+    public void setMaxPooledBytes(long maxPooledBytes)
+    {
+        checkArgument(maxPooledBytes >= 0, "maxPooledBytes must >= 0");
+        this.maxPooledBytes = maxPooledBytes;
+        if (maxPooledBytes == 0) {
+            this.clear();
+        }
+    }
+
+    /**
+     * 返回的page容量为不小于size的size class, 超过最大size class时直接申请不复用
+     */
+    public ByteBuffer allocate(int size)
+    {
+        checkArgument(size > 0, "size must > 0");
+        int sizeClass = sizeClass(size);
+        if (sizeClass >= NUM_SIZE_CLASSES) {
+            return allocateDirect(size);
+        }
+        ByteBuffer page = threadCache.get().poll(sizeClass);
+        if (page == null) {
+            page = this.pollShared(sizeClass);
+        }
+        if (page == null) {
+            return allocateDirect(1 << (sizeClass + MIN_PAGE_SHIFT));
+        }
+        pooledBytes.addAndGet(-page.capacity());
+        page.clear();
+        page.order(ByteOrder.BIG_ENDIAN);
+        return page;
+    }
+
+    public void free(ByteBuffer page)
+    {
+        int capacity = page.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (!page.isDirect() || sizeClass >= NUM_SIZE_CLASSES || capacity != 1 << (sizeClass + MIN_PAGE_SHIFT)
+                || pooledBytes.get() + capacity > maxPooledBytes) {
+            this.freeDirect(page);
+            return;
+        }
+        pooledBytes.addAndGet(capacity);
+        if (!threadCache.get().offer(sizeClass, page)) {
+            this.offerShared(sizeClass, page);
+        }
+    }
+
+    /**
+     * 释放共享池和所有线程缓存中的空闲page
+     */
+    public synchronized void clear()
+    {
+        for (ThreadCache cache : threadCaches) {
+            cache.drainTo(this);
+        }
+        for (ArrayDeque<ByteBuffer> pages : sharedPool) {
+            for (ByteBuffer page : pages) {
+                pooledBytes.addAndGet(-page.capacity());
+                this.freeDirect(page);
+            }
+            pages.clear();
+        }
+    }
+
+    /**
+     * 当前缓存在池中的空闲page字节数
+     */
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+
+    /**
+     * 当前已申请且未真正释放的堆外内存, 包括池中的空闲page
+     */
+    public long getAllocatedBytes()
+    {
+        return allocatedBytes.get();
+    }
+
+    static int sizeClass(int size)
+    {
+        if (size <= 1 << MIN_PAGE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_PAGE_SHIFT;
+    }
+
+    private ByteBuffer allocateDirect(int capacity)
+    {
+        ByteBuffer page = Platform.allocateDirectBuffer(capacity);
+        allocatedBytes.addAndGet(page.capacity());
+        return page;
+    }
+
+    private void freeDirect(ByteBuffer page)
+    {
+        allocatedBytes.addAndGet(-page.capacity());
+        if (page.isDirect()) {
+            Platform.freeDirectBuffer(page);
+        }
+    }
+
+    private synchronized ByteBuffer pollShared(int sizeClass)
+    {
+        ByteBuffer page = sharedPool[sizeClass].poll();
+        if (page == null) {
+            this.reclaimDeadThreadCaches();
+            page = sharedPool[sizeClass].poll();
+        }
+        return page;
+    }
+
+    private synchronized void offerShared(int sizeClass, ByteBuffer page)
+    {
+        sharedPool[sizeClass].push(page);
+    }
+
+    private synchronized ThreadCache createThreadCache()
+    {
+        ThreadCache cache = new ThreadCache(Thread.currentThread());
+        threadCaches.add(cache);
+        return cache;
+    }
+
+    private void reclaimDeadThreadCaches()
+    {
+        Iterator<ThreadCache> iterator = threadCaches.iterator();
+        while (iterator.hasNext()) {
+            ThreadCache cache = iterator.next();
+            if (!cache.thread.isAlive()) {
+                cache.drainTo(this);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 线程私有的page缓存, 只有回收时才会被其他线程访问, 锁基本没有竞争
+     */
+    private static class ThreadCache
+    {
+        private final Thread thread;
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<ByteBuffer>[] pages = new ArrayDeque[NUM_SIZE_CLASSES];
+        private long cachedBytes;
+
+        private ThreadCache(Thread thread)
+        {
+            this.thread = thread;
+        }
+
+        private synchronized ByteBuffer poll(int sizeClass)
+        {
+            ArrayDeque<ByteBuffer> deque = pages[sizeClass];
+            ByteBuffer page = deque == null ? null : deque.poll();
+            if (page != null) {
+                cachedBytes -= page.capacity();
+            }
+            return page;
+        }
+
+        private synchronized boolean offer(int sizeClass, ByteBuffer page)
+        {
+            if (cachedBytes + page.capacity() > THREAD_CACHE_BYTES) {
+                return false;
+            }
+            if (pages[sizeClass] == null) {
+                pages[sizeClass] = new ArrayDeque<>();
+            }
+            pages[sizeClass].push(page);
+            cachedBytes += page.capacity();
+            return true;
+        }
+
+        private synchronized void drainTo(PageAllocator allocator)
+        {
+            for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+                if (pages[i] != null) {
+                    for (ByteBuffer page : pages[i]) {
+                        allocator.offerShared(i, page);
+                    }
+                    pages[i].clear();
+                }
+            }
+            cachedBytes = 0;
+        }
+    }
+}
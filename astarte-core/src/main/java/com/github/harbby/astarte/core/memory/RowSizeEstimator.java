@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.gadtry.base.Throwables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 估算内存中行对象的大小: 每ROW_SAMPLE_INTERVAL行编码一行采样, 加上对象头等固定开销后与之前的估算值平均.
+ * 估算值超过已申请的内存时按块申请, 避免每行都访问内存池
+ */
+public class RowSizeEstimator<E>
+{
+    private static final int ROW_SAMPLE_INTERVAL = 64;
+    private static final int ROW_OBJECT_OVERHEAD = 48;
+    private static final long MEMORY_CHUNK_SIZE = 1 << 20;
+
+    private final Encoder<E> encoder;
+    private final ByteArrayOutputStream sampleBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream sampleOutput = new DataOutputStream(sampleBuffer);
+    private long estimatedRowBytes = 64;
+
+    public RowSizeEstimator(Encoder<E> encoder)
+    {
+        this.encoder = requireNonNull(encoder, "encoder is null");
+    }
+
+    /**
+     * @param rowCount 加入row之后的行数
+     * @return rowCount行估算占用的内存
+     */
+    public long estimate(E row, long rowCount)
+    {
+        if (rowCount % ROW_SAMPLE_INTERVAL == 1) {
+            sampleBuffer.reset();
+            try {
+                encoder.encoder(row, sampleOutput);
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+            estimatedRowBytes = (estimatedRowBytes + sampleBuffer.size() + ROW_OBJECT_OVERHEAD) / 2;
+        }
+        return rowCount * estimatedRowBytes;
+    }
+
+    /**
+     * @return 需要额外申请的内存, 至少一块; 已申请的内存足够时返回0
+     */
+    public static long requiredMemory(long estimatedBytes, long reservedBytes)
+    {
+        long required = estimatedBytes - reservedBytes;
+        return required <= 0 ? 0 : Math.max(required, MEMORY_CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 进程内所有task共享的后台溢写线程池, 线程数不超过cpu核数.
+ * 每个consumer同时最多只有一个溢写在执行, 排队的溢写数量不会超过并发task数
+ */
+public final class SpillExecutor
+{
+    private SpillExecutor() {}
+
+    private static final AtomicInteger threadId = new AtomicInteger(0);
+    private static final ThreadPoolExecutor pool;
+
+    static {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("astarte-spill-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public static <T> Future<T> submit(Callable<T> spillTask)
+    {
+        return pool.submit(spillTask);
+    }
+}
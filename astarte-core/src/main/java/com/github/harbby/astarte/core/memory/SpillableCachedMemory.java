@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.EncoderInputStream;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+import com.github.harbby.astarte.core.coders.io.BlockDecompressInputStream;
+import com.github.harbby.astarte.core.coders.io.ByteBufferBlockInputStream;
+import com.github.harbby.astarte.core.operator.CacheManager;
+import com.github.harbby.gadtry.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 可以落盘的Cache数据, 内存和文件中都是相同格式的压缩块.
+ * MEM_DISK模式先写入内存, 存储内存不足时把已缓存的数据和之后的数据都写入文件;
+ * DISK_ONLY模式直接写文件. 文件通过mmap读取
+ */
+public class SpillableCachedMemory<E>
+        extends CacheManager.CacheMemory<E>
+{
+    private static final Logger logger = LoggerFactory.getLogger(SpillableCachedMemory.class);
+    private final Encoder<E> encoder;
+    private final BlockCodec codec;
+    private final File cacheFile;
+    private final DataOutputStream dataOutputStream;
+    //为null时数据在cacheFile中
+    private MemoryBlock block;
+    private OutputStream fileOutput;
+    private long count;
+
+    /**
+     * @param diskOnly 为true时不使用内存, 直接写入cacheFile
+     */
+    public SpillableCachedMemory(Encoder<E> encoder, BlockCodec codec, int dataSetId, File cacheFile, boolean diskOnly)
+    {
+        this(encoder, codec, diskOnly ? null : MemoryManager.allocateMemoryBlock(dataSetId), cacheFile);
+    }
+
+    /**
+     * @param block 为null时直接写入cacheFile
+     */
+    SpillableCachedMemory(Encoder<E> encoder, BlockCodec codec, MemoryBlock block, File cacheFile)
+    {
+        this.encoder = requireNonNull(encoder, "encoder is null");
+        this.codec = requireNonNull(codec, "codec is null");
+        this.cacheFile = requireNonNull(cacheFile, "cacheFile is null");
+        this.dataOutputStream = new DataOutputStream(new BlockCompressOutputStream(new SpillableOutputStream(), codec));
+        this.block = block;
+        if (block == null) {
+            this.openFile();
+        }
+    }
+
+    public boolean isOnDisk()
+    {
+        return block == null;
+    }
+
+    /**
+     * 存储内存不足时溢写到cacheFile, 总是可以缓存
+     */
+    @Override
+    public boolean append(E record)
+    {
+        checkState(!isFinal, "don't append record to writeMode");
+        count++;
+        try {
+            encoder.encoder(record, dataOutputStream);
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean finalCache()
+    {
+        //关闭时可能还会溢写, 之后才进入只读状态
+        try {
+            dataOutputStream.close();
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+        if (block != null) {
+            block.finalData();
+        }
+        return super.finalCache();
+    }
+
+    @Override
+    public Iterator<E> prepareIterator()
+    {
+        checkState(isFinal, "only reader mode");
+        if (block != null) {
+            return new EncoderInputStream<>(count, encoder, new BlockDecompressInputStream(block.prepareInputStream(), codec));
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                //超过2GB的文件无法映射为一个ByteBuffer, 读完后关闭文件
+                return new EncoderInputStream<>(count, encoder, new BlockDecompressInputStream(new BufferedInputStream(new FileInputStream(cacheFile)), codec));
+            }
+            //映射在channel关闭后仍然有效, buffer不可达时由GC解除映射
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return new EncoderInputStream<>(count, encoder, new ByteBufferBlockInputStream(data, codec));
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    @Override
+    public long getMemorySize()
+    {
+        return block == null ? 0 : block.getMemorySize();
+    }
+
+    /**
+     * 驱逐时把内存中的数据写入文件, 之后从文件读取
+     */
+    @Override
+    public boolean evict()
+    {
+        checkState(isFinal, "only evict final cache");
+        if (block != null) {
+            try {
+                this.spill();
+                fileOutput.close();
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void freeMemory()
+    {
+        if (block != null) {
+            block.free();
+        }
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            logger.warn("delete cache file {} failed", cacheFile);
+        }
+    }
+
+    private void openFile()
+    {
+        File dir = cacheFile.getParentFile();
+        checkState(dir.exists() || dir.mkdirs() || dir.exists(), "create cache dir failed %s", dir);
+        try {
+            this.fileOutput = new BufferedOutputStream(new FileOutputStream(cacheFile, false));
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    /**
+     * 把内存中已缓存的数据写入文件并释放内存, 之后的数据直接追加到文件
+     */
+    private void spill()
+            throws IOException
+    {
+        this.openFile();
+        if (!isFinal) {
+            block.finalData();
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream inputStream = block.prepareInputStream()) {
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                fileOutput.write(buffer, 0, len);
+            }
+        }
+        logger.info("spill {} bytes of cached data to {}", block.getBlockSize(), cacheFile);
+        block.free();
+        block = null;
+    }
+
+    private class SpillableOutputStream
+            extends OutputStream
+    {
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            int written = 0;
+            if (block != null) {
+                written = block.tryWrite(b, off, len);
+                if (written == len) {
+                    return;
+                }
+                spill();
+            }
+            fileOutput.write(b, off + written, len - written);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (fileOutput != null) {
+                fileOutput.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.gadtry.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * task级别的执行内存预算, 内存从executor的MemoryManager中申请.
+ * 预算或executor内存池耗尽时优先溢写占用内存最大的consumer, 并统计该task的溢写次数, 字节数和耗时
+ */
+public class TaskMemoryManager
+{
+    private static final Logger logger = LoggerFactory.getLogger(TaskMemoryManager.class);
+
+    private final MemoryManager memoryManager;
+    private final long memoryBudget;
+    private final Set<MemoryConsumer> consumers = new LinkedHashSet<>();
+    private long used;
+
+    private int spillCount;
+    private long spillBytes;
+    //溢写本身的耗时(排序, 编码, 压缩, 写文件), 异步溢写时与task的计算重叠
+    private long spillTimeNanos;
+    //task线程因溢写而阻塞的时间
+    private long spillWaitNanos;
+
+    /**
+     * 使用独立的内存池, 不与其他task共享
+     */
+    public TaskMemoryManager(long memoryBudget)
+    {
+        this(new MemoryManager(memoryBudget, 0), memoryBudget);
+    }
+
+    public TaskMemoryManager(MemoryManager memoryManager, long memoryBudget)
+    {
+        checkArgument(memoryBudget > 0, "memoryBudget must > 0");
+        this.memoryManager = requireNonNull(memoryManager, "memoryManager is null");
+        this.memoryBudget = memoryBudget;
+    }
+
+    synchronized void register(MemoryConsumer consumer)
+    {
+        consumers.add(consumer);
+    }
+
+    synchronized void unregister(MemoryConsumer consumer)
+    {
+        consumers.remove(consumer);
+    }
+
+    synchronized long acquireExecutionMemory(long required, MemoryConsumer requester)
+    {
+        checkArgument(required >= 0, "required must >= 0");
+        long granted = this.tryAcquire(required);
+        if (granted < required) {
+            List<MemoryConsumer> candidates = new ArrayList<>(consumers.size());
+            for (MemoryConsumer consumer : consumers) {
+                if (consumer != requester && consumer.getUsed() > 0) {
+                    candidates.add(consumer);
+                }
+            }
+            candidates.sort((x, y) -> Long.compare(y.getUsed(), x.getUsed()));
+            for (MemoryConsumer consumer : candidates) {
+                if (granted >= required) {
+                    break;
+                }
+                this.spill(consumer);
+                granted += this.tryAcquire(required - granted);
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * 同时受task预算和executor内存池限制
+     */
+    private long tryAcquire(long size)
+    {
+        long request = Math.max(0, Math.min(size, memoryBudget - used));
+        long granted = request == 0 ? 0 : memoryManager.acquireExecutionMemory(this, request);
+        used += granted;
+        return granted;
+    }
+
+    synchronized void releaseExecutionMemory(long size, MemoryConsumer consumer)
+    {
+        used -= size;
+        memoryManager.releaseExecutionMemory(this, size);
+    }
+
+    /**
+     * 溢写指定consumer并记录溢写指标
+     */
+    public synchronized long spill(MemoryConsumer consumer)
+    {
+        long startTime = System.nanoTime();
+        try {
+            long released = consumer.spill();
+            long elapsed = System.nanoTime() - startTime;
+            spillTimeNanos += elapsed;
+            spillWaitNanos += elapsed;
+            if (released > 0) {
+                spillCount++;
+                spillBytes += released;
+                logger.debug("spill {} released {} bytes, task memory used {}/{}", consumer, released, used, memoryBudget);
+            }
+            return released;
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    /**
+     * 记录一次在后台线程完成的溢写, 由task线程在取回溢写结果时调用
+     */
+    public synchronized void recordAsyncSpill(long released, long spillTimeNanos)
+    {
+        this.spillCount++;
+        this.spillBytes += released;
+        this.spillTimeNanos += spillTimeNanos;
+    }
+
+    /**
+     * 记录task线程等待后台溢写完成的时间
+     */
+    public synchronized void recordSpillWait(long waitNanos)
+    {
+        this.spillWaitNanos += waitNanos;
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    public synchronized long getUsed()
+    {
+        return used;
+    }
+
+    public synchronized int getSpillCount()
+    {
+        return spillCount;
+    }
+
+    public synchronized long getSpillBytes()
+    {
+        return spillBytes;
+    }
+
+    public synchronized long getSpillTimeMs()
+    {
+        return spillTimeNanos / 1_000_000;
+    }
+
+    public synchronized long getSpillWaitTimeMs()
+    {
+        return spillWaitNanos / 1_000_000;
+    }
+
+    /**
+     * task结束时调用, 返回未被归还的内存字节数
+     */
+    public synchronized long cleanUpAllMemory()
+    {
+        long leaked = used;
+        if (leaked != 0) {
+            logger.warn("task memory leak {} bytes, consumers {}", leaked, consumers);
+        }
+        consumers.clear();
+        used = 0;
+        memoryManager.releaseAllExecutionMemory(this);
+        return leaked;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.api.ShuffleWriter;
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+import static com.github.harbby.astarte.core.operator.SortShuffleWriter.getSortMergedFileHarderSize;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 不排序的hash shuffle writer.
+ * 每个reduce分区先写一个独立压缩的临时文件, 最后按分区顺序零拷贝拼接到merged文件中,
+ * merged文件格式与SortShuffleWriter完全相同.
+ * 只用于不需要排序, 没有combine并且reduce分区数较少的shuffle
+ */
+public class BypassMergeShuffleWriter<K, V>
+        implements ShuffleWriter<K, V>
+{
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    private final File shuffleWorkDir;
+    private final String prefix;
+    private final File mergeName;
+    private final Partitioner partitioner;
+    private final Encoder<Tuple2<K, V>> encoder;
+    private final BlockCodec codec;
+
+    private final File[] partitionFiles;
+    private final DataOutputStream[] partitionOutputs;
+    private final long[] rowCounts;
+
+    public BypassMergeShuffleWriter(
+            File shuffleWorkDir,
+            String filePrefix,
+            String mergeName,
+            Partitioner partitioner,
+            Encoder<Tuple2<K, V>> encoder,
+            BlockCodec codec)
+    {
+        this.shuffleWorkDir = shuffleWorkDir;
+        this.prefix = filePrefix;
+        this.mergeName = new File(shuffleWorkDir, mergeName);
+        this.partitioner = requireNonNull(partitioner, "partitioner is null");
+        this.encoder = requireNonNull(encoder, "encoder is null");
+        this.codec = requireNonNull(codec, "codec is null");
+        this.partitionFiles = new File[partitioner.numPartitions()];
+        this.partitionOutputs = new DataOutputStream[partitioner.numPartitions()];
+        this.rowCounts = new long[partitioner.numPartitions()];
+
+        if (!shuffleWorkDir.exists()) {
+            checkState(shuffleWorkDir.mkdirs() || shuffleWorkDir.exists(), "create shuffle dir failed %s", shuffleWorkDir);
+        }
+    }
+
+    private DataOutputStream getPartitionOutput(int reduceId)
+            throws IOException
+    {
+        DataOutputStream dataOutput = partitionOutputs[reduceId];
+        if (dataOutput == null) {
+            File file = new File(shuffleWorkDir, prefix + reduceId + ".data");
+            partitionFiles[reduceId] = file;
+            dataOutput = new DataOutputStream(new BlockCompressOutputStream(new FileOutputStream(file, false), codec, BLOCK_SIZE));
+            partitionOutputs[reduceId] = dataOutput;
+        }
+        return dataOutput;
+    }
+
+    @Override
+    public ByteBuffer write(Iterator<? extends Tuple2<K, V>> iterator)
+            throws IOException
+    {
+        while (iterator.hasNext()) {
+            Tuple2<K, V> kv = iterator.next();
+            int reduceId = partitioner.getPartition(kv.key());
+            encoder.encoder(kv, getPartitionOutput(reduceId));
+            rowCounts[reduceId]++;
+        }
+        this.closeOutputs();
+        return this.mergeFile();
+    }
+
+    private ByteBuffer mergeFile()
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(getSortMergedFileHarderSize(partitionFiles.length));
+        header.putInt(partitionFiles.length);
+        header.put(codec.getId());
+        try (FileChannel fileChannel = new FileOutputStream(mergeName, false).getChannel()) {
+            //skip header = int + byte + len * long
+            fileChannel.position(header.capacity());
+            long position = 0;
+            for (int reduceId = 0; reduceId < partitionFiles.length; reduceId++) {
+                File file = partitionFiles[reduceId];
+                if (file != null) {
+                    try (FileChannel input = new FileInputStream(file).getChannel()) {
+                        long size = input.size();
+                        long transferred = 0;
+                        while (transferred < size) {
+                            transferred += input.transferTo(transferred, size - transferred, fileChannel);
+                        }
+                        position += size;
+                    }
+                }
+                header.putLong(position);
+                header.putLong(rowCounts[reduceId]);
+            }
+            //write header
+            fileChannel.position(0);
+            header.flip();
+            while (header.hasRemaining()) {
+                fileChannel.write(header);
+            }
+        }
+        checkState(header.position() == header.capacity());
+        header.position(0);
+        return header;
+    }
+
+    private void closeOutputs()
+            throws IOException
+    {
+        for (int i = 0; i < partitionOutputs.length; i++) {
+            if (partitionOutputs[i] != null) {
+                partitionOutputs[i].close();
+                partitionOutputs[i] = null;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        this.closeOutputs();
+        for (File file : partitionFiles) {
+            if (file != null && file.exists()) {
+                checkState(file.delete(), "clear shuffle tmp file failed " + file.getCanonicalPath());
+            }
+        }
+    }
+}
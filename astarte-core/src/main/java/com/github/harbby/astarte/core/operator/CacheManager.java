@@ -17,23 +17,27 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
 import com.github.harbby.astarte.core.memory.ByteCachedMemory;
+import com.github.harbby.astarte.core.memory.DeserializedCachedMemory;
+import com.github.harbby.astarte.core.memory.SpillableCachedMemory;
+import com.github.harbby.gadtry.base.Iterators;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 import static java.util.Objects.requireNonNull;
 
 /**
- * cache数据，支持对象和字节存储(支持3种cache模式)
+ * cache数据，支持对象和字节存储(支持5种cache模式)
  * cache算子会使得Executor节点拥有状态，调度时应注意幂等
  */
 public class CacheManager
@@ -42,39 +46,112 @@ public class CacheManager
 
     private static final Logger logger = LoggerFactory.getLogger(CacheManager.class);
     private static final Map<Integer, DataSetCache<?>> cacheMemMap = new ConcurrentHashMap<>();
+    //已完成且占用存储内存的分区, 按访问顺序排列, 驱逐时从最久未访问的开始. 读取和驱逐都需要持有该锁
+    private static final LinkedHashMap<Long, CacheMemory<?>> lruPartitions = new LinkedHashMap<>(16, 0.75f, true);
 
     public enum CacheMode
     {
         MEM_ONLY,
+        /**
+         * 直接保存行对象, 读取时不需要解码, 适合每次迭代都会读取的dataSet.
+         * 每次命中都返回相同的对象, 行中不能包含Iterator这类只能遍历一次或会被修改的对象
+         */
+        MEM_ONLY_DESERIALIZED,
+        /**
+         * 序列化但不压缩, 用内存换取压缩和解压的cpu开销
+         */
+        MEM_ONLY_UNCOMPRESSED,
+        /**
+         * 存储内存不足时落盘到executor本地文件
+         */
         MEM_DISK,
         DISK_ONLY; //todo: checkpoint ?
     }
 
     public abstract static class CacheMemory<E>
     {
-        protected boolean isFinal;
+        //写入线程完成后置为true, 读取线程在lruPartitions锁内判断
+        protected volatile boolean isFinal;
+        //正在读取的迭代器数量, 大于0时不能驱逐
+        private int readers;
 
         public abstract void freeMemory();
 
-        public void finalCache()
+        /**
+         * 当前占用的存储内存
+         */
+        public long getMemorySize()
+        {
+            return 0;
+        }
+
+        /**
+         * 释放占用的存储内存
+         *
+         * @return 驱逐后是否仍然可以读取(例如已经写入磁盘), false时需要根据血缘重新计算
+         */
+        public abstract boolean evict();
+
+        /**
+         * @return false时存储内存不足, 已缓存的数据被释放, 该分区不进行缓存
+         */
+        public boolean finalCache()
         {
             this.isFinal = true;
+            return true;
         }
 
-        public abstract void append(E record);
+        /**
+         * @return false时存储内存不足, 已缓存的数据被释放, 调用方不再继续append
+         */
+        public abstract boolean append(E record);
 
         public abstract Iterator<E> prepareIterator();
     }
 
+    /**
+     * 每个dataSet的缓存命中, 未命中和驱逐的分区次数
+     */
+    public static class CacheMetrics
+    {
+        private final AtomicLong hitCount = new AtomicLong();
+        private final AtomicLong missCount = new AtomicLong();
+        private final AtomicLong evictCount = new AtomicLong();
+
+        public long getHitCount()
+        {
+            return hitCount.get();
+        }
+
+        public long getMissCount()
+        {
+            return missCount.get();
+        }
+
+        public long getEvictCount()
+        {
+            return evictCount.get();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("hits %s, misses %s, evictions %s", hitCount.get(), missCount.get(), evictCount.get());
+        }
+    }
+
     private static class DataSetCache<E>
     {
+        private final int dataSetId;
         private final int number;
+        private final CacheMetrics metrics = new CacheMetrics();
         private final AtomicInteger releasePartitions = new AtomicInteger();
         private final CacheMemory<E>[] cacheMemories;
 
         @SuppressWarnings("unchecked")
         private DataSetCache(int dataSetId, int number)
         {
+            this.dataSetId = dataSetId;
             this.number = number;
             this.cacheMemories = new CacheMemory[number];
         }
@@ -89,25 +166,102 @@ public class CacheManager
             cacheMemories[partitionId] = cacheMemory;
         }
 
+        /**
+         * 移除还没有完成的分区缓存并释放内存, 此时该分区还没有加入lruPartitions
+         */
+        public void removeCache(int partitionId, CacheMemory<E> cacheMemory)
+        {
+            if (cacheMemories[partitionId] == cacheMemory) {
+                cacheMemories[partitionId] = null;
+            }
+            cacheMemory.freeMemory();
+        }
+
+        /**
+         * 被驱逐的分区已经释放, 只需要计数
+         */
         public int freePartition(int partitionId)
         {
-            requireNonNull(cacheMemories[partitionId], "unknown core error").freeMemory();
-            cacheMemories[partitionId] = null;
+            CacheMemory<E> cacheMemory = cacheMemories[partitionId];
+            if (cacheMemory != null) {
+                removeLru(dataSetId, partitionId);
+                cacheMemory.freeMemory();
+                cacheMemories[partitionId] = null;
+            }
             return releasePartitions.incrementAndGet();
         }
 
         public void freeAllPartition()
         {
-            for (CacheMemory<?> byteCachedMemory : cacheMemories) {
-                requireNonNull(byteCachedMemory, "unknown core error").freeMemory();
+            for (int partitionId = 0; partitionId < number; partitionId++) {
+                if (cacheMemories[partitionId] != null) {
+                    removeLru(dataSetId, partitionId);
+                    cacheMemories[partitionId].freeMemory();
+                }
+            }
+        }
+    }
+
+    private static long partitionKey(int dataSetId, int partitionId)
+    {
+        return ((long) dataSetId << Integer.SIZE) | partitionId;
+    }
+
+    private static void removeLru(int dataSetId, int partitionId)
+    {
+        synchronized (lruPartitions) {
+            lruPartitions.remove(partitionKey(dataSetId, partitionId));
+        }
+    }
+
+    /**
+     * 按LRU顺序驱逐其他dataSet已完成且没有被读取的分区, 由MemoryManager在内存不足时调用.
+     * MEM_DISK的分区写入磁盘, MEM_ONLY的分区直接丢弃, 下次访问时根据血缘重新计算
+     *
+     * @return 释放的存储内存字节数
+     */
+    public static long evictStorage(long required, int excludeDataSetId)
+    {
+        long released = 0;
+        synchronized (lruPartitions) {
+            Iterator<Map.Entry<Long, CacheMemory<?>>> iterator = lruPartitions.entrySet().iterator();
+            while (released < required && iterator.hasNext()) {
+                Map.Entry<Long, CacheMemory<?>> entry = iterator.next();
+                int dataSetId = (int) (entry.getKey() >>> Integer.SIZE);
+                int partitionId = (int) (long) entry.getKey();
+                CacheMemory<?> cacheMemory = entry.getValue();
+                if (dataSetId == excludeDataSetId || cacheMemory.readers > 0) {
+                    continue;
+                }
+                long memorySize = cacheMemory.getMemorySize();
+                iterator.remove();
+                DataSetCache<?> dataSetCache = cacheMemMap.get(dataSetId);
+                if (!cacheMemory.evict() && dataSetCache != null) {
+                    dataSetCache.cacheMemories[partitionId] = null;
+                }
+                released += memorySize;
+                if (dataSetCache != null) {
+                    dataSetCache.metrics.evictCount.incrementAndGet();
+                }
+                logger.info("evicted dataSet[{}] partition[{}] cache, released {} bytes", dataSetId, partitionId, memorySize);
             }
         }
+        return released;
+    }
+
+    /**
+     * @return 该dataSet没有缓存时返回null
+     */
+    public static CacheMetrics getCacheMetrics(int dataSetId)
+    {
+        DataSetCache<?> cache = cacheMemMap.get(dataSetId);
+        return cache == null ? null : cache.metrics;
     }
 
     public static boolean cacheDone(int operatorId)
     {
         DataSetCache<?> cache = cacheMemMap.get(operatorId);
-        return cache != null && cache.cacheMemories[0].isFinal;
+        return cache != null && cache.cacheMemories[0] != null && cache.cacheMemories[0].isFinal;
     }
 
     public static void unCacheExec(int dataSetId)
@@ -115,7 +269,7 @@ public class CacheManager
         DataSetCache<?> cachedMemories = cacheMemMap.remove(dataSetId);
         if (cachedMemories != null) {
             cachedMemories.freeAllPartition();
-            logger.info("cleared dataSet[{}] cache data", dataSetId);
+            logger.info("cleared dataSet[{}] cache data, {}", dataSetId, cachedMemories.metrics);
         }
     }
 
@@ -132,32 +286,24 @@ public class CacheManager
         }
     }
 
-    /**
-     * Cache数据，使用对象存储
-     */
-    private static class ObjectCacheMemory<E>
-            extends CacheMemory<E>
+    private static <E> CacheMemory<E> createCacheMemory(Operator<E> dataSet, int partitionId, TaskContext taskContext)
     {
-        private final List<E> data = new LinkedList<>();
-
-        @Override
-        public void freeMemory()
-        {
-            data.clear();
-        }
-
-        @Override
-        public void append(E record)
-        {
-            checkState(!isFinal, "don't append record to writeMode");
-            data.add(record);
-        }
-
-        @Override
-        public Iterator<E> prepareIterator()
-        {
-            checkState(isFinal, "must be in read mode");
-            return data.iterator();
+        CacheMode cacheMode = requireNonNull(dataSet.getCacheMode(), "cacheMode is null");
+        //shuffleWorkDir是executor本地目录, executor退出时删除
+        File cacheFile = new File(taskContext.shuffleWorkDir(), String.format("cache_%s_%s.data", dataSet.getId(), partitionId));
+        switch (cacheMode) {
+            case MEM_ONLY:
+                return new ByteCachedMemory<>(dataSet.getRowEncoder(), BlockCodecs.lz4(), dataSet.getId());
+            case MEM_ONLY_DESERIALIZED:
+                return new DeserializedCachedMemory<>(dataSet.getRowEncoder(), dataSet.getId());
+            case MEM_ONLY_UNCOMPRESSED:
+                return new ByteCachedMemory<>(dataSet.getRowEncoder(), BlockCodecs.none(), dataSet.getId());
+            case MEM_DISK:
+                return new SpillableCachedMemory<>(dataSet.getRowEncoder(), BlockCodecs.lz4(), dataSet.getId(), cacheFile, false);
+            case DISK_ONLY:
+                return new SpillableCachedMemory<>(dataSet.getRowEncoder(), BlockCodecs.lz4(), dataSet.getId(), cacheFile, true);
+            default:
+                throw new UnsupportedOperationException("unknown cache mode " + cacheMode);
         }
     }
 
@@ -172,29 +318,85 @@ public class CacheManager
         DataSetCache<E> dataSetCache = (DataSetCache<E>) cacheMemMap
                 .computeIfAbsent(dataSet.getId(), key -> new DataSetCache<E>(dataSet.getId(), numPartitions));
 
-        if (dataSetCache.getCache(partitionId) != null) {
+        CacheMemory<E> cacheMemory;
+        CacheMemory<E> partitionCacheMemory = null;
+        synchronized (lruPartitions) {
+            cacheMemory = dataSetCache.getCache(partitionId);
+            if (cacheMemory == null) {
+                //由当前task写入该分区的缓存, 完成前其他task读取时直接计算
+                partitionCacheMemory = createCacheMemory(dataSet, partitionId, taskContext);
+                dataSetCache.putCache(partitionId, partitionCacheMemory);
+            }
+            else if (cacheMemory.isFinal) {
+                //读取期间不能被驱逐
+                cacheMemory.readers++;
+                lruPartitions.get(partitionKey(dataSet.getId(), partitionId));
+            }
+        }
+        if (cacheMemory != null && cacheMemory.isFinal) {
             logger.debug("dataSet{}[{}] cache hit, stage: {}", dataSet, partitionId, taskContext.getStageId());
-            return dataSetCache.getCache(partitionId).prepareIterator();
+            dataSetCache.metrics.hitCount.incrementAndGet();
+            CacheMemory<E> readingMemory = cacheMemory;
+            return Iterators.autoClose(readingMemory.prepareIterator(), () -> {
+                synchronized (lruPartitions) {
+                    readingMemory.readers--;
+                }
+            });
         }
         logger.debug("dataSet{}[{}] cache miss, stage: {}", dataSet, partitionId, taskContext.getStageId());
+        dataSetCache.metrics.missCount.incrementAndGet();
+        if (partitionCacheMemory == null) {
+            //其他task正在写入该分区的缓存
+            return dataSet.compute(partition, taskContext);
+        }
+        return cacheIterator(dataSet, partition, taskContext, dataSetCache, partitionCacheMemory);
+    }
 
-        Iterator<E> iterator = dataSet.compute(partition, taskContext);
-        CacheMemory<E> partitionCacheMemory = new ByteCachedMemory<>(dataSet.getRowEncoder());
-        dataSetCache.putCache(partitionId, partitionCacheMemory);
+    /**
+     * 计算分区的同时写入缓存. 存储内存不足或者计算失败时移除该分区并释放内存, 之后的访问重新计算
+     */
+    private static <E> Iterator<E> cacheIterator(Operator<E> dataSet, Partition partition, TaskContext taskContext,
+            DataSetCache<E> dataSetCache, CacheMemory<E> partitionCacheMemory)
+    {
+        int partitionId = partition.getId();
+        Iterator<E> iterator;
+        try {
+            iterator = dataSet.compute(partition, taskContext);
+        }
+        catch (Throwable e) {
+            dataSetCache.removeCache(partitionId, partitionCacheMemory);
+            throw e;
+        }
         return new Iterator<E>()
         {
-            private boolean done = false;
+            private boolean caching = true;
 
             @Override
             public boolean hasNext()
             {
-                boolean hasNext = iterator.hasNext();
-                if (!hasNext && !done) {
-                    done = true;
-                    partitionCacheMemory.finalCache(); //后面跟随limit时存在缺陷，无法进行final
-                    logger.debug("dataSet {} partition {} cache data succeed", dataSet, partitionId);
+                try {
+                    boolean hasNext = iterator.hasNext();
+                    if (!hasNext && caching) {
+                        //后面跟随limit时存在缺陷，无法进行final
+                        if (partitionCacheMemory.finalCache()) {
+                            caching = false;
+                            if (partitionCacheMemory.getMemorySize() > 0) {
+                                synchronized (lruPartitions) {
+                                    lruPartitions.put(partitionKey(dataSet.getId(), partitionId), partitionCacheMemory);
+                                }
+                            }
+                            logger.debug("dataSet {} partition {} cache data succeed", dataSet, partitionId);
+                        }
+                        else {
+                            this.dropCache("not enough storage memory");
+                        }
+                    }
+                    return hasNext;
+                }
+                catch (Throwable e) {
+                    this.dropCache("compute failed");
+                    throw e;
                 }
-                return hasNext;
             }
 
             @Override
@@ -203,9 +405,29 @@ public class CacheManager
                 if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                E row = iterator.next();
-                partitionCacheMemory.append(row);
-                return row;
+                try {
+                    E row = iterator.next();
+                    if (caching && !partitionCacheMemory.append(row)) {
+                        this.dropCache("not enough storage memory");
+                    }
+                    return row;
+                }
+                catch (Throwable e) {
+                    this.dropCache("compute failed");
+                    throw e;
+                }
+            }
+
+            /**
+             * 放弃缓存该分区, 剩余的数据直接透传
+             */
+            private void dropCache(String reason)
+            {
+                if (caching) {
+                    caching = false;
+                    dataSetCache.removeCache(partitionId, partitionCacheMemory);
+                    logger.info("{}, skip cache dataSet[{}] partition[{}]", reason, dataSet.getId(), partitionId);
+                }
             }
         };
     }
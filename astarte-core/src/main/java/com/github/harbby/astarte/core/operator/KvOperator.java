@@ -17,8 +17,10 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.HashPartitioner;
 import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.RangePartitioner;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.Utils;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.DataSet;
 import com.github.harbby.astarte.core.api.KvDataSet;
 import com.github.harbby.astarte.core.api.Partition;
@@ -30,6 +32,7 @@ import com.github.harbby.astarte.core.api.function.Mapper;
 import com.github.harbby.astarte.core.api.function.Reducer;
 import com.github.harbby.astarte.core.coders.Encoder;
 import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
 import com.github.harbby.astarte.core.coders.Tuple2Encoder;
 import com.github.harbby.astarte.core.utils.ReduceUtil;
 import com.github.harbby.gadtry.base.Iterators;
@@ -424,8 +427,24 @@ public class KvOperator<K, V>
     public KvDataSet<K, V> sortByKey(Comparator<K> comparator, int numPartitions)
     {
         Comparator<K> clearedFunc = Utils.clear(comparator);
-        Partitioner partitioner = SortShuffleWriter.createPartitioner(numPartitions, (Operator<K>) this.keys(), clearedFunc);
-        ShuffleMapOperator<K, V> sortShuffleMapOp = new ShuffleMapOperator<>(dataSet, partitioner, clearedFunc, null);
+        Encoder<Tuple2<K, V>> rowEncoder = dataSet.getRowEncoder();
+        //采样和shuffle map都需要完整计算一次输入, 缓存采样时的结果, shuffle map读取后按分区释放
+        //使用MEM_DISK, 输入超过存储内存时溢写到磁盘, 不会在内存中保留整个输入
+        boolean cacheInput = !dataSet.isMarkedCache() && context.getConf().getBoolean(Constant.SORT_SAMPLE_CACHE_ENABLE, true);
+        Operator<Tuple2<K, V>> input = dataSet;
+        if (cacheInput) {
+            input = (Operator<Tuple2<K, V>>) dataSet.mapPartition(iterator -> iterator);
+            input.encoder(rowEncoder).cache(CacheManager.CacheMode.MEM_DISK);
+        }
+        Partitioner partitioner = RangePartitioner.create(numPartitions, new MapOperator<>(input, Tuple2::key, false), clearedFunc,
+                OrderedEncoder.getOrderedKeyEncoder(rowEncoder, clearedFunc));
+        if (cacheInput) {
+            int cachedDataSetId = input.getId();
+            input = (Operator<Tuple2<K, V>>) input.mapPartitionWithId((id, iterator) ->
+                    Iterators.autoClose(iterator, () -> CacheManager.unCacheExec(cachedDataSetId, id)));
+            input.encoder(rowEncoder);
+        }
+        ShuffleMapOperator<K, V> sortShuffleMapOp = new ShuffleMapOperator<>(input, partitioner, clearedFunc, null);
 
         ShuffledMergeSortOperator<K, V> shuffledOperator = new ShuffledMergeSortOperator<>(
                 sortShuffleMapOp,
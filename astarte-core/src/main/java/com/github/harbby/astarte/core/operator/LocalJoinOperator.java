@@ -17,11 +17,16 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
 import com.github.harbby.astarte.core.utils.ReduceUtil;
+import com.github.harbby.astarte.core.utils.SpillableRowBuffer;
 import com.github.harbby.gadtry.function.Function2;
 
 import java.util.ArrayList;
@@ -46,6 +51,8 @@ public class LocalJoinOperator<K, V1, V2>
     protected final Operator<Tuple2<K, V2>> rightDataSet;
     protected final ReduceUtil.JoinMode joinMode;
     protected final Comparator<K> comparator;
+    protected final int joinBufferSpillThreshold;
+    protected final BlockCodec codec;
     private final Function2<Partition, TaskContext, Iterator<Tuple2<K, Tuple2<V1, V2>>>> physicalPlan;
 
     protected LocalJoinOperator(ReduceUtil.JoinMode joinMode,
@@ -60,6 +67,8 @@ public class LocalJoinOperator<K, V1, V2>
         this.rightDataSet = unboxing(rightDataSet);
         this.comparator = requireNonNull(comparator, "comparator is null");
         checkState(Objects.equals(leftDataSet.getPartitioner(), rightDataSet.getPartitioner()));
+        this.joinBufferSpillThreshold = context.getConf().getInt(Constant.JOIN_BUFFER_SPILL_THRESHOLD, 100000);
+        this.codec = BlockCodecs.fromConf(context.getConf());
         this.physicalPlan = optimizerPlan(leftDataSet, rightDataSet, joinMode, comparator);
     }
 
@@ -69,10 +78,13 @@ public class LocalJoinOperator<K, V1, V2>
             ReduceUtil.JoinMode joinMode,
             Comparator<K> comparator)
     {
+        int spillThreshold = leftDataSet.getContext().getConf().getInt(Constant.JOIN_BUFFER_SPILL_THRESHOLD, 100000);
+        BlockCodec codec = BlockCodecs.fromConf(leftDataSet.getContext().getConf());
+        Encoder<Tuple2<K, V1>> leftEncoder = leftDataSet.getRowEncoder();
         if ((Object) leftDataSet == rightDataSet) {
             return (partition, taskContext) -> {
                 Iterator<Tuple2<K, V1>> left = leftDataSet.computeOrCache(partition, taskContext);
-                return ReduceUtil.sameJoin(left);
+                return ReduceUtil.sameJoin(left, createJoinBuffer(anyValueEncoder(leftEncoder), taskContext, spillThreshold, codec));
             };
         }
         List<? extends Operator<?>> leftOperators = getOperatorStageDependencies(leftDataSet);
@@ -82,7 +94,7 @@ public class LocalJoinOperator<K, V1, V2>
             return (partition, taskContext) -> {
                 Iterator<Tuple2<K, V1>> left = leftDataSet.computeOrCache(partition, taskContext);
                 Iterator<Tuple2<K, V2>> right = rightDataSet.computeOrCache(partition, taskContext);
-                return ReduceUtil.mergeJoin(joinMode, comparator, left, right);
+                return ReduceUtil.mergeJoin(joinMode, comparator, left, right, createJoinBuffer(leftEncoder, taskContext, spillThreshold, codec));
             };
         }
         List<CalcOperator<?, ?>> leftCalcOperators = leftOperators.subList(0, leftOperators.indexOf(sameOperator.get())).stream()
@@ -97,7 +109,23 @@ public class LocalJoinOperator<K, V1, V2>
 
         @SuppressWarnings("unchecked")
         Operator<Tuple2<K, ?>> operator = (Operator<Tuple2<K, ?>>) sameOperator.get();
-        return (partition, taskContext) -> ReduceUtil.sameJoin(operator.computeOrCache(partition, taskContext), leftCalc, rightCalc);
+        Encoder<Tuple2<K, ?>> sameEncoder = operator.getRowEncoder();
+        return (partition, taskContext) -> ReduceUtil.sameJoin(operator.computeOrCache(partition, taskContext),
+                createJoinBuffer(sameEncoder, taskContext, spillThreshold, codec), leftCalc, rightCalc);
+    }
+
+    /**
+     * 缓存同一个key的行, 热点key的行数超过阈值或task执行内存不足时溢写到task的工作目录
+     */
+    protected static <E> SpillableRowBuffer<E> createJoinBuffer(Encoder<E> encoder, TaskContext taskContext, int spillThreshold, BlockCodec codec)
+    {
+        return new SpillableRowBuffer<>(encoder, taskContext.shuffleWorkDir(), spillThreshold, codec, taskContext.getTaskMemoryManager());
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <K> Encoder<Tuple2<K, ?>> anyValueEncoder(Encoder<? extends Tuple2<K, ?>> encoder)
+    {
+        return (Encoder<Tuple2<K, ?>>) (Encoder<?>) encoder;
     }
 
     @Override
@@ -215,12 +243,13 @@ public class LocalJoinOperator<K, V1, V2>
             LocalJoinPartition localJoinPartition = (LocalJoinPartition) partition;
             if ((Object) leftDataSet == rightDataSet) {
                 Iterator<Tuple2<K, V1>> left = leftDataSet.computeOrCache(localJoinPartition.left, taskContext);
-                return ReduceUtil.sameJoin(left);
+                return ReduceUtil.sameJoin(left, createJoinBuffer(anyValueEncoder(leftDataSet.getRowEncoder()), taskContext, joinBufferSpillThreshold, codec));
             }
 
             Iterator<Tuple2<K, V1>> left = leftDataSet.computeOrCache(localJoinPartition.left, taskContext);
             Iterator<Tuple2<K, V2>> right = rightDataSet.computeOrCache(localJoinPartition.right, taskContext);
-            return ReduceUtil.mergeJoin(joinMode, comparator, left, right);
+            return ReduceUtil.mergeJoin(joinMode, comparator, left, right,
+                    createJoinBuffer(leftDataSet.getRowEncoder(), taskContext, joinBufferSpillThreshold, codec));
         }
     }
 
@@ -58,6 +58,14 @@ public class MapPartitionOperator<I, O>
         this.holdPartitioner = holdPartitioner;
     }
 
+    /**
+     * 是否使用了分区id, 使用时不能合并分区
+     */
+    public boolean isDependPartitionId()
+    {
+        return flatMapperWithId != null;
+    }
+
     @Override
     public List<? extends Operator<?>> getDependencies()
     {
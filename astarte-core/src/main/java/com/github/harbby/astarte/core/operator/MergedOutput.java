@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.gadtry.io.BufferedNioOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * map task最终merge输出的写入目标, 先写数据, 最后写header.
+ * 默认写入shuffle_merged文件, local模式下可以直接保存在内存中
+ */
+public abstract class MergedOutput
+        extends OutputStream
+{
+    /**
+     * @return 已写入的数据字节数, 不包含header
+     */
+    public abstract long position();
+
+    /**
+     * 数据写入完成后写入header, 之后输出对reduce task可见
+     */
+    public abstract void commit(ByteBuffer header)
+            throws IOException;
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @FunctionalInterface
+    public static interface Factory
+    {
+        public MergedOutput create(int headerSize)
+                throws IOException;
+    }
+
+    public static MergedOutput ofFile(File file, int headerSize)
+            throws IOException
+    {
+        return new FileMergedOutput(file, headerSize);
+    }
+
+    private static class FileMergedOutput
+            extends MergedOutput
+    {
+        private final FileChannel fileChannel;
+        private final BufferedNioOutputStream outputStream;
+
+        private FileMergedOutput(File file, int headerSize)
+                throws IOException
+        {
+            this.fileChannel = new FileOutputStream(file, false).getChannel();
+            //skip header = int + byte + len * long
+            fileChannel.position(headerSize);
+            this.outputStream = new BufferedNioOutputStream(fileChannel);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            outputStream.write(b, off, len);
+        }
+
+        @Override
+        public long position()
+        {
+            return outputStream.position();
+        }
+
+        @Override
+        public void commit(ByteBuffer header)
+                throws IOException
+        {
+            outputStream.flush();
+            //write header
+            fileChannel.position(0);
+            ByteBuffer buffer = header.duplicate();
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            fileChannel.close();
+        }
+    }
+}
@@ -61,6 +61,7 @@ public abstract class Operator<R>
     private final int dataSetId = nextDataSetId.getAndIncrement();
     private Encoder<R> rowEncoder;
     private boolean markedCache = false;
+    private CacheManager.CacheMode cacheMode;
 
     protected Operator(BatchContext context)
     {
@@ -136,6 +137,11 @@ public abstract class Operator<R>
         return markedCache;
     }
 
+    public CacheManager.CacheMode getCacheMode()
+    {
+        return cacheMode;
+    }
+
     protected abstract Iterator<R> compute(Partition partition, TaskContext taskContext);
 
     public final Iterator<R> computeOrCache(Partition split, TaskContext taskContext)
@@ -157,7 +163,7 @@ public abstract class Operator<R>
     @Override
     public DataSet<R> cache(CacheManager.CacheMode cacheMode)
     {
-        checkState(cacheMode == CacheManager.CacheMode.MEM_ONLY, "目前只支持mem模式");
+        this.cacheMode = requireNonNull(cacheMode, "cacheMode is null");
         markedCache = true;
         return this;
     }
@@ -183,6 +189,7 @@ public abstract class Operator<R>
             return true;
         });
         markedCache = false;
+        cacheMode = null;
     }
 
     @Override
@@ -244,7 +251,7 @@ public abstract class Operator<R>
         Operator<Tuple2<R, Void>> dataSet = this.map(x -> Tuple2.of(x, null));
         dataSet.encoder(Encoders.tuple2OnlyKey(this.getRowEncoder()));
         ShuffleMapOperator<R, Void> shuffleMapOperator =
-                new ShuffleMapOperator<>(dataSet, new HashPartitioner(numPartition), this.getRowEncoder().comparator(), null);
+                new ShuffleMapOperator<>(dataSet, new HashPartitioner(numPartition), this.getRowEncoder().comparator(), null, false);
         ShuffledMergeSortOperator<R, Void> shuffleReducer = new ShuffledMergeSortOperator<>(shuffleMapOperator, shuffleMapOperator.getPartitioner());
         return shuffleReducer.map(Tuple2::key);
     }
@@ -17,12 +17,21 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
 import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
 import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.runtime.ShuffleFetchOptions;
 import com.github.harbby.astarte.core.utils.ReduceUtil;
+import com.github.harbby.astarte.core.utils.SpillableRowBuffer;
+import com.github.harbby.gadtry.base.Iterators;
 import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.ImmutableList;
 
@@ -41,8 +50,13 @@ public class ShuffleJoinOperator<K, V1, V2>
     private final Encoder<Tuple2<K, V1>> leftEncoder;
     private final Encoder<Tuple2<K, V2>> rightEncoder;
     private final Comparator<K> comparator;
+    private final OrderedEncoder<K> leftOrderedKeyEncoder;
+    private final OrderedEncoder<K> rightOrderedKeyEncoder;
     private final int leftShuffleMapId;
     private final int rightShuffleMapId;
+    private final ShuffleFetchOptions fetchOptions;
+    private final int joinBufferSpillThreshold;
+    private final BlockCodec codec;
 
     private final transient List<ShuffleMapOperator<K, ?>> dependencies;
 
@@ -64,6 +78,26 @@ public class ShuffleJoinOperator<K, V1, V2>
         this.leftEncoder = leftShuffleMapOperator.getShuffleMapRowEncoder();
         this.rightEncoder = rightShuffleMapOperator.getShuffleMapRowEncoder();
         this.comparator = leftShuffleMapOperator.getComparator();
+        this.leftOrderedKeyEncoder = leftShuffleMapOperator.getOrderedKeyEncoder();
+        this.rightOrderedKeyEncoder = rightShuffleMapOperator.getOrderedKeyEncoder();
+        this.fetchOptions = ShuffleFetchOptions.fromConf(context.getConf());
+        this.joinBufferSpillThreshold = context.getConf().getInt(Constant.JOIN_BUFFER_SPILL_THRESHOLD, 100000);
+        this.codec = BlockCodecs.fromConf(context.getConf());
+    }
+
+    public ReduceUtil.JoinMode getJoinMode()
+    {
+        return joinMode;
+    }
+
+    public int getLeftShuffleMapId()
+    {
+        return leftShuffleMapId;
+    }
+
+    public int getRightShuffleMapId()
+    {
+        return rightShuffleMapId;
     }
 
     @Override
@@ -93,14 +127,30 @@ public class ShuffleJoinOperator<K, V1, V2>
 
     @Override
     public Iterator<Tuple2<K, Tuple2<V1, V2>>> compute(Partition split, TaskContext taskContext)
+    {
+        int startReduceId = CoalescedPartition.startReduceId(split);
+        int endReduceId = CoalescedPartition.endReduceId(split);
+        if (endReduceId - startReduceId == 1) {
+            return this.join(split, taskContext, startReduceId);
+        }
+        //合并后的分区: reader只在每个reduce分区内有序, 不同reduce分区的key不相交, 按reduce分区分别join后拼接
+        return Iterators.flatMap(IntStream.range(startReduceId, endReduceId).iterator(), reduceId -> this.join(split, taskContext, reduceId));
+    }
+
+    private Iterator<Tuple2<K, Tuple2<V1, V2>>> join(Partition split, TaskContext taskContext, int reduceId)
     {
         int leftShuffleId = taskContext.getDependShuffleId(leftShuffleMapId);
         int rightShuffleId = taskContext.getDependShuffleId(rightShuffleMapId);
         ShuffleClient shuffleClient = taskContext.getShuffleClient();
         try {
-            Iterator<Tuple2<K, V1>> left = shuffleClient.createShuffleReader(comparator, leftEncoder, leftShuffleId, split.getId());
-            Iterator<Tuple2<K, V2>> right = shuffleClient.createShuffleReader(comparator, rightEncoder, rightShuffleId, split.getId());
-            return ReduceUtil.mergeJoin(joinMode, comparator, left, right);
+            //倾斜分区拆分后, 被拆分的一侧只读取部分map输出, 另一侧读取全部
+            Iterator<Tuple2<K, V1>> left = shuffleClient.createShuffleReader(comparator, leftOrderedKeyEncoder, leftEncoder, leftShuffleId, reduceId, reduceId + 1,
+                    SkewedPartition.startMapId(split, leftShuffleMapId), SkewedPartition.endMapId(split, leftShuffleMapId), fetchOptions);
+            Iterator<Tuple2<K, V2>> right = shuffleClient.createShuffleReader(comparator, rightOrderedKeyEncoder, rightEncoder, rightShuffleId, reduceId, reduceId + 1,
+                    SkewedPartition.startMapId(split, rightShuffleMapId), SkewedPartition.endMapId(split, rightShuffleMapId), fetchOptions);
+            SpillableRowBuffer<Tuple2<K, V1>> leftBuffer = new SpillableRowBuffer<>(leftEncoder, taskContext.shuffleWorkDir(), joinBufferSpillThreshold, codec,
+                    taskContext.getTaskMemoryManager());
+            return ReduceUtil.mergeJoin(joinMode, comparator, left, right, leftBuffer);
         }
         catch (IOException e) {
             throw Throwables.throwsThrowable(e);
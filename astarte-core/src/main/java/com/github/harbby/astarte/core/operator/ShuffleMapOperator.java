@@ -19,6 +19,7 @@ import com.github.harbby.astarte.core.HashPartitioner;
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.DataSet;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.ShuffleWriter;
@@ -26,7 +27,14 @@ import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.api.function.Reducer;
 import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.runtime.LocalShuffleExchange;
 import com.github.harbby.gadtry.collection.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
@@ -45,11 +53,18 @@ import static java.util.Objects.requireNonNull;
 public class ShuffleMapOperator<K, V>
         extends Operator<Void>
 {
+    private static final Logger logger = LoggerFactory.getLogger(ShuffleMapOperator.class);
     private final Operator<Tuple2<K, V>> operator;
     private final Partitioner partitioner;
     private final Encoder<Tuple2<K, V>> encoder;
     private final Comparator<K> comparator;
+    private final OrderedEncoder<K> orderedKeyEncoder;
     private final Reducer<V> combine;
+    private final boolean requireOrdering;
+    private final boolean bypassMergeSort;
+    private final boolean mapSideHashCombine;
+    private final boolean asyncSpill;
+    private final BlockCodec codec;
     private int stageId = -1;
 
     public ShuffleMapOperator(
@@ -57,6 +72,19 @@ public class ShuffleMapOperator<K, V>
             Partitioner partitioner,
             Comparator<K> comparator,
             Reducer<V> combine)
+    {
+        this(operator, partitioner, comparator, combine, true);
+    }
+
+    /**
+     * @param requireOrdering reduce端是否需要按key有序, 不需要时读取端直接拼接各个map的输出
+     */
+    public ShuffleMapOperator(
+            Operator<Tuple2<K, V>> operator,
+            Partitioner partitioner,
+            Comparator<K> comparator,
+            Reducer<V> combine,
+            boolean requireOrdering)
     {
         //use default HashPartitioner
         super(operator.getContext());
@@ -64,7 +92,15 @@ public class ShuffleMapOperator<K, V>
         this.operator = unboxing(operator);
         this.encoder = requireNonNull(operator.getRowEncoder(), "row Encoder is null");
         this.comparator = requireNonNull(comparator, "k comparator is null");
+        //comparator反序列化后无法再判断是否是key encoder的自然顺序, 需要在driver端确定
+        this.orderedKeyEncoder = OrderedEncoder.getOrderedKeyEncoder(encoder, comparator);
         this.combine = combine;
+        this.requireOrdering = requireOrdering;
+        int bypassMergeThreshold = context.getConf().getInt(Constant.SHUFFLE_BYPASS_MERGE_THRESHOLD, 200);
+        this.bypassMergeSort = !requireOrdering && combine == null && partitioner.numPartitions() <= bypassMergeThreshold;
+        this.mapSideHashCombine = context.getConf().getBoolean(Constant.SHUFFLE_MAP_COMBINE_ENABLE, true);
+        this.asyncSpill = context.getConf().getBoolean(Constant.SHUFFLE_SPILL_ASYNC_ENABLE, false);
+        this.codec = BlockCodecs.fromConf(context.getConf());
     }
 
     public ShuffleMapOperator(
@@ -109,6 +145,19 @@ public class ShuffleMapOperator<K, V>
         return comparator;
     }
 
+    /**
+     * @return 可以直接比较编码字节的key encoder, shuffle不是按key的自然顺序排序时返回null
+     */
+    public OrderedEncoder<K> getOrderedKeyEncoder()
+    {
+        return orderedKeyEncoder;
+    }
+
+    public boolean isRequireOrdering()
+    {
+        return requireOrdering;
+    }
+
     @Override
     public Partition[] getPartitions()
     {
@@ -140,12 +189,33 @@ public class ShuffleMapOperator<K, V>
     public ByteBuffer doMapTask(Partition partition, TaskContext taskContext)
     {
         String filePrefix = String.format("shuffle_%s_%s_", taskContext.getStageId(), partition.getId());
-        File shuffleWorkDir = new File(taskContext.shuffleWorkDir(), String.valueOf(taskContext.getJobId()));
-        try (ShuffleWriter<K, V> shuffleWriter = new SortShuffleWriter<>(shuffleWorkDir, filePrefix,
-                String.format(MERGE_FILE_NAME, taskContext.getStageId(), partition.getId()),
-                partitioner, encoder, comparator, combine)) {
+        //shuffle输出可能被之后的job复用, 不按job划分目录, stageId在整个context内唯一
+        File shuffleWorkDir = taskContext.shuffleWorkDir();
+        String mergeName = String.format(MERGE_FILE_NAME, taskContext.getStageId(), partition.getId());
+        File mergeFile = new File(shuffleWorkDir, mergeName);
+        LocalShuffleExchange exchange = taskContext.getLocalShuffleExchange();
+        MergedOutput.Factory mergedOutput = exchange == null ?
+                headerSize -> MergedOutput.ofFile(mergeFile, headerSize) :
+                headerSize -> exchange.createOutput(taskContext.getStageId(), partition.getId(), mergeFile, headerSize);
+        //内存shuffle不压缩; bypass模式的分区临时文件会写磁盘, 内存shuffle时由SortShuffleWriter写入
+        BlockCodec taskCodec = exchange == null ? codec : BlockCodecs.none();
+        //reduce端不需要有序并且没有combine时只按分区排序, 不比较key
+        boolean sortByKey = requireOrdering || combine != null;
+        try (ShuffleWriter<K, V> shuffleWriter = bypassMergeSort && exchange == null ?
+                new BypassMergeShuffleWriter<>(shuffleWorkDir, filePrefix, mergeName, partitioner, encoder, codec) :
+                new SortShuffleWriter<>(shuffleWorkDir, filePrefix, mergedOutput, partitioner, encoder,
+                        sortByKey ? comparator : null, sortByKey ? orderedKeyEncoder : null,
+                        combine, mapSideHashCombine, asyncSpill, taskCodec, taskContext.getTaskMemoryManager())) {
+            long startTime = System.currentTimeMillis();
             Iterator<? extends Tuple2<K, V>> iterator = operator.computeOrCache(partition, taskContext);
-            return shuffleWriter.write(iterator);
+            ByteBuffer header = shuffleWriter.write(iterator);
+            TaskMemoryManager taskMemoryManager = taskContext.getTaskMemoryManager();
+            //异步溢写时spill time与compute time重叠, 只有spill wait会阻塞task
+            long spillWaitTimeMs = taskMemoryManager.getSpillWaitTimeMs();
+            logger.info("shuffle map task {}_{} spill count {}, spill bytes {}, compute time {}ms, spill time {}ms, spill wait {}ms",
+                    taskContext.getStageId(), partition.getId(), taskMemoryManager.getSpillCount(), taskMemoryManager.getSpillBytes(),
+                    System.currentTimeMillis() - startTime - spillWaitTimeMs, taskMemoryManager.getSpillTimeMs(), spillWaitTimeMs);
+            return header;
         }
         catch (IOException e) {
             throw new AstarteException("shuffle map task failed", e);
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import com.github.harbby.astarte.core.coders.Tuple2Encoder;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.gadtry.base.Throwables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * map端二进制排序缓冲区, 所有reduce分区共享.
+ * <p>
+ * 数据编码后以 [int length][bytes] 的形式顺序写入堆外page中,
+ * 排序只操作一个long[]指针数组, 每条记录占两个slot:
+ * <pre>
+ * [0] pointer: 0(1bit, 符号位保持为0) | partitionId(23bit) | pageNumber(13bit) | offsetInPage(27bit)
+ * [1] key prefix
+ * </pre>
+ * 比较顺序为 partitionId, prefix(无符号), 最后比较key. 没有comparator时只按partitionId排序.
+ * key的encoder是{@link OrderedEncoder}时直接比较编码后的字节, 前缀可以完整表示key时前缀相等即相等,
+ * 否则才解码key调用comparator.
+ * 排序后可按分区顺序直接拷贝原始字节, 无需再次解码编码.
+ */
+public class ShuffleSorter<K, V>
+        implements Closeable
+{
+    private static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 4096;
+    //reset()后最多保留一个page大小的指针数组
+    private static final int MAX_RETAINED_ARRAY_LENGTH = DEFAULT_PAGE_SIZE / Long.BYTES;
+
+    private static final int OFFSET_BITS = 27;
+    private static final int PAGE_BITS = 13;
+    private static final int PARTITION_SHIFT = OFFSET_BITS + PAGE_BITS;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long PAGE_MASK = (1L << PAGE_BITS) - 1;
+    static final int MAX_PAGE_SIZE = 1 << OFFSET_BITS;
+    static final int MAX_PAGES = 1 << PAGE_BITS;
+    static final int MAX_PARTITIONS = 1 << (Long.SIZE - 1 - PARTITION_SHIFT);
+
+    private final Encoder<Tuple2<K, V>> encoder;
+    private final Encoder<K> keyEncoder;
+    private final Comparator<K> comparator;
+    private final OrderedEncoder<K> orderedKeyEncoder;
+    private final boolean prefixExact;
+
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private ByteBuffer currentPage;
+    private long pageMemoryUsed;
+
+    private long[] array = new long[INITIAL_CAPACITY * 2];
+    private int numRecords;
+
+    private final RecordOutputBuffer recordBuffer = new RecordOutputBuffer();
+    private final DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    private final PageInputStream leftInput = new PageInputStream();
+    private final PageInputStream rightInput = new PageInputStream();
+    private final DataInputStream leftDataInput = new DataInputStream(leftInput);
+    private final DataInputStream rightDataInput = new DataInputStream(rightInput);
+    private byte[] copyBuffer = new byte[8192];
+
+    public ShuffleSorter(Encoder<Tuple2<K, V>> encoder, Comparator<K> comparator)
+    {
+        this(encoder, comparator, null);
+    }
+
+    /**
+     * @param comparator 为null时只按分区排序, 同一分区内保持写入顺序, 用于reduce端不需要有序的shuffle
+     * @param orderedKeyEncoder 可以为null, 不为null时必须与comparator的顺序一致, 见{@link OrderedEncoder#getOrderedKeyEncoder}
+     */
+    public ShuffleSorter(Encoder<Tuple2<K, V>> encoder, Comparator<K> comparator, OrderedEncoder<K> orderedKeyEncoder)
+    {
+        this.encoder = requireNonNull(encoder, "encoder is null");
+        checkArgument(comparator != null || orderedKeyEncoder == null, "orderedKeyEncoder requires comparator");
+        this.comparator = comparator;
+        this.keyEncoder = encoder instanceof Tuple2Encoder ? ((Tuple2Encoder<K, V>) encoder).getKeyEncoder() : null;
+        checkArgument(orderedKeyEncoder == null || keyEncoder != null, "orderedKeyEncoder requires Tuple2Encoder");
+        this.orderedKeyEncoder = orderedKeyEncoder;
+        this.prefixExact = orderedKeyEncoder != null && orderedKeyEncoder.isPrefixExact();
+    }
+
+    public void insert(int partitionId, Tuple2<K, V> record)
+            throws IOException
+    {
+        checkArgument(partitionId >= 0 && partitionId < MAX_PARTITIONS, "partitionId %s out of range", partitionId);
+        recordBuffer.reset();
+        encoder.encoder(record, recordOutput);
+        int length = recordBuffer.size();
+        int required = Integer.BYTES + length;
+        if (currentPage == null || currentPage.remaining() < required) {
+            allocatePage(required);
+        }
+        int offset = currentPage.position();
+        currentPage.putInt(length);
+        currentPage.put(recordBuffer.getBuffer(), 0, length);
+
+        if (numRecords * 2 == array.length) {
+            checkState(array.length <= Integer.MAX_VALUE / 2 - 8, "sort buffer records overflow");
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[numRecords * 2] = ((long) partitionId << PARTITION_SHIFT) | ((long) (pages.size() - 1) << OFFSET_BITS) | offset;
+        array[numRecords * 2 + 1] = orderedKeyEncoder == null ? 0L : orderedKeyEncoder.computePrefix(record.key());
+        numRecords++;
+    }
+
+    private void allocatePage(int required)
+    {
+        int pageSize = Math.max(DEFAULT_PAGE_SIZE, required);
+        checkState(pageSize <= MAX_PAGE_SIZE, "record size %s exceeds max page size %s", required, MAX_PAGE_SIZE);
+        checkState(pages.size() < MAX_PAGES, "sort buffer pages overflow, max %s", MAX_PAGES);
+        currentPage = MemoryManager.allocateMemory(pageSize);
+        pages.add(currentPage);
+        pageMemoryUsed += currentPage.capacity();
+    }
+
+    public int numRecords()
+    {
+        return numRecords;
+    }
+
+    public boolean isEmpty()
+    {
+        return numRecords == 0;
+    }
+
+    /**
+     * 当前占用的内存, 包括堆外page和指针数组
+     */
+    public long getMemoryUsage()
+    {
+        return pageMemoryUsed + (long) array.length * Long.BYTES;
+    }
+
+    public void sort()
+    {
+        if (numRecords < 2) {
+            return;
+        }
+        long[] src = Arrays.copyOf(array, numRecords * 2);
+        if (comparator == null) {
+            sortByPartition(src);
+            return;
+        }
+        mergeSort(src, array, 0, numRecords);
+    }
+
+    /**
+     * 按分区计数排序, 不比较key, 同一分区内保持写入顺序
+     */
+    private void sortByPartition(long[] src)
+    {
+        int maxPartition = 0;
+        for (int i = 0; i < numRecords; i++) {
+            maxPartition = Math.max(maxPartition, getPartition(src[i * 2]));
+        }
+        int[] offsets = new int[maxPartition + 2];
+        for (int i = 0; i < numRecords; i++) {
+            offsets[getPartition(src[i * 2]) + 1]++;
+        }
+        for (int partition = 1; partition < offsets.length; partition++) {
+            offsets[partition] += offsets[partition - 1];
+        }
+        for (int i = 0; i < numRecords; i++) {
+            int index = offsets[getPartition(src[i * 2])]++;
+            array[index * 2] = src[i * 2];
+            array[index * 2 + 1] = src[i * 2 + 1];
+        }
+    }
+
+    /**
+     * 需要在sort()之后调用, 返回每个分区在排序结果中的起始下标, 长度为numPartitions + 1
+     */
+    public int[] partitionOffsets(int numPartitions)
+    {
+        int[] offsets = new int[numPartitions + 1];
+        int index = 0;
+        for (int partition = 0; partition < numPartitions; partition++) {
+            offsets[partition] = index;
+            while (index < numRecords && getPartition(array[index * 2]) == partition) {
+                index++;
+            }
+        }
+        checkState(index == numRecords, "found records out of partition range");
+        offsets[numPartitions] = numRecords;
+        return offsets;
+    }
+
+    public int getPartition(int index)
+    {
+        return getPartition(array[index * 2]);
+    }
+
+    /**
+     * 直接拷贝第index条记录的编码字节, 不经过解码
+     */
+    public void writeRecord(int index, OutputStream outputStream)
+            throws IOException
+    {
+        long pointer = array[index * 2];
+        ByteBuffer page = pages.get(getPageNumber(pointer));
+        int offset = getOffset(pointer);
+        int length = page.getInt(offset);
+        if (copyBuffer.length < length) {
+            copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+        }
+        leftInput.reset(pages, getPageNumber(pointer), offset + Integer.BYTES, length);
+        leftInput.readFully(copyBuffer, length);
+        outputStream.write(copyBuffer, 0, length);
+    }
+
+    public Tuple2<K, V> readRecord(int index)
+            throws IOException
+    {
+        long pointer = array[index * 2];
+        resetInput(leftInput, pointer);
+        return encoder.decoder(leftDataInput);
+    }
+
+    /**
+     * 按排序结果遍历[start, end)的记录, 遍历期间不能再insert
+     */
+    public Iterator<Tuple2<K, V>> iterator(int start, int end)
+    {
+        checkArgument(start >= 0 && start <= end && end <= numRecords);
+        return new Iterator<Tuple2<K, V>>()
+        {
+            private int index = start;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < end;
+            }
+
+            @Override
+            public Tuple2<K, V> next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return readRecord(index++);
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 清空数据, 释放所有page, 不超过MAX_RETAINED_ARRAY_LENGTH的指针数组保留以便复用.
+     * 过大的数组在溢写后仍然占满task的内存预算, 之后每写入一条记录都会触发溢写
+     */
+    public void reset()
+    {
+        for (ByteBuffer page : pages) {
+            MemoryManager.freeMemory(page);
+        }
+        pages.clear();
+        leftInput.clear();
+        rightInput.clear();
+        currentPage = null;
+        pageMemoryUsed = 0;
+        numRecords = 0;
+        if (array.length > MAX_RETAINED_ARRAY_LENGTH) {
+            array = new long[INITIAL_CAPACITY * 2];
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        this.reset();
+        this.array = new long[0];
+    }
+
+    private void resetInput(PageInputStream input, long pointer)
+    {
+        int pageNumber = getPageNumber(pointer);
+        int offset = getOffset(pointer);
+        int length = pages.get(pageNumber).getInt(offset);
+        input.reset(pages, pageNumber, offset + Integer.BYTES, length);
+    }
+
+    private K readKey(long pointer, PageInputStream input, DataInputStream dataInput)
+    {
+        resetInput(input, pointer);
+        try {
+            if (keyEncoder != null) {
+                return keyEncoder.decoder(dataInput);
+            }
+            return encoder.decoder(dataInput).key();
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    private int compare(long[] a, int i, long[] b, int j)
+    {
+        long pointer1 = a[i * 2];
+        long pointer2 = b[j * 2];
+        int than = Integer.compare(getPartition(pointer1), getPartition(pointer2));
+        if (than != 0) {
+            return than;
+        }
+        than = Long.compareUnsigned(a[i * 2 + 1], b[j * 2 + 1]);
+        if (than != 0 || prefixExact) {
+            return than;
+        }
+        if (orderedKeyEncoder != null) {
+            //Tuple2Encoder总是先写key, 直接比较key的编码字节
+            resetInput(leftInput, pointer1);
+            resetInput(rightInput, pointer2);
+            try {
+                return orderedKeyEncoder.compareEncoded(leftDataInput, rightDataInput);
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+        }
+        return comparator.compare(readKey(pointer1, leftInput, leftDataInput), readKey(pointer2, rightInput, rightDataInput));
+    }
+
+    /**
+     * 稳定的归并排序, src和dest在调用前内容必须相同, 结果写入dest
+     */
+    private void mergeSort(long[] src, long[] dest, int low, int high)
+    {
+        int length = high - low;
+        if (length < 7) {
+            for (int i = low; i < high; i++) {
+                for (int j = i; j > low && compare(dest, j - 1, dest, j) > 0; j--) {
+                    swap(dest, j, j - 1);
+                }
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        mergeSort(dest, src, low, mid);
+        mergeSort(dest, src, mid, high);
+
+        if (compare(src, mid - 1, src, mid) <= 0) {
+            System.arraycopy(src, low * 2, dest, low * 2, length * 2);
+            return;
+        }
+        for (int i = low, p = low, q = mid; i < high; i++) {
+            if (q >= high || p < mid && compare(src, p, src, q) <= 0) {
+                dest[i * 2] = src[p * 2];
+                dest[i * 2 + 1] = src[p * 2 + 1];
+                p++;
+            }
+            else {
+                dest[i * 2] = src[q * 2];
+                dest[i * 2 + 1] = src[q * 2 + 1];
+                q++;
+            }
+        }
+    }
+
+    private static void swap(long[] array, int i, int j)
+    {
+        long pointer = array[i * 2];
+        long prefix = array[i * 2 + 1];
+        array[i * 2] = array[j * 2];
+        array[i * 2 + 1] = array[j * 2 + 1];
+        array[j * 2] = pointer;
+        array[j * 2 + 1] = prefix;
+    }
+
+    private static int getPartition(long pointer)
+    {
+        return (int) (pointer >>> PARTITION_SHIFT);
+    }
+
+    private static int getPageNumber(long pointer)
+    {
+        return (int) ((pointer >>> OFFSET_BITS) & PAGE_MASK);
+    }
+
+    private static int getOffset(long pointer)
+    {
+        return (int) (pointer & OFFSET_MASK);
+    }
+
+    private static class RecordOutputBuffer
+            extends ByteArrayOutputStream
+    {
+        private RecordOutputBuffer()
+        {
+            super(256);
+        }
+
+        private byte[] getBuffer()
+        {
+            return buf;
+        }
+    }
+
+    /**
+     * 可复用的page读取流, 每个page持有独立的duplicate视图, 避免每条记录创建对象
+     */
+    private static class PageInputStream
+            extends InputStream
+    {
+        private ByteBuffer[] views = new ByteBuffer[0];
+        private ByteBuffer current;
+
+        private void reset(List<ByteBuffer> pages, int pageNumber, int offset, int length)
+        {
+            if (pageNumber >= views.length) {
+                views = Arrays.copyOf(views, pages.size());
+            }
+            ByteBuffer view = views[pageNumber];
+            if (view == null) {
+                view = pages.get(pageNumber).duplicate();
+                views[pageNumber] = view;
+            }
+            view.limit(offset + length);
+            view.position(offset);
+            this.current = view;
+        }
+
+        private void clear()
+        {
+            Arrays.fill(views, null);
+            current = null;
+        }
+
+        private void readFully(byte[] bytes, int length)
+        {
+            current.get(bytes, 0, length);
+        }
+
+        @Override
+        public int read()
+        {
+            if (!current.hasRemaining()) {
+                return -1;
+            }
+            return current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+            int remaining = current.remaining();
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = Math.min(remaining, len);
+            current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available()
+        {
+            return current.remaining();
+        }
+    }
+}
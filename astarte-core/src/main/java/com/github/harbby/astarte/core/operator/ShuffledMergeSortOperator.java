@@ -17,10 +17,13 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import com.github.harbby.astarte.core.runtime.ShuffleFetchOptions;
 import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.ImmutableList;
 
@@ -35,7 +38,10 @@ public class ShuffledMergeSortOperator<K, V>
     private final Partitioner partitioner;
     private final Encoder<Tuple2<K, V>> encoder;
     private final Comparator<K> comparator;
+    private final OrderedEncoder<K> orderedKeyEncoder;
+    private final boolean requireOrdering;
     private final int shuffleMapOperatorId;
+    private final ShuffleFetchOptions fetchOptions;
     private final transient ShuffleMapOperator<K, V> dependOperator;
 
     public ShuffledMergeSortOperator(ShuffleMapOperator<K, V> operator, Partitioner partitioner)
@@ -45,7 +51,10 @@ public class ShuffledMergeSortOperator<K, V>
         this.dependOperator = operator;
         this.encoder = operator.getShuffleMapRowEncoder();
         this.comparator = operator.getComparator();
+        this.orderedKeyEncoder = operator.getOrderedKeyEncoder();
+        this.requireOrdering = operator.isRequireOrdering();
         this.shuffleMapOperatorId = operator.getId();
+        this.fetchOptions = ShuffleFetchOptions.fromConf(context.getConf());
     }
 
     @Override
@@ -83,8 +92,13 @@ public class ShuffledMergeSortOperator<K, V>
     protected Iterator<Tuple2<K, V>> compute(Partition split, TaskContext taskContext)
     {
         int depShuffleId = taskContext.getDependShuffleId(shuffleMapOperatorId);
+        int startReduceId = CoalescedPartition.startReduceId(split);
+        int endReduceId = CoalescedPartition.endReduceId(split);
         try {
-            return taskContext.getShuffleClient().createShuffleReader(comparator, encoder, depShuffleId, split.getId());
+            if (!requireOrdering) {
+                return taskContext.getShuffleClient().createUnorderedShuffleReader(encoder, depShuffleId, startReduceId, endReduceId, fetchOptions);
+            }
+            return taskContext.getShuffleClient().createShuffleReader(comparator, orderedKeyEncoder, encoder, depShuffleId, startReduceId, endReduceId, fetchOptions);
         }
         catch (IOException e) {
             throw Throwables.throwsThrowable(e);
@@ -22,32 +22,40 @@ import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.api.function.Reducer;
 import com.github.harbby.astarte.core.coders.Encoder;
 import com.github.harbby.astarte.core.coders.EncoderInputStream;
-import com.github.harbby.astarte.core.coders.io.LZ4BlockOutputStream;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+import com.github.harbby.astarte.core.coders.io.BlockDecompressInputStream;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.SpillExecutor;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.utils.LoserTreeMerger;
+import com.github.harbby.astarte.core.utils.OpenHashAggregationMap;
 import com.github.harbby.astarte.core.utils.ReduceUtil;
 import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.io.BufferedNioOutputStream;
 import com.github.harbby.gadtry.io.LimitInputStream;
-import net.jpountz.lz4.LZ4BlockInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Optional;
-import java.util.Random;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 import static java.util.Objects.requireNonNull;
 
@@ -56,32 +64,51 @@ public class SortShuffleWriter<K, V>
 {
     private static final Logger logger = LoggerFactory.getLogger(SortShuffleWriter.class);
     public static final String MERGE_FILE_NAME = "shuffle_merged_%s_%s.data";
+    private static final int ENTRY_SAMPLE_INTERVAL = 256;
+    private static final int ENTRY_OBJECT_OVERHEAD = 48;
 
     private final Partitioner partitioner;
     private final Comparator<K> comparator;
+    private final OrderedEncoder<K> orderedKeyEncoder;
     private final Encoder<Tuple2<K, V>> encoder;
     private final File shuffleWorkDir;
     private final String prefix;
-    private final File mergeName;
+    private final MergedOutput.Factory mergedOutputFactory;
     private final Reducer<V> combine;
+    private final boolean mapSideHashCombine;
+    private final boolean asyncSpill;
+    private final BlockCodec codec;
+    private final TaskMemoryManager taskMemoryManager;
+    private SorterBuffer sorterBuffer;
 
     //spillFile
     public SortShuffleWriter(
             File shuffleWorkDir,
             String filePrefix,
-            String mergeName,
+            MergedOutput.Factory mergedOutputFactory,
             Partitioner partitioner,
             Encoder<Tuple2<K, V>> encoder,
             Comparator<K> comparator,
-            Reducer<V> combine)
+            OrderedEncoder<K> orderedKeyEncoder,
+            Reducer<V> combine,
+            boolean mapSideHashCombine,
+            boolean asyncSpill,
+            BlockCodec codec,
+            TaskMemoryManager taskMemoryManager)
     {
         this.partitioner = partitioner;
         this.encoder = encoder;
         this.shuffleWorkDir = shuffleWorkDir;
         this.prefix = filePrefix;
-        this.mergeName = new File(shuffleWorkDir, mergeName);
+        this.mergedOutputFactory = requireNonNull(mergedOutputFactory, "mergedOutputFactory is null");
+        checkArgument(comparator != null || combine == null, "combine requires comparator");
         this.comparator = comparator;
+        this.orderedKeyEncoder = orderedKeyEncoder;
         this.combine = combine;
+        this.mapSideHashCombine = mapSideHashCombine && combine != null;
+        this.asyncSpill = asyncSpill;
+        this.codec = requireNonNull(codec, "codec is null");
+        this.taskMemoryManager = requireNonNull(taskMemoryManager, "taskMemoryManager is null");
 
         if (!shuffleWorkDir.exists()) {
             checkState(shuffleWorkDir.mkdirs() || shuffleWorkDir.exists(), "create shuffle dir failed %s", shuffleWorkDir);
@@ -92,390 +119,468 @@ public class SortShuffleWriter<K, V>
     public ByteBuffer write(Iterator<? extends Tuple2<K, V>> iterator)
             throws IOException
     {
-        SorterBuffer sorter = new SorterBuffer(comparator, partitioner, encoder);
+        this.sorterBuffer = new SorterBuffer(comparator, partitioner, encoder);
 
-        sorter.insertAll(iterator);
+        sorterBuffer.insertAll(iterator);
 
-        return sorter.mergeFile();
+        return sorterBuffer.mergeFile();
     }
 
-    public static <K> Partitioner createPartitioner(
-            int reduceNumber,
-            Operator<K> operator,
-            Comparator<K> ordering)
+    @Override
+    public void close()
+            throws IOException
     {
-        int sampleSize = Math.min(200 * reduceNumber, 1 << 20); //max 1M rows
-        int sampleSizePerPartition = (int) Math.ceil(1.0 * sampleSize / operator.numPartitions());
-        K[] points = analyzerSplit(operator,
-                ordering,
-                sampleSizePerPartition);
-        return new SortShuffleRangePartitioner<>(reduceNumber, points, ordering);
+        //write()失败时释放缓冲区, 并等待可能仍在执行的后台溢写
+        if (sorterBuffer != null) {
+            sorterBuffer.cleanup();
+        }
     }
 
-    public static <K> K[] analyzerSplit(
-            Operator<K> operator,
-            Comparator<K> ordering,
-            int sampleSizePerPartition)
+    /**
+     * header = int(segmentSize) + byte(codecId) + segmentSize * (long(segmentEnd) + long(rowCount))
+     */
+    public static int getSortMergedFileHarderSize(int segmentSize)
     {
-        List<SampleResult<K>> sampleResults = sketch(operator, sampleSizePerPartition);
-        long length = sampleResults.stream().mapToLong(x -> x.getPartitionCount()).sum();
-        int numPartitions = operator.numPartitions();
-
-        List<Tuple2<Integer, Integer>> tuple2s = new ArrayList<>();
-        for (int i = 0; i < numPartitions; i++) {
-            int start = (int) ((i * length) / numPartitions);
-            int end = (int) (((i + 1) * length) / numPartitions);
-            tuple2s.add(Tuple2.of(start, end));
-        }
-
-        List<Tuple2<K, Double>> arrays = new ArrayList<>();
-        for (SampleResult<K> sample : sampleResults) {
-            double weight = (double) length / sample.getPartitionCount();
-            for (K k : sample.getData()) {
-                arrays.add(Tuple2.of(k, weight));
-            }
-        }
-
-        int splitNum = Math.min(numPartitions, arrays.size());
-        K[] ks = getPoints(arrays, ordering, splitNum);
-        return ks;
+        return Integer.BYTES + Byte.BYTES + segmentSize * Long.BYTES * 2;
     }
 
-    private static <K> K[] getPoints(
-            List<Tuple2<K, Double>> candidates,
-            Comparator<K> ordering,
-            int partitions)
+    /**
+     * 一次spill对应一个文件, 按reduce分区顺序写入, 每个分区是一个独立压缩的segment.
+     * 索引保存在内存中, 最终merge时按分区顺序读取, 整个过程都是顺序io
+     */
+    private static class SpillFile<K, V>
     {
-        List<Tuple2<K, Double>> ordered = candidates.stream()
-                .sorted((x, y) -> ordering.compare(x.key(), y.key()))
-                .collect(Collectors.toList());
-        int numCandidates = ordered.size();
-        double sumWeights = ordered.stream().mapToDouble(x -> x.value()).sum();
-        double step = sumWeights / partitions;
-        double cumWeight = 0.0;
-        double target = step;
-        List<K> bounds = new ArrayList<>();
-        int i = 0;
-        int j = 0;
-        Optional<K> previousBound = Optional.empty();
-        while ((i < numCandidates) && (j < partitions - 1)) {
-            Tuple2<K, Double> tp = ordered.get(i);
-            K key = tp.key();
-            double weight = tp.value();
-
-            cumWeight += weight;
-            if (cumWeight >= target) {
-                // Skip duplicate values.
-                if (!previousBound.isPresent() || ordering.compare(key, previousBound.get()) > 0) {
-                    bounds.add(key);
-                    target += step;
-                    j += 1;
-                    previousBound = Optional.ofNullable(key);
-                }
-            }
-            i += 1;
+        private final File file;
+        private final BlockCodec codec;
+        private final long[] segmentEnds;
+        private final long[] segmentRowCounts;
+        private FileInputStream inputStream;
+
+        private SpillFile(File file, BlockCodec codec, int numPartitions)
+        {
+            this.file = file;
+            this.codec = codec;
+            this.segmentEnds = new long[numPartitions];
+            this.segmentRowCounts = new long[numPartitions];
         }
-        return (K[]) bounds.toArray();
-    }
 
-    private static <K> List<SampleResult<K>> sketch(Operator<K> operator,
-            int sampleSizePerPartition)
-    {
-        //todo: 使用更小的数据结构
-        List<SampleResult<K>> results = operator.mapPartitionWithId((index, it) -> {
-            if (!it.hasNext()) {
-                throw new UnsupportedOperationException();
-            }
-            K e = it.next();
-            K[] array = (K[]) java.lang.reflect.Array.newInstance(e.getClass(), sampleSizePerPartition);
-            array[0] = e;
-            int i = 1;
-            for (; i < sampleSizePerPartition && it.hasNext(); i++) {
-                array[i] = it.next();
-            }
-            if (i < sampleSizePerPartition) {
-                return Iterators.of(new SampleResult<>(i, index, Arrays.copyOf(array, i)));
+        private static <K, V> SpillFile<K, V> write(File file, BlockCodec codec, ShuffleSorter<K, V> sorter, int[] offsets)
+                throws IOException
+        {
+            int numPartitions = offsets.length - 1;
+            SpillFile<K, V> spillFile = new SpillFile<>(file, codec, numPartitions);
+            boolean succeed = false;
+            try (BufferedNioOutputStream bufferedNioOutput = new BufferedNioOutputStream(new FileOutputStream(file, false).getChannel())) {
+                BlockCompressOutputStream compressOutputStream = new BlockCompressOutputStream(bufferedNioOutput, codec);
+                for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+                    int start = offsets[reduceId];
+                    int end = offsets[reduceId + 1];
+                    if (start < end) {
+                        for (int i = start; i < end; i++) {
+                            sorter.writeRecord(i, compressOutputStream);
+                        }
+                        compressOutputStream.finish();
+                    }
+                    spillFile.segmentEnds[reduceId] = bufferedNioOutput.position();
+                    spillFile.segmentRowCounts[reduceId] = end - start;
+                }
+                succeed = true;
             }
-            else {
-                Random random = new Random();
-                long l = i;
-                for (; it.hasNext(); l++) {
-                    int p = random.nextInt(sampleSizePerPartition);
-                    array[p] = it.next();
+            finally {
+                //写入失败时调用方拿不到SpillFile, 在这里删除不完整的文件
+                if (!succeed && file.exists() && !file.delete()) {
+                    logger.warn("clear shuffle tmp file failed {}", file);
                 }
-                return Iterators.of(new SampleResult<>(l, index, array));
             }
-        }).collect();
-
-        return results;
-    }
-
-    @Override
-    public void close()
-            throws IOException
-    {
-    }
-
-    static class SampleResult<E>
-            implements Serializable
-    {
-        private final long partitionCount;
-        private final int partitionId;
-        private final E[] data;
-
-        public SampleResult(long partitionCount, int partitionId, E[] data)
-        {
-            this.partitionCount = partitionCount;
-            this.partitionId = partitionId;
-            this.data = data;
+            return spillFile;
         }
 
-        public long getPartitionCount()
+        private long getRowCount(int reduceId)
         {
-            return partitionCount;
+            return segmentRowCounts[reduceId];
         }
 
-        public int getPartitionId()
+        /**
+         * 需要按reduceId递增顺序调用, 且上一个分区读取完成后才能读下一个分区
+         */
+        private Iterator<Tuple2<K, V>> openSegment(int reduceId, Encoder<Tuple2<K, V>> encoder)
+                throws IOException
         {
-            return partitionId;
+            long start = reduceId == 0 ? 0 : segmentEnds[reduceId - 1];
+            long length = segmentEnds[reduceId] - start;
+            if (inputStream == null) {
+                inputStream = new FileInputStream(file);
+            }
+            inputStream.getChannel().position(start);
+            return new EncoderInputStream<>(segmentRowCounts[reduceId], encoder,
+                    new BlockDecompressInputStream(new BufferedInputStream(new LimitInputStream(new CloseShieldInputStream(inputStream), length)), codec));
         }
 
-        public E[] getData()
+        private void delete()
+                throws IOException
         {
-            return data;
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (file.exists()) {
+                checkState(file.delete(), "clear shuffle tmp file failed " + file.getCanonicalPath());
+            }
         }
     }
 
-    public static int getSortMergedFileHarderSize(int segmentSize)
-    {
-        return Integer.BYTES + segmentSize * Long.BYTES * 2;
-    }
-
-    private static class ReduceWriter<K, V>
+    /**
+     * 排序缓冲区的内存由TaskMemoryManager分配, 预算不足时溢写到磁盘.
+     * 异步溢写时使用两个排序缓冲区, 后台线程排序, 编码, 压缩并写出其中一个, task线程继续写入另一个,
+     * 两个缓冲区都满时task线程等待后台溢写完成
+     */
+    public class SorterBuffer
+            extends MemoryConsumer
     {
-        private static final int BUFF_SIZE = 8192;
+        private final Comparator<K> ordering;
+        private final Partitioner partitioner;
         private final Encoder<Tuple2<K, V>> encoder;
-        private final File spillsFile;
-        private BufferedNioOutputStream bufferedNioOutput;
-        private LZ4BlockOutputStream lz4BlockOutputStream;
-        private DataOutputStream dataOutput;
-
-        private final List<Long> segmentEnds = new ArrayList<>();
-        private final List<Integer> segmentRowSizes = new ArrayList<>();
-        private final ArrayList<Tuple2<K, V>> buffer = new ArrayList<>(BUFF_SIZE);
-        private final Comparator<K> comparator;
-        private long mapTaskReadRowCount = 0;
-
-        public ReduceWriter(
-                File spillsFile,
-                Encoder<Tuple2<K, V>> encoder,
-                Comparator<K> comparator)
+        private final int numPartitions;
+        private final List<SpillFile<K, V>> spillFiles = new ArrayList<>();
+        private final long asyncSpillThreshold;
+        private ShuffleSorter<K, V> sorter;
+        //正在后台溢写的缓冲区, 溢写完成后作为下一次的备用缓冲区
+        private ShuffleSorter<K, V> spillingSorter;
+        private ShuffleSorter<K, V> spareSorter;
+        private Future<Tuple2<SpillFile<K, V>, Long>> pendingSpill;
+        private int spillFileId;
+        //combine时先在hash表中聚合, 内存不足或者结束时才写入排序缓冲区
+        private final OpenHashAggregationMap<K, V> aggregationMap;
+        private final ByteArrayOutputStream sampleBuffer = new ByteArrayOutputStream();
+        private final DataOutputStream sampleOutput = new DataOutputStream(sampleBuffer);
+        private long aggregationEntryBytes = 64;
+        private long inputRows;
+
+        public SorterBuffer(Comparator<K> ordering, Partitioner partitioner, Encoder<Tuple2<K, V>> encoder)
         {
+            super(SortShuffleWriter.this.taskMemoryManager);
+            this.ordering = ordering;
+            this.partitioner = partitioner;
             this.encoder = encoder;
-            this.comparator = comparator;
-            this.spillsFile = spillsFile;
+            this.numPartitions = partitioner.numPartitions();
+            this.sorter = new ShuffleSorter<>(encoder, ordering, orderedKeyEncoder);
+            this.aggregationMap = mapSideHashCombine ? new OpenHashAggregationMap<>(combine) : null;
+            this.asyncSpillThreshold = taskMemoryManager.getMemoryBudget() / 2;
         }
 
-        private void flushSegment()
+        public void insertAll(Iterator<? extends Tuple2<K, V>> iterator)
                 throws IOException
         {
-            if (bufferedNioOutput == null) {
-                this.bufferedNioOutput = new BufferedNioOutputStream(new FileOutputStream(spillsFile, false).getChannel());
-                this.lz4BlockOutputStream = new LZ4BlockOutputStream(bufferedNioOutput);
-                this.dataOutput = new DataOutputStream(lz4BlockOutputStream);
+            while (iterator.hasNext()) {
+                Tuple2<K, V> kv = iterator.next();
+                inputRows++;
+                if (aggregationMap != null) {
+                    if (aggregationMap.update(kv.key(), kv.value()) && aggregationMap.size() % ENTRY_SAMPLE_INTERVAL == 1) {
+                        this.sampleEntrySize(kv);
+                    }
+                }
+                else {
+                    int reduceId = this.partitioner.getPartition(kv.key());
+                    sorter.insert(reduceId, kv);
+                }
+                if (pendingSpill != null && pendingSpill.isDone()) {
+                    this.awaitPendingSpill(false);
+                }
+                long required = getMemoryUsage() - getUsed();
+                boolean memoryShortage = required > 0 && acquireMemory(required) < required;
+                if (asyncSpill) {
+                    if (memoryShortage || getBufferMemoryUsage() >= asyncSpillThreshold) {
+                        this.spillAsync();
+                    }
+                }
+                else if (memoryShortage) {
+                    taskMemoryManager.spill(this);
+                }
             }
+        }
 
-            buffer.sort((x, y) -> comparator.compare(x.key(), y.key()));
+        /**
+         * hash表中的对象大小无法直接获取, 这里定期按编码后的字节数估算每条记录的大小
+         */
+        private void sampleEntrySize(Tuple2<K, V> kv)
+                throws IOException
+        {
+            sampleBuffer.reset();
+            encoder.encoder(kv, sampleOutput);
+            long entryBytes = sampleBuffer.size() * 2L + ENTRY_OBJECT_OVERHEAD;
+            aggregationEntryBytes = (aggregationEntryBytes + entryBytes) / 2;
+        }
 
-            for (Tuple2<K, V> kv : buffer) {
-                encoder.encoder(kv, dataOutput);
+        /**
+         * 包括正在溢写和备用的缓冲区
+         */
+        private long getMemoryUsage()
+        {
+            long memoryUsage = getBufferMemoryUsage();
+            if (spillingSorter != null) {
+                memoryUsage += spillingSorter.getMemoryUsage();
             }
-            lz4BlockOutputStream.finish();
-            lz4BlockOutputStream.init(); //reset state
-            segmentEnds.add(bufferedNioOutput.position());
-            segmentRowSizes.add(buffer.size());
-            buffer.clear();
+            if (spareSorter != null) {
+                memoryUsage += spareSorter.getMemoryUsage();
+            }
+            return memoryUsage;
         }
 
-        public void insert(Tuple2<K, V> kv)
-                throws IOException
+        /**
+         * 当前正在写入的缓冲区占用的内存
+         */
+        private long getBufferMemoryUsage()
         {
-            mapTaskReadRowCount++;
-            if (buffer.size() >= BUFF_SIZE) {
-                this.flushSegment();
+            long memoryUsage = sorter.getMemoryUsage();
+            if (aggregationMap != null) {
+                memoryUsage += aggregationMap.getTableMemoryUsage() + aggregationMap.size() * aggregationEntryBytes;
             }
-            buffer.add(kv);
+            return memoryUsage;
+        }
+
+        private File nextSpillFile()
+        {
+            return new File(shuffleWorkDir, prefix + "spill_" + spillFileId++ + ".data");
         }
 
-        public Iterator<Tuple2<K, V>> merger()
+        private void drainAggregationMap()
                 throws IOException
         {
-            if (segmentEnds.isEmpty()) {
-                buffer.sort((x, y) -> comparator.compare(x.key(), y.key()));
-                return ReduceUtil.wrap(buffer).autoClose(buffer::clear);
+            if (aggregationMap == null || aggregationMap.isEmpty()) {
+                return;
             }
-            //flush last segment
-            this.flushSegment();
-            this.buffer.trimToSize();
-            //close spill file io
-            this.writeFinish();
-            EncoderInputStream<Tuple2<K, V>>[] encoderInputStreams = new EncoderInputStream[segmentEnds.size()];
-            long start = 0;
-            for (int i = 0; i < segmentEnds.size(); i++) {
-                long end = segmentEnds.get(i);
-                long length = end - start;
-                FileInputStream fileInputStream = new FileInputStream(spillsFile);
-                fileInputStream.getChannel().position(start);
-                int segmentRowSize = segmentRowSizes.get(i);
-                EncoderInputStream<Tuple2<K, V>> encoderInputStream = new EncoderInputStream<>(segmentRowSize, encoder, new LZ4BlockInputStream(new BufferedInputStream(new LimitInputStream(fileInputStream, length))));
-                encoderInputStreams[i] = encoderInputStream;
-                start = end;
+            Iterator<Tuple2<K, V>> iterator = aggregationMap.iterator();
+            while (iterator.hasNext()) {
+                Tuple2<K, V> kv = iterator.next();
+                sorter.insert(partitioner.getPartition(kv.key()), kv);
             }
-            //merger
-            return Iterators.mergeSorted((x, y) -> comparator.compare(x.key(), y.key()), encoderInputStreams);
+            aggregationMap.clear();
         }
 
-        public long getMapTaskReadRowCount()
+        /**
+         * 同步溢写, TaskMemoryManager调用时需要在返回前归还内存. 等待后台溢写的时间已经计入本次溢写的耗时
+         */
+        @Override
+        public long spill()
+                throws IOException
         {
-            return mapTaskReadRowCount;
+            this.awaitPendingSpill(false);
+            this.drainAggregationMap();
+            if (sorter.isEmpty()) {
+                return 0;
+            }
+            sorter.sort();
+            int[] offsets = sorter.partitionOffsets(numPartitions);
+            File file = nextSpillFile();
+            spillFiles.add(SpillFile.write(file, codec, sorter, offsets));
+            logger.debug("spill {} rows from sort buffer to {}, memory {} bytes", sorter.numRecords(), file, sorter.getMemoryUsage());
+            sorter.reset();
+            long released = Math.max(0, getUsed() - getMemoryUsage());
+            freeMemory(released);
+            return released;
         }
 
-        private void writeFinish()
+        /**
+         * 把当前缓冲区交给后台线程溢写, task线程切换到备用缓冲区继续写入.
+         * 上一次溢写还没有完成时先等待, 两个缓冲区都满时阻塞task线程形成反压
+         */
+        private void spillAsync()
                 throws IOException
         {
-            if (bufferedNioOutput != null) {
-                bufferedNioOutput.close();
+            this.awaitPendingSpill(true);
+            this.drainAggregationMap();
+            if (sorter.isEmpty()) {
+                return;
             }
+            ShuffleSorter<K, V> spilling = sorter;
+            File file = nextSpillFile();
+            this.sorter = spareSorter != null ? spareSorter : new ShuffleSorter<>(encoder, ordering, orderedKeyEncoder);
+            this.spareSorter = null;
+            this.spillingSorter = spilling;
+            logger.debug("async spill {} rows from sort buffer to {}, memory {} bytes", spilling.numRecords(), file, spilling.getMemoryUsage());
+            this.pendingSpill = SpillExecutor.submit(() -> {
+                long startTime = System.nanoTime();
+                spilling.sort();
+                int[] offsets = spilling.partitionOffsets(numPartitions);
+                SpillFile<K, V> spillFile = SpillFile.write(file, codec, spilling, offsets);
+                return Tuple2.of(spillFile, System.nanoTime() - startTime);
+            });
         }
-    }
 
-    public class SorterBuffer
-    {
-        private final Comparator<K> ordering;
-        private final Partitioner partitioner;
-        private final Encoder<Tuple2<K, V>> encoder;
-        private final ReduceWriter<K, V>[] reduceWriters;
+        /**
+         * 取回后台溢写的结果并归还其占用的内存, 只在task线程调用
+         *
+         * @param recordWait 是否计入task线程的溢写等待时间
+         */
+        private void awaitPendingSpill(boolean recordWait)
+                throws IOException
+        {
+            if (pendingSpill == null) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            Tuple2<SpillFile<K, V>, Long> result;
+            try {
+                result = pendingSpill.get();
+            }
+            catch (InterruptedException e) {
+                //后台线程可能还在读取缓冲区, 不能释放
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for shuffle spill");
+            }
+            catch (ExecutionException e) {
+                this.releaseSpillingSorter();
+                throw Throwables.throwsThrowable(e.getCause());
+            }
+            this.releaseSpillingSorter();
+            if (recordWait) {
+                taskMemoryManager.recordSpillWait(System.nanoTime() - startTime);
+            }
+            spillFiles.add(result.key());
+            long released = Math.max(0, getUsed() - getMemoryUsage());
+            freeMemory(released);
+            taskMemoryManager.recordAsyncSpill(released, result.value());
+        }
 
-        @SuppressWarnings("unchecked")
-        public SorterBuffer(Comparator<K> ordering, Partitioner partitioner, Encoder<Tuple2<K, V>> encoder)
+        private void releaseSpillingSorter()
         {
-            this.ordering = ordering;
-            this.partitioner = partitioner;
-            this.encoder = encoder;
-            this.reduceWriters = new ReduceWriter[partitioner.numPartitions()];
+            this.pendingSpill = null;
+            spillingSorter.reset();
+            this.spareSorter = spillingSorter;
+            this.spillingSorter = null;
         }
 
-        private ReduceWriter<K, V> getReduceWriter(int reduceId)
+        /**
+         * task被kill时中断标记已经设置, 这里忽略中断一直等到后台溢写结束, 之后才能释放它正在读取的缓冲区.
+         * 溢写成功的文件和其他溢写文件一起删除, 失败时由溢写线程删除
+         */
+        private void awaitPendingSpillUninterruptibly()
         {
-            ReduceWriter<K, V> reduceWriter = reduceWriters[reduceId];
-            if (reduceWriter != null) {
-                return reduceWriter;
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        spillFiles.add(pendingSpill.get().key());
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    catch (ExecutionException e) {
+                        logger.warn("async spill of {} failed", prefix, e.getCause());
+                        break;
+                    }
+                }
+            }
+            finally {
+                this.releaseSpillingSorter();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
             }
-            File spillsFile = new File(shuffleWorkDir, prefix + reduceId + ".data");
-            reduceWriter = new ReduceWriter<>(spillsFile, encoder, ordering);
-            reduceWriters[reduceId] = reduceWriter;
-            return reduceWriter;
         }
 
-        public void insertAll(Iterator<? extends Tuple2<K, V>> iterator)
+        /**
+         * 释放所有缓冲区并删除溢写文件, 可以重复调用. task失败时先等待正在执行的后台溢写结束
+         */
+        private void cleanup()
                 throws IOException
         {
-            while (iterator.hasNext()) {
-                Tuple2<K, V> kv = iterator.next();
-                int reduceId = this.partitioner.getPartition(kv.key());
-                ReduceWriter<K, V> reduceWriter = getReduceWriter(reduceId);
-                reduceWriter.insert(kv);
+            if (pendingSpill != null) {
+                this.awaitPendingSpillUninterruptibly();
             }
+            sorter.close();
+            if (spareSorter != null) {
+                spareSorter.close();
+            }
+            freeAllMemory();
+            for (SpillFile<K, V> spillFile : spillFiles) {
+                spillFile.delete();
+            }
+            spillFiles.clear();
         }
 
         public ByteBuffer mergeFile()
                 throws IOException
         {
-            ByteBuffer header = ByteBuffer.allocate(getSortMergedFileHarderSize(reduceWriters.length));
-            header.putInt(reduceWriters.length);
-            try (FileChannel fileChannel = new FileOutputStream(mergeName, false).getChannel()) {
-                //skip header = int + len * long
-                fileChannel.position(header.capacity());
-                BufferedNioOutputStream bufferedNioOutputStream = new BufferedNioOutputStream(fileChannel);
-                for (ReduceWriter<K, V> reduceWriter : reduceWriters) {
-                    if (reduceWriter == null) {
-                        header.putLong(bufferedNioOutputStream.position());
+            if (aggregationMap != null) {
+                logger.info("shuffleMapTask hash combine {} input rows, spill count {}", inputRows, spillFiles.size());
+            }
+            this.awaitPendingSpill(true);
+            this.drainAggregationMap();
+            sorter.sort();
+            int[] offsets = sorter.partitionOffsets(numPartitions);
+            ByteBuffer header = ByteBuffer.allocate(getSortMergedFileHarderSize(numPartitions));
+            header.putInt(numPartitions);
+            header.put(codec.getId());
+            try (MergedOutput mergedOutput = mergedOutputFactory.create(header.capacity())) {
+                BlockCompressOutputStream compressOutputStream = new BlockCompressOutputStream(mergedOutput, codec);
+                DataOutputStream dataOutputStream = new DataOutputStream(compressOutputStream);
+                for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+                    int start = offsets[reduceId];
+                    int end = offsets[reduceId + 1];
+                    long rowCount = end - start;
+                    List<Iterator<Tuple2<K, V>>> segments = new ArrayList<>(spillFiles.size() + 1);
+                    for (SpillFile<K, V> spillFile : spillFiles) {
+                        if (spillFile.getRowCount(reduceId) > 0) {
+                            rowCount += spillFile.getRowCount(reduceId);
+                            segments.add(spillFile.openSegment(reduceId, encoder));
+                        }
+                    }
+                    if (rowCount == 0) {
+                        header.putLong(mergedOutput.position());
                         header.putLong(0);
                         continue;
                     }
-                    LZ4BlockOutputStream lz4OutputStream = new LZ4BlockOutputStream(bufferedNioOutputStream);
-                    DataOutputStream dataOutputStream = new DataOutputStream(lz4OutputStream);
-                    //merger
-                    Iterator<Tuple2<K, V>> merger = reduceWriter.merger();
-                    long rowCount = reduceWriter.getMapTaskReadRowCount();
-                    if (combine != null) {
-                        long count = 0;
-                        merger = ReduceUtil.reduceSorted(merger, combine);
-                        while (merger.hasNext()) {
-                            count++;
-                            encoder.encoder(merger.next(), dataOutputStream);
+                    if (segments.isEmpty() && combine == null) {
+                        //没有溢写也不需要combine, 直接拷贝排序后的二进制数据
+                        for (int i = start; i < end; i++) {
+                            sorter.writeRecord(i, compressOutputStream);
                         }
-                        logger.info("shuffleMapTask merged combine {}/{} ratio: {}", count, rowCount, count * 1.0f / rowCount);
-                        rowCount = count;
                     }
                     else {
-                        while (merger.hasNext()) {
-                            encoder.encoder(merger.next(), dataOutputStream);
+                        //merger
+                        segments.add(sorter.iterator(start, end));
+                        Iterator<Tuple2<K, V>> merger;
+                        if (segments.size() == 1) {
+                            merger = segments.get(0);
+                        }
+                        else if (ordering == null) {
+                            //不需要有序时直接拼接各个溢写文件
+                            merger = Iterators.flatMap(segments.iterator(), segment -> segment);
+                        }
+                        else {
+                            merger = LoserTreeMerger.mergeSorted(ordering, orderedKeyEncoder, segments);
+                        }
+                        if (combine != null) {
+                            long count = 0;
+                            merger = ReduceUtil.reduceSorted(merger, combine);
+                            while (merger.hasNext()) {
+                                count++;
+                                encoder.encoder(merger.next(), dataOutputStream);
+                            }
+                            logger.info("shuffleMapTask merged combine {}/{} ratio: {}", count, rowCount, count * 1.0f / rowCount);
+                            rowCount = count;
+                        }
+                        else {
+                            while (merger.hasNext()) {
+                                encoder.encoder(merger.next(), dataOutputStream);
+                            }
                         }
                     }
-                    lz4OutputStream.finish();
+                    compressOutputStream.finish();
                     //merge index
-                    header.putLong(bufferedNioOutputStream.position());
+                    header.putLong(mergedOutput.position());
                     header.putLong(rowCount);
-                    if (reduceWriter.spillsFile.exists()) {
-                        checkState(reduceWriter.spillsFile.delete(), "clear shuffle tmp file failed " + reduceWriter.spillsFile.getCanonicalPath());
-                    }
                 }
-                //write header
-                fileChannel.position(0);
+                checkState(header.position() == header.capacity());
                 header.flip();
-                fileChannel.write(header);
+                mergedOutput.commit(header);
+            }
+            finally {
+                this.cleanup();
             }
-            checkState(header.position() == header.capacity());
             header.position(0);
             return header;
         }
     }
-
-    public static class SortShuffleRangePartitioner<K>
-            extends Partitioner
-    {
-        private final int reduceNumber;
-        private final K[] points;
-        private final Comparator<K> ordering;
-
-        public SortShuffleRangePartitioner(
-                int reduceNumber,
-                K[] points,
-                Comparator<K> ordering
-        )
-        {
-            this.reduceNumber = reduceNumber;
-            this.points = points;
-            this.ordering = requireNonNull(ordering, "ordering is null");
-        }
-
-        @Override
-        public int numPartitions()
-        {
-            return reduceNumber;
-        }
-
-        @Override
-        public int getPartition(Object key)
-        {
-            //todo: 二分法
-            for (int i = 0; i < points.length; i++) {
-                if (ordering.compare((K) key, points[i]) < 0) {
-                    return i;
-                }
-            }
-            return points.length;
-        }
-    }
 }
@@ -39,8 +39,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
 
 public class ClusterScheduler
         extends JobScheduler
@@ -48,12 +50,26 @@ public class ClusterScheduler
     private static final Logger logger = LoggerFactory.getLogger(ClusterScheduler.class);
     private final ExecutorManager executorManager;
     private final DriverNetManager driverNetManager;
+    private final boolean adaptiveCoalesceEnable;
+    private final long adaptiveCoalesceTargetBytes;
+    private final boolean skewJoinEnable;
+    private final int skewPartitionFactor;
+    private final long skewPartitionThresholdBytes;
+    //已完成的shuffle输出跨job保留, 直到driver端的ShuffleMapOperator不可达: stageId -> mapId -> executor地址
+    private final Map<Integer, Map<Integer, InetSocketAddress>> mapTaskNotes = new ConcurrentHashMap<>();
+    //stageId -> mapId -> map输出的统计信息
+    private final Map<Integer, Map<Integer, MapTaskState>> stageMapState = new ConcurrentHashMap<>();
 
     public ClusterScheduler(AstarteConf astarteConf, int vcores, int executorNum)
     {
         // start driver manager port
         this.driverNetManager = new DriverNetManager(executorNum);
         int executorMemMb = astarteConf.getInt(Constant.EXECUTOR_MEMORY_CONF, 1024);
+        this.adaptiveCoalesceEnable = astarteConf.getBoolean(Constant.SHUFFLE_ADAPTIVE_COALESCE_ENABLE, false);
+        this.adaptiveCoalesceTargetBytes = astarteConf.getInt(Constant.SHUFFLE_ADAPTIVE_COALESCE_TARGET_MB, 64) * 1024L * 1024L;
+        this.skewJoinEnable = astarteConf.getBoolean(Constant.SHUFFLE_SKEW_JOIN_ENABLE, false);
+        this.skewPartitionFactor = astarteConf.getInt(Constant.SHUFFLE_SKEW_PARTITION_FACTOR, 5);
+        this.skewPartitionThresholdBytes = astarteConf.getInt(Constant.SHUFFLE_SKEW_PARTITION_THRESHOLD_MB, 256) * 1024L * 1024L;
 
         //启动所有Executor
         this.executorManager = ExecutorManager.createExecutorManager(vcores, executorMemMb, executorNum, driverNetManager.getBindAddress());
@@ -68,6 +84,16 @@ public class ClusterScheduler
         }
     }
 
+    @Override
+    public void releaseShuffles(int[] shuffleIds)
+    {
+        for (int shuffleId : shuffleIds) {
+            mapTaskNotes.remove(shuffleId);
+            stageMapState.remove(shuffleId);
+        }
+        driverNetManager.broadcast(new DriverEvent.ReleaseShuffleEvent(shuffleIds));
+    }
+
     @Override
     public void stop()
     {
@@ -85,22 +111,25 @@ public class ClusterScheduler
         driverNetManager.initState();
 
         Object[] result = null;
-        //stageID, mapId,dataLength
-        Map<Integer, Map<Integer, long[]>> stageMapState = new HashMap<>();
-        Map<Integer, Map<Integer, InetSocketAddress>> mapTaskNotes = new HashMap<>();
         for (Stage stage : jobStages) {
-            Map<Integer, long[]> currentStageState = new HashMap<>();
-            stageMapState.put(stage.getStageId(), currentStageState);
-            Map<Integer, InetSocketAddress> mapTaskRunningExecutor = submitStage(stage, action, mapTaskNotes, stageMap.get(stage));
-            mapTaskNotes.put(stage.getStageId(), mapTaskRunningExecutor);
+            Map<Integer, MapTaskState> currentStageState = new HashMap<>();
+            //上游stage已经全部完成, 此时可以根据map输出的大小拆分倾斜分区或合并小分区
+            Partition[] partitions = SkewedPartitionSplitter.split(stage, stageMap.get(stage), stageMapState,
+                    skewJoinEnable, skewPartitionFactor, skewPartitionThresholdBytes, adaptiveCoalesceTargetBytes);
+            if (partitions == null) {
+                partitions = adaptiveCoalesceEnable ?
+                        PartitionCoalescer.coalesce(stage, stageMap.get(stage), stageMapState, adaptiveCoalesceTargetBytes) :
+                        stage.getPartitions();
+            }
+            Map<Integer, InetSocketAddress> mapTaskRunningExecutor = submitStage(stage, partitions, action, stageMap.get(stage));
             if (stage instanceof ResultStage) {
-                result = new Object[stage.getNumPartitions()];
+                result = new Object[partitions.length];
             }
 
             //等待stage执行结束,所有task成功. 如果task失败，应重新调度一次
             //todo: 失败分为： executor挂掉, task单独失败但executor正常
             //这里采用简单的方式，先不考虑executor挂掉
-            for (int taskDone = 0; taskDone < stage.getNumPartitions(); ) {
+            for (int taskDone = 0; taskDone < partitions.length; ) {
                 TaskEvent taskEvent = driverNetManager.awaitTaskEvent();
                 if (taskEvent.getJobId() != jobId) {
                     continue;
@@ -114,7 +143,7 @@ public class ClusterScheduler
                 if (stage instanceof ShuffleMapStage) {
                     TaskEvent.TaskSuccess taskSuccess = (TaskEvent.TaskSuccess) taskEvent;
                     MapTaskState mapTaskState = (MapTaskState) taskSuccess.getTaskResult();
-                    currentStageState.put(mapTaskState.getMapId(), mapTaskState.getSegmentEnds());
+                    currentStageState.put(mapTaskState.getMapId(), mapTaskState);
                 }
                 else if (stage instanceof ResultStage) {
                     TaskEvent.TaskSuccess taskSuccess = (TaskEvent.TaskSuccess) taskEvent;
@@ -124,19 +153,29 @@ public class ClusterScheduler
             if (stage instanceof ResultStage) {
                 return Arrays.asList((R[]) result);
             }
+            //stage全部成功后才登记, 之后的job可以直接读取
+            mapTaskNotes.put(stage.getStageId(), mapTaskRunningExecutor);
+            stageMapState.put(stage.getStageId(), currentStageState);
         }
         throw new UnsupportedOperationException("job " + jobId + " Not found ResultStage");
     }
 
     private <E, R> Map<Integer, InetSocketAddress> submitStage(Stage stage,
+            Partition[] partitions,
             Mapper<Iterator<E>, R> action,
-            Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks,
             Map<Integer, Integer> dependStages)
     {
+        //只发送该stage依赖的shuffle输出位置
+        Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks = new HashMap<>();
+        if (dependStages != null) {
+            for (int dependStageId : dependStages.values()) {
+                dependMapTasks.put(dependStageId, requireNonNull(mapTaskNotes.get(dependStageId), "not found shuffle output of stage " + dependStageId));
+            }
+        }
         List<Task<?>> tasks = new ArrayList<>();
         if (stage instanceof ShuffleMapStage) {
             logger.info("starting... shuffleMapStage: {}, stageId {}", stage, stage.getStageId());
-            for (Partition partition : stage.getPartitions()) {
+            for (Partition partition : partitions) {
                 Task<MapTaskState> task = new ShuffleMapTask(
                         stage.getJobId(),
                         stage.getStageId(),
@@ -151,7 +190,7 @@ public class ClusterScheduler
             checkState(stage instanceof ResultStage, "Unknown stage " + stage);
             logger.info("starting... ResultStage: {}, stageId {}", stage, stage.getStageId());
 
-            for (Partition partition : stage.getPartitions()) {
+            for (Partition partition : partitions) {
                 Task<R> task = new ResultTask<>(
                         stage.getJobId(),
                         stage.getStageId(),
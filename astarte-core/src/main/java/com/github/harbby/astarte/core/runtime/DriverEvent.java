@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * driver发送给executor的控制消息, task之外的通信
+ */
+public interface DriverEvent
+        extends Event
+{
+    /**
+     * 通知executor删除不再被引用的shuffle输出
+     */
+    public static class ReleaseShuffleEvent
+            implements DriverEvent
+    {
+        private int[] shuffleIds;
+
+        public ReleaseShuffleEvent(int[] shuffleIds)
+        {
+            this.shuffleIds = shuffleIds;
+        }
+
+        public ReleaseShuffleEvent() {}
+
+        public int[] getShuffleIds()
+        {
+            return shuffleIds;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out)
+                throws IOException
+        {
+            out.writeInt(shuffleIds.length);
+            for (int shuffleId : shuffleIds) {
+                out.writeInt(shuffleId);
+            }
+        }
+
+        @Override
+        public void readExternal(ObjectInput in)
+                throws IOException
+        {
+            this.shuffleIds = new int[in.readInt()];
+            for (int i = 0; i < shuffleIds.length; i++) {
+                shuffleIds[i] = in.readInt();
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -143,6 +144,14 @@ public class DriverNetManager
         return address;
     }
 
+    /**
+     * 发送给所有executor
+     */
+    public void broadcast(DriverEvent event)
+    {
+        executorHandlers.values().forEach(handler -> handler.send(event));
+    }
+
     private class DriverNetManagerHandler
             extends LengthFieldBasedFrameDecoder
     {
@@ -197,12 +206,17 @@ public class DriverNetManager
         }
 
         public void submitTask(Task<?> task)
+        {
+            send(task);
+        }
+
+        private void send(Serializable message)
         {
             checkState(!executorChannel.isRemoved());
             ByteBuf buffer = executorChannel.alloc().buffer();
             byte[] bytes;
             try {
-                bytes = Serializables.serialize(task);
+                bytes = Serializables.serialize(message);
                 buffer.writeInt(bytes.length).writeBytes(bytes);
                 executorChannel.writeAndFlush(buffer);
             }
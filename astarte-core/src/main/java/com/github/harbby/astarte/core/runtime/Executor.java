@@ -17,6 +17,9 @@ package com.github.harbby.astarte.core.runtime;
 
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.Task;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.operator.CacheManager;
 import com.github.harbby.gadtry.base.Throwables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +27,6 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.File;
 import java.net.SocketAddress;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
@@ -40,13 +42,21 @@ public class Executor
     private final ConcurrentMap<Integer, TaskRunner> runningTasks = new ConcurrentHashMap<>();
     private final ExecutorBackend executorBackend;
     private final ShuffleManagerService shuffleService;
+    private final ShuffleTransport shuffleTransport;
+    private final MemoryManager memoryManager;
+    private final long taskMemoryBudget;
 
     public Executor(int vcores, SocketAddress driverManagerAddress)
             throws Exception
     {
         pool = Executors.newFixedThreadPool(vcores);
-        this.shuffleBaseDir = new File(System.getProperty("java.io.tmpdir"), "astarte-" + UUID.randomUUID().toString());
-        this.shuffleService = new ShuffleManagerService(shuffleBaseDir);
+        //executor进程的堆大小由executor.memory.mb决定
+        this.memoryManager = MemoryManager.initialize(Runtime.getRuntime().maxMemory());
+        memoryManager.setStorageEvictor(CacheManager::evictStorage);
+        this.taskMemoryBudget = memoryManager.getTaskMemoryBudget(vcores);
+        this.shuffleService = new ShuffleManagerService();
+        this.shuffleBaseDir = shuffleService.getShuffleBaseDir();
+        this.shuffleTransport = new ShuffleTransport(vcores);
         this.executorBackend = new ExecutorBackend(this, driverManagerAddress);
         executorBackend.start(shuffleService.getShuffleServiceBindAddress());
     }
@@ -59,14 +69,15 @@ public class Executor
 
     public void runTask(Task<?> task)
     {
-        shuffleService.updateCurrentJobId(task.getJobId());
         Future<?> future = pool.submit(() -> {
             try {
                 Thread.currentThread().setName("astarte-task-" + task.getStageId() + "_" + task.getTaskId());
                 logger.info("starting... task {}", task);
                 TaskEvent event;
-                try (ShuffleClient shuffleClient = ShuffleClient.getClusterShuffleClient(task.getDependMapTasks())) {
-                    TaskContext taskContext = TaskContext.of(task.getJobId(), task.getStageId(), task.getDependStages(), shuffleClient, shuffleBaseDir);
+                TaskMemoryManager taskMemoryManager = new TaskMemoryManager(memoryManager, taskMemoryBudget);
+                try (ShuffleClient shuffleClient = ShuffleClient.getClusterShuffleClient(shuffleTransport, task.getDependMapTasks(),
+                        shuffleService.getShuffleServiceBindAddress().getHostName())) {
+                    TaskContext taskContext = TaskContext.of(task.getJobId(), task.getStageId(), task.getDependStages(), shuffleClient, shuffleBaseDir, taskMemoryManager);
                     Object result = task.runTask(taskContext);
                     event = TaskEvent.success(task.getJobId(), task.getTaskId(), result);
                 }
@@ -75,6 +86,9 @@ public class Executor
                     String errorMsg = Throwables.getStackTraceAsString(e);
                     event = TaskEvent.failed(task.getJobId(), task.getTaskId(), errorMsg);
                 }
+                finally {
+                    taskMemoryManager.cleanUpAllMemory();
+                }
                 executorBackend.updateState(event);
                 logger.info("task {} success", task);
                 Thread.currentThread().setName(Thread.currentThread().getName() + "_done");
@@ -90,10 +104,18 @@ public class Executor
         runningTasks.put(task.getTaskId(), new TaskRunner(task, future));
     }
 
+    public void releaseShuffles(int[] shuffleIds)
+    {
+        for (int shuffleId : shuffleIds) {
+            shuffleService.releaseShuffle(shuffleId);
+        }
+    }
+
     @Override
     public void close()
     {
         pool.shutdownNow();
+        shuffleTransport.close();
         shuffleService.stop();
     }
 
@@ -107,9 +107,17 @@ public class ExecutorBackend
             in.readBytes(bytes);
             ReferenceCountUtil.release(in);
 
-            Task<?> task = Serializables.byteToObject(bytes);
-            executor.runTask(task);
-            return task;
+            Object event = Serializables.byteToObject(bytes);
+            if (event instanceof Task) {
+                executor.runTask((Task<?>) event);
+            }
+            else if (event instanceof DriverEvent.ReleaseShuffleEvent) {
+                executor.releaseShuffles(((DriverEvent.ReleaseShuffleEvent) event).getShuffleIds());
+            }
+            else {
+                throw new UnsupportedOperationException("unknown driver event " + event);
+            }
+            return event;
         }
 
         @Override
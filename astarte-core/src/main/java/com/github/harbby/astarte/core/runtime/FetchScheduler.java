@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.gadtry.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * reduce task级别的shuffle下载调度.
+ * 1. 在途请求数不超过maxInFlightRequests, 其余block按注册顺序排队, 只在task线程中发送请求
+ * 2. 已下载未读取的字节数超过maxInFlightBytes时不再发送新的请求, 读取端消费到一半以下时继续发送
+ * 3. 每个block最多有maxInFlightBytes / maxInFlightRequests字节未读取的数据, 由服务端按读取端归还的credit发送.
+ * 背压只作用于本task的block, 不会暂停executor内共享的连接
+ * 4. task线程等待某个block时(mergeSorted堆正在等待的输入)该block立即发送请求, 不受在途请求数的限制
+ */
+class FetchScheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(FetchScheduler.class);
+
+    private final ShuffleTransport shuffleTransport;
+    private final long maxInFlightBytes;
+    private final int maxInFlightRequests;
+    private final int streamCreditWindow;
+    private final Map<ShuffleBlockStream, InetSocketAddress> queued = new LinkedHashMap<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private int inFlightRequests;
+
+    //metrics, 只在task线程中更新
+    private long fetchWaitNanos;
+    private int fetchWaitCount;
+    private long fetchedBytes;
+
+    FetchScheduler(ShuffleTransport shuffleTransport, ShuffleFetchOptions options)
+    {
+        this.shuffleTransport = requireNonNull(shuffleTransport, "shuffleTransport is null");
+        this.maxInFlightBytes = options.getMaxInFlightBytes();
+        this.maxInFlightRequests = options.getMaxInFlightRequests();
+        this.streamCreditWindow = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / maxInFlightRequests));
+    }
+
+    int getStreamCreditWindow()
+    {
+        return streamCreditWindow;
+    }
+
+    synchronized void register(InetSocketAddress address, ShuffleBlockStream stream)
+    {
+        queued.put(stream, address);
+    }
+
+    /**
+     * 在限制范围内发送排队的请求, 只能在task线程中调用(建立连接会阻塞)
+     */
+    void schedule()
+    {
+        Map<InetSocketAddress, Map<Integer, List<ShuffleBlockStream>>> batches = new HashMap<>();
+        synchronized (this) {
+            Iterator<Map.Entry<ShuffleBlockStream, InetSocketAddress>> iterator = queued.entrySet().iterator();
+            while (iterator.hasNext() && inFlightRequests < maxInFlightRequests && bufferedBytes.get() < maxInFlightBytes) {
+                Map.Entry<ShuffleBlockStream, InetSocketAddress> entry = iterator.next();
+                iterator.remove();
+                inFlightRequests++;
+                batches.computeIfAbsent(entry.getValue(), k -> new HashMap<>())
+                        .computeIfAbsent(entry.getKey().getShuffleId(), k -> new ArrayList<>())
+                        .add(entry.getKey());
+            }
+        }
+        for (Map.Entry<InetSocketAddress, Map<Integer, List<ShuffleBlockStream>>> entry : batches.entrySet()) {
+            for (List<ShuffleBlockStream> blocks : entry.getValue().values()) {
+                this.send(entry.getKey(), blocks);
+            }
+        }
+    }
+
+    private void send(InetSocketAddress address, List<ShuffleBlockStream> blocks)
+    {
+        try {
+            shuffleTransport.fetchBlocks(address, blocks);
+        }
+        catch (InterruptedException e) {
+            logger.warn("whether the task is being killed?");
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    /**
+     * 网络线程收到数据后调用
+     */
+    void onReceived(int bytes)
+    {
+        bufferedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * task线程取走一个数据块后调用
+     */
+    void onConsumed(int bytes)
+    {
+        fetchedBytes += bytes;
+        if (bufferedBytes.addAndGet(-bytes) < maxInFlightBytes / 2) {
+            this.schedule();
+        }
+    }
+
+    /**
+     * block下载完成或失败后由网络线程调用, 新的请求留给task线程发送
+     */
+    synchronized void onFinished()
+    {
+        inFlightRequests--;
+    }
+
+    /**
+     * task线程即将阻塞等待stream的数据, 该stream优先于其他block下载
+     */
+    void onWaiting(ShuffleBlockStream stream)
+    {
+        InetSocketAddress address;
+        synchronized (this) {
+            address = queued.remove(stream);
+            if (address != null) {
+                inFlightRequests++;
+            }
+        }
+        if (address != null) {
+            this.send(address, Collections.singletonList(stream));
+        }
+        this.schedule();
+    }
+
+    void onWaitDone(long waitNanos)
+    {
+        fetchWaitNanos += waitNanos;
+        fetchWaitCount++;
+    }
+
+    public long getFetchWaitTimeMs()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(fetchWaitNanos);
+    }
+
+    public int getFetchWaitCount()
+    {
+        return fetchWaitCount;
+    }
+
+    public long getFetchedBytes()
+    {
+        return fetchedBytes;
+    }
+
+    long getBufferedBytes()
+    {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * task结束时丢弃排队的请求
+     */
+    void close()
+    {
+        synchronized (this) {
+            queued.clear();
+        }
+    }
+}
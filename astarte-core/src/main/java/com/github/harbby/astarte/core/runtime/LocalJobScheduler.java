@@ -22,10 +22,16 @@ import com.github.harbby.astarte.core.ShuffleMapStage;
 import com.github.harbby.astarte.core.ShuffleMapTask;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.Utils;
+import com.github.harbby.astarte.core.api.AstarteConf;
 import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.api.Task;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.operator.CacheManager;
 import com.github.harbby.astarte.core.operator.Operator;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -42,6 +48,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -52,11 +59,27 @@ public class LocalJobScheduler
 {
     private static final Logger logger = LoggerFactory.getLogger(LocalJobScheduler.class);
     private final int parallelism;
+    //shuffle输出可能被之后的job复用, 目录在context停止时才删除
+    private final File shuffleWorkDir = new File(System.getProperty("java.io.tmpdir"), "astarte-" + UUID.randomUUID().toString());
 
-    public LocalJobScheduler(int parallelism)
+    //为null时map输出全部写文件
+    private final LocalShuffleExchange exchange;
+    private final MemoryManager memoryManager;
+    //进程退出时清理shuffle目录, stop()时移除, 避免停止后的scheduler一直被hook引用
+    private final Thread shutdownHook = new Thread(this::stop);
+
+    public LocalJobScheduler(AstarteConf conf, int parallelism)
     {
         this.parallelism = parallelism;
         checkState(parallelism > 0, "local mode parallelism must > 1");
+        long memoryLimitMb = conf.getInt(Constant.LOCAL_SHUFFLE_MEMORY_MB, (int) (Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024));
+        this.exchange = memoryLimitMb > 0 ? new LocalShuffleExchange(memoryLimitMb * 1024 * 1024) : null;
+        //local模式的executor就是driver进程, executor.memory.mb不能超过堆大小
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        long executorMemory = Math.min(maxMemory, conf.getInt(Constant.EXECUTOR_MEMORY_CONF, (int) (maxMemory / 1024 / 1024)) * 1024L * 1024L);
+        this.memoryManager = MemoryManager.initialize(executorMemory);
+        memoryManager.setStorageEvictor(CacheManager::evictStorage);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     @Override
@@ -69,18 +92,19 @@ public class LocalJobScheduler
         logger.info("starting... job: {}", jobId);
         //---------------------
         final ExecutorService executors = Executors.newFixedThreadPool(parallelism);
-        File shuffleWorkDir = new File(System.getProperty("java.io.tmpdir"), "astarte-" + UUID.randomUUID().toString());
+        long taskMemoryBudget = memoryManager.getTaskMemoryBudget(parallelism);
         try {
             for (Stage stage : jobStages) {
                 int stageId = stage.getStageId();
-                ShuffleClient shuffleClient = new ShuffleClient.LocalShuffleClient(shuffleWorkDir, jobId);
-                TaskContext taskContext = TaskContext.of(jobId, stageId, stageMap.get(stage), shuffleClient, shuffleWorkDir);
-                logger.info("starting stage {}/{} {}", stage.getStageId(), jobStages.size(), stage);
+                ShuffleClient shuffleClient = new ShuffleClient.LocalShuffleClient(shuffleWorkDir, exchange);
+                Supplier<TaskContext> taskContext = () -> TaskContext.of(jobId, stageId, stageMap.get(stage), shuffleClient, shuffleWorkDir,
+                        new TaskMemoryManager(memoryManager, taskMemoryBudget), exchange);
+                logger.info("starting stage {} of job {} {}", stage.getStageId(), jobId, stage);
                 Partition[] partitions = Utils.clear(stage.getPartitions());
                 if (stage instanceof ShuffleMapStage) {
                     Stream.of(partitions)
                             .map(partition -> new ShuffleMapTask(jobId, stageId, partition, ((ShuffleMapStage) stage).getFinalOperator(), Collections.emptyMap(), stageMap.get(stage)))
-                            .map(task -> CompletableFuture.runAsync(() -> task.runTask(taskContext), executors))
+                            .map(task -> CompletableFuture.runAsync(() -> runTask(task, taskContext.get()), executors))
                             .collect(Collectors.toList())
                             .forEach(CompletableFuture::join);
                 }
@@ -89,7 +113,7 @@ public class LocalJobScheduler
                     checkState(stage instanceof ResultStage, "Unknown stage " + stage);
                     return Stream.of(partitions)
                             .map(partition -> new ResultTask<>(jobId, stageId, (Operator<E>) stage.getFinalOperator(), action, partition, Collections.emptyMap(), stageMap.get(stage)))
-                            .map(task -> CompletableFuture.supplyAsync(() -> task.runTask(taskContext), executors))
+                            .map(task -> CompletableFuture.supplyAsync(() -> runTask(task, taskContext.get()), executors))
                             .collect(Collectors.toList()).stream()
                             .map(CompletableFuture::join)
                             .collect(Collectors.toList());
@@ -101,19 +125,52 @@ public class LocalJobScheduler
         }
         finally {
             executors.shutdown();
-            try {
-                FileUtils.deleteDirectory(shuffleWorkDir);
-                logger.debug("clear shuffle data temp dir {}", shuffleWorkDir);
-            }
-            catch (IOException e) {
-                logger.error("clear shuffle data temp dir failed", e);
+            if (exchange != null) {
+                logger.info("job {} finished, local shuffle memory used {} bytes", jobId, exchange.getMemoryUsed());
             }
         }
         throw new UnsupportedOperationException("job " + jobId + " Not found ResultStage");
     }
 
+    private static <R> R runTask(Task<R> task, TaskContext taskContext)
+    {
+        try {
+            return task.runTask(taskContext);
+        }
+        finally {
+            taskContext.getTaskMemoryManager().cleanUpAllMemory();
+        }
+    }
+
+    @Override
+    public void releaseShuffles(int[] shuffleIds)
+    {
+        for (int shuffleId : shuffleIds) {
+            if (exchange != null) {
+                exchange.release(shuffleId);
+            }
+            ShuffleManagerService.deleteShuffleFiles(shuffleWorkDir, shuffleId);
+        }
+    }
+
     @Override
     public void stop()
     {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        catch (IllegalStateException ignored) {
+            //jvm正在退出, 当前就是shutdown hook在调用stop()
+        }
+        if (exchange != null) {
+            exchange.clear();
+        }
+        try {
+            FileUtils.deleteDirectory(shuffleWorkDir);
+            logger.debug("clear shuffle data temp dir {}", shuffleWorkDir);
+        }
+        catch (IOException e) {
+            logger.error("clear shuffle data temp dir failed", e);
+        }
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.operator.MergedOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * local模式下map task和reduce task在同一个进程中, map输出直接以内存中的二进制分区数据交给reduce task,
+ * 不写shuffle_merged文件. 所有map输出共享memoryLimit, 超过时该map输出回退为写磁盘文件
+ */
+public class LocalShuffleExchange
+{
+    private static final Logger logger = LoggerFactory.getLogger(LocalShuffleExchange.class);
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final long memoryLimit;
+    private final AtomicLong memoryUsed = new AtomicLong();
+    //shuffleId -> mapId -> map输出
+    private final Map<Integer, Map<Integer, MapOutputBuffer>> outputs = new ConcurrentHashMap<>();
+
+    public LocalShuffleExchange(long memoryLimit)
+    {
+        checkArgument(memoryLimit > 0, "memoryLimit must > 0");
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * @param fallbackFile 内存不足时写入的shuffle_merged文件
+     */
+    public MergedOutput createOutput(int shuffleId, int mapId, File fallbackFile, int headerSize)
+    {
+        return new MemoryMergedOutput(shuffleId, mapId, fallbackFile, headerSize);
+    }
+
+    /**
+     * @return mapId -> map输出, 只包含保存在内存中的map输出, 其余的在shuffle_merged文件中
+     */
+    public Map<Integer, MapOutputBuffer> getMapOutputs(int shuffleId)
+    {
+        Map<Integer, MapOutputBuffer> mapOutputs = outputs.get(shuffleId);
+        return mapOutputs == null ? Collections.emptyMap() : mapOutputs;
+    }
+
+    public long getMemoryUsed()
+    {
+        return memoryUsed.get();
+    }
+
+    public void release(int shuffleId)
+    {
+        Map<Integer, MapOutputBuffer> mapOutputs = outputs.remove(shuffleId);
+        if (mapOutputs != null) {
+            mapOutputs.values().forEach(buffer -> freeMemory(buffer.data.length));
+        }
+    }
+
+    public void clear()
+    {
+        outputs.clear();
+        memoryUsed.set(0);
+    }
+
+    private boolean tryAcquireMemory(long bytes)
+    {
+        while (true) {
+            long used = memoryUsed.get();
+            if (used + bytes > memoryLimit) {
+                return false;
+            }
+            if (memoryUsed.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void freeMemory(long bytes)
+    {
+        memoryUsed.addAndGet(-bytes);
+    }
+
+    /**
+     * 与shuffle_merged文件的内容相同, 只是header和数据分开保存
+     */
+    public static class MapOutputBuffer
+    {
+        private final byte[] data;
+        private final BlockCodec codec;
+        private final long[] segmentEnds;
+        private final long[] segmentRowCounts;
+
+        private MapOutputBuffer(ByteBuffer header, byte[] data)
+        {
+            this.data = data;
+            ByteBuffer buffer = header.duplicate();
+            this.segmentEnds = new long[buffer.getInt()];
+            this.codec = BlockCodecs.forId(buffer.get());
+            this.segmentRowCounts = new long[segmentEnds.length];
+            for (int i = 0; i < segmentEnds.length; i++) {
+                segmentEnds[i] = buffer.getLong();
+                segmentRowCounts[i] = buffer.getLong();
+            }
+        }
+
+        public BlockCodec getCodec()
+        {
+            return codec;
+        }
+
+        public long getRowCount(int startReduceId, int endReduceId)
+        {
+            long rowCount = 0;
+            for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+                rowCount += segmentRowCounts[reduceId];
+            }
+            return rowCount;
+        }
+
+        /**
+         * 连续的reduce分区在数据中也是连续的
+         */
+        public InputStream openSegments(int startReduceId, int endReduceId)
+        {
+            int start = startReduceId == 0 ? 0 : (int) segmentEnds[startReduceId - 1];
+            int end = (int) segmentEnds[endReduceId - 1];
+            return new ByteArrayInputStream(data, start, end - start);
+        }
+    }
+
+    /**
+     * 按需扩容的内存缓冲区, 扩容前先向exchange申请内存, 申请失败时把已写入的数据转存到文件, 之后直接写文件
+     */
+    private class MemoryMergedOutput
+            extends MergedOutput
+    {
+        private final int shuffleId;
+        private final int mapId;
+        private final File fallbackFile;
+        private final int headerSize;
+        private byte[] buffer = new byte[0];
+        private int count;
+        private MergedOutput fileOutput;
+        private boolean committed;
+
+        private MemoryMergedOutput(int shuffleId, int mapId, File fallbackFile, int headerSize)
+        {
+            this.shuffleId = shuffleId;
+            this.mapId = mapId;
+            this.fallbackFile = fallbackFile;
+            this.headerSize = headerSize;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (fileOutput == null && count + (long) len > buffer.length && !grow(count + (long) len)) {
+                this.fallbackToFile();
+            }
+            if (fileOutput != null) {
+                fileOutput.write(b, off, len);
+                return;
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        private boolean grow(long minCapacity)
+        {
+            if (minCapacity > MAX_BUFFER_SIZE) {
+                return false;
+            }
+            int newCapacity = (int) Math.min(MAX_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, Math.max(minCapacity, buffer.length * 2L)));
+            if (!tryAcquireMemory(newCapacity - buffer.length)) {
+                return false;
+            }
+            buffer = Arrays.copyOf(buffer, newCapacity);
+            return true;
+        }
+
+        private void fallbackToFile()
+                throws IOException
+        {
+            logger.info("local shuffle memory is not enough (used {}, limit {} bytes), write map output {}_{} to file {}",
+                    memoryUsed.get(), memoryLimit, shuffleId, mapId, fallbackFile);
+            fileOutput = MergedOutput.ofFile(fallbackFile, headerSize);
+            fileOutput.write(buffer, 0, count);
+            freeMemory(buffer.length);
+            buffer = new byte[0];
+        }
+
+        @Override
+        public long position()
+        {
+            return fileOutput != null ? fileOutput.position() : count;
+        }
+
+        @Override
+        public void commit(ByteBuffer header)
+                throws IOException
+        {
+            checkState(!committed, "map output already committed");
+            if (fileOutput != null) {
+                fileOutput.commit(header);
+            }
+            else {
+                if (buffer.length > count) {
+                    //释放扩容时多申请的内存
+                    byte[] data = Arrays.copyOf(buffer, count);
+                    freeMemory(buffer.length - count);
+                    buffer = data;
+                }
+                MapOutputBuffer old = outputs.computeIfAbsent(shuffleId, k -> new ConcurrentHashMap<>())
+                        .put(mapId, new MapOutputBuffer(header, buffer));
+                if (old != null) {
+                    freeMemory(old.data.length);
+                }
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (fileOutput != null) {
+                fileOutput.close();
+            }
+            else if (!committed) {
+                freeMemory(buffer.length);
+            }
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.EncoderInputStream;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.coders.io.BlockDecompressInputStream;
+import com.github.harbby.astarte.core.coders.io.ByteBufferBlockInputStream;
+import com.github.harbby.gadtry.base.Throwables;
+import com.github.harbby.gadtry.io.LimitInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+
+/**
+ * 直接读取本机上的merged文件, 每个文件的header只解析一次.
+ * 较大的reduce分区段用mmap映射, 较小的段一次读入heap buffer, 之后都直接从ByteBuffer解压
+ */
+class MappedShuffleFileReader
+{
+    //小于一个压缩块时mmap的开销大于直接读取
+    static final long MMAP_THRESHOLD = BlockCodecs.DEFAULT_BLOCK_SIZE;
+
+    private final Map<File, ShuffleFileIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * 读取[startReduceId, endReduceId)连续的reduce分区
+     *
+     * @return 该范围没有数据时返回null
+     */
+    <E> Iterator<E> open(File shuffleFile, int startReduceId, int endReduceId, Encoder<E> encoder)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(shuffleFile.toPath(), StandardOpenOption.READ)) {
+            ShuffleFileIndex index = indexes.get(shuffleFile);
+            //map task重试时会重写merged文件
+            if (index == null || index.getLastModified() != shuffleFile.lastModified()) {
+                index = ShuffleFileIndex.read(shuffleFile, Channels.newInputStream(channel));
+                indexes.put(shuffleFile, index);
+            }
+            checkArgument(startReduceId >= 0 && startReduceId < endReduceId && endReduceId <= index.getNumPartitions(),
+                    "invalid reduce range [%s, %s) of %s", startReduceId, endReduceId, shuffleFile);
+            long length = index.getLength(startReduceId, endReduceId);
+            if (length == 0) {
+                return null;
+            }
+            long position = index.getPosition(startReduceId);
+            long rowCount = index.getRowCount(startReduceId, endReduceId);
+            BlockCodec codec = BlockCodecs.forId(index.getCodecId());
+            if (length > Integer.MAX_VALUE) {
+                //超过2GB的段无法映射为一个ByteBuffer
+                return openStream(shuffleFile, position, length, rowCount, codec, encoder);
+            }
+            ByteBuffer data;
+            if (length >= MMAP_THRESHOLD) {
+                //映射在channel关闭后仍然有效, buffer不可达时由GC解除映射
+                data = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+            else {
+                data = ByteBuffer.allocate((int) length);
+                while (data.hasRemaining()) {
+                    if (channel.read(data, position + data.position()) < 0) {
+                        throw new EOFException("unexpected end of shuffle file " + shuffleFile);
+                    }
+                }
+                data.flip();
+            }
+            return new EncoderInputStream<>(rowCount, encoder, new ByteBufferBlockInputStream(data, codec));
+        }
+    }
+
+    private static <E> Iterator<E> openStream(File shuffleFile, long position, long length, long rowCount, BlockCodec codec, Encoder<E> encoder)
+            throws IOException
+    {
+        FileInputStream fileInputStream = new FileInputStream(shuffleFile);
+        fileInputStream.getChannel().position(position);
+        return new EncoderInputStream<>(rowCount, encoder,
+                new BlockDecompressInputStream(new BufferedInputStream(new LimitInputStream(fileInputStream, length)), codec))
+                .autoClose(() -> {
+                    try {
+                        fileInputStream.close();
+                    }
+                    catch (IOException e) {
+                        Throwables.throwsThrowable(e);
+                    }
+                });
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.operator.AggOperator;
+import com.github.harbby.astarte.core.operator.CalcOperator;
+import com.github.harbby.astarte.core.operator.FullAggOperator;
+import com.github.harbby.astarte.core.operator.KvOperator;
+import com.github.harbby.astarte.core.operator.MapPartitionOperator;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.operator.ShuffleJoinOperator;
+import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.astarte.core.operator.ShuffledMergeSortOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * 根据上游map输出统计的每个reduce分区大小, 在提交stage前把相邻的小分区合并到目标大小,
+ * 减少大量小task的调度开销. 合并后的task按顺序读取连续的多个reduce分区, 不改变数据顺序.
+ * <p>
+ * 只有stage内全部是不依赖分区id的算子, 并且所有输入都来自shuffle时才会合并
+ */
+public final class PartitionCoalescer
+{
+    private static final Logger logger = LoggerFactory.getLogger(PartitionCoalescer.class);
+
+    private PartitionCoalescer() {}
+
+    /**
+     * @param dependStages shuffleMapOperatorId -> 上游stageId
+     * @param stageMapState 上游stageId -> mapId -> map输出的统计信息
+     */
+    public static Partition[] coalesce(Stage stage, Map<Integer, Integer> dependStages, Map<Integer, Map<Integer, MapTaskState>> stageMapState, long targetBytes)
+    {
+        Partition[] partitions = stage.getPartitions();
+        Set<Integer> shuffleMapIds = new HashSet<>();
+        if (partitions.length <= 1 || dependStages == null || !collectShuffleInputs(stage.getFinalOperator(), stage.getFinalOperator(), shuffleMapIds)) {
+            return partitions;
+        }
+        long[] reduceSizes = new long[partitions.length];
+        for (int shuffleMapId : shuffleMapIds) {
+            Integer dependStageId = dependStages.get(shuffleMapId);
+            Map<Integer, MapTaskState> mapStates = dependStageId == null ? null : stageMapState.get(dependStageId);
+            if (mapStates == null) {
+                return partitions;
+            }
+            for (MapTaskState mapState : mapStates.values()) {
+                if (mapState.getSegmentEnds().length != partitions.length) {
+                    return partitions;
+                }
+                for (int reduceId = 0; reduceId < partitions.length; reduceId++) {
+                    reduceSizes[reduceId] += mapState.getSegmentLength(reduceId);
+                }
+            }
+        }
+        Partition[] coalesced = coalesce(reduceSizes, targetBytes);
+        if (coalesced.length < partitions.length) {
+            logger.info("stage {} coalesced {} reduce partitions into {}, target size {} bytes", stage.getStageId(), partitions.length, coalesced.length, targetBytes);
+            return coalesced;
+        }
+        return partitions;
+    }
+
+    /**
+     * 顺序合并相邻分区, 每个合并后的分区不超过targetBytes(单个分区本身超过时独占一个task)
+     */
+    public static Partition[] coalesce(long[] reduceSizes, long targetBytes)
+    {
+        List<Partition> partitions = new ArrayList<>();
+        int start = 0;
+        long size = 0;
+        for (int reduceId = 0; reduceId < reduceSizes.length; reduceId++) {
+            if (reduceId > start && size + reduceSizes[reduceId] > targetBytes) {
+                partitions.add(new CoalescedPartition(partitions.size(), start, reduceId));
+                start = reduceId;
+                size = 0;
+            }
+            size += reduceSizes[reduceId];
+        }
+        if (start < reduceSizes.length) {
+            partitions.add(new CoalescedPartition(partitions.size(), start, reduceSizes.length));
+        }
+        return partitions.toArray(new Partition[0]);
+    }
+
+    /**
+     * 遍历stage内的算子, 收集读取的shuffle. 遇到依赖分区id的算子或者非shuffle数据源时返回false
+     */
+    private static boolean collectShuffleInputs(Operator<?> stageFinalOperator, Operator<?> operator, Set<Integer> shuffleMapIds)
+    {
+        if (operator instanceof ShuffleMapOperator && operator != stageFinalOperator) {
+            //上游stage的边界
+            shuffleMapIds.add(operator.getId());
+            return true;
+        }
+        if (operator.isMarkedCache() || !isPartitionIndependent(operator)) {
+            return false;
+        }
+        if (operator instanceof ShuffledMergeSortOperator || operator instanceof ShuffleJoinOperator) {
+            for (Operator<?> dependency : operator.getDependencies()) {
+                checkState(dependency instanceof ShuffleMapOperator, "shuffle reader depends on %s", dependency);
+                shuffleMapIds.add(dependency.getId());
+            }
+            return true;
+        }
+        for (Operator<?> dependency : operator.getDependencies()) {
+            if (!collectShuffleInputs(stageFinalOperator, dependency, shuffleMapIds)) {
+                return false;
+            }
+        }
+        return !operator.getDependencies().isEmpty();
+    }
+
+    private static boolean isPartitionIndependent(Operator<?> operator)
+    {
+        if (operator instanceof MapPartitionOperator) {
+            return !((MapPartitionOperator<?, ?>) operator).isDependPartitionId();
+        }
+        return operator instanceof ShuffleMapOperator
+                || operator instanceof ShuffledMergeSortOperator
+                || operator instanceof ShuffleJoinOperator
+                || operator instanceof CalcOperator
+                || operator instanceof KvOperator
+                || operator instanceof AggOperator
+                || operator instanceof FullAggOperator;
+    }
+}
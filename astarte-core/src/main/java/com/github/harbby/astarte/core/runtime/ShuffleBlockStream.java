@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.io.ByteBufDataInput;
+import com.github.harbby.gadtry.base.Throwables;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.IntConsumer;
+
+/**
+ * 一次block请求的下载数据, 网络线程写入解压后的数据块, task线程读取.
+ * 写入端不会阻塞, 避免多个请求复用同一个连接时互相等待.
+ * 服务端最多发送creditWindow字节未读取的数据(解压后), task线程读取后归还credit, 服务端才继续发送该block
+ */
+public class ShuffleBlockStream
+        extends ByteBufDataInput
+{
+    private static final Logger logger = LoggerFactory.getLogger(ShuffleBlockStream.class);
+    private static final ByteBuf STOP_DOWNLOAD = Unpooled.EMPTY_BUFFER;
+    private static final int DEFAULT_CREDIT_WINDOW = 1 << 20;
+
+    private final int shuffleId;
+    private final int reduceId;
+    private final int mapId;
+    private final FetchScheduler scheduler;
+    private final int creditWindow;
+    private final BlockingQueue<ByteBuf> buffer = new LinkedBlockingQueue<>();
+    private volatile IntConsumer creditSender;
+    private volatile Throwable cause;
+    private volatile boolean closed;
+    private volatile boolean done;
+    //已经读取但还没有归还给服务端的字节数, 只在task线程中访问
+    private int unreturnedCredit;
+
+    ShuffleBlockStream(int shuffleId, int reduceId, int mapId)
+    {
+        this(shuffleId, reduceId, mapId, null);
+    }
+
+    /**
+     * @param scheduler 所属reduce task的下载调度, 为null时不做限流
+     */
+    ShuffleBlockStream(int shuffleId, int reduceId, int mapId, FetchScheduler scheduler)
+    {
+        this.shuffleId = shuffleId;
+        this.reduceId = reduceId;
+        this.mapId = mapId;
+        this.scheduler = scheduler;
+        this.creditWindow = scheduler == null ? DEFAULT_CREDIT_WINDOW : scheduler.getStreamCreditWindow();
+    }
+
+    public int getShuffleId()
+    {
+        return shuffleId;
+    }
+
+    public int getReduceId()
+    {
+        return reduceId;
+    }
+
+    public int getMapId()
+    {
+        return mapId;
+    }
+
+    int getCreditWindow()
+    {
+        return creditWindow;
+    }
+
+    /**
+     * 发送请求前由{@link ShuffleTransport}设置, 用于向服务端归还credit
+     */
+    void setCreditSender(IntConsumer creditSender)
+    {
+        this.creditSender = creditSender;
+    }
+
+    void push(ByteBuf byteBuf)
+    {
+        int size = byteBuf.readableBytes();
+        buffer.add(byteBuf);
+        if (closed) {
+            this.releaseAll();
+        }
+        else if (scheduler != null) {
+            scheduler.onReceived(size);
+        }
+    }
+
+    void finish()
+    {
+        this.done = true;
+        buffer.add(STOP_DOWNLOAD);
+        if (scheduler != null) {
+            scheduler.onFinished();
+        }
+    }
+
+    void failed(Throwable e)
+    {
+        this.cause = e;
+        this.done = true;
+        buffer.add(STOP_DOWNLOAD);
+        if (scheduler != null) {
+            scheduler.onFinished();
+        }
+    }
+
+    /**
+     * @return false表示该block已经读取完成
+     */
+    public boolean hasRemaining()
+    {
+        try {
+            return ensureReadable();
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    @Override
+    protected ByteBuf nextBuffer()
+    {
+        ByteBuf byteBuf = buffer.poll();
+        if (byteBuf == null) {
+            //已经读取的数据全部归还, 保证服务端可以继续发送
+            this.returnCredit();
+            byteBuf = this.awaitBuffer();
+        }
+        if (byteBuf == STOP_DOWNLOAD) {
+            if (cause != null) {
+                throw Throwables.throwsThrowable(cause);
+            }
+            return null;
+        }
+        int size = byteBuf.readableBytes();
+        unreturnedCredit += size;
+        if (unreturnedCredit >= creditWindow / 2) {
+            this.returnCredit();
+        }
+        if (scheduler != null) {
+            scheduler.onConsumed(size);
+        }
+        return byteBuf;
+    }
+
+    private void returnCredit()
+    {
+        IntConsumer sender = creditSender;
+        if (unreturnedCredit > 0 && sender != null && !done) {
+            sender.accept(unreturnedCredit);
+        }
+        unreturnedCredit = 0;
+    }
+
+    private ByteBuf awaitBuffer()
+    {
+        if (scheduler != null) {
+            scheduler.onWaiting(this);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return buffer.take();
+        }
+        catch (InterruptedException e) {
+            logger.warn("whether the task is being killed?");
+            throw Throwables.throwsThrowable(e);
+        }
+        finally {
+            if (scheduler != null) {
+                scheduler.onWaitDone(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    private void releaseAll()
+    {
+        ByteBuf byteBuf;
+        while ((byteBuf = buffer.poll()) != null) {
+            ReferenceCountUtil.release(byteBuf);
+        }
+    }
+
+    /**
+     * task结束时调用, 释放已经下载但未读取的数据, 之后到达的数据直接丢弃.
+     * 未下载完成时不再限制credit, 服务端发送完剩余数据后释放该请求占用的连接
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        this.closed = true;
+        IntConsumer sender = creditSender;
+        if (sender != null && !done) {
+            sender.accept(Integer.MAX_VALUE);
+        }
+        super.close();
+        this.releaseAll();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ShuffleBlock[shuffleId=%s, reduceId=%s, mapId=%s]", shuffleId, reduceId, mapId);
+    }
+}
@@ -18,33 +18,57 @@ package com.github.harbby.astarte.core.runtime;
 import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
 import com.github.harbby.astarte.core.coders.EncoderInputStream;
+import com.github.harbby.astarte.core.coders.io.BlockDecompressInputStream;
+import com.github.harbby.astarte.core.utils.LoserTreeMerger;
 import com.github.harbby.gadtry.base.Files;
 import com.github.harbby.gadtry.base.Iterators;
 import com.github.harbby.gadtry.base.Throwables;
-import com.github.harbby.gadtry.io.LimitInputStream;
-import net.jpountz.lz4.LZ4BlockInputStream;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
 
-import static com.github.harbby.astarte.core.operator.SortShuffleWriter.getSortMergedFileHarderSize;
 import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
 import static java.util.Objects.requireNonNull;
 
 public interface ShuffleClient
         extends Closeable
 {
-    public <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, Encoder<Tuple2<K, V>> encoder, int shuffleId, int reduceId)
+    /**
+     * 读取[startReduceId, endReduceId)连续的reduce分区, 每个分区内按key归并, 分区之间依次拼接
+     *
+     * @param orderedKeyEncoder 可以为null, 不为null时归并使用其前缀比较key
+     * @param fetchOptions 远程下载时的限流参数, 本地读取时忽略
+     */
+    public default <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, OrderedEncoder<K> orderedKeyEncoder,
+            Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId, ShuffleFetchOptions fetchOptions)
+            throws IOException
+    {
+        return createShuffleReader(comparator, orderedKeyEncoder, encoder, shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE, fetchOptions);
+    }
+
+    /**
+     * 只读取mapId在[startMapId, endMapId)内的map输出, 用于拆分倾斜的reduce分区
+     */
+    public <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, OrderedEncoder<K> orderedKeyEncoder,
+            Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            ShuffleFetchOptions fetchOptions)
+            throws IOException;
+
+    /**
+     * 不需要排序时直接依次拼接各个map的输出, 省去归并排序的开销
+     */
+    public <K, V> Iterator<Tuple2<K, V>> createUnorderedShuffleReader(Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId,
+            ShuffleFetchOptions fetchOptions)
             throws IOException;
 
     @Override
@@ -52,68 +76,100 @@ public interface ShuffleClient
             throws IOException
     {}
 
-    public static ShuffleClient getClusterShuffleClient(Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks)
+    /**
+     * @param localHostName 当前executor所在机器, 同一台机器上的map输出直接读取文件, 不经过网络
+     */
+    public static ShuffleClient getClusterShuffleClient(ShuffleTransport shuffleTransport, Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks,
+            String localHostName)
     {
-        return new SortShuffleClusterClient(dependMapTasks);
+        return new SortShuffleClusterClient(shuffleTransport, dependMapTasks, localHostName);
     }
 
     public static class LocalShuffleClient
             implements ShuffleClient
     {
         private final File shuffleBaseDir;
-        private final int currentJobId;
+        private final LocalShuffleExchange exchange;
+        private final MappedShuffleFileReader fileReader = new MappedShuffleFileReader();
+
+        public LocalShuffleClient(File shuffleBaseDir)
+        {
+            this(shuffleBaseDir, null);
+        }
 
-        public LocalShuffleClient(File shuffleBaseDir, int currentJobId)
+        /**
+         * @param exchange 可以为null, 不为null时优先读取保存在内存中的map输出
+         */
+        public LocalShuffleClient(File shuffleBaseDir, LocalShuffleExchange exchange)
         {
             this.shuffleBaseDir = shuffleBaseDir;
-            this.currentJobId = currentJobId;
+            this.exchange = exchange;
         }
 
         @Override
-        public <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, Encoder<Tuple2<K, V>> encoder, int shuffleId, int reduceId)
+        public <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, OrderedEncoder<K> orderedKeyEncoder,
+                Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+                ShuffleFetchOptions fetchOptions)
                 throws IOException
         {
-            requireNonNull(encoder, "encoder is null");
             requireNonNull(comparator, "comparator is null");
-            checkArgument(reduceId >= 0);
-            String prefix = "shuffle_merged_" + shuffleId + "_";
-            List<File> files = Files.listFiles(new File(shuffleBaseDir, String.valueOf(currentJobId)), false, file -> file.getName().startsWith(prefix));
-            List<Iterator<Tuple2<K, V>>> iterators = new ArrayList<>(files.size());
-            for (File file : files) {
-                //read header
-                FileInputStream fileInputStream = new FileInputStream(file);
-                DataInputStream dataInputStream = new DataInputStream(fileInputStream);
-                long[] segmentEnds = new long[dataInputStream.readInt()];
-                long[] segmentRowSizes = new long[segmentEnds.length];
-                for (int i = 0; i < segmentEnds.length; i++) {
-                    segmentEnds[i] = dataInputStream.readLong();
-                    segmentRowSizes[i] = dataInputStream.readLong();
+            if (endReduceId - startReduceId == 1) {
+                return LoserTreeMerger.mergeSorted(comparator, orderedKeyEncoder, openMapOutputs(encoder, shuffleId, startReduceId, endReduceId, startMapId, endMapId));
+            }
+            //合并后的分区: 每个reduce分区单独归并, 读到该分区时才打开文件
+            return Iterators.flatMap(IntStream.range(startReduceId, endReduceId).iterator(), reduceId -> {
+                try {
+                    return LoserTreeMerger.mergeSorted(comparator, orderedKeyEncoder, openMapOutputs(encoder, shuffleId, reduceId, reduceId + 1, startMapId, endMapId));
                 }
-                long segmentEnd = segmentEnds[reduceId];
-                long length = segmentEnd;
-                if (reduceId > 0) {
-                    int headerSize = getSortMergedFileHarderSize(segmentEnds.length);
-                    fileInputStream.getChannel().position(headerSize + segmentEnds[reduceId - 1]);
-                    length = segmentEnd - segmentEnds[reduceId - 1];
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
                 }
-                if (length > 0) {
-                    iterators.add(new EncoderInputStream<>(segmentRowSizes[reduceId], encoder,
-                            new LZ4BlockInputStream(new BufferedInputStream(new LimitInputStream(fileInputStream, length))))
-                            .autoClose(() -> {
-                                try {
-                                    fileInputStream.close();
-                                }
-                                catch (IOException e) {
-                                    Throwables.throwsThrowable(e);
-                                }
-                            })
-                    );
+            });
+        }
+
+        @Override
+        public <K, V> Iterator<Tuple2<K, V>> createUnorderedShuffleReader(Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId,
+                ShuffleFetchOptions fetchOptions)
+                throws IOException
+        {
+            //连续分区在map输出文件中也是连续的, 每个map只需要读取一段
+            List<Iterator<Tuple2<K, V>>> iterators = openMapOutputs(encoder, shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE);
+            return Iterators.flatMap(iterators.iterator(), iterator -> iterator);
+        }
+
+        private <K, V> List<Iterator<Tuple2<K, V>>> openMapOutputs(Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId,
+                int startMapId, int endMapId)
+                throws IOException
+        {
+            requireNonNull(encoder, "encoder is null");
+            checkArgument(startReduceId >= 0 && startReduceId < endReduceId);
+            List<Iterator<Tuple2<K, V>>> iterators = new ArrayList<>();
+            Map<Integer, LocalShuffleExchange.MapOutputBuffer> memoryOutputs = exchange == null ? Collections.emptyMap() : exchange.getMapOutputs(shuffleId);
+            for (Map.Entry<Integer, LocalShuffleExchange.MapOutputBuffer> entry : memoryOutputs.entrySet()) {
+                LocalShuffleExchange.MapOutputBuffer mapOutput = entry.getValue();
+                long rowCount = mapOutput.getRowCount(startReduceId, endReduceId);
+                if (entry.getKey() >= startMapId && entry.getKey() < endMapId && rowCount > 0) {
+                    iterators.add(new EncoderInputStream<>(rowCount, encoder,
+                            new BlockDecompressInputStream(mapOutput.openSegments(startReduceId, endReduceId), mapOutput.getCodec())));
+                }
+            }
+            //内存不足时回退写入的文件
+            String prefix = "shuffle_merged_" + shuffleId + "_";
+            List<File> files = Files.listFiles(shuffleBaseDir, false, file -> {
+                String name = file.getName();
+                if (!name.startsWith(prefix) || !name.endsWith(".data")) {
+                    return false;
                 }
-                else {
-                    fileInputStream.close();
+                int mapId = Integer.parseInt(name.substring(prefix.length(), name.length() - ".data".length()));
+                return mapId >= startMapId && mapId < endMapId && !memoryOutputs.containsKey(mapId);
+            });
+            for (File file : files) {
+                Iterator<Tuple2<K, V>> iterator = fileReader.open(file, startReduceId, endReduceId, encoder);
+                if (iterator != null) {
+                    iterators.add(iterator);
                 }
             }
-            return Iterators.mergeSorted((x, y) -> comparator.compare(x.key(), y.key()), iterators);
+            return iterators;
         }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Constant;
+
+import java.io.Serializable;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+
+/**
+ * reduce端下载shuffle数据的限流参数, 在driver端读取配置后随operator下发到executor
+ */
+public class ShuffleFetchOptions
+        implements Serializable
+{
+    public static final int DEFAULT_MAX_INFLIGHT_MB = 48;
+    public static final int DEFAULT_MAX_INFLIGHT_REQUESTS = 64;
+    public static final ShuffleFetchOptions DEFAULT = new ShuffleFetchOptions(DEFAULT_MAX_INFLIGHT_MB * 1024L * 1024L, DEFAULT_MAX_INFLIGHT_REQUESTS);
+
+    private final long maxInFlightBytes;
+    private final int maxInFlightRequests;
+
+    public ShuffleFetchOptions(long maxInFlightBytes, int maxInFlightRequests)
+    {
+        checkArgument(maxInFlightBytes > 0, "maxInFlightBytes must > 0");
+        checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must > 0");
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public static ShuffleFetchOptions fromConf(AstarteConf conf)
+    {
+        int maxInFlightMb = conf.getInt(Constant.SHUFFLE_FETCH_MAX_INFLIGHT_MB, DEFAULT_MAX_INFLIGHT_MB);
+        int maxInFlightRequests = conf.getInt(Constant.SHUFFLE_FETCH_MAX_INFLIGHT_REQUESTS, DEFAULT_MAX_INFLIGHT_REQUESTS);
+        return new ShuffleFetchOptions(maxInFlightMb * 1024L * 1024L, maxInFlightRequests);
+    }
+
+    public long getMaxInFlightBytes()
+    {
+        return maxInFlightBytes;
+    }
+
+    public int getMaxInFlightRequests()
+    {
+        return maxInFlightRequests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ShuffleFetchOptions[maxInFlightBytes=%s, maxInFlightRequests=%s]", maxInFlightBytes, maxInFlightRequests);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.operator.SortShuffleWriter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * merged文件头的解析结果, shuffle服务和本地读取共用
+ */
+final class ShuffleFileIndex
+{
+    private final long lastModified;
+    private final byte codecId;
+    private final int headerSize;
+    private final long[] segmentEnds;
+    private final long[] segmentRowCounts;
+
+    private ShuffleFileIndex(long lastModified, byte codecId, long[] segmentEnds, long[] segmentRowCounts)
+    {
+        this.lastModified = lastModified;
+        this.codecId = codecId;
+        this.headerSize = SortShuffleWriter.getSortMergedFileHarderSize(segmentEnds.length);
+        this.segmentEnds = segmentEnds;
+        this.segmentRowCounts = segmentRowCounts;
+    }
+
+    static ShuffleFileIndex read(File shuffleFile, InputStream inputStream)
+            throws IOException
+    {
+        long lastModified = shuffleFile.lastModified();
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        long[] segmentEnds = new long[dataInputStream.readInt()];
+        byte codecId = dataInputStream.readByte();
+        long[] segmentRowCounts = new long[segmentEnds.length];
+        for (int i = 0; i < segmentEnds.length; i++) {
+            segmentEnds[i] = dataInputStream.readLong();
+            segmentRowCounts[i] = dataInputStream.readLong();
+        }
+        return new ShuffleFileIndex(lastModified, codecId, segmentEnds, segmentRowCounts);
+    }
+
+    long getLastModified()
+    {
+        return lastModified;
+    }
+
+    byte getCodecId()
+    {
+        return codecId;
+    }
+
+    int getNumPartitions()
+    {
+        return segmentEnds.length;
+    }
+
+    long getPosition(int reduceId)
+    {
+        return reduceId == 0 ? headerSize : headerSize + segmentEnds[reduceId - 1];
+    }
+
+    long getLength(int reduceId)
+    {
+        return getLength(reduceId, reduceId + 1);
+    }
+
+    /**
+     * 连续的reduce分区在文件中也是连续的
+     */
+    long getLength(int startReduceId, int endReduceId)
+    {
+        return segmentEnds[endReduceId - 1] - (startReduceId == 0 ? 0 : segmentEnds[startReduceId - 1]);
+    }
+
+    long getRowCount(int reduceId)
+    {
+        return segmentRowCounts[reduceId];
+    }
+
+    long getRowCount(int startReduceId, int endReduceId)
+    {
+        long rowCount = 0;
+        for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+            rowCount += segmentRowCounts[reduceId];
+        }
+        return rowCount;
+    }
+}
@@ -15,7 +15,7 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
-import com.github.harbby.astarte.core.operator.SortShuffleWriter;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
@@ -28,41 +28,75 @@ import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.ReferenceCountUtil;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
 public final class ShuffleManagerService
 {
     private static final Logger logger = LoggerFactory.getLogger(ShuffleManagerService.class);
+    /**
+     * 请求格式: int(frameLength) + byte(type) + 请求内容, 一个连接上可以连续发送多个请求.
+     * 请求一个block: int(requestId) + int(shuffleId) + int(reduceId) + int(mapId) + int(credit),
+     * credit为读取端允许的未消费字节数(解压后), 服务端用完credit后暂停发送该block, 直到读取端归还
+     */
+    static final byte FETCH_BLOCK = 1;
+    /**
+     * 批量请求同一个shuffle的多个block: int(shuffleId) + int(count) + count * (int(requestId) + int(reduceId) + int(mapId) + int(credit))
+     */
+    static final byte FETCH_BLOCKS = 2;
+    /**
+     * 归还读取端已经消费的数据量: int(requestId) + int(credit)
+     */
+    static final byte ADD_CREDIT = 3;
+    /**
+     * 响应格式: byte(type) + int(requestId) + 响应内容, 不同请求的响应以消息为单位交错发送
+     * block信息: long(length) + long(rowCount) + byte(codecId), length为-1表示读取失败
+     */
+    static final byte RESPONSE_META = 1;
+    static final int RESPONSE_META_SIZE = Byte.BYTES + Integer.BYTES + Long.BYTES * 2 + Byte.BYTES;
+    /**
+     * block数据: int(length) + length字节的完整压缩块
+     */
+    static final byte RESPONSE_DATA = 2;
+    static final int RESPONSE_DATA_HEADER_SIZE = Byte.BYTES + Integer.BYTES * 2;
+    private static final int MAX_REQUEST_FRAME_SIZE = 1 << 20;
+    private static final int MAX_DATA_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CACHED_FILE_INDEX = 4096;
+
     private final File shuffleBaseDir;
     private ChannelFuture future;
-    private volatile int currentJobId;
     private final InetSocketAddress shuffleServiceBindAddress;
-
-    public ShuffleManagerService(File shuffleBaseDir)
-            throws UnknownHostException, InterruptedException
+    //merged文件header的LRU缓存, 避免每次请求都重新打开文件解析header
+    private final Map<File, ShuffleFileIndex> indexCache = new LinkedHashMap<File, ShuffleFileIndex>(16, 0.75f, true)
     {
-        this.shuffleBaseDir = shuffleBaseDir;
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                FileUtils.deleteDirectory(shuffleBaseDir);
-                logger.debug("clear shuffle data temp dir {}", shuffleBaseDir);
-            }
-            catch (IOException e) {
-                logger.error("clear shuffle data temp dir failed", e);
-            }
-        }));
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, ShuffleFileIndex> eldest)
+        {
+            return size() > MAX_CACHED_FILE_INDEX;
+        }
+    };
 
+    public ShuffleManagerService()
+            throws IOException, InterruptedException
+    {
         final NioEventLoopGroup boosGroup = new NioEventLoopGroup(1);
         final NioEventLoopGroup workerGroup = new NioEventLoopGroup();
         ServerBootstrap serverBootstrap = new ServerBootstrap();
@@ -77,7 +111,9 @@ public final class ShuffleManagerService
                     protected void initChannel(SocketChannel ch)
                             throws Exception
                     {
-                        ch.pipeline().addLast(new ShuffleServiceHandler());
+                        ch.pipeline()
+                                .addLast(new LengthFieldBasedFrameDecoder(MAX_REQUEST_FRAME_SIZE, 0, Integer.BYTES, 0, Integer.BYTES))
+                                .addLast(new ShuffleServiceHandler());
                     }
                 });
         this.future = serverBootstrap.bind(0).sync();
@@ -89,11 +125,62 @@ public final class ShuffleManagerService
 
         int bindPort = ((InetSocketAddress) future.channel().localAddress()).getPort();
         this.shuffleServiceBindAddress = InetSocketAddress.createUnresolved(InetAddress.getLocalHost().getHostName(), bindPort);
+        this.shuffleBaseDir = getShuffleBaseDir(bindPort);
+        //清理相同端口的进程异常退出后残留的文件
+        FileUtils.deleteDirectory(shuffleBaseDir);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                FileUtils.deleteDirectory(shuffleBaseDir);
+                logger.debug("clear shuffle data temp dir {}", shuffleBaseDir);
+            }
+            catch (IOException e) {
+                logger.error("clear shuffle data temp dir failed", e);
+            }
+        }));
     }
 
-    public void updateCurrentJobId(int jobId)
+    /**
+     * shuffle目录按服务端口命名, 同一台机器上的executor可以据此直接读取彼此的map输出, 不经过网络
+     */
+    static File getShuffleBaseDir(int shuffleServicePort)
     {
-        this.currentJobId = jobId;
+        return new File(System.getProperty("java.io.tmpdir"), "astarte-shuffle-" + shuffleServicePort);
+    }
+
+    public File getShuffleBaseDir()
+    {
+        return shuffleBaseDir;
+    }
+
+    /**
+     * 删除不会再被读取的shuffle输出
+     */
+    public void releaseShuffle(int shuffleId)
+    {
+        String prefix = String.format("shuffle_merged_%s_", shuffleId);
+        synchronized (indexCache) {
+            indexCache.keySet().removeIf(file -> file.getName().startsWith(prefix));
+        }
+        deleteShuffleFiles(shuffleBaseDir, shuffleId);
+    }
+
+    /**
+     * 删除shuffleId的merged文件以及残留的中间文件
+     */
+    static void deleteShuffleFiles(File shuffleBaseDir, int shuffleId)
+    {
+        String mergedPrefix = String.format("shuffle_merged_%s_", shuffleId);
+        String tempPrefix = String.format("shuffle_%s_", shuffleId);
+        File[] files = shuffleBaseDir.listFiles((dir, name) -> name.startsWith(mergedPrefix) || name.startsWith(tempPrefix));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete() && file.exists()) {
+                logger.warn("delete shuffle file {} failed", file);
+            }
+        }
+        logger.debug("released shuffle {}, deleted {} files", shuffleId, files.length);
     }
 
     public InetSocketAddress getShuffleServiceBindAddress()
@@ -112,9 +199,132 @@ public final class ShuffleManagerService
         future.channel().close();
     }
 
+    private static ByteBuf responseMeta(ChannelHandlerContext ctx, int requestId, long length, long rowCount, byte codecId)
+    {
+        ByteBuf header = ctx.alloc().directBuffer(RESPONSE_META_SIZE);
+        header.writeByte(RESPONSE_META);
+        header.writeInt(requestId);
+        header.writeLong(length);
+        header.writeLong(rowCount);
+        header.writeByte(codecId);
+        return header;
+    }
+
+    private static ByteBuf responseDataHeader(ChannelHandlerContext ctx, int requestId, int length)
+    {
+        ByteBuf header = ctx.alloc().directBuffer(RESPONSE_DATA_HEADER_SIZE);
+        header.writeByte(RESPONSE_DATA);
+        header.writeInt(requestId);
+        header.writeInt(length);
+        return header;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            logger.warn("close {} failed", closeable, e);
+        }
+    }
+
+    /**
+     * 只在缓存未命中时打开文件读取header, 打开的文件直接用于发送数据
+     */
+    private ShuffleFileIndex getFileIndex(File shuffleFile, FileInputStream[] openedFile)
+            throws IOException
+    {
+        ShuffleFileIndex index;
+        synchronized (indexCache) {
+            index = indexCache.get(shuffleFile);
+        }
+        //map task重试时会重写merged文件
+        if (index != null && index.getLastModified() == shuffleFile.lastModified()) {
+            return index;
+        }
+        FileInputStream fileInputStream = new FileInputStream(shuffleFile);
+        try {
+            index = ShuffleFileIndex.read(shuffleFile, fileInputStream);
+        }
+        catch (IOException | RuntimeException e) {
+            fileInputStream.close();
+            throw e;
+        }
+        openedFile[0] = fileInputStream;
+        synchronized (indexCache) {
+            indexCache.put(shuffleFile, index);
+        }
+        return index;
+    }
+
+    /**
+     * 一个block剩余待发送的数据, 按完整的压缩块发送, 每个压缩块消耗解压后长度的credit
+     */
+    private static class BlockSender
+            implements Closeable
+    {
+        private final int requestId;
+        private final File shuffleFile;
+        private final FileInputStream fileInputStream;
+        private final long end;
+        private long position;
+        private long credit;
+
+        private BlockSender(int requestId, File shuffleFile, FileInputStream fileInputStream, long position, long length, long credit)
+        {
+            this.requestId = requestId;
+            this.shuffleFile = shuffleFile;
+            this.fileInputStream = fileInputStream;
+            this.position = position;
+            this.end = position + length;
+            this.credit = credit;
+        }
+
+        private boolean hasRemaining()
+        {
+            return position < end;
+        }
+
+        /**
+         * 读取下一个压缩块的header, 跳过该压缩块并扣除credit
+         */
+        private void skipFrame(ByteBuffer frameHeader)
+                throws IOException
+        {
+            frameHeader.clear();
+            FileChannel channel = fileInputStream.getChannel();
+            while (frameHeader.hasRemaining()) {
+                if (channel.read(frameHeader, position + frameHeader.position()) < 0) {
+                    throw new EOFException("read shuffle file " + shuffleFile + " frame header failed, position " + position);
+                }
+            }
+            int compressedLength = frameHeader.getInt(0);
+            int length = frameHeader.getInt(Integer.BYTES);
+            checkState(compressedLength >= 0 && length >= 0, "shuffle file %s frame header is broken, position %s", shuffleFile, position);
+            position += BlockCodecs.FRAME_HEADER_SIZE + compressedLength;
+            checkState(position <= end, "shuffle file %s frame out of range", shuffleFile);
+            credit -= length;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            fileInputStream.close();
+        }
+    }
+
     private class ShuffleServiceHandler
             extends ChannelInboundHandlerAdapter
     {
+        //等待读取端归还credit的block, 只在该连接的event loop中访问
+        private final Map<Integer, BlockSender> senders = new HashMap<>();
+        private final ByteBuffer frameHeader = ByteBuffer.allocate(BlockCodecs.FRAME_HEADER_SIZE);
+
         @Override
         public void channelActive(ChannelHandlerContext ctx)
                 throws Exception
@@ -122,49 +332,132 @@ public final class ShuffleManagerService
             logger.info("found shuffle client {}", ctx.channel().remoteAddress());
         }
 
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception
+        {
+            for (BlockSender sender : senders.values()) {
+                closeQuietly(sender);
+            }
+            senders.clear();
+            super.channelInactive(ctx);
+        }
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg)
                 throws Exception
         {
             ByteBuf in = (ByteBuf) msg;
-            int shuffleId = in.readInt();
-            int reduceId = in.readInt();
-            int mapId = in.readInt();
-            ReferenceCountUtil.release(msg);
-
-            File shuffleFile = new File(new File(shuffleBaseDir, String.valueOf(currentJobId)), String.format("shuffle_merged_%s_%s.data", shuffleId, mapId));
-            //read shuffle file header
-            FileInputStream fileInputStream = new FileInputStream(shuffleFile);
-            DataInputStream dataInputStream = new DataInputStream(fileInputStream);
-            long[] segmentEnds = new long[dataInputStream.readInt()];
-            long[] segmentRowSize = new long[segmentEnds.length];
-            for (int i = 0; i < segmentEnds.length; i++) {
-                segmentEnds[i] = dataInputStream.readLong();
-                segmentRowSize[i] = dataInputStream.readLong();
+            try {
+                byte type = in.readByte();
+                if (type == FETCH_BLOCK) {
+                    int requestId = in.readInt();
+                    int shuffleId = in.readInt();
+                    int reduceId = in.readInt();
+                    int mapId = in.readInt();
+                    int credit = in.readInt();
+                    this.writeBlock(ctx, requestId, shuffleId, reduceId, mapId, credit);
+                }
+                else if (type == FETCH_BLOCKS) {
+                    int shuffleId = in.readInt();
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int requestId = in.readInt();
+                        int reduceId = in.readInt();
+                        int mapId = in.readInt();
+                        int credit = in.readInt();
+                        this.writeBlock(ctx, requestId, shuffleId, reduceId, mapId, credit);
+                    }
+                }
+                else if (type == ADD_CREDIT) {
+                    int requestId = in.readInt();
+                    int credit = in.readInt();
+                    //block已经发送完成时忽略
+                    BlockSender sender = senders.get(requestId);
+                    if (sender != null) {
+                        sender.credit += credit;
+                        this.writeFrames(ctx, sender);
+                    }
+                }
+                else {
+                    throw new IllegalStateException("unknown shuffle request type " + type);
+                }
+                ctx.flush();
+            }
+            finally {
+                ReferenceCountUtil.release(msg);
             }
+        }
 
-            int fileHeaderSize = SortShuffleWriter.getSortMergedFileHarderSize(segmentEnds.length);
-            final long length;
-            final long position;
-            if (reduceId > 0) {
-                position = fileHeaderSize + segmentEnds[reduceId - 1];
-                length = segmentEnds[reduceId] - segmentEnds[reduceId - 1];
+        /**
+         * 只写入不flush, 同一批请求的block依次发送
+         */
+        private void writeBlock(ChannelHandlerContext ctx, int requestId, int shuffleId, int reduceId, int mapId, int credit)
+        {
+            File shuffleFile = new File(shuffleBaseDir, String.format("shuffle_merged_%s_%s.data", shuffleId, mapId));
+            FileInputStream[] openedFile = new FileInputStream[1];
+            ShuffleFileIndex index;
+            try {
+                index = getFileIndex(shuffleFile, openedFile);
+                checkState(reduceId >= 0 && reduceId < index.getNumPartitions(), "reduceId %s out of range", reduceId);
+                if (openedFile[0] == null && index.getLength(reduceId) > 0) {
+                    openedFile[0] = new FileInputStream(shuffleFile);
+                }
             }
-            else {
-                position = fileHeaderSize;
-                length = segmentEnds[reduceId];
+            catch (IOException | RuntimeException e) {
+                logger.error("read shuffle file {} reduceId {} failed", shuffleFile, reduceId, e);
+                closeQuietly(openedFile[0]);
+                ctx.write(responseMeta(ctx, requestId, -1, 0, (byte) 0));
+                return;
             }
+            long length = index.getLength(reduceId);
             //write net header info
-            ByteBuf header = ctx.alloc().directBuffer(Long.BYTES * 2);
-            header.writeLong(length);
-            header.writeLong(segmentRowSize[reduceId]);
-            ctx.write(header);
-            //write data by zero copy
-            ctx.writeAndFlush(new DefaultFileRegion(fileInputStream.getChannel(), position, length), ctx.newProgressivePromise())
-                    .addListener((ChannelFutureListener) future -> {
-                        logger.debug("send file {} done, size = {}", shuffleFile, length);
-                        fileInputStream.close();
+            ctx.write(responseMeta(ctx, requestId, length, index.getRowCount(reduceId), index.getCodecId()));
+            if (length == 0) {
+                closeQuietly(openedFile[0]);
+                return;
+            }
+            BlockSender sender = new BlockSender(requestId, shuffleFile, openedFile[0], index.getPosition(reduceId), length, credit);
+            senders.put(requestId, sender);
+            this.writeFrames(ctx, sender);
+        }
+
+        /**
+         * 在credit范围内发送完整的压缩块, 连续的压缩块合并成一个数据消息, 通过zero copy发送.
+         * 最后一个压缩块可以超出credit, 保证credit为正数时总能继续发送
+         */
+        private void writeFrames(ChannelHandlerContext ctx, BlockSender sender)
+        {
+            try {
+                while (sender.credit > 0 && sender.hasRemaining()) {
+                    long start = sender.position;
+                    while (sender.credit > 0 && sender.hasRemaining() && sender.position - start < MAX_DATA_CHUNK_SIZE) {
+                        sender.skipFrame(frameHeader);
+                    }
+                    long length = sender.position - start;
+                    ctx.write(responseDataHeader(ctx, sender.requestId, (int) length));
+                    ctx.write(new DefaultFileRegion(sender.shuffleFile, start, length)).addListener((ChannelFutureListener) future -> {
+                        logger.debug("send file {} position {} done, size = {}", sender.shuffleFile, start, length);
+                        if (!future.isSuccess()) {
+                            //读取端已经收到block信息, 关闭连接使其等待中的请求失败, 避免一直等待剩余数据
+                            logger.error("send file {} failed", sender.shuffleFile, future.cause());
+                            future.channel().close();
+                        }
                     });
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                //已经发送了block信息, 只能关闭连接通知读取端失败
+                logger.error("send shuffle file {} failed", sender.shuffleFile, e);
+                senders.remove(sender.requestId);
+                closeQuietly(sender);
+                ctx.close();
+                return;
+            }
+            if (!sender.hasRemaining()) {
+                senders.remove(sender.requestId);
+                closeQuietly(sender);
+            }
         }
 
         @Override
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.gadtry.collection.ImmutableList;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.ADD_CREDIT;
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.FETCH_BLOCK;
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.FETCH_BLOCKS;
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.RESPONSE_DATA;
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.RESPONSE_DATA_HEADER_SIZE;
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.RESPONSE_META;
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.RESPONSE_META_SIZE;
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * executor级别共享的shuffle下载客户端.
+ * 只维护一个EventLoopGroup, 每个远程ShuffleManagerService保持少量长连接,
+ * 一个连接上可以同时有多个block请求, 响应通过requestId分发给对应的{@link ShuffleBlockStream}.
+ * 每个block按读取端归还的credit发送, 读取较慢的block只会暂停自己, 不会阻塞连接上的其他block
+ */
+public class ShuffleTransport
+        implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(ShuffleTransport.class);
+    public static final int DEFAULT_CONNECTIONS_PER_PEER = 2;
+    //每个连接上同时等待响应的请求数, 超过时在客户端排队
+    public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 64;
+
+    private final NioEventLoopGroup workerGroup;
+    private final Bootstrap bootstrap;
+    private final int connectionsPerPeer;
+    private final int maxRequestsPerConnection;
+    private final ConcurrentMap<InetSocketAddress, PeerConnections> peers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    public ShuffleTransport(int numThreads)
+    {
+        this(numThreads, DEFAULT_CONNECTIONS_PER_PEER, DEFAULT_MAX_REQUESTS_PER_CONNECTION);
+    }
+
+    public ShuffleTransport(int numThreads, int connectionsPerPeer, int maxRequestsPerConnection)
+    {
+        checkArgument(connectionsPerPeer > 0, "connectionsPerPeer must > 0");
+        checkArgument(maxRequestsPerConnection > 0, "maxRequestsPerConnection must > 0");
+        this.connectionsPerPeer = connectionsPerPeer;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        this.workerGroup = new NioEventLoopGroup(numThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setName("shuffle_client_" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bootstrap = new Bootstrap()
+                .group(workerGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.TCP_NODELAY, true);
+    }
+
+    /**
+     * 异步下载一个map输出中指定reduce分区的数据
+     */
+    public ShuffleBlockStream fetchBlock(InetSocketAddress address, int shuffleId, int reduceId, int mapId)
+            throws InterruptedException
+    {
+        ShuffleBlockStream stream = new ShuffleBlockStream(shuffleId, reduceId, mapId);
+        this.fetchBlocks(address, ImmutableList.of(stream));
+        return stream;
+    }
+
+    /**
+     * 批量下载同一个executor上同一个shuffle的多个block, 按连接允许的请求数拆分成若干个批量请求
+     */
+    public void fetchBlocks(InetSocketAddress address, List<ShuffleBlockStream> blocks)
+            throws InterruptedException
+    {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        int shuffleId = blocks.get(0).getShuffleId();
+        PeerConnections peer = peers.computeIfAbsent(address, PeerConnections::new);
+        for (int start = 0; start < blocks.size(); start += maxRequestsPerConnection) {
+            List<Request> batch = new ArrayList<>();
+            for (ShuffleBlockStream stream : blocks.subList(start, Math.min(blocks.size(), start + maxRequestsPerConnection))) {
+                checkArgument(stream.getShuffleId() == shuffleId, "batch blocks must have the same shuffleId");
+                batch.add(new Request(nextRequestId.getAndIncrement(), stream));
+            }
+            peer.getConnection(Math.floorMod(batch.get(0).requestId, connectionsPerPeer)).request(batch);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        for (PeerConnections peer : peers.values()) {
+            peer.close();
+        }
+        workerGroup.shutdownGracefully();
+    }
+
+    private class PeerConnections
+    {
+        private final InetSocketAddress address;
+        private final ShuffleConnection[] connections = new ShuffleConnection[connectionsPerPeer];
+
+        private PeerConnections(InetSocketAddress address)
+        {
+            this.address = address;
+        }
+
+        private synchronized ShuffleConnection getConnection(int slot)
+                throws InterruptedException
+        {
+            ShuffleConnection connection = connections[slot];
+            if (connection == null || !connection.isActive()) {
+                connection = new ShuffleConnection(address);
+                connection.connect();
+                connections[slot] = connection;
+            }
+            return connection;
+        }
+
+        private synchronized void close()
+        {
+            for (ShuffleConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private class ShuffleConnection
+    {
+        private final InetSocketAddress address;
+        private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+        private final Queue<List<Request>> waiting = new ArrayDeque<>();
+        private int inFlight;
+        private Channel channel;
+
+        private ShuffleConnection(InetSocketAddress address)
+        {
+            this.address = address;
+        }
+
+        private void connect()
+                throws InterruptedException
+        {
+            ChannelFuture future = bootstrap.clone()
+                    .handler(new ChannelInitializer<SocketChannel>()
+                    {
+                        @Override
+                        protected void initChannel(SocketChannel ch)
+                        {
+                            ch.pipeline().addLast(new ShuffleResponseDecoder(ShuffleConnection.this));
+                        }
+                    })
+                    .connect(address).sync();
+            this.channel = future.channel();
+            logger.debug("connected shuffle service {}", address);
+        }
+
+        private boolean isActive()
+        {
+            return channel != null && channel.isActive();
+        }
+
+        private void request(List<Request> batch)
+        {
+            synchronized (this) {
+                for (Request request : batch) {
+                    pending.put(request.requestId, request);
+                    request.stream.setCreditSender(credit -> this.addCredit(request.requestId, credit));
+                }
+                waiting.add(batch);
+            }
+            this.sendWaiting();
+        }
+
+        /**
+         * 在途请求数不超过maxRequestsPerConnection时发送排队的批量请求
+         */
+        private void sendWaiting()
+        {
+            List<List<Request>> ready = new ArrayList<>();
+            synchronized (this) {
+                while (!waiting.isEmpty() && inFlight + waiting.peek().size() <= maxRequestsPerConnection) {
+                    List<Request> batch = waiting.poll();
+                    inFlight += batch.size();
+                    ready.add(batch);
+                }
+            }
+            for (List<Request> batch : ready) {
+                this.send(batch);
+            }
+        }
+
+        private void send(List<Request> batch)
+        {
+            ByteBuf byteBuf;
+            if (batch.size() == 1) {
+                //frame = int(length) + byte(type) + int(requestId) + int(shuffleId) + int(reduceId) + int(mapId) + int(credit)
+                Request request = batch.get(0);
+                byteBuf = channel.alloc().buffer(Integer.BYTES * 6 + Byte.BYTES);
+                byteBuf.writeInt(Byte.BYTES + Integer.BYTES * 5);
+                byteBuf.writeByte(FETCH_BLOCK);
+                byteBuf.writeInt(request.requestId);
+                byteBuf.writeInt(request.stream.getShuffleId());
+                byteBuf.writeInt(request.stream.getReduceId());
+                byteBuf.writeInt(request.stream.getMapId());
+                byteBuf.writeInt(request.stream.getCreditWindow());
+            }
+            else {
+                //frame = int(length) + byte(type) + int(shuffleId) + int(count) + count * (int(requestId) + int(reduceId) + int(mapId) + int(credit))
+                int frameLength = Byte.BYTES + Integer.BYTES * 2 + batch.size() * Integer.BYTES * 4;
+                byteBuf = channel.alloc().buffer(Integer.BYTES + frameLength);
+                byteBuf.writeInt(frameLength);
+                byteBuf.writeByte(FETCH_BLOCKS);
+                byteBuf.writeInt(batch.get(0).stream.getShuffleId());
+                byteBuf.writeInt(batch.size());
+                for (Request request : batch) {
+                    byteBuf.writeInt(request.requestId);
+                    byteBuf.writeInt(request.stream.getReduceId());
+                    byteBuf.writeInt(request.stream.getMapId());
+                    byteBuf.writeInt(request.stream.getCreditWindow());
+                }
+            }
+            channel.writeAndFlush(byteBuf).addListener(future -> {
+                if (!future.isSuccess()) {
+                    this.failed(future.cause());
+                }
+            });
+        }
+
+        /**
+         * 由task线程调用, 连接已经关闭时忽略, 等待中的block由channelInactive通知失败
+         */
+        private void addCredit(int requestId, int credit)
+        {
+            //frame = int(length) + byte(type) + int(requestId) + int(credit)
+            ByteBuf byteBuf = channel.alloc().buffer(Integer.BYTES * 3 + Byte.BYTES);
+            byteBuf.writeInt(Byte.BYTES + Integer.BYTES * 2);
+            byteBuf.writeByte(ADD_CREDIT);
+            byteBuf.writeInt(requestId);
+            byteBuf.writeInt(credit);
+            channel.writeAndFlush(byteBuf);
+        }
+
+        private Request getRequest(int requestId)
+        {
+            Request request = pending.get(requestId);
+            checkState(request != null, "not found shuffle request %s", requestId);
+            return request;
+        }
+
+        private void completed(int requestId)
+        {
+            synchronized (this) {
+                pending.remove(requestId);
+                inFlight--;
+            }
+            this.sendWaiting();
+        }
+
+        private void failed(Throwable cause)
+        {
+            List<ShuffleBlockStream> streams = new ArrayList<>();
+            synchronized (this) {
+                for (Request request : pending.values()) {
+                    streams.add(request.stream);
+                }
+                pending.clear();
+                waiting.clear();
+                inFlight = 0;
+            }
+            if (!streams.isEmpty()) {
+                logger.error("download shuffle data from {} failed", address, cause);
+            }
+            for (ShuffleBlockStream stream : streams) {
+                stream.failed(cause);
+            }
+            this.close();
+        }
+
+        private void close()
+        {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private static class Request
+    {
+        private final int requestId;
+        private final ShuffleBlockStream stream;
+        //收到block信息后由网络线程设置
+        private BlockCodec codec;
+        private long remaining;
+
+        private Request(int requestId, ShuffleBlockStream stream)
+        {
+            this.requestId = requestId;
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * 响应格式见{@link ShuffleManagerService#RESPONSE_META}, 同一个block的数据消息依次发送,
+     * 每个数据消息只包含完整的压缩块. 压缩块格式见{@link BlockCodecs}
+     */
+    private static class ShuffleResponseDecoder
+            extends ByteToMessageDecoder
+    {
+        private final ShuffleConnection connection;
+        private byte[] compressedBuffer = new byte[0];
+
+        private Request current;
+        private int chunkRemaining;
+
+        private ShuffleResponseDecoder(ShuffleConnection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+        {
+            while (true) {
+                if (current == null) {
+                    if (!in.isReadable()) {
+                        return;
+                    }
+                    byte type = in.getByte(in.readerIndex());
+                    if (type == RESPONSE_META) {
+                        if (in.readableBytes() < RESPONSE_META_SIZE) {
+                            return;
+                        }
+                        in.skipBytes(Byte.BYTES);
+                        this.decodeMeta(in);
+                    }
+                    else if (type == RESPONSE_DATA) {
+                        if (in.readableBytes() < RESPONSE_DATA_HEADER_SIZE) {
+                            return;
+                        }
+                        in.skipBytes(Byte.BYTES);
+                        Request request = connection.getRequest(in.readInt());
+                        this.chunkRemaining = in.readInt();
+                        checkState(chunkRemaining > 0 && chunkRemaining <= request.remaining, "%s data chunk out of range", request.stream);
+                        this.current = request;
+                    }
+                    else {
+                        throw new IllegalStateException("unknown shuffle response type " + type);
+                    }
+                }
+                else {
+                    int frameSize = this.decodeBlock(ctx, in);
+                    if (frameSize < 0) {
+                        return;
+                    }
+                    chunkRemaining -= frameSize;
+                    current.remaining -= frameSize;
+                    checkState(chunkRemaining >= 0, "%s block frame out of range", current.stream);
+                    if (chunkRemaining == 0) {
+                        Request request = current;
+                        this.current = null;
+                        if (request.remaining == 0) {
+                            connection.completed(request.requestId);
+                            request.stream.finish();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void decodeMeta(ByteBuf in)
+        {
+            int requestId = in.readInt();
+            long length = in.readLong();
+            long rowCount = in.readLong();
+            byte codecId = in.readByte();
+            Request request = connection.getRequest(requestId);
+            if (length < 0) {
+                connection.completed(requestId);
+                request.stream.failed(new IOException("shuffle service " + connection.address + " read " + request.stream + " failed"));
+                return;
+            }
+            logger.debug("downloading {} data bytes is {} rowCount {}", request.stream, length, rowCount);
+            request.codec = BlockCodecs.forId(codecId);
+            request.remaining = length;
+            if (length == 0) {
+                connection.completed(requestId);
+                request.stream.finish();
+            }
+        }
+
+        /**
+         * @return 读取的压缩块大小, 数据不完整时返回-1
+         */
+        private int decodeBlock(ChannelHandlerContext ctx, ByteBuf in)
+        {
+            if (in.readableBytes() < BlockCodecs.FRAME_HEADER_SIZE) {
+                return -1;
+            }
+            int compressedLength = in.getInt(in.readerIndex());
+            int length = in.getInt(in.readerIndex() + Integer.BYTES);
+            if (in.readableBytes() < BlockCodecs.FRAME_HEADER_SIZE + compressedLength) {
+                return -1;
+            }
+            in.skipBytes(BlockCodecs.FRAME_HEADER_SIZE);
+            ShuffleBlockStream stream = current.stream;
+            if (compressedLength == length) {
+                stream.push(in.readRetainedSlice(length));
+                return BlockCodecs.FRAME_HEADER_SIZE + compressedLength;
+            }
+            byte[] src;
+            int srcOffset;
+            if (in.hasArray()) {
+                src = in.array();
+                srcOffset = in.arrayOffset() + in.readerIndex();
+            }
+            else {
+                if (compressedBuffer.length < compressedLength) {
+                    compressedBuffer = new byte[compressedLength];
+                }
+                in.getBytes(in.readerIndex(), compressedBuffer, 0, compressedLength);
+                src = compressedBuffer;
+                srcOffset = 0;
+            }
+            ByteBuf output = ctx.alloc().heapBuffer(length, length);
+            try {
+                current.codec.decompress(src, srcOffset, compressedLength, output.array(), output.arrayOffset() + output.writerIndex(), length);
+                output.writerIndex(output.writerIndex() + length);
+            }
+            catch (RuntimeException e) {
+                output.release();
+                throw e;
+            }
+            in.skipBytes(compressedLength);
+            stream.push(output);
+            return BlockCodecs.FRAME_HEADER_SIZE + compressedLength;
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception
+        {
+            connection.failed(new IOException("shuffle service " + connection.address + " connection closed"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+        {
+            connection.failed(cause);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.operator.CalcOperator;
+import com.github.harbby.astarte.core.operator.KvOperator;
+import com.github.harbby.astarte.core.operator.MapPartitionOperator;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.operator.ShuffleJoinOperator;
+import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.astarte.core.utils.ReduceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 根据上游map输出统计的每个reduce分区大小检测数据倾斜. 某个shuffle输入的reduce分区大小
+ * 超过中位数的skewFactor倍并且超过skewThresholdBytes时认为该分区倾斜.
+ * <p>
+ * sort merge join的倾斜分区按map输出拆分成多个task, 每个task只读取倾斜一侧的部分map输出,
+ * 另一侧读取全部数据(复制到每个task). 聚合等依赖同一个key全部数据的算子拆分后结果会改变, 只打印日志
+ */
+public final class SkewedPartitionSplitter
+{
+    private static final Logger logger = LoggerFactory.getLogger(SkewedPartitionSplitter.class);
+
+    private SkewedPartitionSplitter() {}
+
+    /**
+     * @param dependStages shuffleMapOperatorId -> 上游stageId
+     * @param stageMapState 上游stageId -> mapId -> map输出的统计信息
+     * @param targetBytes 拆分后每个task读取倾斜一侧的目标数据量
+     * @return 拆分后的分区, 没有拆分时返回null
+     */
+    public static Partition[] split(Stage stage,
+            Map<Integer, Integer> dependStages,
+            Map<Integer, Map<Integer, MapTaskState>> stageMapState,
+            boolean splitEnable,
+            int skewFactor,
+            long skewThresholdBytes,
+            long targetBytes)
+    {
+        int numPartitions = stage.getNumPartitions();
+        if (dependStages == null || numPartitions <= 1) {
+            return null;
+        }
+        Map<Integer, boolean[]> skewedPartitions = new HashMap<>();
+        for (Map.Entry<Integer, Integer> entry : dependStages.entrySet()) {
+            Map<Integer, MapTaskState> mapStates = stageMapState.get(entry.getValue());
+            if (mapStates == null || mapStates.isEmpty()) {
+                continue;
+            }
+            boolean[] skewed = detectSkew(stage, entry.getKey(), mapStates, numPartitions, skewFactor, skewThresholdBytes);
+            if (skewed != null) {
+                skewedPartitions.put(entry.getKey(), skewed);
+            }
+        }
+        if (skewedPartitions.isEmpty() || !splitEnable) {
+            return null;
+        }
+        ShuffleJoinOperator<?, ?, ?> join = findSplittableJoin(stage.getFinalOperator(), stage.getFinalOperator());
+        if (join == null) {
+            logger.warn("stage {} has skewed reduce partitions, but only sort merge join stages can be split", stage.getStageId());
+            return null;
+        }
+        Map<Integer, Map<Integer, MapTaskState>> shuffleMapStates = new HashMap<>();
+        for (Map.Entry<Integer, Integer> entry : dependStages.entrySet()) {
+            shuffleMapStates.put(entry.getKey(), stageMapState.get(entry.getValue()));
+        }
+        Partition[] partitions = splitJoin(join.getJoinMode(), join.getLeftShuffleMapId(), join.getRightShuffleMapId(),
+                skewedPartitions, shuffleMapStates, numPartitions, targetBytes);
+        if (partitions == null) {
+            logger.warn("stage {} has skewed reduce partitions, but {} can not be split", stage.getStageId(), join.getJoinMode());
+            return null;
+        }
+        logger.info("stage {} split skewed reduce partitions, {} tasks -> {} tasks", stage.getStageId(), numPartitions, partitions.length);
+        return partitions;
+    }
+
+    /**
+     * @param skewedPartitions shuffleMapOperatorId -> 每个reduce分区是否倾斜
+     * @param shuffleMapStates shuffleMapOperatorId -> mapId -> map输出的统计信息
+     * @return 拆分后的分区, 没有可以拆分的分区时返回null
+     */
+    static Partition[] splitJoin(ReduceUtil.JoinMode joinMode,
+            int leftShuffleMapId,
+            int rightShuffleMapId,
+            Map<Integer, boolean[]> skewedPartitions,
+            Map<Integer, Map<Integer, MapTaskState>> shuffleMapStates,
+            int numPartitions,
+            long targetBytes)
+    {
+        //外连接时保留全部数据的一侧不能拆分, 否则没有匹配的key会在每个拆分的task中重复输出
+        boolean[] leftSkewed = null;
+        boolean[] rightSkewed = null;
+        switch (joinMode) {
+            case INNER_JOIN:
+                leftSkewed = skewedPartitions.get(leftShuffleMapId);
+                rightSkewed = skewedPartitions.get(rightShuffleMapId);
+                break;
+            case LEFT_JOIN:
+                leftSkewed = skewedPartitions.get(leftShuffleMapId);
+                break;
+            case RIGHT_JOIN:
+                rightSkewed = skewedPartitions.get(rightShuffleMapId);
+                break;
+            default:
+                break;
+        }
+        if (leftSkewed == null && rightSkewed == null) {
+            return null;
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+        for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+            List<int[]> leftRanges = leftSkewed != null && leftSkewed[reduceId] ?
+                    splitMapRanges(shuffleMapStates.get(leftShuffleMapId), reduceId, targetBytes) :
+                    Collections.singletonList(null);
+            List<int[]> rightRanges = rightSkewed != null && rightSkewed[reduceId] ?
+                    splitMapRanges(shuffleMapStates.get(rightShuffleMapId), reduceId, targetBytes) :
+                    Collections.singletonList(null);
+            if (leftRanges.size() == 1 && rightRanges.size() == 1) {
+                partitions.add(new CoalescedPartition(partitions.size(), reduceId, reduceId + 1));
+                continue;
+            }
+            //两侧都倾斜时每个拆分的组合各一个task
+            for (int[] leftRange : leftRanges) {
+                for (int[] rightRange : rightRanges) {
+                    Map<Integer, int[]> mapRanges = new HashMap<>();
+                    if (leftRange != null) {
+                        mapRanges.put(leftShuffleMapId, leftRange);
+                    }
+                    if (rightRange != null) {
+                        mapRanges.put(rightShuffleMapId, rightRange);
+                    }
+                    partitions.add(new SkewedPartition(partitions.size(), reduceId, mapRanges));
+                }
+            }
+        }
+        if (partitions.size() == numPartitions) {
+            return null;
+        }
+        return partitions.toArray(new Partition[0]);
+    }
+
+    /**
+     * @return 每个reduce分区是否倾斜, 没有倾斜分区或者统计信息不完整时返回null
+     */
+    private static boolean[] detectSkew(Stage stage, int shuffleMapId, Map<Integer, MapTaskState> mapStates, int numPartitions,
+            int skewFactor, long skewThresholdBytes)
+    {
+        long[] reduceSizes = new long[numPartitions];
+        long[] reduceRows = new long[numPartitions];
+        for (MapTaskState mapState : mapStates.values()) {
+            if (mapState.getSegmentEnds().length != numPartitions) {
+                return null;
+            }
+            for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+                reduceSizes[reduceId] += mapState.getSegmentLength(reduceId);
+                reduceRows[reduceId] += mapState.getSegmentRowCounts()[reduceId];
+            }
+        }
+        boolean[] skewed = detectSkew(reduceSizes, skewFactor, skewThresholdBytes);
+        if (skewed != null) {
+            long median = median(reduceSizes);
+            for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+                if (skewed[reduceId]) {
+                    logger.warn("stage {} detected skewed reduce partition {} of shuffle input {}: {} bytes, {} rows, median partition size {} bytes",
+                            stage.getStageId(), reduceId, shuffleMapId, reduceSizes[reduceId], reduceRows[reduceId], median);
+                }
+            }
+        }
+        return skewed;
+    }
+
+    /**
+     * 分区大小超过中位数的skewFactor倍并且超过skewThresholdBytes时认为倾斜
+     *
+     * @return 每个reduce分区是否倾斜, 没有倾斜分区时返回null
+     */
+    static boolean[] detectSkew(long[] reduceSizes, int skewFactor, long skewThresholdBytes)
+    {
+        long median = median(reduceSizes);
+        boolean[] skewed = new boolean[reduceSizes.length];
+        boolean found = false;
+        for (int reduceId = 0; reduceId < reduceSizes.length; reduceId++) {
+            if (reduceSizes[reduceId] > skewThresholdBytes && reduceSizes[reduceId] > median * skewFactor) {
+                skewed[reduceId] = true;
+                found = true;
+            }
+        }
+        return found ? skewed : null;
+    }
+
+    private static long median(long[] reduceSizes)
+    {
+        long[] sorted = reduceSizes.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * 按mapId顺序把map输出分成多段, 每段不超过targetBytes
+     *
+     * @return 每段的[startMapId, endMapId)
+     */
+    static List<int[]> splitMapRanges(Map<Integer, MapTaskState> mapStates, int reduceId, long targetBytes)
+    {
+        int[] mapIds = mapStates.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        long[] mapSizes = new long[mapIds.length];
+        for (int i = 0; i < mapIds.length; i++) {
+            mapSizes[i] = mapStates.get(mapIds[i]).getSegmentLength(reduceId);
+        }
+        List<int[]> ranges = new ArrayList<>();
+        for (Partition group : PartitionCoalescer.coalesce(mapSizes, targetBytes)) {
+            int start = CoalescedPartition.startReduceId(group);
+            int end = CoalescedPartition.endReduceId(group);
+            ranges.add(new int[] {mapIds[start], mapIds[end - 1] + 1});
+        }
+        return ranges;
+    }
+
+    /**
+     * 从stage的最后一个算子向上查找, 中间只允许不依赖分区数据完整性的算子
+     */
+    private static ShuffleJoinOperator<?, ?, ?> findSplittableJoin(Operator<?> stageFinalOperator, Operator<?> operator)
+    {
+        if (operator.isMarkedCache()) {
+            return null;
+        }
+        if (operator instanceof ShuffleJoinOperator) {
+            return (ShuffleJoinOperator<?, ?, ?>) operator;
+        }
+        boolean passThrough = (operator instanceof ShuffleMapOperator && operator == stageFinalOperator)
+                || operator instanceof CalcOperator
+                || operator instanceof KvOperator
+                || (operator instanceof MapPartitionOperator && !((MapPartitionOperator<?, ?>) operator).isDependPartitionId());
+        if (!passThrough || operator.getDependencies().size() != 1) {
+            return null;
+        }
+        return findSplittableJoin(stageFinalOperator, operator.getDependencies().get(0));
+    }
+}
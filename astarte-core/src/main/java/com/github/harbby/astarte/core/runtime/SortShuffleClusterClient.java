@@ -18,209 +18,157 @@ package com.github.harbby.astarte.core.runtime;
 import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import com.github.harbby.astarte.core.utils.LoserTreeMerger;
 import com.github.harbby.gadtry.base.Iterators;
 import com.github.harbby.gadtry.base.Throwables;
-import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.compression.Lz4FrameDecoder;
-import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.stream.Collectors;
 
-import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static com.github.harbby.astarte.core.operator.SortShuffleWriter.MERGE_FILE_NAME;
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static java.util.Objects.requireNonNull;
 
+/**
+ * task级别的shuffle读取, 网络连接由executor共享的{@link ShuffleTransport}管理
+ */
 public class SortShuffleClusterClient
         implements ShuffleClient
 {
-    static final ByteBuf STOP_DOWNLOAD = Unpooled.EMPTY_BUFFER;
     private static final Logger logger = LoggerFactory.getLogger(SortShuffleClusterClient.class);
+    private final ShuffleTransport shuffleTransport;
     private final Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks;
-    List<NioEventLoopGroup> eventLoopGroups = new ArrayList<>();
+    private final String localHostName;
+    private final MappedShuffleFileReader fileReader = new MappedShuffleFileReader();
+    private final List<ShuffleBlockStream> streams = new ArrayList<>();
+    private FetchScheduler scheduler;
+    private int localReadBlocks;
 
-    public SortShuffleClusterClient(Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks)
+    public SortShuffleClusterClient(ShuffleTransport shuffleTransport, Map<Integer, Map<Integer, InetSocketAddress>> dependMapTasks, String localHostName)
     {
+        this.shuffleTransport = requireNonNull(shuffleTransport, "shuffleTransport is null");
         this.dependMapTasks = dependMapTasks;
+        this.localHostName = requireNonNull(localHostName, "localHostName is null");
     }
 
     @Override
-    public <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, Encoder<Tuple2<K, V>> encoder, int shuffleId, int reduceId)
+    public <K, V> Iterator<Tuple2<K, V>> createShuffleReader(Comparator<K> comparator, OrderedEncoder<K> orderedKeyEncoder,
+            Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            ShuffleFetchOptions fetchOptions)
             throws IOException
     {
-        Map<Integer, InetSocketAddress> mapTaskIds = dependMapTasks.get(shuffleId);
-        List<ShuffleClientHandler<K, V>> handlers = new ArrayList<>();
-        NioEventLoopGroup workerGroup = new NioEventLoopGroup(mapTaskIds.size(), r -> {
-            Thread thread = new Thread(r);
-            thread.setName(String.format("shuffle_client_stageId:%s_reduceId:%s", shuffleId, reduceId));
-            thread.setDaemon(true);
-            return thread;
-        });
-        eventLoopGroups.add(workerGroup);
-        for (Map.Entry<Integer, InetSocketAddress> entry : mapTaskIds.entrySet()) {
-            ShuffleClientHandler<K, V> shuffleClientHandler = new ShuffleClientHandler<>(encoder, shuffleId, reduceId, entry.getKey());
-            Bootstrap bootstrap = new Bootstrap();
-            bootstrap.group(workerGroup)
-                    .channel(NioSocketChannel.class)
-                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
-                    .option(ChannelOption.SO_KEEPALIVE, true)
-                    .option(ChannelOption.TCP_NODELAY, true)
-                    .handler(new ChannelInitializer<SocketChannel>()
-                    {
-                        @Override
-                        protected void initChannel(SocketChannel ch)
-                        {
-                            Lz4FrameDecoder lz4FrameDecoder = new Lz4FrameDecoder();
-                            ch.pipeline()
-                                    .addLast(new HeaderEventHandler(shuffleClientHandler))
-                                    .addLast(lz4FrameDecoder)
-                                    .addLast(shuffleClientHandler);
-                        }
-                    });
-            ChannelFuture future = bootstrap.connect(entry.getValue());
-            handlers.add(shuffleClientHandler);
+        List<List<Iterator<Tuple2<K, V>>>> readers = createMapOutputReaders(encoder, shuffleId, startReduceId, endReduceId, startMapId, endMapId, fetchOptions);
+        if (readers.size() == 1) {
+            return LoserTreeMerger.mergeSorted(comparator, orderedKeyEncoder, readers.get(0));
         }
-        return Iterators.mergeSorted((x, y) -> comparator.compare(x.key(), y.key()),
-                handlers.stream().map(ShuffleClientHandler::getReader).collect(Collectors.toList()));
+        //归并会立即读取每个输入的第一条记录, 读到该reduce分区时才创建, 避免提前等待所有block
+        return Iterators.flatMap(readers.iterator(), reduceReaders -> LoserTreeMerger.mergeSorted(comparator, orderedKeyEncoder, reduceReaders));
     }
 
     @Override
-    public void close()
+    public <K, V> Iterator<Tuple2<K, V>> createUnorderedShuffleReader(Encoder<Tuple2<K, V>> encoder, int shuffleId, int startReduceId, int endReduceId,
+            ShuffleFetchOptions fetchOptions)
             throws IOException
     {
-        for (NioEventLoopGroup group : eventLoopGroups) {
-            group.shutdownGracefully();
-        }
+        List<List<Iterator<Tuple2<K, V>>>> readers = createMapOutputReaders(encoder, shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE, fetchOptions);
+        return Iterators.flatMap(Iterators.flatMap(readers.iterator(), List::iterator), iterator -> iterator);
     }
 
-    private static class HeaderEventHandler
-            extends ChannelInboundHandlerAdapter
+    /**
+     * 只注册下载请求, 由{@link FetchScheduler}按限流参数和读取端的等待情况发送.
+     * 同一个executor上的连续多个reduce分区会合并成批量请求, 本机上的map输出直接mmap读取
+     *
+     * @return 每个reduce分区的各个map输出
+     */
+    private <K, V> List<List<Iterator<Tuple2<K, V>>>> createMapOutputReaders(Encoder<Tuple2<K, V>> encoder, int shuffleId,
+            int startReduceId, int endReduceId, int startMapId, int endMapId, ShuffleFetchOptions fetchOptions)
+            throws IOException
     {
-        private final ShuffleClientHandler<?, ?> shuffleClientHandler;
-        private Long awaitDownLoadSize;
-
-        private HeaderEventHandler(ShuffleClientHandler<?, ?> shuffleClientHandler)
-        {
-            this.shuffleClientHandler = shuffleClientHandler;
+        checkArgument(startReduceId >= 0 && startReduceId < endReduceId, "invalid reduce range [%s, %s)", startReduceId, endReduceId);
+        if (scheduler == null) {
+            //同一个task内的多个reader(如join的两侧)共享限流额度
+            this.scheduler = new FetchScheduler(shuffleTransport, requireNonNull(fetchOptions, "fetchOptions is null"));
         }
-
-        @Override
-        public void channelRead(ChannelHandlerContext ctx, Object msg)
-                throws Exception
-        {
-            ByteBuf in1 = (ByteBuf) msg;
-            //read header
-            if (awaitDownLoadSize == null) {
-                this.awaitDownLoadSize = in1.readLong();
-                long rowCount = in1.readLong();
-                logger.debug("downloading shuffleId[{}] MapId[{}] reduce[{}] data bytes is {} rowCount {}", shuffleClientHandler.shuffleId, shuffleClientHandler.mapId, shuffleClientHandler.reduceId, this.awaitDownLoadSize, rowCount);
-                if (this.awaitDownLoadSize == 0) {
-                    ReferenceCountUtil.release(in1);
-                    ctx.fireChannelReadComplete();
-                    shuffleClientHandler.finish();
-                    return;
+        Map<Integer, InetSocketAddress> mapTaskIds = dependMapTasks.get(shuffleId);
+        List<List<Iterator<Tuple2<K, V>>>> readers = new ArrayList<>(endReduceId - startReduceId);
+        for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+            List<Iterator<Tuple2<K, V>>> reduceReaders = new ArrayList<>(mapTaskIds.size());
+            for (Map.Entry<Integer, InetSocketAddress> entry : mapTaskIds.entrySet()) {
+                if (entry.getKey() < startMapId || entry.getKey() >= endMapId) {
+                    continue;
                 }
+                File localFile = getLocalShuffleFile(entry.getValue(), shuffleId, entry.getKey());
+                if (localFile != null) {
+                    localReadBlocks++;
+                    Iterator<Tuple2<K, V>> iterator = fileReader.open(localFile, reduceId, reduceId + 1, encoder);
+                    if (iterator != null) {
+                        reduceReaders.add(iterator);
+                    }
+                    continue;
+                }
+                ShuffleBlockStream stream = new ShuffleBlockStream(shuffleId, reduceId, entry.getKey(), scheduler);
+                streams.add(stream);
+                reduceReaders.add(new BlockStreamIterator<>(encoder, stream));
+                scheduler.register(entry.getValue(), stream);
             }
-            int readableBytes = in1.readableBytes();
-            if (readableBytes == 0) {
-                ReferenceCountUtil.release(in1);
-                return;
-            }
-            awaitDownLoadSize -= readableBytes;
-            ctx.fireChannelRead(in1);
-            if (awaitDownLoadSize <= 0) {
-                checkState(awaitDownLoadSize == 0);
-                ctx.fireChannelReadComplete();
-                shuffleClientHandler.finish();
-            }
+            readers.add(reduceReaders);
         }
+        scheduler.schedule();
+        return readers;
+    }
 
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
-                throws Exception
-        {
-            shuffleClientHandler.exceptionCaught(ctx, cause);
+    /**
+     * @return map输出不在本机或者无法直接访问时返回null, 通过shuffle服务下载
+     */
+    private File getLocalShuffleFile(InetSocketAddress address, int shuffleId, int mapId)
+    {
+        if (!localHostName.equals(address.getHostName())) {
+            return null;
         }
+        File shuffleFile = new File(ShuffleManagerService.getShuffleBaseDir(address.getPort()), String.format(MERGE_FILE_NAME, shuffleId, mapId));
+        return shuffleFile.isFile() ? shuffleFile : null;
     }
 
-    private static class ByteBufIteratorReader<K, V>
-            extends InputStream
-            implements Iterator<Tuple2<K, V>>
+    @Override
+    public void close()
+            throws IOException
     {
-        private final Encoder<Tuple2<K, V>> encoder;
-        private final BlockingQueue<ByteBuf> buffer = new LinkedBlockingQueue<>(10);
-        private final DataInputStream dataInputStream = new DataInputStream(this);
-        private ByteBuf byteBuf;
-        private volatile Throwable cause;
-        private boolean done = false;
-
-        private void push(ByteBuf byteBuf)
-                throws InterruptedException
-        {
-            buffer.put(byteBuf);
+        for (ShuffleBlockStream stream : streams) {
+            stream.close();
         }
-
-        public void downloadFailed(Throwable e)
-                throws InterruptedException
-        {
-            this.cause = e;
-            buffer.clear();
-            buffer.put(STOP_DOWNLOAD);
+        if (scheduler != null) {
+            scheduler.close();
+            logger.info("shuffle fetch of reduce task {} finished, fetched {} bytes from {} blocks, read {} local blocks, fetch wait time {}ms ({} times)",
+                    streams.isEmpty() ? -1 : streams.get(0).getReduceId(), scheduler.getFetchedBytes(), streams.size(), localReadBlocks,
+                    scheduler.getFetchWaitTimeMs(), scheduler.getFetchWaitCount());
         }
+    }
 
-        private ByteBufIteratorReader(Encoder<Tuple2<K, V>> encoder)
+    private static class BlockStreamIterator<K, V>
+            implements Iterator<Tuple2<K, V>>
+    {
+        private final Encoder<Tuple2<K, V>> encoder;
+        private final ShuffleBlockStream stream;
+
+        private BlockStreamIterator(Encoder<Tuple2<K, V>> encoder, ShuffleBlockStream stream)
         {
             this.encoder = encoder;
+            this.stream = stream;
         }
 
         @Override
         public boolean hasNext()
         {
-            if (done) {
-                return false;
-            }
-            try {
-                if (byteBuf == null) {
-                    byteBuf = buffer.take();
-                }
-                else if (byteBuf.readableBytes() == 0) {
-                    ReferenceCountUtil.release(byteBuf);
-                    byteBuf = buffer.take();
-                }
-                if (byteBuf == STOP_DOWNLOAD) {
-                    done = true;
-                    if (cause != null) {
-                        throw Throwables.throwsThrowable(cause);
-                    }
-                    return false;
-                }
-            }
-            catch (InterruptedException e) {
-                logger.warn("whether the task is being killed?");
-                done = true;
-                throw Throwables.throwsThrowable(e);
-            }
-            return true;
+            return stream.hasRemaining();
         }
 
         @Override
@@ -230,94 +178,11 @@ public class SortShuffleClusterClient
                 throw new NoSuchElementException();
             }
             try {
-                return encoder.decoder(dataInputStream);
+                return encoder.decoder(stream);
             }
             catch (IOException e) {
                 throw Throwables.throwsThrowable(e);
             }
         }
-
-        @Override
-        public int read()
-        {
-            if (byteBuf.readableBytes() == 0) {
-                ReferenceCountUtil.release(byteBuf);
-                try {
-                    byteBuf = buffer.take();
-                }
-                catch (InterruptedException e) {
-                    logger.warn("whether the task is being killed?");
-                    throw Throwables.throwsThrowable(e);
-                }
-            }
-            checkState(byteBuf != STOP_DOWNLOAD);
-            return byteBuf.readByte() & 0xFF;
-        }
-    }
-
-    private class ShuffleClientHandler<K, V>
-            extends ChannelInboundHandlerAdapter
-    {
-        private final int mapId;
-        private final int shuffleId;
-        private final int reduceId;
-        private final ByteBufIteratorReader<K, V> reader;
-
-        private ChannelHandlerContext ctx;
-
-        private ShuffleClientHandler(Encoder<Tuple2<K, V>> encoder, int shuffleId, int reduceId, int mapId)
-        {
-            this.mapId = mapId;
-            this.shuffleId = shuffleId;
-            this.reduceId = reduceId;
-            this.reader = new ByteBufIteratorReader<>(encoder);
-        }
-
-        public ByteBufIteratorReader<K, V> getReader()
-        {
-            return reader;
-        }
-
-        @Override
-        public void channelActive(ChannelHandlerContext ctx)
-                throws Exception
-        {
-            this.ctx = ctx;
-            //begin
-            ByteBuf byteBuf = ctx.alloc().buffer(Integer.BYTES * 3, Integer.BYTES * 3);
-            byteBuf.writeInt(shuffleId);
-            byteBuf.writeInt(reduceId);
-            byteBuf.writeInt(mapId);
-            ctx.writeAndFlush(byteBuf);
-        }
-
-        public void finish()
-                throws InterruptedException
-        {
-            reader.push(STOP_DOWNLOAD);
-            ctx.close();
-        }
-
-        @Override
-        public void channelRead(ChannelHandlerContext ctx, Object msg)
-                throws Exception
-        {
-            ByteBuf in1 = (ByteBuf) msg;
-            if (in1.readableBytes() > 0) {
-                reader.push(in1);
-            }
-            else {
-                ReferenceCountUtil.release(in1);
-            }
-        }
-
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
-                throws Exception
-        {
-            logger.error("download shuffle data failed", cause);
-            ctx.close();
-            reader.downloadFailed(cause);
-        }
     }
 }
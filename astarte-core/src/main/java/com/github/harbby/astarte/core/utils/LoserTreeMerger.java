@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.gadtry.base.Iterators;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 按key多路归并已经有序的输入, 用于溢写文件合并和reduce端读取.
+ * 使用败者树(tournament tree), 每输出一条记录只需要沿叶子到根比较log2(k)次,
+ * 每路输入的当前key和可选的long前缀缓存在数组中, 前缀不同时不调用comparator
+ */
+public final class LoserTreeMerger<K, V>
+        implements Iterator<Tuple2<K, V>>
+{
+    private final Comparator<K> comparator;
+    private final PrefixComputer<K> prefixComputer;
+    private final boolean prefixExact;
+    private final Iterator<? extends Tuple2<K, V>>[] inputs;
+    private final int k;
+    //tree[0]为胜者, tree[1..k-1]为各个内部节点记录的败者, 叶子节点i的位置为k + i
+    private final int[] tree;
+    private final Object[] heads;
+    private final long[] prefixes;
+    private final boolean[] exhausted;
+
+    /**
+     * 计算key的排序前缀, 前缀按无符号long比较.
+     * 要求: prefix(a) < prefix(b) 时 a < b, 前缀相等时再使用comparator比较
+     */
+    @FunctionalInterface
+    public interface PrefixComputer<K>
+    {
+        long computePrefix(K key);
+
+        /**
+         * 前缀相等是否意味着key相等, 此时不再调用comparator
+         */
+        default boolean isPrefixExact()
+        {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private LoserTreeMerger(Comparator<K> comparator, PrefixComputer<K> prefixComputer, List<? extends Iterator<? extends Tuple2<K, V>>> inputs)
+    {
+        this.comparator = comparator;
+        this.prefixComputer = prefixComputer;
+        this.prefixExact = prefixComputer != null && prefixComputer.isPrefixExact();
+        this.inputs = inputs.toArray(new Iterator[0]);
+        this.k = this.inputs.length;
+        this.tree = new int[k];
+        this.heads = new Object[k];
+        this.prefixes = new long[k];
+        this.exhausted = new boolean[k];
+        for (int i = 0; i < k; i++) {
+            this.advance(i);
+        }
+        tree[0] = this.build(1);
+    }
+
+    public static <K, V> Iterator<Tuple2<K, V>> mergeSorted(Comparator<K> comparator, List<? extends Iterator<? extends Tuple2<K, V>>> inputs)
+    {
+        return mergeSorted(comparator, null, inputs);
+    }
+
+    /**
+     * @param prefixComputer 可以为null, 表示不使用前缀
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> Iterator<Tuple2<K, V>> mergeSorted(Comparator<K> comparator, PrefixComputer<K> prefixComputer,
+            List<? extends Iterator<? extends Tuple2<K, V>>> inputs)
+    {
+        requireNonNull(comparator, "comparator is null");
+        requireNonNull(inputs, "inputs is null");
+        if (inputs.isEmpty()) {
+            return Iterators.empty();
+        }
+        if (inputs.size() == 1) {
+            return (Iterator<Tuple2<K, V>>) inputs.get(0);
+        }
+        return new LoserTreeMerger<>(comparator, prefixComputer, inputs);
+    }
+
+    /**
+     * 自底向上建树, 内部节点记录败者, 返回该子树的胜者
+     */
+    private int build(int node)
+    {
+        if (node >= k) {
+            return node - k;
+        }
+        int left = this.build(2 * node);
+        int right = this.build(2 * node + 1);
+        if (this.less(left, right)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    private void advance(int i)
+    {
+        Iterator<? extends Tuple2<K, V>> input = inputs[i];
+        if (input.hasNext()) {
+            Tuple2<K, V> head = input.next();
+            heads[i] = head;
+            if (prefixComputer != null) {
+                prefixes[i] = prefixComputer.computePrefix(head.key());
+            }
+        }
+        else {
+            heads[i] = null;
+            exhausted[i] = true;
+            inputs[i] = null;
+        }
+    }
+
+    /**
+     * 已经读完的输入视为无穷大, key相等时按输入顺序比较, 保证归并结果稳定
+     */
+    @SuppressWarnings("unchecked")
+    private boolean less(int a, int b)
+    {
+        if (exhausted[a]) {
+            return false;
+        }
+        if (exhausted[b]) {
+            return true;
+        }
+        if (prefixComputer != null) {
+            int rs = Long.compareUnsigned(prefixes[a], prefixes[b]);
+            if (rs != 0 || prefixExact) {
+                return rs < 0 || (rs == 0 && a < b);
+            }
+        }
+        int rs = comparator.compare(((Tuple2<K, V>) heads[a]).key(), ((Tuple2<K, V>) heads[b]).key());
+        return rs < 0 || (rs == 0 && a < b);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return !exhausted[tree[0]];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Tuple2<K, V> next()
+    {
+        int winner = tree[0];
+        if (exhausted[winner]) {
+            throw new NoSuchElementException();
+        }
+        Tuple2<K, V> value = (Tuple2<K, V>) heads[winner];
+        this.advance(winner);
+        //从叶子到根重新比赛, 每一层只和该节点记录的败者比较
+        for (int node = (winner + k) >> 1; node > 0; node >>= 1) {
+            int loser = tree[node];
+            if (this.less(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+        return value;
+    }
+}
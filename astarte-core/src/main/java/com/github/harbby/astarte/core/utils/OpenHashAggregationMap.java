@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.api.function.Reducer;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * map端combine使用的开放寻址hash表, key和value交替存放在同一个Object[]中,
+ * 插入时直接与已有value合并, 避免每条记录都进入排序缓冲区
+ */
+public class OpenHashAggregationMap<K, V>
+{
+    private static final int INITIAL_CAPACITY = 64;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final int MAXIMUM_CAPACITY = 1 << 29;
+
+    private final Reducer<V> reducer;
+    private Object[] data;
+    private int capacity;
+    private int mask;
+    private int growThreshold;
+    private int size;
+
+    private boolean haveNullKey;
+    private V nullValue;
+
+    public OpenHashAggregationMap(Reducer<V> reducer)
+    {
+        this.reducer = requireNonNull(reducer, "reducer is null");
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity)
+    {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.growThreshold = (int) (capacity * LOAD_FACTOR);
+        this.data = new Object[2 * capacity];
+    }
+
+    /**
+     * 插入或合并一条记录
+     *
+     * @return key是否是第一次出现
+     */
+    @SuppressWarnings("unchecked")
+    public boolean update(K key, V value)
+    {
+        if (key == null) {
+            if (haveNullKey) {
+                nullValue = reducer.reduce(nullValue, value);
+                return false;
+            }
+            haveNullKey = true;
+            nullValue = value;
+            size++;
+            return true;
+        }
+        int pos = rehash(key.hashCode()) & mask;
+        int delta = 1;
+        while (true) {
+            Object current = data[2 * pos];
+            if (current == null) {
+                data[2 * pos] = key;
+                data[2 * pos + 1] = value;
+                size++;
+                if (size > growThreshold) {
+                    this.growTable();
+                }
+                return true;
+            }
+            else if (current == key || current.equals(key)) {
+                data[2 * pos + 1] = reducer.reduce((V) data[2 * pos + 1], value);
+                return false;
+            }
+            pos = (pos + delta) & mask;
+            delta++;
+        }
+    }
+
+    private void growTable()
+    {
+        checkState(capacity < MAXIMUM_CAPACITY, "Can't contain more than %s elements", growThreshold);
+        Object[] oldData = data;
+        this.allocate(capacity * 2);
+        for (int i = 0; i < oldData.length; i += 2) {
+            Object key = oldData[i];
+            if (key == null) {
+                continue;
+            }
+            int pos = rehash(key.hashCode()) & mask;
+            int delta = 1;
+            while (data[2 * pos] != null) {
+                pos = (pos + delta) & mask;
+                delta++;
+            }
+            data[2 * pos] = key;
+            data[2 * pos + 1] = oldData[i + 1];
+        }
+    }
+
+    private static int rehash(int h)
+    {
+        // murmur3 fmix32
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * hash表数组本身占用的字节数(按压缩指针估算), 不包含key和value对象
+     */
+    public long getTableMemoryUsage()
+    {
+        return (long) data.length * 4;
+    }
+
+    public Iterator<Tuple2<K, V>> iterator()
+    {
+        return new Iterator<Tuple2<K, V>>()
+        {
+            private int pos = haveNullKey ? -1 : 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (pos >= 0 && pos < capacity && data[2 * pos] == null) {
+                    pos++;
+                }
+                return pos < capacity;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Tuple2<K, V> next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple2<K, V> kv;
+                if (pos == -1) {
+                    kv = Tuple2.of(null, nullValue);
+                }
+                else {
+                    kv = Tuple2.of((K) data[2 * pos], (V) data[2 * pos + 1]);
+                }
+                pos++;
+                return kv;
+            }
+        };
+    }
+
+    public void clear()
+    {
+        this.allocate(INITIAL_CAPACITY);
+        this.size = 0;
+        this.haveNullKey = false;
+        this.nullValue = null;
+    }
+}
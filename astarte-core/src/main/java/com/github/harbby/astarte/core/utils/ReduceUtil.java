@@ -20,6 +20,7 @@ import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.api.function.Mapper;
 import com.github.harbby.astarte.core.operator.CalcOperator;
 import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.ImmutableList;
 import com.github.harbby.gadtry.collection.IteratorPlus;
 import com.github.harbby.gadtry.collection.iterator.MarkIterator;
@@ -28,6 +29,7 @@ import com.github.harbby.gadtry.collection.tuple.Tuple1;
 import com.github.harbby.gadtry.function.Function2;
 import com.github.harbby.gadtry.function.Reducer;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -147,10 +149,23 @@ public class ReduceUtil
             Comparator<K> comparator,
             Iterator<Tuple2<K, V1>> leftStream,
             Iterator<Tuple2<K, V2>> rightStream)
+    {
+        return mergeJoin(joinMode, comparator, leftStream, rightStream, SpillableRowBuffer.inMemory());
+    }
+
+    /**
+     * @param leftBuffer 缓存左侧同一个key的行, 热点key的行数超过阈值时溢写到磁盘
+     */
+    public static <K, V1, V2> Iterator<Tuple2<K, Tuple2<V1, V2>>> mergeJoin(
+            JoinMode joinMode,
+            Comparator<K> comparator,
+            Iterator<Tuple2<K, V1>> leftStream,
+            Iterator<Tuple2<K, V2>> rightStream,
+            SpillableRowBuffer<Tuple2<K, V1>> leftBuffer)
     {
         switch (joinMode) {
             case INNER_JOIN: {
-                return ReduceUtil.mergeJoin(comparator, leftStream, rightStream);
+                return ReduceUtil.mergeJoin(comparator, leftStream, rightStream, leftBuffer);
             }
             default:
                 return join(joinMode, leftStream, rightStream);
@@ -161,7 +176,14 @@ public class ReduceUtil
     public static <K, V1, V2> Iterator<Tuple2<K, Tuple2<V1, V2>>> sameJoin(
             Iterator<? extends Tuple2<K, ?>> iterator)
     {
-        return sameJoin(iterator,
+        return sameJoin(iterator, SpillableRowBuffer.inMemory());
+    }
+
+    public static <K, V1, V2> Iterator<Tuple2<K, Tuple2<V1, V2>>> sameJoin(
+            Iterator<? extends Tuple2<K, ?>> iterator,
+            SpillableRowBuffer<Tuple2<K, ?>> sameKeyRows)
+    {
+        return sameJoin(iterator, sameKeyRows,
                 (Mapper<Iterator<Tuple2<K, ?>>, Iterator<Tuple2<K, V1>>>) it -> {
                     return CalcOperator.doCodeGen(it, Collections.emptyList());
                 },
@@ -212,13 +234,27 @@ public class ReduceUtil
             Mapper<Iterator<Tuple2<K, ?>>, Iterator<Tuple2<K, V1>>> leftMapOperator,
             Mapper<Iterator<Tuple2<K, ?>>, Iterator<Tuple2<K, V2>>> rightMapOperator)
     {
+        return sameJoin(iterator, SpillableRowBuffer.inMemory(), leftMapOperator, rightMapOperator);
+    }
+
+    /**
+     * @param sameKeyRows 缓存同一个key的行, 热点key的行数超过阈值时溢写到磁盘
+     */
+    public static <K, V1, V2> Iterator<Tuple2<K, Tuple2<V1, V2>>> sameJoin(
+            Iterator<? extends Tuple2<K, ?>> iterator,
+            SpillableRowBuffer<Tuple2<K, ?>> sameKeyRows,
+            Mapper<Iterator<Tuple2<K, ?>>, Iterator<Tuple2<K, V1>>> leftMapOperator,
+            Mapper<Iterator<Tuple2<K, ?>>, Iterator<Tuple2<K, V2>>> rightMapOperator)
+    {
+        requireNonNull(sameKeyRows, "sameKeyRows is null");
         return new Iterator<Tuple2<K, Tuple2<V1, V2>>>()
         {
-            private final List<Tuple2<K, ?>> sameKeyRows = new ArrayList<>();
             private Iterator<Tuple2<K, Tuple2<V1, V2>>> child = Iterators.empty();
-            private final MarkIterator<Tuple2<K, ?>> leftIterator = wrap(sameKeyRows);
-            private final MarkIterator<Tuple2<K, ?>> rightIterator = wrap(sameKeyRows);
+            private MarkIterator<Tuple2<K, ?>> leftIterator;
+            private MarkIterator<Tuple2<K, ?>> rightIterator;
+            private K sameKey;
             private Tuple2<K, ?> next;
+            private boolean finished;
 
             @Override
             public boolean hasNext()
@@ -226,15 +262,21 @@ public class ReduceUtil
                 if (child.hasNext()) {
                     return true;
                 }
+                if (finished) {
+                    this.closeRows();
+                    return false;
+                }
                 if (next != null) {
-                    sameKeyRows.clear();
+                    this.clearRows();
                     sameKeyRows.add(next);
-                    leftIterator.reset();
-                    rightIterator.reset();
+                    sameKey = next.key();
                 }
                 while (iterator.hasNext()) {
                     Tuple2<K, ?> row = iterator.next();
-                    if (sameKeyRows.isEmpty() || Objects.equals(row.key(), sameKeyRows.get(0).key())) {
+                    if (sameKeyRows.isEmpty() || Objects.equals(row.key(), sameKey)) {
+                        if (sameKeyRows.isEmpty()) {
+                            sameKey = row.key();
+                        }
                         sameKeyRows.add(row);
                         continue;
                     }
@@ -244,17 +286,39 @@ public class ReduceUtil
                         return true;
                     }
                 }
+                //last key
+                this.next = null;
+                this.finished = true;
                 if (!sameKeyRows.isEmpty()) {
-                    //next key
-                    this.next = null;
                     this.child = propreChild();
-                    return child.hasNext();
                 }
-                return false;
+                return this.hasNext();
+            }
+
+            private void clearRows()
+            {
+                try {
+                    sameKeyRows.clear();
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+
+            private void closeRows()
+            {
+                try {
+                    sameKeyRows.close();
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
             }
 
             private Iterator<Tuple2<K, Tuple2<V1, V2>>> propreChild()
             {
+                this.leftIterator = sameKeyRows.iterator();
+                this.rightIterator = sameKeyRows.iterator();
                 Iterator<Tuple2<K, V1>> left = leftMapOperator.map(leftIterator);
                 Iterator<Tuple2<K, V2>> right = rightMapOperator.map(rightIterator);
                 //笛卡尔积,如果是多个dataset同时Join,则唯一变化时这里变成多个笛卡尔积
@@ -431,16 +495,21 @@ public class ReduceUtil
         private final Iterator<Tuple2<K, V1>> leftIterator;
         private final Iterator<Tuple2<K, V2>> rightIterator;
 
-        private final List<Tuple2<K, V1>> leftSameKeys = new ArrayList<>();
+        //左侧同一个key的行, 右侧每一行都需要重放一次
+        private final SpillableRowBuffer<Tuple2<K, V1>> leftSameKeys;
+        private MarkIterator<Tuple2<K, V1>> leftSameKeyIterator;
+        private K leftSameKey;
         private Tuple2<K, V1> leftNode;
         private Tuple2<K, V2> rightNode = null;
-        private int index = 0;
 
-        private MergeJoinIterator(java.util.Comparator<K> comparator, Iterator<Tuple2<K, V1>> leftIterator, Iterator<Tuple2<K, V2>> rightIterator)
+        private MergeJoinIterator(java.util.Comparator<K> comparator, Iterator<Tuple2<K, V1>> leftIterator, Iterator<Tuple2<K, V2>> rightIterator,
+                SpillableRowBuffer<Tuple2<K, V1>> leftSameKeys)
         {
             this.comparator = comparator;
             this.leftIterator = leftIterator;
             this.rightIterator = rightIterator;
+            this.leftSameKeys = leftSameKeys;
+            this.leftSameKeyIterator = leftSameKeys.iterator();
 
             leftNode = leftIterator.next();
         }
@@ -448,22 +517,23 @@ public class ReduceUtil
         @Override
         public boolean hasNext()
         {
-            if (index < leftSameKeys.size()) {
+            if (leftSameKeyIterator.hasNext()) {
                 return true;
             }
             if (!rightIterator.hasNext()) {
-                return false;
+                return this.finish();
             }
             this.rightNode = rightIterator.next();
 
-            if (!leftSameKeys.isEmpty() && Objects.equals(leftSameKeys.get(0).key(), rightNode.key())) {
-                index = 0;
+            if (!leftSameKeys.isEmpty() && Objects.equals(leftSameKey, rightNode.key())) {
+                leftSameKeyIterator.reset();
                 return true;
             }
             while (true) {
                 int than = comparator.compare(leftNode.key(), rightNode.key());
                 if (than == 0) {
-                    leftSameKeys.clear();
+                    this.clearLeftSameKeys();
+                    leftSameKey = leftNode.key();
                     do {
                         leftSameKeys.add(leftNode);
                         if (leftIterator.hasNext()) {
@@ -474,31 +544,52 @@ public class ReduceUtil
                         }
                     }
                     while (Objects.equals(leftNode.key(), rightNode.key()));
-                    index = 0;
+                    leftSameKeyIterator = leftSameKeys.iterator();
                     return true;
                 }
                 else if (than > 0) {
                     if (!rightIterator.hasNext()) {
-                        return false;
+                        return this.finish();
                     }
                     this.rightNode = rightIterator.next();
                 }
                 else {
                     if (!leftIterator.hasNext()) {
-                        return false;
+                        return this.finish();
                     }
                     this.leftNode = leftIterator.next();
                 }
             }
         }
 
+        private void clearLeftSameKeys()
+        {
+            try {
+                leftSameKeys.clear();
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+        }
+
+        private boolean finish()
+        {
+            try {
+                leftSameKeys.close();
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+            return false;
+        }
+
         @Override
         public Tuple2<K, Tuple2<V1, V2>> next()
         {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            Tuple2<K, V1> x = leftSameKeys.get(index++);
+            Tuple2<K, V1> x = leftSameKeyIterator.next();
             return Tuple2.of(x.key(), Tuple2.of(x.value(), rightNode.value()));
         }
     }
@@ -507,14 +598,24 @@ public class ReduceUtil
             java.util.Comparator<K> comparator,
             Iterator<Tuple2<K, V1>> leftIterator,
             Iterator<Tuple2<K, V2>> rightIterator)
+    {
+        return mergeJoin(comparator, leftIterator, rightIterator, SpillableRowBuffer.inMemory());
+    }
+
+    public static <K, V1, V2> IteratorPlus<Tuple2<K, Tuple2<V1, V2>>> mergeJoin(
+            java.util.Comparator<K> comparator,
+            Iterator<Tuple2<K, V1>> leftIterator,
+            Iterator<Tuple2<K, V2>> rightIterator,
+            SpillableRowBuffer<Tuple2<K, V1>> leftBuffer)
     {
         requireNonNull(comparator, "comparator is null");
         requireNonNull(leftIterator, "leftIterator is null");
         requireNonNull(rightIterator, "rightIterator is null");
+        requireNonNull(leftBuffer, "leftBuffer is null");
         if (!leftIterator.hasNext() || !rightIterator.hasNext()) {
             return Iterators.empty();
         }
-        return new MergeJoinIterator<>(comparator, leftIterator, rightIterator);
+        return new MergeJoinIterator<>(comparator, leftIterator, rightIterator, leftBuffer);
     }
 
     public static <K, V, O> IteratorPlus<Tuple2<K, O>> mapGroupSorted(Iterator<Tuple2<K, V>> input, Function2<K, Iterator<V>, O> mapGroupFunc)
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.EncoderInputStream;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+import com.github.harbby.astarte.core.coders.io.BlockDecompressInputStream;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.RowSizeEstimator;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.gadtry.base.Throwables;
+import com.github.harbby.gadtry.collection.iterator.MarkIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * join时缓存同一个key的行, 需要对另一侧的每一行重放一次.
+ * 行数超过阈值后全部溢写到磁盘, 之后的行直接追加到溢写文件, 每次重放都顺序读取该文件.
+ * 指定TaskMemoryManager时按估算的行大小申请执行内存, 申请不到或被其他consumer要求时也会溢写
+ */
+public class SpillableRowBuffer<E>
+        implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(SpillableRowBuffer.class);
+    private final Encoder<E> encoder;
+    private final File spillDir;
+    private final int spillThreshold;
+    private final BlockCodec codec;
+    private final List<E> rows = new ArrayList<>();
+    //clear()时需要关闭未读完的溢写文件
+    private final List<Cursor> cursors = new ArrayList<>();
+
+    //为null时只按行数阈值溢写
+    private final BufferMemoryConsumer memoryConsumer;
+    private final RowSizeEstimator<E> sizeEstimator;
+
+    private File spillFile;
+    private BlockCompressOutputStream compressOutput;
+    private DataOutputStream spillOutput;
+    private long size;
+
+    /**
+     * @param spillThreshold 内存中最多缓存的行数, 超过后溢写到spillDir
+     */
+    public SpillableRowBuffer(Encoder<E> encoder, File spillDir, int spillThreshold, BlockCodec codec)
+    {
+        this(encoder, spillDir, spillThreshold, codec, null);
+    }
+
+    /**
+     * @param taskMemoryManager 可以为null, 不为null时缓存的行占用task的执行内存
+     */
+    public SpillableRowBuffer(Encoder<E> encoder, File spillDir, int spillThreshold, BlockCodec codec, TaskMemoryManager taskMemoryManager)
+    {
+        checkArgument(spillThreshold > 0, "spillThreshold must > 0");
+        this.encoder = requireNonNull(encoder, "encoder is null");
+        this.spillDir = requireNonNull(spillDir, "spillDir is null");
+        this.spillThreshold = spillThreshold;
+        this.codec = requireNonNull(codec, "codec is null");
+        this.memoryConsumer = taskMemoryManager == null ? null : new BufferMemoryConsumer(taskMemoryManager);
+        this.sizeEstimator = new RowSizeEstimator<>(encoder);
+    }
+
+    private SpillableRowBuffer()
+    {
+        this.encoder = null;
+        this.spillDir = null;
+        this.spillThreshold = Integer.MAX_VALUE;
+        this.codec = null;
+        this.memoryConsumer = null;
+        this.sizeEstimator = null;
+    }
+
+    /**
+     * 不会溢写的buffer, 没有encoder时使用
+     */
+    public static <E> SpillableRowBuffer<E> inMemory()
+    {
+        return new SpillableRowBuffer<>();
+    }
+
+    public void add(E row)
+    {
+        size++;
+        try {
+            if (spillOutput != null) {
+                encoder.encoder(row, spillOutput);
+                return;
+            }
+            rows.add(row);
+            if (rows.size() >= spillThreshold || !this.reserveMemory(row)) {
+                this.spill();
+            }
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    private void spill()
+            throws IOException
+    {
+        if (!spillDir.exists()) {
+            checkState(spillDir.mkdirs() || spillDir.exists(), "create spill dir failed %s", spillDir);
+        }
+        this.spillFile = File.createTempFile("join_buffer_", ".data", spillDir);
+        this.compressOutput = new BlockCompressOutputStream(new FileOutputStream(spillFile, false), codec);
+        this.spillOutput = new DataOutputStream(compressOutput);
+        for (E row : rows) {
+            encoder.encoder(row, spillOutput);
+        }
+        logger.info("join buffer rows {} spill to {}", rows.size(), spillFile);
+        rows.clear();
+        if (memoryConsumer != null) {
+            memoryConsumer.release();
+        }
+    }
+
+    /**
+     * 按采样得到的行大小估算内存占用, 不足时按块申请
+     *
+     * @return false表示申请不到足够的内存, 需要溢写
+     */
+    private boolean reserveMemory(E row)
+    {
+        if (memoryConsumer == null) {
+            return true;
+        }
+        long size = RowSizeEstimator.requiredMemory(sizeEstimator.estimate(row, rows.size()), memoryConsumer.getUsed());
+        return size == 0 || memoryConsumer.acquire(size);
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public boolean isSpilled()
+    {
+        return spillFile != null;
+    }
+
+    /**
+     * 返回可以多次重放的迭代器, reset()后从第一行重新读取.
+     * 迭代器在clear()或close()后失效
+     */
+    public MarkIterator<E> iterator()
+    {
+        Cursor cursor = new Cursor();
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    private Iterator<E> open()
+            throws IOException
+    {
+        if (spillFile == null) {
+            return ReduceUtil.wrap(rows);
+        }
+        //刷出当前压缩块, 之后仍然可以继续追加
+        compressOutput.finish();
+        return new EncoderInputStream<>(size, encoder, new BlockDecompressInputStream(new BufferedInputStream(new FileInputStream(spillFile)), codec));
+    }
+
+    /**
+     * 清空已缓存的行并删除溢写文件, 之后可以继续写入下一个key的行
+     */
+    public void clear()
+            throws IOException
+    {
+        for (Cursor cursor : cursors) {
+            cursor.closeReader();
+        }
+        cursors.clear();
+        rows.clear();
+        size = 0;
+        if (memoryConsumer != null) {
+            memoryConsumer.release();
+        }
+        if (spillFile != null) {
+            try {
+                spillOutput.close();
+            }
+            finally {
+                if (spillFile.exists()) {
+                    checkState(spillFile.delete(), "clear join buffer file failed " + spillFile);
+                }
+                spillFile = null;
+                compressOutput = null;
+                spillOutput = null;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            this.clear();
+        }
+        finally {
+            if (memoryConsumer != null) {
+                memoryConsumer.close();
+            }
+        }
+    }
+
+    private class BufferMemoryConsumer
+            extends MemoryConsumer
+    {
+        private BufferMemoryConsumer(TaskMemoryManager taskMemoryManager)
+        {
+            super(taskMemoryManager);
+        }
+
+        private boolean acquire(long size)
+        {
+            //部分申请到的内存也记在used中, 溢写时一起归还
+            return acquireMemory(size) >= size;
+        }
+
+        private void release()
+        {
+            long used = getUsed();
+            if (used > 0) {
+                freeMemory(used);
+            }
+        }
+
+        private void close()
+        {
+            freeAllMemory();
+        }
+
+        @Override
+        public long spill()
+                throws IOException
+        {
+            //已经溢写, 或者正在重放内存中的行时不能溢写
+            if (spillFile != null || rows.isEmpty() || cursors.stream().anyMatch(Cursor::isReadingMemory)) {
+                return 0;
+            }
+            long used = getUsed();
+            SpillableRowBuffer.this.spill();
+            return used;
+        }
+    }
+
+    private class Cursor
+            implements MarkIterator<E>
+    {
+        private Iterator<E> reader;
+
+        @Override
+        public boolean hasNext()
+        {
+            if (reader == null) {
+                try {
+                    reader = open();
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+            return reader.hasNext();
+        }
+
+        @Override
+        public E next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return reader.next();
+        }
+
+        @Override
+        public void mark()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void reset()
+        {
+            this.closeReader();
+        }
+
+        /**
+         * 是否有未读完的内存迭代器, 此时清空rows会导致重放提前结束
+         */
+        private boolean isReadingMemory()
+        {
+            return reader != null && !(reader instanceof Closeable) && reader.hasNext();
+        }
+
+        private void closeReader()
+        {
+            if (reader instanceof Closeable) {
+                try {
+                    ((Closeable) reader).close();
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core;
+
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+public class RangePartitionerTest
+{
+    private static int linearScan(Long[] bounds, long key)
+    {
+        for (int i = 0; i < bounds.length; i++) {
+            if (key < bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+
+    @Test
+    public void binarySearchEqualsLinearScanTest()
+    {
+        Long[] bounds = new Long[] {-100L, -1L, 0L, 7L, 100L, 1000L};
+        Comparator<Long> comparator = Encoders.jLong().comparator();
+        RangePartitioner<Long> partitioner = new RangePartitioner<>(bounds.length + 1, bounds, comparator, null);
+        RangePartitioner<Long> prefixPartitioner = new RangePartitioner<>(bounds.length + 1, bounds, comparator,
+                (OrderedEncoder<Long>) Encoders.jLong());
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextInt(2400) - 1200;
+            int expected = linearScan(bounds, key);
+            Assert.assertEquals(expected, partitioner.getPartition(key));
+            Assert.assertEquals(expected, prefixPartitioner.getPartition(key));
+        }
+        for (Long bound : bounds) {
+            Assert.assertEquals(linearScan(bounds, bound), prefixPartitioner.getPartition(bound));
+        }
+        Assert.assertEquals(0, prefixPartitioner.getPartition(Long.MIN_VALUE));
+        Assert.assertEquals(bounds.length, prefixPartitioner.getPartition(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void determineBoundsTest()
+    {
+        List<RangePartitioner.SampleResult<Long>> samples = Arrays.asList(
+                new RangePartitioner.SampleResult<>(4, 0, new Long[] {1L, 2L, 3L, 4L}),
+                new RangePartitioner.SampleResult<>(0, 1, new Long[0]),
+                new RangePartitioner.SampleResult<>(4, 2, new Long[] {5L, 6L, 7L, 8L}));
+        List<Long> bounds = RangePartitioner.determineBounds(samples, Encoders.jLong().comparator(), 4);
+        Assert.assertEquals(Arrays.asList(2L, 4L, 6L), bounds);
+        RangePartitioner<Long> partitioner = new RangePartitioner<>(4, bounds.toArray(new Long[0]), Encoders.jLong().comparator(), null);
+        int[] partitions = LongStream.rangeClosed(1, 8).mapToInt(partitioner::getPartition).toArray();
+        Assert.assertArrayEquals(new int[] {0, 1, 1, 2, 2, 3, 3, 3}, partitions);
+    }
+
+    @Test
+    public void emptyBoundsTest()
+    {
+        RangePartitioner<Long> partitioner = new RangePartitioner<>(1, new Long[0], Encoders.jLong().comparator(), null);
+        Assert.assertEquals(0, partitioner.getPartition(1L));
+    }
+}
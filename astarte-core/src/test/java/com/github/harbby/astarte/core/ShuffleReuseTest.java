@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core;
+
+import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.api.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShuffleReuseTest
+{
+    private static final AtomicInteger mapCalls = new AtomicInteger();
+    private final BatchContext mppContext = BatchContext.builder()
+            .local(2)
+            .getOrCreate();
+
+    @Test
+    public void reuseCompletedShuffleTest()
+    {
+        List<Tuple2<String, Integer>> data = Arrays.asList(
+                Tuple2.of("a", 1),
+                Tuple2.of("b", 2),
+                Tuple2.of("a", 3),
+                Tuple2.of("c", 4));
+        KvDataSet<String, Integer> reduced = mppContext.makeKvDataSet(data, 2)
+                .mapValues(v -> {
+                    mapCalls.incrementAndGet();
+                    return v;
+                })
+                .reduceByKey(Integer::sum);
+
+        Assert.assertEquals(3, reduced.count());
+        Assert.assertEquals(4, mapCalls.get());
+        //第二个job直接读取第一个job的shuffle输出, 不再计算上游
+        Assert.assertEquals(3, reduced.collect().size());
+        Assert.assertEquals(4, mapCalls.get());
+    }
+}
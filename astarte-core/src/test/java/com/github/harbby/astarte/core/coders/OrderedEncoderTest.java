@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+public class OrderedEncoderTest
+{
+    private static final String CHARS = "aAz09\u0000\u007f\u0080\u07ff\u0800\uffff\ud83d\ude00";
+    private final Random random = new Random(0);
+
+    @Test
+    public void numberEncoderTest()
+            throws IOException
+    {
+        checkOrdering((OrderedEncoder<Integer>) Encoders.jInt(), () -> random.nextBoolean() ? random.nextInt() : random.nextInt(10) - 5);
+        checkOrdering((OrderedEncoder<Long>) Encoders.jLong(), () -> random.nextBoolean() ? random.nextLong() : random.nextInt(10) - 5L);
+        List<Double> specials = Arrays.asList(0.0d, -0.0d, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -1.5d);
+        checkOrdering((OrderedEncoder<Double>) Encoders.jDouble(), () -> random.nextBoolean() ? random.nextGaussian() : specials.get(random.nextInt(specials.size())));
+    }
+
+    @Test
+    public void stringEncoderTest()
+            throws IOException
+    {
+        checkOrdering((OrderedEncoder<String>) Encoders.UTF8String(), () -> randomString(CHARS));
+        checkOrdering((OrderedEncoder<String>) Encoders.jCharString(), () -> randomString(CHARS));
+        checkOrdering(new AsciiStringEncoder(), () -> randomString("aAz09\u0000\u007f"));
+    }
+
+    @Test
+    public void tuple2EncoderTest()
+            throws IOException
+    {
+        Encoder<Tuple2<String, Integer>> encoder = Encoders.tuple2(Encoders.UTF8String(), Encoders.jInt());
+        Assert.assertTrue(encoder instanceof OrderedEncoder);
+        Assert.assertSame(encoder.comparator(), encoder.comparator());
+        checkOrdering((OrderedEncoder<Tuple2<String, Integer>>) encoder, () -> Tuple2.of(randomString("ab"), random.nextInt(3)));
+    }
+
+    @Test
+    public void getOrderedKeyEncoderTest()
+    {
+        Encoder<Tuple2<Long, String>> encoder = Encoders.tuple2(Encoders.jLong(), Encoders.UTF8String());
+        Assert.assertNotNull(OrderedEncoder.getOrderedKeyEncoder(encoder, Encoders.jLong().comparator()));
+        Assert.assertNull(OrderedEncoder.getOrderedKeyEncoder(encoder, (x, y) -> Long.compare(y, x)));
+    }
+
+    private String randomString(String chars)
+    {
+        int length = random.nextInt(7);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return builder.toString();
+    }
+
+    private static <E> void checkOrdering(OrderedEncoder<E> encoder, Supplier<E> generator)
+            throws IOException
+    {
+        List<E> values = new ArrayList<>();
+        List<byte[]> encoded = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            E value = generator.get();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            DataOutputStream dataOutput = new DataOutputStream(outputStream);
+            encoder.encoder(value, dataOutput);
+            //紧跟一个标记字节, 检查compareEncoded是否完整读过当前值
+            dataOutput.writeByte(0x5A);
+            values.add(value);
+            encoded.add(outputStream.toByteArray());
+        }
+        for (int i = 0; i < values.size(); i++) {
+            for (int j = 0; j < values.size(); j++) {
+                E left = values.get(i);
+                E right = values.get(j);
+                int expected = Integer.signum(encoder.comparator().compare(left, right));
+
+                DataInputStream leftInput = new DataInputStream(new ByteArrayInputStream(encoded.get(i)));
+                DataInputStream rightInput = new DataInputStream(new ByteArrayInputStream(encoded.get(j)));
+                Assert.assertEquals(left + " than " + right, expected, Integer.signum(encoder.compareEncoded(leftInput, rightInput)));
+                Assert.assertEquals(0x5A, leftInput.readByte());
+                Assert.assertEquals(0x5A, rightInput.readByte());
+
+                int prefixThan = Long.compareUnsigned(encoder.computePrefix(left), encoder.computePrefix(right));
+                if (prefixThan != 0 || encoder.isPrefixExact()) {
+                    Assert.assertEquals(left + " prefix than " + right, expected, Integer.signum(prefixThan));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Constant;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+public class BlockCodecsTest
+{
+    private static void checkRoundTrip(BlockCodec codec)
+            throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BlockCompressOutputStream compressOutputStream = new BlockCompressOutputStream(outputStream, codec, 1024);
+        DataOutputStream dataOutputStream = new DataOutputStream(compressOutputStream);
+        Random random = new Random(0);
+        byte[] noise = new byte[3000];
+        random.nextBytes(noise);
+        for (int i = 0; i < 10_000; i++) {
+            dataOutputStream.writeInt(i);
+            dataOutputStream.writeUTF("value" + (i % 100));
+        }
+        //第二个segment, 不可压缩的数据按原始格式保存
+        compressOutputStream.finish();
+        dataOutputStream.write(noise);
+        dataOutputStream.close();
+
+        DataInputStream dataInputStream = new DataInputStream(new BlockDecompressInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray()), BlockCodecs.forId(codec.getId())));
+        for (int i = 0; i < 10_000; i++) {
+            Assert.assertEquals(i, dataInputStream.readInt());
+            Assert.assertEquals("value" + (i % 100), dataInputStream.readUTF());
+        }
+        byte[] bytes = new byte[noise.length];
+        dataInputStream.readFully(bytes);
+        Assert.assertArrayEquals(noise, bytes);
+        try {
+            dataInputStream.readByte();
+            Assert.fail();
+        }
+        catch (EOFException ignored) {
+        }
+    }
+
+    @Test
+    public void noneRoundTripTest()
+            throws IOException
+    {
+        checkRoundTrip(BlockCodecs.none());
+    }
+
+    @Test
+    public void lz4RoundTripTest()
+            throws IOException
+    {
+        checkRoundTrip(BlockCodecs.lz4());
+    }
+
+    @Test
+    public void zstdRoundTripTest()
+            throws IOException
+    {
+        checkRoundTrip(BlockCodecs.zstd(3));
+    }
+
+    @Test
+    public void fromConfTest()
+    {
+        AstarteConf conf = new AstarteConf();
+        Assert.assertEquals(BlockCodecs.LZ4_ID, BlockCodecs.fromConf(conf).getId());
+        conf.put(Constant.SHUFFLE_COMPRESSION_CODEC, "zstd");
+        conf.put(Constant.SHUFFLE_COMPRESSION_ZSTD_LEVEL, "5");
+        Assert.assertEquals(BlockCodecs.ZSTD_ID, BlockCodecs.fromConf(conf).getId());
+        conf.put(Constant.SHUFFLE_COMPRESSION_CODEC, "none");
+        Assert.assertEquals(BlockCodecs.NONE_ID, BlockCodecs.fromConf(conf).getId());
+    }
+}
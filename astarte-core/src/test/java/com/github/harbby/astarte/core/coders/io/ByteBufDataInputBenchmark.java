@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比shuffle远程读取时逐字节读取和ByteBufDataInput批量读取的解码吞吐
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ByteBufDataInputBenchmark
+{
+    private static final int ROW_COUNT = 100_000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Encoder<Tuple2<Long, String>> encoder = Encoders.tuple2(Encoders.jLong(), Encoders.UTF8String());
+    private final List<ByteBuf> chunks = new ArrayList<>();
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        for (int i = 0; i < ROW_COUNT; i++) {
+            encoder.encoder(Tuple2.of((long) i, "value_" + i), dataOutputStream);
+        }
+        byte[] bytes = outputStream.toByteArray();
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+            chunks.add(Unpooled.directBuffer(CHUNK_SIZE).writeBytes(bytes, offset, Math.min(CHUNK_SIZE, bytes.length - offset)));
+        }
+    }
+
+    /**
+     * 原读取方式: DataInputStream套在逐字节读取的InputStream上
+     */
+    @Benchmark
+    public void byteAtATime(Blackhole blackhole)
+            throws IOException
+    {
+        DataInputStream dataInputStream = new DataInputStream(new InputStream()
+        {
+            private int index;
+            private ByteBuf byteBuf = chunks.get(0).duplicate();
+
+            @Override
+            public int read()
+            {
+                if (byteBuf.readableBytes() == 0) {
+                    byteBuf = chunks.get(++index).duplicate();
+                }
+                return byteBuf.readByte() & 0xFF;
+            }
+        });
+        for (int i = 0; i < ROW_COUNT; i++) {
+            blackhole.consume(encoder.decoder(dataInputStream));
+        }
+    }
+
+    @Benchmark
+    public void bulkDataInput(Blackhole blackhole)
+            throws IOException
+    {
+        ByteBufDataInput dataInput = new ByteBufDataInput()
+        {
+            private int index;
+
+            @Override
+            protected ByteBuf nextBuffer()
+            {
+                return index < chunks.size() ? chunks.get(index++).retainedDuplicate() : null;
+            }
+        };
+        for (int i = 0; i < ROW_COUNT; i++) {
+            blackhole.consume(encoder.decoder(dataInput));
+        }
+        dataInput.close();
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ByteBufDataInputBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.coders.io;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.EncoderInputStream;
+import com.github.harbby.astarte.core.coders.Encoders;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+
+public class ByteBufDataInputTest
+{
+    private static class QueueDataInput
+            extends ByteBufDataInput
+    {
+        private final Queue<ByteBuf> buffers;
+
+        private QueueDataInput(Queue<ByteBuf> buffers)
+        {
+            this.buffers = buffers;
+        }
+
+        @Override
+        protected ByteBuf nextBuffer()
+        {
+            return buffers.poll();
+        }
+    }
+
+    @Test
+    public void crossBufferBoundaryDecodeTest()
+            throws IOException
+    {
+        Encoder<Tuple2<Long, Tuple2<Double, String>>> encoder = Encoders.tuple2(Encoders.jLong(),
+                Encoders.tuple2(Encoders.jDouble(), Encoders.UTF8String()));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        int rowCount = 10_000;
+        for (int i = 0; i < rowCount; i++) {
+            encoder.encoder(Tuple2.of((long) i, Tuple2.of(i * 0.5, "value" + i)), dataOutputStream);
+        }
+        //切分成随机大小的小buffer, 保证大量记录跨越buffer边界
+        byte[] bytes = outputStream.toByteArray();
+        Queue<ByteBuf> buffers = new ArrayDeque<>();
+        Random random = new Random(0);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int size = Math.min(bytes.length - offset, random.nextInt(13));
+            buffers.add(Unpooled.wrappedBuffer(bytes, offset, size));
+            offset += size;
+        }
+        Iterator<Tuple2<Long, Tuple2<Double, String>>> iterator = new EncoderInputStream<>(rowCount, encoder, new QueueDataInput(buffers));
+        for (int i = 0; i < rowCount; i++) {
+            Assert.assertEquals(Tuple2.of((long) i, Tuple2.of(i * 0.5, "value" + i)), iterator.next());
+        }
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertTrue(buffers.isEmpty());
+    }
+}
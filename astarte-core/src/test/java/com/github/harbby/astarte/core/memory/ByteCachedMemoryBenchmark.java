@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ByteCachedMemory.append()写满一个分区的吞吐, maxPooledMb=0时每个page都直接申请和释放堆外内存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ByteCachedMemoryBenchmark
+{
+    private static final int ROW_COUNT = 1_000_000;
+    private static final Encoder<Tuple2<Long, String>> ENCODER = Encoders.tuple2(Encoders.jLong(), Encoders.UTF8String());
+
+    @Param({"0", "64"})
+    private int maxPooledMb;
+
+    @Param({"none", "lz4"})
+    private String codecName;
+
+    private Tuple2<Long, String>[] rows;
+    private BlockCodec codec;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setup()
+    {
+        MemoryManager.getPageAllocator().setMaxPooledBytes(maxPooledMb * 1024L * 1024L);
+        codec = "lz4".equals(codecName) ? BlockCodecs.lz4() : BlockCodecs.none();
+        Random random = new Random(0);
+        rows = new Tuple2[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            rows[i] = Tuple2.of(random.nextLong(), "value_" + random.nextInt(10000));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        MemoryManager.getPageAllocator().clear();
+    }
+
+    @Benchmark
+    public long append()
+    {
+        ByteCachedMemory<Tuple2<Long, String>> cachedMemory = new ByteCachedMemory<>(ENCODER, codec);
+        for (Tuple2<Long, String> row : rows) {
+            cachedMemory.append(row);
+        }
+        cachedMemory.finalCache();
+        long size = MemoryManager.getAllocatedMemory();
+        cachedMemory.freeMemory();
+        return size;
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ByteCachedMemoryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
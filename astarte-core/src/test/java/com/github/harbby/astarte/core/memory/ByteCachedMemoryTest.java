@@ -18,6 +18,7 @@ package com.github.harbby.astarte.core.memory;
 import com.github.harbby.astarte.core.api.Tuple2;
 import com.github.harbby.astarte.core.coders.Encoder;
 import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -83,4 +84,21 @@ public class ByteCachedMemoryTest
             System.out.println(iterator.next());
         }
     }
+
+    @Test
+    public void storageFullSkipCacheTest()
+    {
+        Encoder<Tuple2<Integer, Long>> encoder = Encoders.tuple2(Encoders.jInt(), Encoders.jLong());
+        MemoryManager memoryManager = new MemoryManager(2 * 1024 * 1024, 0);
+        ByteCachedMemory<Tuple2<Integer, Long>> cachedMemory = new ByteCachedMemory<>(encoder, BlockCodecs.none(),
+                new MemoryBlock(memoryManager, 1));
+        int rows = 0;
+        while (cachedMemory.append(Tuple2.of(rows, (long) rows))) {
+            rows++;
+        }
+        //超过2个page后存储内存不足, 已申请的page全部释放
+        Assert.assertTrue(rows > 100_000);
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+        Assert.assertEquals(0, cachedMemory.getMemorySize());
+    }
 }
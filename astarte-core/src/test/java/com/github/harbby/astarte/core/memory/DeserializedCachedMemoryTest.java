@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.gadtry.collection.MutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class DeserializedCachedMemoryTest
+{
+    private final Encoder<Tuple2<Integer, String>> encoder = Encoders.tuple2(Encoders.jInt(), Encoders.UTF8String());
+
+    @Test
+    public void readWithoutDecodeTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(64 * 1024 * 1024, 0);
+        DeserializedCachedMemory<Tuple2<Integer, String>> cachedMemory = new DeserializedCachedMemory<>(encoder, memoryManager, 1);
+        List<Tuple2<Integer, String>> rows = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            Tuple2<Integer, String> row = Tuple2.of(i, "value_" + i);
+            rows.add(row);
+            cachedMemory.append(row);
+        }
+        cachedMemory.finalCache();
+        Assert.assertTrue(cachedMemory.getMemorySize() > 0);
+        Assert.assertEquals(cachedMemory.getMemorySize(), memoryManager.getStorageMemoryUsed(1));
+
+        Iterator<Tuple2<Integer, String>> iterator = cachedMemory.prepareIterator();
+        //直接返回缓存的对象
+        Assert.assertSame(rows.get(0), iterator.next());
+        Assert.assertEquals(rows, MutableList.copy(cachedMemory.prepareIterator()));
+
+        Assert.assertFalse(cachedMemory.evict());
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+        //驱逐前已经打开的迭代器仍然可以读完
+        Assert.assertEquals(rows.size() - 1, MutableList.copy(iterator).size());
+    }
+
+    @Test
+    public void notEnoughStorageMemoryTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(1024 * 1024, 0);
+        DeserializedCachedMemory<Tuple2<Integer, String>> cachedMemory = new DeserializedCachedMemory<>(encoder, memoryManager, 1);
+        int rows = 0;
+        while (cachedMemory.append(Tuple2.of(rows, "value_" + rows))) {
+            rows++;
+        }
+        //存储内存不足时放弃缓存并释放已申请的内存
+        Assert.assertTrue(rows > 0);
+        Assert.assertEquals(0, cachedMemory.getMemorySize());
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+    }
+}
@@ -38,4 +38,40 @@ public class MemoryBlockTest
         byte[] bytes = IOUtils.readAllBytes(block.prepareInputStream());
         Assert.assertArrayEquals(bytes, new byte[] {-1, -2, 3, 97, 98, 99});
     }
+
+    @Test
+    public void writeAcrossPagesTest()
+            throws IOException
+    {
+        byte[] data = new byte[(int) (2.5 * 1024 * 1024)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        MemoryBlock block = new MemoryBlock();
+        block.write(7);
+        block.write(data, 1, data.length - 1);
+        block.finalData();
+        Assert.assertEquals(data.length, block.getBlockSize());
+
+        byte[] bytes = IOUtils.readAllBytes(block.prepareInputStream());
+        data[0] = 7;
+        Assert.assertArrayEquals(data, bytes);
+        block.free();
+    }
+
+    @Test
+    public void overflowWhenStorageFullTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(2 * 1024 * 1024, 0);
+        MemoryBlock block = new MemoryBlock(memoryManager, 1);
+        block.write(new byte[1024 * 1024]);
+        Assert.assertFalse(block.isOverflow());
+        block.write(new byte[1024 * 1024 + 1]);
+        Assert.assertTrue(block.isOverflow());
+        //之后的写入被丢弃
+        block.write(1);
+        Assert.assertEquals(2 * 1024 * 1024, block.getBlockSize());
+        block.free();
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+    }
 }
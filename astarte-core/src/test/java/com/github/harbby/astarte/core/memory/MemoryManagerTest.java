@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MemoryManagerTest
+{
+    @Test
+    public void storageBorrowFreeMemoryTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(100, 50);
+        TaskMemoryManager task = new TaskMemoryManager(memoryManager, 100);
+        Assert.assertTrue(memoryManager.acquireStorageMemory(1, 70));
+        Assert.assertEquals(30, memoryManager.acquireExecutionMemory(task, 50));
+        //存储内存不能驱逐执行内存
+        Assert.assertFalse(memoryManager.acquireStorageMemory(2, 10));
+        Assert.assertEquals(70, memoryManager.getStorageMemoryUsed(1));
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed(2));
+        Assert.assertEquals(30, memoryManager.getExecutionMemoryUsed(task));
+    }
+
+    @Test
+    public void executionEvictStorageAboveRegionTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(100, 50);
+        AtomicLong evictRequired = new AtomicLong();
+        memoryManager.setStorageEvictor((required, excludeDataSetId) -> {
+            evictRequired.set(required);
+            memoryManager.releaseStorageMemory(1, required);
+            return required;
+        });
+        TaskMemoryManager task = new TaskMemoryManager(memoryManager, 100);
+        Assert.assertTrue(memoryManager.acquireStorageMemory(1, 80));
+        Assert.assertEquals(20, memoryManager.acquireExecutionMemory(task, 20));
+        Assert.assertEquals(0, evictRequired.get());
+
+        //只能驱逐超出storage保护区域的30字节
+        Assert.assertEquals(30, memoryManager.acquireExecutionMemory(task, 60));
+        Assert.assertEquals(30, evictRequired.get());
+        Assert.assertEquals(50, memoryManager.getStorageMemoryUsed());
+        Assert.assertEquals(50, memoryManager.getExecutionMemoryUsed());
+
+        evictRequired.set(0);
+        Assert.assertEquals(0, memoryManager.acquireExecutionMemory(task, 10));
+        Assert.assertEquals(0, evictRequired.get());
+    }
+
+    @Test
+    public void storageEvictOtherDataSetTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(100, 100);
+        memoryManager.setStorageEvictor((required, excludeDataSetId) -> {
+            if (excludeDataSetId == 1) {
+                return 0;
+            }
+            memoryManager.releaseStorageMemory(1, required);
+            return required;
+        });
+        Assert.assertTrue(memoryManager.acquireStorageMemory(1, 80));
+        //同一个dataSet的缓存不会驱逐自己
+        Assert.assertFalse(memoryManager.acquireStorageMemory(1, 30));
+        Assert.assertTrue(memoryManager.acquireStorageMemory(2, 30));
+        Assert.assertEquals(70, memoryManager.getStorageMemoryUsed(1));
+        Assert.assertEquals(30, memoryManager.getStorageMemoryUsed(2));
+    }
+
+    @Test
+    public void releaseTaskMemoryTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(100, 0);
+        TaskMemoryManager task1 = new TaskMemoryManager(memoryManager, 60);
+        TaskMemoryManager task2 = new TaskMemoryManager(memoryManager, 60);
+        Assert.assertEquals(40, memoryManager.acquireExecutionMemory(task1, 40));
+        Assert.assertEquals(50, memoryManager.acquireExecutionMemory(task2, 50));
+        memoryManager.releaseExecutionMemory(task1, 10);
+        Assert.assertEquals(30, memoryManager.getExecutionMemoryUsed(task1));
+        Assert.assertEquals(50, memoryManager.releaseAllExecutionMemory(task2));
+        Assert.assertEquals(0, memoryManager.getExecutionMemoryUsed(task2));
+        Assert.assertEquals(30, memoryManager.getExecutionMemoryUsed());
+    }
+
+    @Test
+    public void taskBudgetBoundedByPoolTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(100, 0);
+        TaskMemoryManager task1 = new TaskMemoryManager(memoryManager, 80);
+        TaskMemoryManager task2 = new TaskMemoryManager(memoryManager, 80);
+        MemoryConsumer consumer1 = new MemoryConsumer(task1)
+        {
+            @Override
+            public long spill()
+            {
+                return 0;
+            }
+        };
+        MemoryConsumer consumer2 = new MemoryConsumer(task2)
+        {
+            @Override
+            public long spill()
+            {
+                return 0;
+            }
+        };
+        Assert.assertEquals(80, consumer1.acquireMemory(100));
+        Assert.assertEquals(20, consumer2.acquireMemory(80));
+        Assert.assertEquals(80, task1.cleanUpAllMemory());
+        Assert.assertEquals(0, memoryManager.getExecutionMemoryUsed(task1));
+        Assert.assertEquals(20, memoryManager.getExecutionMemoryUsed());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class PageAllocatorTest
+{
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void sizeClassTest()
+    {
+        Assert.assertEquals(0, PageAllocator.sizeClass(1));
+        Assert.assertEquals(0, PageAllocator.sizeClass(1 << 16));
+        Assert.assertEquals(1, PageAllocator.sizeClass((1 << 16) + 1));
+        Assert.assertEquals(4, PageAllocator.sizeClass(MB));
+        Assert.assertEquals(5, PageAllocator.sizeClass(MB + 1));
+    }
+
+    @Test
+    public void reuseFreedPageTest()
+    {
+        PageAllocator allocator = new PageAllocator(16 * MB);
+        ByteBuffer page = allocator.allocate(MB - 100);
+        Assert.assertEquals(MB, page.capacity());
+        page.putLong(1L);
+        allocator.free(page);
+        Assert.assertEquals(MB, allocator.getPooledBytes());
+
+        ByteBuffer reused = allocator.allocate(MB);
+        Assert.assertSame(page, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(MB, reused.limit());
+        Assert.assertEquals(0, allocator.getPooledBytes());
+        Assert.assertEquals(MB, allocator.getAllocatedBytes());
+        allocator.free(reused);
+        allocator.clear();
+        Assert.assertEquals(0, allocator.getAllocatedBytes());
+    }
+
+    @Test
+    public void sharedPoolAcrossThreadsTest()
+            throws InterruptedException
+    {
+        PageAllocator allocator = new PageAllocator(64 * MB);
+        ByteBuffer[] pages = new ByteBuffer[8];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = allocator.allocate(MB);
+        }
+        //线程缓存满后放入共享池
+        for (ByteBuffer page : pages) {
+            allocator.free(page);
+        }
+        Assert.assertEquals(8 * MB, allocator.getPooledBytes());
+        //其他线程从共享池取走一半page, 释放后留在该线程的缓存中
+        ByteBuffer[] reused = new ByteBuffer[4];
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < reused.length; i++) {
+                reused[i] = allocator.allocate(MB);
+            }
+            for (ByteBuffer page : reused) {
+                allocator.free(page);
+            }
+        });
+        thread.start();
+        thread.join();
+        //已退出线程缓存的page可以被其他线程复用
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = allocator.allocate(MB);
+        }
+        Assert.assertEquals(0, allocator.getPooledBytes());
+        Assert.assertEquals(8 * MB, allocator.getAllocatedBytes());
+        for (ByteBuffer page : pages) {
+            allocator.free(page);
+        }
+        allocator.clear();
+        Assert.assertEquals(0, allocator.getAllocatedBytes());
+    }
+
+    @Test
+    public void poolLimitTest()
+    {
+        PageAllocator allocator = new PageAllocator(MB);
+        ByteBuffer page1 = allocator.allocate(MB);
+        ByteBuffer page2 = allocator.allocate(MB);
+        allocator.free(page1);
+        allocator.free(page2);
+        Assert.assertEquals(MB, allocator.getPooledBytes());
+        Assert.assertEquals(MB, allocator.getAllocatedBytes());
+
+        allocator.setMaxPooledBytes(0);
+        Assert.assertEquals(0, allocator.getPooledBytes());
+        Assert.assertEquals(0, allocator.getAllocatedBytes());
+    }
+}
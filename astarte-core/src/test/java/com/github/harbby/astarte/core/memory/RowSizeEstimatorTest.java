@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.coders.Encoders;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RowSizeEstimatorTest
+{
+    @Test
+    public void estimateTest()
+    {
+        RowSizeEstimator<String> estimator = new RowSizeEstimator<>(Encoders.UTF8String());
+        String row = new String(new char[1000]).replace('\0', 'a');
+        long estimated = 0;
+        for (int i = 1; i <= 10_000; i++) {
+            estimated = estimator.estimate(row, i);
+        }
+        //多次采样后收敛到编码大小加上对象开销
+        Assert.assertTrue(estimated > 10_000 * 1000L);
+        Assert.assertTrue(estimated < 10_000 * 1100L);
+    }
+
+    @Test
+    public void requiredMemoryTest()
+    {
+        Assert.assertEquals(0, RowSizeEstimator.requiredMemory(100, 100));
+        //至少按块申请
+        Assert.assertEquals(1 << 20, RowSizeEstimator.requiredMemory(101, 100));
+        Assert.assertEquals(3 << 20, RowSizeEstimator.requiredMemory(4 << 20, 1 << 20));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.gadtry.collection.MutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpillableCachedMemoryTest
+{
+    private final Encoder<Tuple2<Integer, String>> encoder = Encoders.tuple2(Encoders.jInt(), Encoders.UTF8String());
+
+    private static List<Tuple2<Integer, String>> rows(int count)
+    {
+        List<Tuple2<Integer, String>> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(Tuple2.of(i, "value_" + i));
+        }
+        return rows;
+    }
+
+    @Test
+    public void diskOnlyTest()
+            throws IOException
+    {
+        File dir = Files.createTempDirectory("cache_test").toFile();
+        File cacheFile = new File(dir, "cache_0_0.data");
+        SpillableCachedMemory<Tuple2<Integer, String>> cachedMemory = new SpillableCachedMemory<>(encoder, BlockCodecs.lz4(), null, cacheFile);
+        List<Tuple2<Integer, String>> rows = rows(1000);
+        rows.forEach(cachedMemory::append);
+        cachedMemory.finalCache();
+        Assert.assertTrue(cachedMemory.isOnDisk());
+        Assert.assertTrue(cacheFile.length() > 0);
+        //可以重复读取
+        Assert.assertEquals(rows, MutableList.copy(cachedMemory.prepareIterator()));
+        Assert.assertEquals(rows, MutableList.copy(cachedMemory.prepareIterator()));
+
+        cachedMemory.freeMemory();
+        Assert.assertFalse(cacheFile.exists());
+        Assert.assertTrue(dir.delete());
+    }
+
+    @Test
+    public void memDiskSpillWhenStorageFullTest()
+            throws IOException
+    {
+        File dir = Files.createTempDirectory("cache_test").toFile();
+        File cacheFile = new File(dir, "cache_0_0.data");
+        MemoryManager memoryManager = new MemoryManager(2 * 1024 * 1024, 0);
+        SpillableCachedMemory<Tuple2<Integer, String>> cachedMemory = new SpillableCachedMemory<>(encoder, BlockCodecs.none(),
+                new MemoryBlock(memoryManager, 1), cacheFile);
+        List<Tuple2<Integer, String>> rows = rows(300_000);
+        for (int i = 0; i < 10_000; i++) {
+            cachedMemory.append(rows.get(i));
+        }
+        Assert.assertFalse(cachedMemory.isOnDisk());
+        Assert.assertEquals(1024 * 1024, memoryManager.getStorageMemoryUsed(1));
+        //超过2个page后存储内存不足, 已缓存的数据一起写入文件
+        for (int i = 10_000; i < rows.size(); i++) {
+            cachedMemory.append(rows.get(i));
+        }
+        cachedMemory.finalCache();
+        Assert.assertTrue(cachedMemory.isOnDisk());
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+        Assert.assertEquals(rows, MutableList.copy(cachedMemory.prepareIterator()));
+
+        cachedMemory.freeMemory();
+        Assert.assertFalse(cacheFile.exists());
+        Assert.assertTrue(dir.delete());
+    }
+
+    @Test
+    public void memDiskInMemoryTest()
+            throws IOException
+    {
+        File dir = Files.createTempDirectory("cache_test").toFile();
+        File cacheFile = new File(dir, "cache_0_0.data");
+        MemoryManager memoryManager = new MemoryManager(2 * 1024 * 1024, 0);
+        SpillableCachedMemory<Tuple2<Integer, String>> cachedMemory = new SpillableCachedMemory<>(encoder, BlockCodecs.lz4(),
+                new MemoryBlock(memoryManager, 1), cacheFile);
+        List<Tuple2<Integer, String>> rows = rows(1000);
+        rows.forEach(cachedMemory::append);
+        cachedMemory.finalCache();
+        Assert.assertFalse(cachedMemory.isOnDisk());
+        Assert.assertFalse(cacheFile.exists());
+        Assert.assertEquals(rows, MutableList.copy(cachedMemory.prepareIterator()));
+        cachedMemory.freeMemory();
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+        Assert.assertTrue(dir.delete());
+    }
+
+    @Test
+    public void evictToDiskTest()
+            throws IOException
+    {
+        File dir = Files.createTempDirectory("cache_test").toFile();
+        File cacheFile = new File(dir, "cache_0_0.data");
+        MemoryManager memoryManager = new MemoryManager(2 * 1024 * 1024, 0);
+        SpillableCachedMemory<Tuple2<Integer, String>> cachedMemory = new SpillableCachedMemory<>(encoder, BlockCodecs.lz4(),
+                new MemoryBlock(memoryManager, 1), cacheFile);
+        List<Tuple2<Integer, String>> rows = rows(1000);
+        rows.forEach(cachedMemory::append);
+        cachedMemory.finalCache();
+        Assert.assertEquals(1024 * 1024, cachedMemory.getMemorySize());
+
+        Assert.assertTrue(cachedMemory.evict());
+        Assert.assertTrue(cachedMemory.isOnDisk());
+        Assert.assertEquals(0, cachedMemory.getMemorySize());
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+        Assert.assertEquals(rows, MutableList.copy(cachedMemory.prepareIterator()));
+        cachedMemory.freeMemory();
+        Assert.assertTrue(dir.delete());
+    }
+}
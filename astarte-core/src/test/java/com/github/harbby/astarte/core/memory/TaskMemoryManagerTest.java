@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TaskMemoryManagerTest
+{
+    private static class TestConsumer
+            extends MemoryConsumer
+    {
+        private int spillCount;
+
+        private TestConsumer(TaskMemoryManager taskMemoryManager)
+        {
+            super(taskMemoryManager);
+        }
+
+        @Override
+        public long spill()
+        {
+            long used = getUsed();
+            freeMemory(used);
+            spillCount++;
+            return used;
+        }
+    }
+
+    @Test
+    public void spillLargestConsumerFirstTest()
+    {
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(100);
+        TestConsumer small = new TestConsumer(taskMemoryManager);
+        TestConsumer large = new TestConsumer(taskMemoryManager);
+        TestConsumer requester = new TestConsumer(taskMemoryManager);
+        Assert.assertEquals(20, small.acquireMemory(20));
+        Assert.assertEquals(70, large.acquireMemory(70));
+
+        Assert.assertEquals(50, requester.acquireMemory(50));
+        Assert.assertEquals(1, large.spillCount);
+        Assert.assertEquals(0, small.spillCount);
+        Assert.assertEquals(70, taskMemoryManager.getUsed());
+        Assert.assertEquals(1, taskMemoryManager.getSpillCount());
+        Assert.assertEquals(70, taskMemoryManager.getSpillBytes());
+    }
+
+    @Test
+    public void partialGrantTest()
+    {
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(100);
+        TestConsumer consumer = new TestConsumer(taskMemoryManager);
+        Assert.assertEquals(80, consumer.acquireMemory(80));
+        Assert.assertEquals(20, consumer.acquireMemory(50));
+        Assert.assertEquals(0, consumer.spillCount);
+        Assert.assertEquals(100, consumer.spill());
+        Assert.assertEquals(0, taskMemoryManager.getUsed());
+        Assert.assertEquals(0, taskMemoryManager.cleanUpAllMemory());
+    }
+
+    @Test
+    public void asyncSpillMetricsTest()
+    {
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(100);
+        taskMemoryManager.recordAsyncSpill(60, 5_000_000);
+        taskMemoryManager.recordSpillWait(2_000_000);
+        Assert.assertEquals(1, taskMemoryManager.getSpillCount());
+        Assert.assertEquals(60, taskMemoryManager.getSpillBytes());
+        Assert.assertEquals(5, taskMemoryManager.getSpillTimeMs());
+        Assert.assertEquals(2, taskMemoryManager.getSpillWaitTimeMs());
+
+        TestConsumer consumer = new TestConsumer(taskMemoryManager);
+        Assert.assertEquals(40, consumer.acquireMemory(40));
+        Assert.assertEquals(40, taskMemoryManager.spill(consumer));
+        Assert.assertEquals(2, taskMemoryManager.getSpillCount());
+        Assert.assertTrue(taskMemoryManager.getSpillWaitTimeMs() >= 2);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.HashPartitioner;
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.runtime.ShuffleFetchOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class BypassMergeShuffleWriterTest
+{
+    private static final int SHUFFLE_ID = 1;
+    private final Encoder<Tuple2<Integer, Long>> encoder = Encoders.tuple2(Encoders.jInt(), Encoders.jLong());
+
+    @Test
+    public void writeAndReadBackTest()
+            throws IOException
+    {
+        File dir = Files.createTempDirectory("shuffle_test").toFile();
+        //key % 4只有0和2, reduce 1和3为空; map 1没有任何数据
+        List<List<Tuple2<Integer, Long>>> mapInputs = new ArrayList<>();
+        mapInputs.add(rows(0, 10_000));
+        mapInputs.add(Collections.emptyList());
+        mapInputs.add(rows(10_000, 100));
+        try {
+            for (int mapId = 0; mapId < mapInputs.size(); mapId++) {
+                ByteBuffer header = write(dir, mapId, mapInputs.get(mapId));
+                long[] rowCounts = new long[4];
+                for (Tuple2<Integer, Long> row : mapInputs.get(mapId)) {
+                    rowCounts[row.key() % 4]++;
+                }
+                checkHeader(header, new File(dir, mergeName(mapId)), rowCounts);
+            }
+            //临时的分区文件在close()时删除, 只保留merged文件
+            Assert.assertEquals(mapInputs.size(), dir.list().length);
+
+            ShuffleClient shuffleClient = new ShuffleClient.LocalShuffleClient(dir);
+            for (int reduceId = 0; reduceId < 4; reduceId++) {
+                List<Tuple2<Integer, Long>> expected = new ArrayList<>();
+                for (List<Tuple2<Integer, Long>> mapInput : mapInputs) {
+                    for (Tuple2<Integer, Long> row : mapInput) {
+                        if (row.key() % 4 == reduceId) {
+                            expected.add(row);
+                        }
+                    }
+                }
+                Assert.assertEquals(sorted(expected), sorted(read(shuffleClient, reduceId, reduceId + 1)));
+            }
+            List<Tuple2<Integer, Long>> all = new ArrayList<>();
+            mapInputs.forEach(all::addAll);
+            Assert.assertEquals(sorted(all), sorted(read(shuffleClient, 0, 4)));
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                Assert.assertTrue(file.delete());
+            }
+            Assert.assertTrue(dir.delete());
+        }
+    }
+
+    private ByteBuffer write(File dir, int mapId, List<Tuple2<Integer, Long>> rows)
+            throws IOException
+    {
+        try (BypassMergeShuffleWriter<Integer, Long> writer = new BypassMergeShuffleWriter<>(dir, "shuffle_" + SHUFFLE_ID + "_" + mapId + "_",
+                mergeName(mapId), new HashPartitioner(4), encoder, BlockCodecs.lz4())) {
+            return writer.write(rows.iterator());
+        }
+    }
+
+    /**
+     * header格式: int分区数 + byte压缩方式 + 每个分区的(long段结束位置, long行数)
+     */
+    private static void checkHeader(ByteBuffer header, File mergeFile, long[] rowCounts)
+    {
+        Assert.assertEquals(rowCounts.length, header.getInt());
+        Assert.assertEquals(BlockCodecs.lz4().getId(), header.get());
+        long lastEnd = 0;
+        for (long rowCount : rowCounts) {
+            long segmentEnd = header.getLong();
+            Assert.assertEquals(rowCount, header.getLong());
+            //空分区不占用空间
+            Assert.assertEquals(rowCount == 0, segmentEnd == lastEnd);
+            lastEnd = segmentEnd;
+        }
+        Assert.assertFalse(header.hasRemaining());
+        Assert.assertEquals(header.capacity() + lastEnd, mergeFile.length());
+    }
+
+    private List<Tuple2<Integer, Long>> read(ShuffleClient shuffleClient, int startReduceId, int endReduceId)
+            throws IOException
+    {
+        List<Tuple2<Integer, Long>> rows = new ArrayList<>();
+        Iterator<Tuple2<Integer, Long>> iterator = shuffleClient.createUnorderedShuffleReader(encoder, SHUFFLE_ID, startReduceId, endReduceId,
+                ShuffleFetchOptions.DEFAULT);
+        iterator.forEachRemaining(rows::add);
+        return rows;
+    }
+
+    private static String mergeName(int mapId)
+    {
+        return "shuffle_merged_" + SHUFFLE_ID + "_" + mapId + ".data";
+    }
+
+    private static List<Tuple2<Integer, Long>> rows(int start, int count)
+    {
+        List<Tuple2<Integer, Long>> rows = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            rows.add(Tuple2.of(i * 2, (long) i));
+        }
+        return rows;
+    }
+
+    private static List<String> sorted(List<Tuple2<Integer, Long>> rows)
+    {
+        List<String> values = new ArrayList<>();
+        for (Tuple2<Integer, Long> row : rows) {
+            values.add(row.key() + "=" + row.value());
+        }
+        Collections.sort(values);
+        return values;
+    }
+}
@@ -72,6 +72,42 @@ public class CacheManagerTest
         Assert.assertFalse(CacheManager.cacheDone(dataSet.getId()));
     }
 
+    @Test
+    public void cacheModeTest()
+    {
+        for (CacheManager.CacheMode cacheMode : CacheManager.CacheMode.values()) {
+            DataSet<String> dataSet = mppContext.makeDataSet(Arrays.asList("1", "2", "3"), 2)
+                    .map(x -> x).encoder(Encoders.UTF8String());
+            dataSet.cache(cacheMode);
+            Assert.assertEquals(Arrays.asList("1", "2", "3"), dataSet.collect());
+            Assert.assertTrue(CacheManager.cacheDone(dataSet.getId()));
+            Assert.assertEquals(Arrays.asList("1", "2", "3"), dataSet.collect());
+            dataSet.unCache();
+            Assert.assertFalse(CacheManager.cacheDone(dataSet.getId()));
+        }
+    }
+
+    @Test
+    public void evictAndRecomputeTest()
+    {
+        List<String> data = Arrays.asList("1", "2", "3");
+        DataSet<String> dataSet = mppContext.makeDataSet(data, 2)
+                .map(x -> x).encoder(Encoders.UTF8String());
+        dataSet.cache();
+        Assert.assertEquals(data, dataSet.collect());
+        CacheManager.CacheMetrics metrics = CacheManager.getCacheMetrics(dataSet.getId());
+        Assert.assertEquals(2, metrics.getMissCount());
+        Assert.assertEquals(data, dataSet.collect());
+        Assert.assertEquals(2, metrics.getHitCount());
+
+        //MEM_ONLY的分区驱逐后根据血缘重新计算
+        Assert.assertTrue(CacheManager.evictStorage(Long.MAX_VALUE, -1) > 0);
+        Assert.assertEquals(2, metrics.getEvictCount());
+        Assert.assertEquals(data, dataSet.collect());
+        Assert.assertEquals(4, metrics.getMissCount());
+        dataSet.unCache();
+    }
+
     @Test
     public void cacheTest1()
     {
@@ -16,15 +16,28 @@
 package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
 import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.runtime.ShuffleClient;
 import com.github.harbby.gadtry.base.Iterators;
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class JoinOperatorTest
 {
@@ -259,4 +272,53 @@ public class JoinOperatorTest
 //        ds.mapKeys(x -> x).join(ds).print();
 //        ds.unCache();
     }
+
+    @Test
+    public void coalescedShuffleJoinTest()
+            throws IOException
+    {
+        //hash分区后reduce 1中的key小于reduce 0中的key, 合并后的task不能把多个reduce分区当作一个有序流join
+        List<Tuple2<Integer, String>> leftData = new ArrayList<>();
+        List<Tuple2<Integer, String>> rightData = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            leftData.add(Tuple2.of(i, "l" + i));
+            if (i % 3 == 0) {
+                rightData.add(Tuple2.of(i, "r" + i));
+                expected.add(i + "=l" + i + ",r" + i);
+            }
+        }
+        KvDataSet<Integer, String> left = mppContext.makeKvDataSet(leftData, 2);
+        KvDataSet<Integer, String> right = mppContext.makeKvDataSet(rightData, 2);
+        ShuffleJoinOperator<Integer, String, String> join = (ShuffleJoinOperator<Integer, String, String>) Operator.unboxing(
+                (Operator<Tuple2<Integer, Tuple2<String, String>>>) left.join(right));
+        Assert.assertEquals(2, join.numPartitions());
+
+        File dir = Files.createTempDirectory("shuffle_test").toFile();
+        try {
+            ShuffleClient shuffleClient = new ShuffleClient.LocalShuffleClient(dir);
+            //依次执行两侧的map stage, shuffleId即stageId
+            Map<Integer, Integer> dependStages = new HashMap<>();
+            int stageId = 1;
+            for (Operator<?> dependency : join.getDependencies()) {
+                ShuffleMapOperator<?, ?> shuffleMapOperator = (ShuffleMapOperator<?, ?>) dependency;
+                for (Partition partition : shuffleMapOperator.getPartitions()) {
+                    shuffleMapOperator.doMapTask(partition, TaskContext.of(1, stageId, Collections.emptyMap(), shuffleClient, dir,
+                            new TaskMemoryManager(8 * 1024 * 1024)));
+                }
+                dependStages.put(shuffleMapOperator.getId(), stageId++);
+            }
+            //一个task读取合并后的全部reduce分区
+            TaskContext taskContext = TaskContext.of(1, stageId, dependStages, shuffleClient, dir, new TaskMemoryManager(8 * 1024 * 1024));
+            List<String> result = new ArrayList<>();
+            join.compute(new CoalescedPartition(0, 0, 2), taskContext)
+                    .forEachRemaining(row -> result.add(row.key() + "=" + row.value().key() + "," + row.value().value()));
+            Collections.sort(expected);
+            Collections.sort(result);
+            Assert.assertEquals(expected, result);
+        }
+        finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
 }
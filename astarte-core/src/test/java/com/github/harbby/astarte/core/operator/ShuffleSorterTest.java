@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.OrderedEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class ShuffleSorterTest
+{
+    private final Encoder<Tuple2<String, Integer>> encoder = Encoders.tuple2(Encoders.UTF8String(), Encoders.jInt());
+
+    @Test
+    public void sortByPartitionAndKeyTest()
+            throws IOException
+    {
+        Random random = new Random(0);
+        List<Tuple2<Integer, Tuple2<String, Integer>>> expected = new ArrayList<>();
+        try (ShuffleSorter<String, Integer> sorter = new ShuffleSorter<>(encoder, String::compareTo)) {
+            for (int i = 0; i < 10_000; i++) {
+                int partition = random.nextInt(7);
+                Tuple2<String, Integer> kv = Tuple2.of("key" + random.nextInt(1000), i);
+                sorter.insert(partition, kv);
+                expected.add(Tuple2.of(partition, kv));
+            }
+            expected.sort((x, y) -> {
+                int than = Integer.compare(x.key(), y.key());
+                return than != 0 ? than : x.value().key().compareTo(y.value().key());
+            });
+            sorter.sort();
+            int[] offsets = sorter.partitionOffsets(7);
+            Assert.assertEquals(10_000, offsets[7]);
+            Iterator<Tuple2<String, Integer>> iterator = sorter.iterator(0, sorter.numRecords());
+            for (int i = 0; i < expected.size(); i++) {
+                Tuple2<String, Integer> kv = iterator.next();
+                Assert.assertEquals(expected.get(i).key().intValue(), sorter.getPartition(i));
+                Assert.assertEquals(expected.get(i).value().key(), kv.key());
+            }
+            Assert.assertFalse(iterator.hasNext());
+            for (int partition = 0; partition < 7; partition++) {
+                for (int i = offsets[partition]; i < offsets[partition + 1]; i++) {
+                    Assert.assertEquals(partition, sorter.getPartition(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void resetReleaseLargeArrayTest()
+            throws IOException
+    {
+        try (ShuffleSorter<String, Integer> sorter = new ShuffleSorter<>(encoder, String::compareTo)) {
+            for (int i = 0; i < 100_000; i++) {
+                sorter.insert(0, Tuple2.of("key" + i, i));
+            }
+            Assert.assertTrue(sorter.getMemoryUsage() > 1024 * 1024 * 2);
+            //溢写后只保留不超过一个page的指针数组, 不会一直占用task的内存预算
+            sorter.reset();
+            Assert.assertTrue(sorter.getMemoryUsage() <= 1024 * 1024);
+            Assert.assertTrue(sorter.isEmpty());
+        }
+    }
+
+    @Test
+    public void sortByPartitionOnlyTest()
+            throws IOException
+    {
+        Random random = new Random(0);
+        List<Tuple2<Integer, Tuple2<String, Integer>>> expected = new ArrayList<>();
+        //没有comparator时只按分区排序, 同一分区内保持写入顺序
+        try (ShuffleSorter<String, Integer> sorter = new ShuffleSorter<>(encoder, null)) {
+            for (int i = 0; i < 10_000; i++) {
+                int partition = random.nextInt(7);
+                Tuple2<String, Integer> kv = Tuple2.of("key" + random.nextInt(1000), i);
+                sorter.insert(partition, kv);
+                expected.add(Tuple2.of(partition, kv));
+            }
+            expected.sort((x, y) -> Integer.compare(x.key(), y.key()));
+            sorter.sort();
+            Assert.assertEquals(10_000, sorter.partitionOffsets(7)[7]);
+            Iterator<Tuple2<String, Integer>> iterator = sorter.iterator(0, sorter.numRecords());
+            for (int i = 0; i < expected.size(); i++) {
+                Tuple2<String, Integer> kv = iterator.next();
+                Assert.assertEquals(expected.get(i).key().intValue(), sorter.getPartition(i));
+                Assert.assertEquals(expected.get(i).value().key(), kv.key());
+                Assert.assertEquals(expected.get(i).value().value(), kv.value());
+            }
+            Assert.assertFalse(iterator.hasNext());
+        }
+    }
+
+    @Test
+    public void writeRawRecordTest()
+            throws IOException
+    {
+        try (ShuffleSorter<String, Integer> sorter = new ShuffleSorter<>(encoder, String::compareTo)) {
+            sorter.insert(1, Tuple2.of("b", 2));
+            sorter.insert(0, Tuple2.of("c", 3));
+            sorter.insert(1, Tuple2.of("a", 1));
+            sorter.sort();
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            for (int i = 0; i < sorter.numRecords(); i++) {
+                sorter.writeRecord(i, outputStream);
+            }
+            DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+            Assert.assertEquals(Tuple2.of("c", 3), encoder.decoder(dataInput));
+            Assert.assertEquals(Tuple2.of("a", 1), encoder.decoder(dataInput));
+            Assert.assertEquals(Tuple2.of("b", 2), encoder.decoder(dataInput));
+            Assert.assertEquals(0, dataInput.available());
+
+            sorter.reset();
+            Assert.assertTrue(sorter.isEmpty());
+            sorter.insert(0, Tuple2.of("d", 4));
+            sorter.sort();
+            Assert.assertEquals(Tuple2.of("d", 4), sorter.readRecord(0));
+        }
+    }
+
+    @Test
+    public void sortWithOrderedKeyEncoderTest()
+            throws IOException
+    {
+        Random random = new Random(0);
+        String chars = "ab\u0000\u00e9\u4e2d\ud83d\ude00";
+        List<String> expected = new ArrayList<>();
+        OrderedEncoder<String> keyEncoder = OrderedEncoder.getOrderedKeyEncoder(encoder, Encoders.UTF8String().comparator());
+        Assert.assertNotNull(keyEncoder);
+        try (ShuffleSorter<String, Integer> sorter = new ShuffleSorter<>(encoder, Encoders.UTF8String().comparator(), keyEncoder)) {
+            for (int i = 0; i < 10_000; i++) {
+                StringBuilder key = new StringBuilder();
+                for (int j = random.nextInt(8); j > 0; j--) {
+                    key.append(chars.charAt(random.nextInt(chars.length())));
+                }
+                sorter.insert(0, Tuple2.of(key.toString(), i));
+                expected.add(key.toString());
+            }
+            expected.sort(Comparator.naturalOrder());
+            sorter.sort();
+            Iterator<Tuple2<String, Integer>> iterator = sorter.iterator(0, sorter.numRecords());
+            for (String key : expected) {
+                Assert.assertEquals(key, iterator.next().key());
+            }
+        }
+
+        Encoder<Tuple2<Long, Integer>> longEncoder = Encoders.tuple2(Encoders.jLong(), Encoders.jInt());
+        try (ShuffleSorter<Long, Integer> sorter = new ShuffleSorter<>(longEncoder, Encoders.jLong().comparator(),
+                OrderedEncoder.getOrderedKeyEncoder(longEncoder, Encoders.jLong().comparator()))) {
+            long[] keys = random.longs(1000).toArray();
+            for (long key : keys) {
+                sorter.insert(0, Tuple2.of(key, 0));
+            }
+            Arrays.sort(keys);
+            sorter.sort();
+            for (int i = 0; i < keys.length; i++) {
+                Assert.assertEquals(keys[i], sorter.readRecord(i).key().longValue());
+            }
+        }
+    }
+}
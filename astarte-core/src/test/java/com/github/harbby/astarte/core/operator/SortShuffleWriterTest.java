@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.HashPartitioner;
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.runtime.ShuffleFetchOptions;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class SortShuffleWriterTest
+{
+    @Test
+    public void closeWaitInterruptedAsyncSpillTest()
+            throws Exception
+    {
+        File dir = Files.createTempDirectory("shuffle_test").toFile();
+        CountDownLatch sorting = new CountDownLatch(1);
+        CountDownLatch releaseSort = new CountDownLatch(1);
+        //后台溢写排序时阻塞, 直到测试放行
+        Comparator<Integer> comparator = (x, y) -> {
+            sorting.countDown();
+            try {
+                releaseSort.await();
+            }
+            catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return Integer.compare(x, y);
+        };
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(8 * 1024 * 1024);
+        SortShuffleWriter<Integer, Integer> writer = new SortShuffleWriter<>(dir, "test_",
+                headerSize -> MergedOutput.ofFile(new File(dir, "merged.data"), headerSize), new HashPartitioner(2), Encoders.tuple2(Encoders.jInt(), Encoders.jInt()), comparator, null, null, false, true,
+                BlockCodecs.none(), taskMemoryManager);
+        Iterator<Tuple2<Integer, Integer>> iterator = new Iterator<Tuple2<Integer, Integer>>()
+        {
+            private int number;
+
+            @Override
+            public boolean hasNext()
+            {
+                //第一次溢写开始后模拟kill task, 下一次等待溢写时被中断
+                if (sorting.getCount() == 0 && !Thread.currentThread().isInterrupted()) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            public Tuple2<Integer, Integer> next()
+            {
+                number++;
+                return Tuple2.of(number, number);
+            }
+        };
+        try {
+            writer.write(iterator);
+            Assert.fail();
+        }
+        catch (InterruptedIOException ignored) {
+        }
+        Thread releaseThread = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException ignored) {
+            }
+            releaseSort.countDown();
+        });
+        releaseThread.start();
+        try {
+            writer.close();
+        }
+        finally {
+            //close()不能清除task线程的中断标记
+            Assert.assertTrue(Thread.interrupted());
+        }
+        //close()等待后台溢写结束后才释放缓冲区和删除溢写文件
+        Assert.assertEquals(0, releaseSort.getCount());
+        Assert.assertEquals(0, taskMemoryManager.getUsed());
+        Assert.assertArrayEquals(new String[0], dir.list());
+        Assert.assertTrue(dir.delete());
+    }
+
+    @Test
+    public void unorderedWriteWithSpillTest()
+            throws Exception
+    {
+        File dir = Files.createTempDirectory("shuffle_test").toFile();
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(4 * 1024 * 1024);
+        //没有comparator时只按分区排序, 多个溢写文件直接拼接
+        SortShuffleWriter<Integer, Integer> writer = new SortShuffleWriter<>(dir, "test_",
+                headerSize -> MergedOutput.ofFile(new File(dir, String.format(SortShuffleWriter.MERGE_FILE_NAME, 1, 0)), headerSize),
+                new HashPartitioner(3), Encoders.tuple2(Encoders.jInt(), Encoders.jInt()), null, null, null, false, false,
+                BlockCodecs.lz4(), taskMemoryManager);
+        int rows = 300_000;
+        try {
+            List<Tuple2<Integer, Integer>> input = new ArrayList<>(rows);
+            for (int i = 0; i < rows; i++) {
+                input.add(Tuple2.of(i, -i));
+            }
+            writer.write(input.iterator());
+            Assert.assertTrue(taskMemoryManager.getSpillCount() > 0);
+            writer.close();
+
+            ShuffleClient shuffleClient = new ShuffleClient.LocalShuffleClient(dir);
+            long count = 0;
+            for (int reduceId = 0; reduceId < 3; reduceId++) {
+                Iterator<Tuple2<Integer, Integer>> iterator = shuffleClient.createUnorderedShuffleReader(
+                        Encoders.tuple2(Encoders.jInt(), Encoders.jInt()), 1, reduceId, reduceId + 1, ShuffleFetchOptions.DEFAULT);
+                while (iterator.hasNext()) {
+                    Tuple2<Integer, Integer> kv = iterator.next();
+                    Assert.assertEquals(reduceId, kv.key() % 3);
+                    Assert.assertEquals(-kv.key(), kv.value().intValue());
+                    count++;
+                }
+            }
+            Assert.assertEquals(rows, count);
+        }
+        finally {
+            writer.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FetchSchedulerTest
+{
+    private static final InetSocketAddress ADDRESS = InetSocketAddress.createUnresolved("localhost", 1);
+
+    @Test
+    public void inFlightLimitTest()
+            throws IOException
+    {
+        RecordingTransport transport = new RecordingTransport();
+        FetchScheduler scheduler = new FetchScheduler(transport, new ShuffleFetchOptions(1000, 2));
+        List<ShuffleBlockStream> streams = new ArrayList<>();
+        for (int mapId = 0; mapId < 5; mapId++) {
+            ShuffleBlockStream stream = new ShuffleBlockStream(1, 0, mapId, scheduler);
+            streams.add(stream);
+            scheduler.register(ADDRESS, stream);
+        }
+        try {
+            //最多2个在途请求
+            scheduler.schedule();
+            Assert.assertEquals(streams.subList(0, 2), transport.sent);
+            scheduler.schedule();
+            Assert.assertEquals(2, transport.sent.size());
+            streams.get(0).finish();
+            scheduler.schedule();
+            Assert.assertEquals(streams.subList(0, 3), transport.sent);
+
+            //已下载未读取的字节数达到上限时不再发送新的请求
+            ShuffleBlockStream stream = streams.get(1);
+            List<Integer> credits = new ArrayList<>();
+            stream.setCreditSender(credits::add);
+            Assert.assertEquals(500, stream.getCreditWindow());
+            stream.push(Unpooled.wrappedBuffer(new byte[600]));
+            stream.push(Unpooled.wrappedBuffer(new byte[600]));
+            streams.get(2).finish();
+            scheduler.schedule();
+            Assert.assertEquals(3, transport.sent.size());
+
+            //读取的数据归还给服务端, 消费到一半以下时才发送排队的请求
+            stream.readFully(new byte[600]);
+            Assert.assertEquals(Collections.singletonList(600), credits);
+            Assert.assertEquals(3, transport.sent.size());
+            stream.readFully(new byte[600]);
+            Assert.assertEquals(Arrays.asList(600, 600), credits);
+            Assert.assertEquals(streams.subList(0, 4), transport.sent);
+            stream.finish();
+            Assert.assertFalse(stream.hasRemaining());
+            scheduler.schedule();
+            Assert.assertEquals(streams, transport.sent);
+            Assert.assertEquals(1200, scheduler.getFetchedBytes());
+        }
+        finally {
+            for (ShuffleBlockStream stream : streams) {
+                stream.close();
+            }
+            scheduler.close();
+            transport.close();
+        }
+    }
+
+    /**
+     * 只记录发送的请求, 不建立连接
+     */
+    private static class RecordingTransport
+            extends ShuffleTransport
+    {
+        private final List<ShuffleBlockStream> sent = new ArrayList<>();
+
+        private RecordingTransport()
+        {
+            super(1);
+        }
+
+        @Override
+        public void fetchBlocks(InetSocketAddress address, List<ShuffleBlockStream> blocks)
+        {
+            sent.addAll(blocks);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.operator.MergedOutput;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class LocalShuffleExchangeTest
+{
+    @Test
+    public void keepMapOutputInMemoryTest()
+            throws IOException
+    {
+        LocalShuffleExchange exchange = new LocalShuffleExchange(1024 * 1024);
+        File file = new File(System.getProperty("java.io.tmpdir"), "shuffle_merged_1_0.data");
+        try (MergedOutput output = exchange.createOutput(1, 0, file, headerSize(2))) {
+            output.write(new byte[] {1, 2, 3});
+            output.write(new byte[] {4, 5});
+            output.commit(header(output.position() - 2, 3, output.position(), 2));
+        }
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(5, exchange.getMemoryUsed());
+
+        Map<Integer, LocalShuffleExchange.MapOutputBuffer> mapOutputs = exchange.getMapOutputs(1);
+        Assert.assertEquals(1, mapOutputs.size());
+        LocalShuffleExchange.MapOutputBuffer mapOutput = mapOutputs.get(0);
+        Assert.assertEquals(5, mapOutput.getRowCount(0, 2));
+        try (InputStream inputStream = mapOutput.openSegments(1, 2)) {
+            Assert.assertEquals(4, inputStream.read());
+            Assert.assertEquals(5, inputStream.read());
+            Assert.assertEquals(-1, inputStream.read());
+        }
+
+        exchange.release(1);
+        Assert.assertTrue(exchange.getMapOutputs(1).isEmpty());
+        Assert.assertEquals(0, exchange.getMemoryUsed());
+    }
+
+    @Test
+    public void fallbackToFileTest()
+            throws IOException
+    {
+        LocalShuffleExchange exchange = new LocalShuffleExchange(64 * 1024);
+        File file = File.createTempFile("shuffle_merged_2_0", ".data");
+        int headerSize = headerSize(1);
+        byte[] data = new byte[100 * 1024];
+        try (MergedOutput output = exchange.createOutput(2, 0, file, headerSize)) {
+            output.write(data, 0, 1024);
+            output.write(data, 1024, data.length - 1024);
+            Assert.assertEquals(0, exchange.getMemoryUsed());
+            output.commit(header(output.position(), 10));
+        }
+        Assert.assertTrue(exchange.getMapOutputs(2).isEmpty());
+        Assert.assertEquals(headerSize + data.length, file.length());
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+            Assert.assertEquals(1, inputStream.readInt());
+            Assert.assertEquals(BlockCodecs.none().getId(), inputStream.readByte());
+            Assert.assertEquals(data.length, inputStream.readLong());
+            Assert.assertEquals(10, inputStream.readLong());
+        }
+        finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+
+    private static int headerSize(int segmentSize)
+    {
+        return Integer.BYTES + Byte.BYTES + segmentSize * Long.BYTES * 2;
+    }
+
+    private static ByteBuffer header(long... segments)
+    {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(segments.length / 2));
+        header.putInt(segments.length / 2);
+        header.put(BlockCodecs.none().getId());
+        for (long value : segments) {
+            header.putLong(value);
+        }
+        header.flip();
+        return header;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class MappedShuffleFileReaderTest
+{
+    private final Encoder<Long> encoder = Encoders.jLong();
+
+    @Test
+    public void readMappedAndSmallSegmentsTest()
+            throws IOException
+    {
+        //reduce 0足够大走mmap, reduce 1小于阈值直接读取, reduce 2为空
+        long[][] partitions = new long[][] {randomLongs(50_000, 0), randomLongs(10, 1), new long[0]};
+        File file = writeMergedFile(BlockCodecs.lz4(), partitions);
+        MappedShuffleFileReader reader = new MappedShuffleFileReader();
+        Assert.assertTrue(file.length() > MappedShuffleFileReader.MMAP_THRESHOLD);
+        try {
+            Assert.assertArrayEquals(partitions[0], toArray(reader.open(file, 0, 1, encoder)));
+            Assert.assertArrayEquals(partitions[1], toArray(reader.open(file, 1, 2, encoder)));
+            Assert.assertNull(reader.open(file, 2, 3, encoder));
+
+            long[] all = toArray(reader.open(file, 0, 3, encoder));
+            Assert.assertEquals(partitions[0].length + partitions[1].length, all.length);
+            Assert.assertEquals(partitions[1][9], all[all.length - 1]);
+        }
+        finally {
+            Assert.assertTrue(file.delete());
+        }
+    }
+
+    private File writeMergedFile(BlockCodec codec, long[][] partitions)
+            throws IOException
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long[] segmentEnds = new long[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i].length > 0) {
+                DataOutputStream outputStream = new DataOutputStream(new BlockCompressOutputStream(data, codec));
+                for (long value : partitions[i]) {
+                    encoder.encoder(value, outputStream);
+                }
+                outputStream.close();
+            }
+            segmentEnds[i] = data.size();
+        }
+        File file = File.createTempFile("shuffle_merged_1_0", ".data");
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file))) {
+            outputStream.writeInt(partitions.length);
+            outputStream.writeByte(codec.getId());
+            for (int i = 0; i < partitions.length; i++) {
+                outputStream.writeLong(segmentEnds[i]);
+                outputStream.writeLong(partitions[i].length);
+            }
+            data.writeTo(outputStream);
+        }
+        return file;
+    }
+
+    private static long[] randomLongs(int size, long seed)
+    {
+        return new Random(seed).longs(size).toArray();
+    }
+
+    private static long[] toArray(Iterator<Long> iterator)
+    {
+        List<Long> values = new ArrayList<>();
+        iterator.forEachRemaining(values::add);
+        return values.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Partition;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PartitionCoalescerTest
+{
+    @Test
+    public void coalesceAdjacentSmallPartitionsTest()
+    {
+        Partition[] partitions = PartitionCoalescer.coalesce(new long[] {10, 20, 30, 100, 5, 5, 0}, 60);
+        Assert.assertEquals(3, partitions.length);
+        assertRange(partitions[0], 0, 0, 3);
+        assertRange(partitions[1], 1, 3, 4);
+        assertRange(partitions[2], 2, 4, 7);
+    }
+
+    @Test
+    public void coalesceAllPartitionsTest()
+    {
+        Partition[] partitions = PartitionCoalescer.coalesce(new long[] {0, 0, 0, 0}, 64);
+        Assert.assertEquals(1, partitions.length);
+        assertRange(partitions[0], 0, 0, 4);
+    }
+
+    private static void assertRange(Partition partition, int index, int startReduceId, int endReduceId)
+    {
+        Assert.assertEquals(index, partition.getId());
+        Assert.assertEquals(startReduceId, CoalescedPartition.startReduceId(partition));
+        Assert.assertEquals(endReduceId, CoalescedPartition.endReduceId(partition));
+    }
+}
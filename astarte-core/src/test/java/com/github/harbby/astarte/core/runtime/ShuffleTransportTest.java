@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodec;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.coders.io.BlockCompressOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ShuffleTransportTest
+{
+    private static final int SHUFFLE_ID = 1;
+    private final Encoder<Long> encoder = Encoders.jLong();
+
+    @Test
+    public void fetchManyBlocksOnOneConnectionTest()
+            throws Exception
+    {
+        ShuffleManagerService service = new ShuffleManagerService();
+        //只有一个连接, 每次最多4个在途请求, 其余请求在客户端排队
+        ShuffleTransport transport = new ShuffleTransport(1, 1, 4);
+        try {
+            //reduce 2在每个map中都为空
+            long[][][] data = new long[3][5][];
+            for (int mapId = 0; mapId < data.length; mapId++) {
+                for (int reduceId = 0; reduceId < data[mapId].length; reduceId++) {
+                    data[mapId][reduceId] = reduceId == 2 ? new long[0] : randomLongs(1000 * (reduceId + 1), mapId * 10 + reduceId);
+                }
+                writeMergedFile(service, mapId, BlockCodecs.lz4(), data[mapId]);
+            }
+            List<ShuffleBlockStream> streams = new ArrayList<>();
+            for (int mapId = 0; mapId < data.length; mapId++) {
+                for (int reduceId = 0; reduceId < data[mapId].length; reduceId++) {
+                    streams.add(new ShuffleBlockStream(SHUFFLE_ID, reduceId, mapId));
+                }
+            }
+            transport.fetchBlocks(address(service), streams);
+            //按相反顺序读取, 先到达的响应在各自的stream中缓存
+            for (int i = streams.size() - 1; i >= 0; i--) {
+                ShuffleBlockStream stream = streams.get(i);
+                Assert.assertArrayEquals(data[stream.getMapId()][stream.getReduceId()], read(stream));
+            }
+        }
+        finally {
+            transport.close();
+            service.stop();
+            FileUtils.deleteDirectory(service.getShuffleBaseDir());
+        }
+    }
+
+    @Test
+    public void fetchMissingBlockTest()
+            throws Exception
+    {
+        ShuffleManagerService service = new ShuffleManagerService();
+        ShuffleTransport transport = new ShuffleTransport(1, 1, 4);
+        try {
+            long[][] data = new long[][] {randomLongs(100, 0), randomLongs(100, 1)};
+            writeMergedFile(service, 0, BlockCodecs.lz4(), data);
+            //map 1不存在, 服务端返回length = -1
+            ShuffleBlockStream missing = new ShuffleBlockStream(SHUFFLE_ID, 0, 1);
+            List<ShuffleBlockStream> streams = Arrays.asList(
+                    new ShuffleBlockStream(SHUFFLE_ID, 0, 0),
+                    missing,
+                    new ShuffleBlockStream(SHUFFLE_ID, 1, 0));
+            transport.fetchBlocks(address(service), streams);
+            try {
+                read(missing);
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertTrue(e.getMessage().contains(missing.toString()));
+            }
+            //同一个连接上的其他请求不受影响
+            Assert.assertArrayEquals(data[0], read(streams.get(0)));
+            Assert.assertArrayEquals(data[1], read(streams.get(2)));
+
+            ShuffleBlockStream stream = transport.fetchBlock(address(service), SHUFFLE_ID, 1, 0);
+            Assert.assertArrayEquals(data[1], read(stream));
+        }
+        finally {
+            transport.close();
+            service.stop();
+            FileUtils.deleteDirectory(service.getShuffleBaseDir());
+        }
+    }
+
+    @Test
+    public void fetchDeletedFileTest()
+            throws Exception
+    {
+        ShuffleManagerService service = new ShuffleManagerService();
+        ShuffleTransport transport = new ShuffleTransport(1, 1, 4);
+        try {
+            long[][] data = new long[][] {randomLongs(100, 0), randomLongs(100, 1)};
+            writeMergedFile(service, 0, BlockCodecs.lz4(), data);
+            //第一次请求后服务端缓存了文件header
+            Assert.assertArrayEquals(data[0], read(transport.fetchBlock(address(service), SHUFFLE_ID, 0, 0)));
+            File file = new File(service.getShuffleBaseDir(), String.format("shuffle_merged_%s_%s.data", SHUFFLE_ID, 0));
+            Assert.assertTrue(file.delete());
+            //文件被删除后请求以失败结束, 读取端不会一直等待
+            ShuffleBlockStream stream = transport.fetchBlock(address(service), SHUFFLE_ID, 1, 0);
+            try {
+                read(stream);
+                Assert.fail();
+            }
+            catch (IOException ignored) {
+            }
+        }
+        finally {
+            transport.close();
+            service.stop();
+            FileUtils.deleteDirectory(service.getShuffleBaseDir());
+        }
+    }
+
+    @Test
+    public void slowBlockDoesNotBlockConnectionTest()
+            throws Exception
+    {
+        ShuffleManagerService service = new ShuffleManagerService();
+        ShuffleTransport transport = new ShuffleTransport(1, 1, 4);
+        //每个block最多有256KB未读取的数据
+        FetchScheduler scheduler = new FetchScheduler(transport, new ShuffleFetchOptions(1024 * 1024, 4));
+        try {
+            long[][] data = new long[][] {randomLongs(500_000, 0), randomLongs(1000, 1)};
+            writeMergedFile(service, 0, BlockCodecs.lz4(), data);
+            ShuffleBlockStream slow = new ShuffleBlockStream(SHUFFLE_ID, 0, 0, scheduler);
+            ShuffleBlockStream fast = new ShuffleBlockStream(SHUFFLE_ID, 1, 0, scheduler);
+            scheduler.register(address(service), slow);
+            scheduler.register(address(service), fast);
+            scheduler.schedule();
+            //两个block在同一个连接上, slow没有读取时fast也能下载完成
+            Assert.assertArrayEquals(data[1], read(fast));
+            //slow只下载了credit范围内的数据, 最多超出一个压缩块
+            Assert.assertTrue(scheduler.getBufferedBytes() > 0);
+            Assert.assertTrue(scheduler.getBufferedBytes() <= scheduler.getStreamCreditWindow() + BlockCodecs.DEFAULT_BLOCK_SIZE);
+            Assert.assertArrayEquals(data[0], read(slow));
+        }
+        finally {
+            scheduler.close();
+            transport.close();
+            service.stop();
+            FileUtils.deleteDirectory(service.getShuffleBaseDir());
+        }
+    }
+
+    @Test
+    public void connectionClosedWithPendingRequestsTest()
+            throws Exception
+    {
+        ShuffleTransport transport = new ShuffleTransport(1, 1, 4);
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            //收到一个请求后不返回任何数据直接关闭连接
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                    inputStream.readFully(new byte[inputStream.readInt()]);
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            serverThread.start();
+            List<ShuffleBlockStream> streams = Arrays.asList(
+                    new ShuffleBlockStream(SHUFFLE_ID, 0, 0),
+                    new ShuffleBlockStream(SHUFFLE_ID, 1, 0),
+                    new ShuffleBlockStream(SHUFFLE_ID, 2, 0));
+            transport.fetchBlocks(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()), streams);
+            serverThread.join();
+            //所有等待响应的stream都以失败结束, 读取端不会一直阻塞
+            for (ShuffleBlockStream stream : streams) {
+                try {
+                    read(stream);
+                    Assert.fail();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+        finally {
+            transport.close();
+        }
+    }
+
+    private static InetSocketAddress address(ShuffleManagerService service)
+    {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), service.getShuffleServiceBindAddress().getPort());
+    }
+
+    private long[] read(ShuffleBlockStream stream)
+            throws IOException
+    {
+        List<Long> values = new ArrayList<>();
+        try {
+            while (stream.hasRemaining()) {
+                values.add(encoder.decoder(stream));
+            }
+        }
+        finally {
+            stream.close();
+        }
+        return values.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private void writeMergedFile(ShuffleManagerService service, int mapId, BlockCodec codec, long[][] partitions)
+            throws IOException
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        long[] segmentEnds = new long[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i].length > 0) {
+                DataOutputStream outputStream = new DataOutputStream(new BlockCompressOutputStream(data, codec));
+                for (long value : partitions[i]) {
+                    encoder.encoder(value, outputStream);
+                }
+                outputStream.close();
+            }
+            segmentEnds[i] = data.size();
+        }
+        File dir = service.getShuffleBaseDir();
+        Assert.assertTrue(dir.isDirectory() || dir.mkdirs());
+        File file = new File(dir, String.format("shuffle_merged_%s_%s.data", SHUFFLE_ID, mapId));
+        try (DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file))) {
+            outputStream.writeInt(partitions.length);
+            outputStream.writeByte(codec.getId());
+            for (int i = 0; i < partitions.length; i++) {
+                outputStream.writeLong(segmentEnds[i]);
+                outputStream.writeLong(partitions[i].length);
+            }
+            data.writeTo(outputStream);
+        }
+    }
+
+    private static long[] randomLongs(int size, long seed)
+    {
+        return new Random(seed).longs(size).toArray();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.utils.ReduceUtil;
+import com.github.harbby.gadtry.collection.MutableList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class SkewedPartitionSplitterTest
+{
+    private static final int LEFT_ID = 1;
+    private static final int RIGHT_ID = 2;
+
+    @Test
+    public void detectSkewTest()
+    {
+        long[] reduceSizes = {10, 12, 8, 100, 11, 9};
+        boolean[] skewed = SkewedPartitionSplitter.detectSkew(reduceSizes, 5, 50);
+        Assert.assertArrayEquals(new boolean[] {false, false, false, true, false, false}, skewed);
+        //没有超过绝对阈值
+        Assert.assertNull(SkewedPartitionSplitter.detectSkew(reduceSizes, 5, 100));
+        //没有超过中位数的倍数
+        Assert.assertNull(SkewedPartitionSplitter.detectSkew(reduceSizes, 10, 50));
+        Assert.assertNull(SkewedPartitionSplitter.detectSkew(new long[] {0, 0, 0}, 5, -1));
+    }
+
+    @Test
+    public void splitMapRangesTest()
+            throws IOException
+    {
+        Map<Integer, MapTaskState> mapStates = mapStates(new long[][] {{30, 1}, {30, 1}, {30, 1}, {30, 1}, {100, 1}});
+        List<int[]> ranges = SkewedPartitionSplitter.splitMapRanges(mapStates, 0, 60);
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertArrayEquals(new int[] {0, 2}, ranges.get(0));
+        Assert.assertArrayEquals(new int[] {2, 4}, ranges.get(1));
+        Assert.assertArrayEquals(new int[] {4, 5}, ranges.get(2));
+        //没有倾斜的reduce分区不拆分
+        ranges = SkewedPartitionSplitter.splitMapRanges(mapStates, 1, 60);
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertArrayEquals(new int[] {0, 5}, ranges.get(0));
+    }
+
+    @Test
+    public void innerJoinSplitBothSidesTest()
+            throws IOException
+    {
+        Map<Integer, Map<Integer, MapTaskState>> shuffleMapStates = new HashMap<>();
+        shuffleMapStates.put(LEFT_ID, mapStates(new long[][] {{1, 60}, {1, 60}, {1, 60}}));
+        shuffleMapStates.put(RIGHT_ID, mapStates(new long[][] {{1, 60}, {1, 60}}));
+        Map<Integer, boolean[]> skewed = new HashMap<>();
+        skewed.put(LEFT_ID, new boolean[] {false, true});
+        skewed.put(RIGHT_ID, new boolean[] {false, true});
+
+        Partition[] partitions = SkewedPartitionSplitter.splitJoin(ReduceUtil.JoinMode.INNER_JOIN, LEFT_ID, RIGHT_ID,
+                skewed, shuffleMapStates, 2, 60);
+        //reduce 0不拆分, reduce 1左边3段 x 右边2段
+        Assert.assertEquals(1 + 3 * 2, partitions.length);
+        Assert.assertFalse(partitions[0] instanceof SkewedPartition);
+        Assert.assertEquals(0, CoalescedPartition.startReduceId(partitions[0]));
+        Assert.assertEquals(1, CoalescedPartition.endReduceId(partitions[0]));
+        for (int i = 1; i < partitions.length; i++) {
+            Assert.assertEquals(i, partitions[i].getId());
+            Assert.assertEquals(1, ((SkewedPartition) partitions[i]).getReduceId());
+            int leftMap = (i - 1) / 2;
+            int rightMap = (i - 1) % 2;
+            Assert.assertEquals(leftMap, SkewedPartition.startMapId(partitions[i], LEFT_ID));
+            Assert.assertEquals(leftMap + 1, SkewedPartition.endMapId(partitions[i], LEFT_ID));
+            Assert.assertEquals(rightMap, SkewedPartition.startMapId(partitions[i], RIGHT_ID));
+            Assert.assertEquals(rightMap + 1, SkewedPartition.endMapId(partitions[i], RIGHT_ID));
+        }
+    }
+
+    @Test
+    public void outerJoinSplitSideTest()
+            throws IOException
+    {
+        Map<Integer, Map<Integer, MapTaskState>> shuffleMapStates = new HashMap<>();
+        shuffleMapStates.put(LEFT_ID, mapStates(new long[][] {{1, 60}, {1, 60}}));
+        shuffleMapStates.put(RIGHT_ID, mapStates(new long[][] {{1, 60}, {1, 60}}));
+        Map<Integer, boolean[]> skewed = new HashMap<>();
+        skewed.put(LEFT_ID, new boolean[] {false, true});
+        skewed.put(RIGHT_ID, new boolean[] {false, true});
+
+        //left join只能拆分左边, 右边复制到每个task
+        Partition[] partitions = SkewedPartitionSplitter.splitJoin(ReduceUtil.JoinMode.LEFT_JOIN, LEFT_ID, RIGHT_ID,
+                skewed, shuffleMapStates, 2, 60);
+        Assert.assertEquals(3, partitions.length);
+        for (int i = 1; i < partitions.length; i++) {
+            Assert.assertEquals(i - 1, SkewedPartition.startMapId(partitions[i], LEFT_ID));
+            Assert.assertEquals(0, SkewedPartition.startMapId(partitions[i], RIGHT_ID));
+            Assert.assertEquals(Integer.MAX_VALUE, SkewedPartition.endMapId(partitions[i], RIGHT_ID));
+        }
+
+        partitions = SkewedPartitionSplitter.splitJoin(ReduceUtil.JoinMode.RIGHT_JOIN, LEFT_ID, RIGHT_ID,
+                skewed, shuffleMapStates, 2, 60);
+        Assert.assertEquals(3, partitions.length);
+        for (int i = 1; i < partitions.length; i++) {
+            Assert.assertEquals(Integer.MAX_VALUE, SkewedPartition.endMapId(partitions[i], LEFT_ID));
+            Assert.assertEquals(i - 1, SkewedPartition.startMapId(partitions[i], RIGHT_ID));
+        }
+
+        //只有右边倾斜时left join不能拆分
+        skewed.remove(LEFT_ID);
+        Assert.assertNull(SkewedPartitionSplitter.splitJoin(ReduceUtil.JoinMode.LEFT_JOIN, LEFT_ID, RIGHT_ID,
+                skewed, shuffleMapStates, 2, 60));
+        //full join两边都不能拆分
+        skewed.put(LEFT_ID, new boolean[] {false, true});
+        Assert.assertNull(SkewedPartitionSplitter.splitJoin(ReduceUtil.JoinMode.FULL_JOIN, LEFT_ID, RIGHT_ID,
+                skewed, shuffleMapStates, 2, 60));
+    }
+
+    @Test
+    public void skewedJoinResultTest()
+            throws IOException
+    {
+        //leftMaps.get(mapId).get(reduceId)是该map输出到reduce分区的有序数据, key 0在reduce 0中倾斜
+        List<List<List<Tuple2<Integer, String>>>> leftMaps = new ArrayList<>();
+        for (int mapId = 0; mapId < 4; mapId++) {
+            List<Tuple2<Integer, String>> reduce0 = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                reduce0.add(Tuple2.of(0, "l" + mapId + "_" + i));
+            }
+            reduce0.add(Tuple2.of(2, "l" + mapId));
+            reduce0.add(Tuple2.of(4 + mapId * 2, "l" + mapId));
+            leftMaps.add(MutableList.of(reduce0, MutableList.of(Tuple2.of(1, "l" + mapId), Tuple2.of(3, "l" + mapId)),
+                    MutableList.of(Tuple2.of(6, "l" + mapId))));
+        }
+        List<List<List<Tuple2<Integer, String>>>> rightMaps = new ArrayList<>();
+        for (int mapId = 0; mapId < 3; mapId++) {
+            List<Tuple2<Integer, String>> reduce0 = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                reduce0.add(Tuple2.of(0, "r" + mapId + "_" + i));
+            }
+            reduce0.add(Tuple2.of(2, "r" + mapId));
+            reduce0.add(Tuple2.of(100 + mapId * 2, "r" + mapId));
+            rightMaps.add(MutableList.of(reduce0, MutableList.of(Tuple2.of(1, "r" + mapId), Tuple2.of(5, "r" + mapId)),
+                    MutableList.of(Tuple2.of(6, "r" + mapId))));
+        }
+        Map<Integer, Map<Integer, MapTaskState>> shuffleMapStates = new HashMap<>();
+        shuffleMapStates.put(LEFT_ID, mapStates(leftMaps));
+        shuffleMapStates.put(RIGHT_ID, mapStates(rightMaps));
+        Map<Integer, boolean[]> skewed = new HashMap<>();
+        skewed.put(LEFT_ID, SkewedPartitionSplitter.detectSkew(reduceSizes(leftMaps), 5, 100));
+        skewed.put(RIGHT_ID, SkewedPartitionSplitter.detectSkew(reduceSizes(rightMaps), 5, 100));
+        Assert.assertArrayEquals(new boolean[] {true, false, false}, skewed.get(LEFT_ID));
+        Assert.assertArrayEquals(new boolean[] {true, false, false}, skewed.get(RIGHT_ID));
+
+        for (ReduceUtil.JoinMode joinMode : ReduceUtil.JoinMode.values()) {
+            Partition[] partitions = SkewedPartitionSplitter.splitJoin(joinMode, LEFT_ID, RIGHT_ID, skewed, shuffleMapStates, 3, 600);
+            if (joinMode == ReduceUtil.JoinMode.FULL_JOIN) {
+                Assert.assertNull(partitions);
+                continue;
+            }
+            Assert.assertTrue(partitions.length > 3);
+            List<String> expected = new ArrayList<>();
+            for (int reduceId = 0; reduceId < 3; reduceId++) {
+                expected.addAll(join(joinMode, leftMaps, rightMaps, new Partition(reduceId)));
+            }
+            List<String> actual = new ArrayList<>();
+            for (Partition partition : partitions) {
+                actual.addAll(join(joinMode, leftMaps, rightMaps, partition));
+            }
+            expected.sort(Comparator.naturalOrder());
+            actual.sort(Comparator.naturalOrder());
+            Assert.assertEquals(joinMode.toString(), expected, actual);
+        }
+    }
+
+    private static List<String> join(ReduceUtil.JoinMode joinMode,
+            List<List<List<Tuple2<Integer, String>>>> leftMaps,
+            List<List<List<Tuple2<Integer, String>>>> rightMaps,
+            Partition partition)
+    {
+        int reduceId = CoalescedPartition.startReduceId(partition);
+        List<Tuple2<Integer, String>> left = read(leftMaps, reduceId,
+                SkewedPartition.startMapId(partition, LEFT_ID), SkewedPartition.endMapId(partition, LEFT_ID));
+        List<Tuple2<Integer, String>> right = read(rightMaps, reduceId,
+                SkewedPartition.startMapId(partition, RIGHT_ID), SkewedPartition.endMapId(partition, RIGHT_ID));
+        List<String> rows = new ArrayList<>();
+        ReduceUtil.mergeJoin(joinMode, Integer::compare, left.iterator(), right.iterator())
+                .forEachRemaining(row -> rows.add(String.valueOf(row)));
+        return rows;
+    }
+
+    /**
+     * 读取[startMapId, endMapId)的map输出并按key排序
+     */
+    private static List<Tuple2<Integer, String>> read(List<List<List<Tuple2<Integer, String>>>> maps, int reduceId, int startMapId, int endMapId)
+    {
+        List<Tuple2<Integer, String>> rows = new ArrayList<>();
+        for (int mapId = startMapId; mapId < Math.min(endMapId, maps.size()); mapId++) {
+            rows.addAll(maps.get(mapId).get(reduceId));
+        }
+        rows.sort(Comparator.comparing(Tuple2::key));
+        return rows;
+    }
+
+    private static long[] reduceSizes(List<List<List<Tuple2<Integer, String>>>> maps)
+    {
+        long[] reduceSizes = new long[maps.get(0).size()];
+        for (List<List<Tuple2<Integer, String>>> map : maps) {
+            for (int reduceId = 0; reduceId < reduceSizes.length; reduceId++) {
+                reduceSizes[reduceId] += map.get(reduceId).size() * 10L;
+            }
+        }
+        return reduceSizes;
+    }
+
+    /**
+     * 每行按10字节计算
+     */
+    private static Map<Integer, MapTaskState> mapStates(List<List<List<Tuple2<Integer, String>>>> maps)
+            throws IOException
+    {
+        long[][] segmentSizes = maps.stream()
+                .map(map -> map.stream().mapToLong(rows -> rows.size() * 10L).toArray())
+                .collect(Collectors.toList()).toArray(new long[0][]);
+        return mapStates(segmentSizes);
+    }
+
+    /**
+     * @param segmentSizes mapId -> reduceId -> 数据大小
+     */
+    private static Map<Integer, MapTaskState> mapStates(long[][] segmentSizes)
+            throws IOException
+    {
+        Map<Integer, MapTaskState> mapStates = new HashMap<>();
+        for (int mapId = 0; mapId < segmentSizes.length; mapId++) {
+            long[] sizes = segmentSizes[mapId];
+            //header = int(segmentSize) + byte(codecId) + segmentSize * (long(segmentEnd) + long(rowCount))
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + 1 + sizes.length * 2 * Long.BYTES);
+            header.putInt(sizes.length);
+            header.put((byte) 0);
+            long segmentEnd = 0;
+            for (long size : sizes) {
+                segmentEnd += size;
+                header.putLong(segmentEnd);
+                header.putLong(size / 10);
+            }
+            mapStates.put(mapId, serialize(new MapTaskState(header, mapId)));
+        }
+        return mapStates;
+    }
+
+    /**
+     * driver收到的MapTaskState是反序列化后解析了header的
+     */
+    private static MapTaskState serialize(MapTaskState mapTaskState)
+            throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream)) {
+            objectOutput.writeObject(mapTaskState);
+        }
+        try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            return (MapTaskState) objectInput.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
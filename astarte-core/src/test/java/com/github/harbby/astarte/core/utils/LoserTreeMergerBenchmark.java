@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.gadtry.base.Iterators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比PriorityQueue归并(gadtry Iterators.mergeSorted)和败者树归并在不同输入路数下的吞吐
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LoserTreeMergerBenchmark
+{
+    private static final int ROW_COUNT = 1_000_000;
+    private static final Comparator<Long> COMPARATOR = Long::compare;
+
+    @Param({"10", "100", "1000"})
+    private int fanIn;
+
+    private List<Tuple2<Long, Long>[]> inputs;
+
+    @SuppressWarnings("unchecked")
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(0);
+        inputs = new ArrayList<>(fanIn);
+        for (int i = 0; i < fanIn; i++) {
+            long[] keys = random.longs(ROW_COUNT / fanIn, 0, Long.MAX_VALUE).toArray();
+            Arrays.sort(keys);
+            Tuple2<Long, Long>[] input = new Tuple2[keys.length];
+            for (int j = 0; j < keys.length; j++) {
+                input[j] = Tuple2.of(keys[j], (long) i);
+            }
+            inputs.add(input);
+        }
+    }
+
+    private List<Iterator<Tuple2<Long, Long>>> iterators()
+    {
+        List<Iterator<Tuple2<Long, Long>>> iterators = new ArrayList<>(fanIn);
+        for (Tuple2<Long, Long>[] input : inputs) {
+            iterators.add(Arrays.asList(input).iterator());
+        }
+        return iterators;
+    }
+
+    @Benchmark
+    public void priorityQueue(Blackhole blackhole)
+    {
+        Iterator<Tuple2<Long, Long>> merger = Iterators.mergeSorted((x, y) -> COMPARATOR.compare(x.key(), y.key()), iterators());
+        while (merger.hasNext()) {
+            blackhole.consume(merger.next());
+        }
+    }
+
+    @Benchmark
+    public void loserTree(Blackhole blackhole)
+    {
+        Iterator<Tuple2<Long, Long>> merger = LoserTreeMerger.mergeSorted(COMPARATOR, iterators());
+        while (merger.hasNext()) {
+            blackhole.consume(merger.next());
+        }
+    }
+
+    @Benchmark
+    public void loserTreeWithPrefix(Blackhole blackhole)
+    {
+        //key都是非负数, 可以直接作为无符号前缀
+        Iterator<Tuple2<Long, Long>> merger = LoserTreeMerger.mergeSorted(COMPARATOR, key -> key, iterators());
+        while (merger.hasNext()) {
+            blackhole.consume(merger.next());
+        }
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(LoserTreeMergerBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class LoserTreeMergerTest
+{
+    @Test
+    public void mergeSortedTest()
+    {
+        Random random = new Random(0);
+        for (int fanIn : new int[] {0, 1, 2, 3, 7, 100}) {
+            List<List<Tuple2<Integer, Integer>>> inputs = createInputs(random, fanIn);
+            checkMerge(inputs, null);
+            checkMerge(inputs, key -> key / 16);
+        }
+    }
+
+    @Test
+    public void mergeSortedStableTest()
+    {
+        List<List<Tuple2<Integer, Integer>>> inputs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            List<Tuple2<Integer, Integer>> input = new ArrayList<>();
+            input.add(Tuple2.of(1, i));
+            input.add(Tuple2.of(2, i));
+            inputs.add(input);
+        }
+        Iterator<Tuple2<Integer, Integer>> merger = LoserTreeMerger.mergeSorted(Integer::compare, iterators(inputs));
+        for (int key = 1; key <= 2; key++) {
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(Tuple2.of(key, i), merger.next());
+            }
+        }
+        Assert.assertFalse(merger.hasNext());
+    }
+
+    private static void checkMerge(List<List<Tuple2<Integer, Integer>>> inputs, LoserTreeMerger.PrefixComputer<Integer> prefixComputer)
+    {
+        List<Tuple2<Integer, Integer>> expected = new ArrayList<>();
+        inputs.forEach(expected::addAll);
+        expected.sort(Comparator.comparing(Tuple2::key));
+
+        List<Tuple2<Integer, Integer>> result = new ArrayList<>();
+        LoserTreeMerger.mergeSorted(Integer::compare, prefixComputer, iterators(inputs)).forEachRemaining(result::add);
+        Assert.assertEquals(expected.size(), result.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).key(), result.get(i).key());
+        }
+    }
+
+    private static List<List<Tuple2<Integer, Integer>>> createInputs(Random random, int fanIn)
+    {
+        List<List<Tuple2<Integer, Integer>>> inputs = new ArrayList<>(fanIn);
+        for (int i = 0; i < fanIn; i++) {
+            //包含空输入
+            int size = random.nextInt(4) == 0 ? 0 : random.nextInt(200);
+            List<Tuple2<Integer, Integer>> input = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                input.add(Tuple2.of(random.nextInt(1000), i));
+            }
+            input.sort(Comparator.comparing(Tuple2::key));
+            inputs.add(input);
+        }
+        return inputs;
+    }
+
+    private static <T> List<Iterator<T>> iterators(List<List<T>> inputs)
+    {
+        List<Iterator<T>> iterators = new ArrayList<>(inputs.size());
+        for (List<T> input : inputs) {
+            iterators.add(input.iterator());
+        }
+        return iterators;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import com.github.harbby.astarte.core.api.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class OpenHashAggregationMapTest
+{
+    @Test
+    public void wordCountTest()
+    {
+        OpenHashAggregationMap<String, Integer> aggregationMap = new OpenHashAggregationMap<>(Integer::sum);
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            String word = i % 7 == 0 ? null : "word" + (i % 5000);
+            aggregationMap.update(word, 1);
+            expected.merge(word, 1, Integer::sum);
+        }
+        Assert.assertEquals(expected.size(), aggregationMap.size());
+
+        Map<String, Integer> result = new HashMap<>();
+        Iterator<Tuple2<String, Integer>> iterator = aggregationMap.iterator();
+        while (iterator.hasNext()) {
+            Tuple2<String, Integer> kv = iterator.next();
+            Assert.assertNull(result.put(kv.key(), kv.value()));
+        }
+        Assert.assertEquals(expected, result);
+
+        aggregationMap.clear();
+        Assert.assertTrue(aggregationMap.isEmpty());
+        Assert.assertFalse(aggregationMap.iterator().hasNext());
+    }
+}
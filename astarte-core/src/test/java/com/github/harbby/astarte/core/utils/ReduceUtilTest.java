@@ -16,11 +16,18 @@
 package com.github.harbby.astarte.core.utils;
 
 import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.coders.Encoder;
+import com.github.harbby.astarte.core.coders.Encoders;
+import com.github.harbby.astarte.core.coders.io.BlockCodecs;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
 import com.github.harbby.gadtry.base.Iterators;
 import com.github.harbby.gadtry.collection.MutableList;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -117,4 +124,89 @@ public class ReduceUtilTest
                 Tuple2.of(8, Tuple2.of("v1_8", "v2_8"))
         ), data);
     }
+
+    @Test
+    public void innerMergeJoinSpillTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("join_buffer_test").toFile();
+        Iterator<Tuple2<Integer, String>> left = Iterators.of(
+                Tuple2.of(1, "v1_1"),
+                Tuple2.of(2, "v1_2_1"),
+                Tuple2.of(2, "v1_2_2"),
+                Tuple2.of(2, "v1_2_3"),
+                Tuple2.of(8, "v1_8"));
+        Iterator<Tuple2<Integer, String>> right = Iterators.of(
+                Tuple2.of(2, "v2_2_1"),
+                Tuple2.of(2, "v2_2_2"),
+                Tuple2.of(8, "v2_8"));
+        SpillableRowBuffer<Tuple2<Integer, String>> buffer = new SpillableRowBuffer<>(
+                Encoders.tuple2(Encoders.jInt(), Encoders.UTF8String()), spillDir, 2, BlockCodecs.lz4());
+        Iterator<Tuple2<Integer, Tuple2<String, String>>> rs = ReduceUtil.mergeJoin(ReduceUtil.JoinMode.INNER_JOIN, Integer::compare, left, right, buffer);
+        List<Tuple2<Integer, Tuple2<String, String>>> data = MutableList.copy(rs);
+        Assert.assertEquals(Arrays.asList(
+                Tuple2.of(2, Tuple2.of("v1_2_1", "v2_2_1")),
+                Tuple2.of(2, Tuple2.of("v1_2_2", "v2_2_1")),
+                Tuple2.of(2, Tuple2.of("v1_2_3", "v2_2_1")),
+                Tuple2.of(2, Tuple2.of("v1_2_1", "v2_2_2")),
+                Tuple2.of(2, Tuple2.of("v1_2_2", "v2_2_2")),
+                Tuple2.of(2, Tuple2.of("v1_2_3", "v2_2_2")),
+                Tuple2.of(8, Tuple2.of("v1_8", "v2_8"))
+        ), data);
+        //读取结束后溢写文件已经删除
+        Assert.assertEquals(0, spillDir.list().length);
+        Assert.assertTrue(spillDir.delete());
+    }
+
+    @Test
+    public void mergeJoinMemoryLimitSpillTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("join_buffer_test").toFile();
+        Iterator<Tuple2<Integer, String>> left = Iterators.of(
+                Tuple2.of(2, "v1_2_1"),
+                Tuple2.of(2, "v1_2_2"),
+                Tuple2.of(3, "v1_3"));
+        Iterator<Tuple2<Integer, String>> right = Iterators.of(
+                Tuple2.of(2, "v2_2"),
+                Tuple2.of(3, "v2_3"));
+        //task内存不足时不等行数达到阈值就溢写
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(1024);
+        SpillableRowBuffer<Tuple2<Integer, String>> buffer = new SpillableRowBuffer<>(
+                Encoders.tuple2(Encoders.jInt(), Encoders.UTF8String()), spillDir, Integer.MAX_VALUE, BlockCodecs.lz4(), taskMemoryManager);
+        Iterator<Tuple2<Integer, Tuple2<String, String>>> rs = ReduceUtil.mergeJoin(ReduceUtil.JoinMode.INNER_JOIN, Integer::compare, left, right, buffer);
+        Assert.assertTrue(rs.hasNext());
+        Assert.assertTrue(buffer.isSpilled());
+        Assert.assertEquals(0, taskMemoryManager.getUsed());
+        List<Tuple2<Integer, Tuple2<String, String>>> data = MutableList.copy(rs);
+        Assert.assertEquals(Arrays.asList(
+                Tuple2.of(2, Tuple2.of("v1_2_1", "v2_2")),
+                Tuple2.of(2, Tuple2.of("v1_2_2", "v2_2")),
+                Tuple2.of(3, Tuple2.of("v1_3", "v2_3"))
+        ), data);
+        Assert.assertEquals(0, spillDir.list().length);
+        Assert.assertTrue(spillDir.delete());
+    }
+
+    @Test
+    public void sameJoinSpillTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("join_buffer_test").toFile();
+        Iterator<Tuple2<String, Integer>> iterator = Iterators.of(
+                Tuple2.of("hp", 8),
+                Tuple2.of("hp", 10),
+                Tuple2.of("hp", 12),
+                Tuple2.of("hp1", 19));
+        @SuppressWarnings("unchecked")
+        Encoder<Tuple2<String, ?>> encoder = (Encoder<Tuple2<String, ?>>) (Encoder<?>) Encoders.tuple2(Encoders.UTF8String(), Encoders.jInt());
+        SpillableRowBuffer<Tuple2<String, ?>> buffer = new SpillableRowBuffer<>(encoder, spillDir, 2, BlockCodecs.none());
+        Iterator<Tuple2<String, Tuple2<Integer, Integer>>> rs = ReduceUtil.sameJoin(iterator, buffer);
+        List<Tuple2<String, Tuple2<Integer, Integer>>> data = MutableList.copy(rs);
+        Assert.assertEquals(10, data.size());
+        Assert.assertEquals(Tuple2.of("hp", Tuple2.of(12, 10)), data.get(7));
+        Assert.assertEquals(Tuple2.of("hp1", Tuple2.of(19, 19)), data.get(9));
+        Assert.assertEquals(0, spillDir.list().length);
+        Assert.assertTrue(spillDir.delete());
+    }
 }
@@ -19,9 +19,9 @@ import com.github.harbby.astarte.core.BatchContext;
 import com.github.harbby.astarte.core.api.DataSet;
 import com.github.harbby.astarte.core.api.KvDataSet;
 import com.github.harbby.astarte.core.api.Tuple2;
+import com.github.harbby.astarte.core.operator.CacheManager;
 import com.github.harbby.gadtry.collection.MutableList;
 
-import java.util.Iterator;
 import java.util.List;
 
 public class PageRank
@@ -36,15 +36,19 @@ public class PageRank
 
         DataSet<String> lines = mppContext.textFile(sparkHome + "/data/mllib/pagerank_data.txt");
 
-        KvDataSet<String, Iterator<String>> links = lines.kvDataSet(s -> {
+        KvDataSet<String, List<String>> links = lines.kvDataSet(s -> {
             String[] parts = s.split("\\s+");
             return Tuple2.of(parts[0], parts[1]);
-        }).cache().union(mppContext.makeEmptyDataSet()).mapValues(x -> x).groupByKey().cache();
+        }).cache().union(mppContext.makeEmptyDataSet()).mapValues(x -> x).groupByKey()
+                //groupByKey的values只能遍历一次, 缓存对象前需要先物化
+                .mapValues(MutableList::copy)
+                //每次迭代都会读取links, 缓存对象避免重复解码
+                .cache(CacheManager.CacheMode.MEM_ONLY_DESERIALIZED);
 
         KvDataSet<String, Double> ranks = links.mapValues(v -> 1.0);
         for (int i = 1; i <= iters; i++) {
             DataSet<Tuple2<String, Double>> contribs = links.join(ranks).values().flatMapIterator(it -> {
-                List<String> urls = MutableList.copy(it.key());
+                List<String> urls = it.key();
                 Double rank = it.value();
 
                 long size = urls.size();